@@ -14,6 +14,8 @@ import java.awt.image.Raster;
 import java.awt.image.WritableRaster;
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.stream.IntStream;
 
 import javax.imageio.ImageIO;
 
@@ -48,11 +50,33 @@ public class ColorConvertTools {
 	 * 	tmpColor = dstColorSpace.fromCIEXYZ(tmpColor); //Transform CIEXYZ to CS
 	 * </code></p>
 	 *
+	 * <p>
+	 * The image is processed by rows, and the colors already converted are
+	 * kept in a table (see {@link ColorTable}), so each different color is
+	 * converted only once with {@link ColorSpace#fromRGB(float[])} (the result
+	 * is exactly the same as converting each pixel).
+	 * </p>
+	 *
 	 * @param 	src 	The source image with type {@link BufferedImage#TYPE_INT_ARGB} or {@link BufferedImage#TYPE_INT_RGB}
 	 * @param 	dstCs 	A color Space instance of {@link ColorSpaceJMR}.
 	 * @return			An ImageJMR object 
 	 */
 	public static JMRExtendedBufferedImage colorConvertOp(BufferedImage src, ColorSpace dstCs) {
+          return colorConvertOp(src, dstCs, false);
+        }
+
+	/**
+	 * Converts the given image to the given color space, as
+	 * {@link #colorConvertOp(BufferedImage, ColorSpace)}, optionally
+	 * converting bands of rows in parallel (by the threads of the common
+	 * pool). The result is the same in both cases.
+	 *
+	 * @param 	src 	The source image
+	 * @param 	dstCs 	A color Space instance of {@link ColorSpaceJMR}.
+	 * @param 	parallel 	<tt>true</tt> if the bands of rows are converted in parallel
+	 * @return			An ImageJMR object 
+	 */
+	public static JMRExtendedBufferedImage colorConvertOp(BufferedImage src, ColorSpace dstCs, boolean parallel) {
 
 
           //Create destination following the colorSpace.
@@ -76,21 +100,13 @@ public class ColorConvertTools {
 
           //Check that source is not Gray nor Custom
           if (src.getType() != BufferedImage.TYPE_CUSTOM) {
-            //ColorSpace dstCs = dst.getColorModel().getColorSpace();
-            int RGB;
-            float[] p_in = new float[3];
-            float[] p_out = new float[dstMx.getNumBands()];
-            //float[] p_prueba = new float[3];
-            for (int x = 0; x < src.getWidth(); x++) {
-              for (int y = 0; y < src.getHeight(); y++) {
-                RGB = src.getRGB(x, y);
-                p_in[0] = (float) ( (RGB >> 16) & 0xFF) / 255.0f;
-                p_in[1] = (float) ( (RGB >> 8) & 0xFF) / 255.0f;
-                p_in[2] = (float) (RGB & 0xFF) / 255.0f;
-                p_out = dstCs.fromRGB(p_in);
-                dstMx.setPixel(x, y, p_out);
-                //p_prueba = dstCs.toRGB(p_out);
-              }
+            int height = src.getHeight();
+            if (parallel && height > BAND_HEIGHT) {
+              int bands = (height + BAND_HEIGHT - 1) / BAND_HEIGHT;
+              IntStream.range(0, bands).parallel().forEach(b ->
+                  convertRows(src, dstCs, dstMx, b * BAND_HEIGHT, Math.min(height, (b + 1) * BAND_HEIGHT)));
+            } else {
+              convertRows(src, dstCs, dstMx, 0, height);
             }
           }
 
@@ -137,6 +153,105 @@ public class ColorConvertTools {
           return dst;
         }
 
+        /**
+         * Number of rows of the bands converted in parallel.
+         */
+        private static final int BAND_HEIGHT = 64;
+
+        /**
+         * Converts the rows of the source image in the given range, writing the
+         * converted pixels in the destination raster.
+         *
+         * @param src the source image
+         * @param dstCs the destination color space
+         * @param dstMx the destination raster (with the size of the source)
+         * @param yStart the first row
+         * @param yEnd the last row (exclusive)
+         */
+        private static void convertRows(BufferedImage src, ColorSpace dstCs, WritableRaster dstMx,
+                                        int yStart, int yEnd) {
+          int width = src.getWidth();
+          int numBands = dstMx.getNumBands();
+          int[] rgbRow = new int[width];
+          float[] dstRow = new float[width * numBands];
+          ColorTable table = new ColorTable(dstCs, numBands);
+          for (int y = yStart; y < yEnd; y++) {
+            src.getRGB(0, y, width, 1, rgbRow, 0, width);
+            for (int x = 0, i = 0; x < width; x++, i += numBands) {
+              table.convert(rgbRow[x], dstRow, i);
+            }
+            dstMx.setPixels(0, y, width, 1, dstRow);
+          }
+        }
+
+        /**
+         * Table of the colors converted to a color space.
+         *
+         * <p>
+         * It is a direct-mapped table indexed by a hash of the RGB value: a
+         * color is converted with {@link ColorSpace#fromRGB(float[])} only if
+         * it is not in its entry, replacing the previous one. Natural images
+         * have many pixels with repeated colors (and the neighbour pixels
+         * often share the color), so most of them are found in the table.
+         * </p>
+         */
+        private static class ColorTable {
+          /**
+           * Number of bits of the entry indexes.
+           */
+          private static final int BITS = 12;
+          /**
+           * RGB value of each entry (-1 if the entry is empty).
+           */
+          private final int[] keys = new int[1 << BITS];
+          /**
+           * Converted values of each entry.
+           */
+          private final float[] values;
+          /**
+           * Destination color space.
+           */
+          private final ColorSpace cs;
+          /**
+           * Number of components of the converted values.
+           */
+          private final int numBands;
+          /**
+           * Normalized RGB components, as given to the color space.
+           */
+          private final float[] p_in = new float[3];
+
+          ColorTable(ColorSpace cs, int numBands) {
+            this.cs = cs;
+            this.numBands = numBands;
+            this.values = new float[keys.length * numBands];
+            Arrays.fill(keys, -1);
+          }
+
+          /**
+           * Writes the converted components of the given RGB value in the
+           * given array.
+           *
+           * @param RGB the packed RGB value (the alpha is ignored)
+           * @param dst the destination array
+           * @param offset the position of the first component in the array
+           */
+          void convert(int RGB, float[] dst, int offset) {
+            RGB &= 0xFFFFFF;
+            int entry = (RGB * 0x9E3779B1) >>> (32 - BITS);
+            int base = entry * numBands;
+            if (keys[entry] != RGB) {
+              p_in[0] = (float) ( (RGB >> 16) & 0xFF) / 255.0f;
+              p_in[1] = (float) ( (RGB >> 8) & 0xFF) / 255.0f;
+              p_in[2] = (float) (RGB & 0xFF) / 255.0f;
+              float[] p_out = cs.fromRGB(p_in);
+              System.arraycopy(p_out, 0, values, base, numBands);
+              keys[entry] = RGB;
+            }
+            System.arraycopy(values, base, dst, offset, numBands);
+          }
+        }
+
         /**
          * A domain transform function. Transform a value in [a,b] domain to [c,d] domain
          *
@@ -0,0 +1,42 @@
+package jmr.db;
+
+import java.security.InvalidParameterException;
+
+/**
+ * Capacity of the growing arrays of the indexes, where each item is stored as
+ * a block of consecutive values.
+ *
+ * @author Jesús Chamorro Martínez (jesus@decsai.ugr.es)
+ */
+class ArrayCapacity {
+    /**
+     * Maximum size of the arrays (some virtual machines reserve header words
+     * in the arrays).
+     */
+    static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    /**
+     * This class can not be instantiated.
+     */
+    private ArrayCapacity() {
+    }
+
+    /**
+     * Returns the new length of an array that stores items of
+     * <code>width</code> values, when it has to hold <code>size + 1</code>
+     * items. The array grows by half of its items (at least sixteen), without
+     * exceeding the maximum size of an array.
+     *
+     * @param size the number of items in the array
+     * @param width the number of values of each item
+     * @return the new length of the array
+     * @throws InvalidParameterException if the items do not fit in an array.
+     */
+    static int grow(int size, int width) {
+        long limit = MAX_ARRAY_SIZE / width;
+        if (size + 1L > limit) {
+            throw new InvalidParameterException("An index with items of " + width + " values can not hold more than " + limit + " items.");
+        }
+        return (int) (Math.min(Math.max(size + (size >> 1) + 1L, 16L), limit) * width);
+    }
+}
@@ -0,0 +1,399 @@
+package jmr.db;
+
+import java.security.InvalidParameterException;
+import java.util.List;
+import jmr.descriptor.DescriptorList;
+import jmr.descriptor.MediaDescriptor;
+import jmr.descriptor.color.MPEG7ColorStructure;
+import jmr.descriptor.color.MPEG7ScalableColor;
+import jmr.tools.DistanceTools;
+
+/**
+ * Columnar layout of the descriptors of a list of records.
+ *
+ * For each descriptor position in the records, the features of all the
+ * records are packed in a single contiguous array of size n × dim (n being the
+ * number of records and dim the descriptor dimension), so the distance to a
+ * query is calculated by scanning sequentially that array instead of following
+ * the references of every record and descriptor object.
+ *
+ * Only the descriptors with a well-known feature vector are packed (currently,
+ * {@link MPEG7ScalableColor} and {@link MPEG7ColorStructure}, when all the
+ * records share the same descriptor parameters). The rest of positions keep
+ * using the descriptor objects, so this layout is valid for any database. The
+ * distances calculated are the same (bit to bit) than the ones given by
+ * {@link DescriptorList.DefaultComparator}. In the searches of the nearest
+ * records, the distance to each record may be abandoned once it exceeds the
+ * bound of the search, so the rest of its columns are not visited (see
+ * {@link #distance(DescriptorList, int, double)}).
+ *
+ * This class is an immutable snapshot of the records: it have to be rebuilt
+ * when the records change.
+ *
+ * @author Jesús Chamorro Martínez (jesus@decsai.ugr.es)
+ */
+class ColumnarStore {
+    /**
+     * Version of the records (in the database) associated to this snapshot.
+     */
+    final int version;
+    /**
+     * Number of records.
+     */
+    final int size;
+    /**
+     * Columns of this store (one for each descriptor position).
+     */
+    private final Column columns[];
+
+    /**
+     * Constructs the columnar layout of the given records. All the records
+     * have to share the same structure.
+     *
+     * @param records the records to be packed
+     * @param numDescriptors the number of descriptors of each record
+     * @param version the version of the records
+     */
+    ColumnarStore(List<? extends DescriptorList> records, int numDescriptors, int version) {
+        this.version = version;
+        this.size = records.size();
+        this.columns = new Column[numDescriptors];
+        for (int d = 0; d < numDescriptors; d++) {
+            columns[d] = ScalableColorColumn.build(records, d);
+            if (columns[d] == null) {
+                columns[d] = ColorStructureColumn.build(records, d);
+            }
+            if (columns[d] == null) {
+                columns[d] = new ObjectColumn(records, d);
+            }
+        }
+    }
+
+    /**
+     * Returns <tt>true</tt> if the distances to the given query can be
+     * calculated using this layout. It is the case if the query uses the
+     * default comparator of the descriptor lists and if each query descriptor
+     * is compatible with its column.
+     *
+     * @param query the query
+     * @return <tt>true</tt> if this layout can be used with the given query
+     */
+    boolean accepts(DescriptorList query) {
+        if (!(query.getComparator() instanceof DescriptorList.DefaultComparator) ||
+                query.size() != columns.length) {
+            return false;
+        }
+        for (int d = 0; d < columns.length; d++) {
+            if (!columns[d].accepts(query.get(d))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Calculates the distance between the given query and the records in the
+     * given range of positions, following the Euclidean aggregation of
+     * {@link DescriptorList.DefaultComparator}. The query have to be accepted
+     * by this layout.
+     *
+     * @param query the query
+     * @param distances the array where the distances are stored
+     * @param from the first position (inclusive)
+     * @param to the last position (exclusive)
+     */
+    void distances(DescriptorList query, double distances[], int from, int to) {
+        distances(query, distances, from, to, 0);
+    }
+
+    /**
+     * Calculates the distance between the given query and the records in the
+     * given range of positions, storing the distance of the i-th record at the
+     * position <code>i-offset</code> of the given array. The query have to be
+     * accepted by this layout.
+     *
+     * @param query the query
+     * @param distances the array where the distances are stored
+     * @param from the first position (inclusive)
+     * @param to the last position (exclusive)
+     * @param offset the offset of the positions in the array of distances
+     */
+    void distances(DescriptorList query, double distances[], int from, int to, int offset) {
+        for (int i = from - offset; i < to - offset; i++) {
+            distances[i] = 0.0;
+        }
+        // Column by column, so each feature array is scanned sequentially
+        for (int d = 0; d < columns.length; d++) {
+            columns[d].accumulate(query.get(d), distances, from, to, offset);
+        }
+        for (int i = from - offset; i < to - offset; i++) {
+            distances[i] = Math.sqrt(distances[i]);
+        }
+    }
+
+    /**
+     * Calculates the distance between the given query and the record at the
+     * given position, when it is needed only if it is not greater than the 
+     * given bound (see
+     * {@link DescriptorList.DefaultComparator#apply(DescriptorList, DescriptorList, double)}).
+     * The calculation is abandoned as soon as the partial sum exceeds the 
+     * bound, so the columns after that are not visited. If the distance is not
+     * greater than the bound, it is the same (bit to bit) than the one given
+     * by {@link #distances(DescriptorList, double[], int, int)}. The query 
+     * have to be accepted by this layout.
+     *
+     * @param query the query
+     * @param index the position of the record
+     * @param bound the bound of the needed distance
+     * @return the distance, or a value greater than the bound
+     */
+    double distance(DescriptorList query, int index, double bound) {
+        double item_distance, item_bound, partial, sum = 0.0;
+        for (int d = 0; d < columns.length; d++) {
+            item_bound = Math.sqrt(Math.max(bound * bound - sum, 0.0));
+            item_distance = columns[d].distance(query.get(d), index, item_bound);
+            partial = sum + item_distance * item_distance;
+            if (item_distance > item_bound && Math.sqrt(partial) <= bound) {
+                // Abandoned because of rounding errors in the item bound
+                item_distance = columns[d].distance(query.get(d), index, Double.POSITIVE_INFINITY);
+                partial = sum + item_distance * item_distance;
+            }
+            sum = partial;
+            if (bound < Double.POSITIVE_INFINITY && Math.sqrt(sum) > bound) {
+                return Math.sqrt(sum); // The rest of columns are not needed
+            }
+        }
+        return Math.sqrt(sum);
+    }
+
+    /**
+     * A column of descriptors (the ones at the same position in all the
+     * records).
+     */
+    static abstract class Column {
+        /**
+         * Returns <tt>true</tt> if the given query descriptor can be compared
+         * with the descriptors in this column.
+         *
+         * @param descriptor the query descriptor
+         * @return <tt>true</tt> if the query descriptor is compatible
+         */
+        abstract boolean accepts(MediaDescriptor descriptor);
+
+        /**
+         * Adds the squared distance between the query descriptor and the
+         * descriptors of this column in the given range to the given sums (the
+         * one of the i-th descriptor at the position <code>i-offset</code>).
+         *
+         * @param descriptor the query descriptor
+         * @param sums the array of sums
+         * @param from the first position (inclusive)
+         * @param to the last position (exclusive)
+         * @param offset the offset of the positions in the array of sums
+         */
+        abstract void accumulate(MediaDescriptor descriptor, double sums[], int from, int to, int offset);
+
+        /**
+         * Returns the distance between the query descriptor and the one of 
+         * this column at the given position, or a value greater than the 
+         * given bound if the comparison is abandoned (see
+         * {@link MediaDescriptor#compare(MediaDescriptor, double)}).
+         *
+         * @param descriptor the query descriptor
+         * @param index the position in this column
+         * @param bound the bound of the needed distance
+         * @return the distance, or a value greater than the bound
+         */
+        abstract double distance(MediaDescriptor descriptor, int index, double bound);
+    }
+
+    /**
+     * Column of {@link MPEG7ScalableColor} descriptors, packed as an array of
+     * Haar coefficients.
+     */
+    static class ScalableColorColumn extends Column {
+        private final int dim, bitPlanes;
+        private final int data[];
+
+        private ScalableColorColumn(int dim, int bitPlanes, int size) {
+            this.dim = dim;
+            this.bitPlanes = bitPlanes;
+            this.data = new int[size * dim];
+        }
+
+        /**
+         * Builds the column associated to the given descriptor position.
+         *
+         * @param records the records
+         * @param d the descriptor position
+         * @return the column, or <tt>null</tt> if the descriptors at that
+         * position can not be packed.
+         */
+        static ScalableColorColumn build(List<? extends DescriptorList> records, int d) {
+            ScalableColorColumn column = null;
+            for (int i = 0; i < records.size(); i++) {
+                MediaDescriptor descriptor = records.get(i).get(d);
+                if (!(descriptor instanceof MPEG7ScalableColor)) {
+                    return null;
+                }
+                MPEG7ScalableColor sc = (MPEG7ScalableColor) descriptor;
+                int coefficients[] = sc.getCoefficients();
+                if (coefficients == null) {
+                    return null;
+                }
+                if (column == null) {
+                    column = new ScalableColorColumn(sc.getNumCoefficients(), sc.getNumBitPlanesDiscarded(), records.size());
+                } else if (column.dim != sc.getNumCoefficients() || column.bitPlanes != sc.getNumBitPlanesDiscarded()) {
+                    return null;
+                }
+                System.arraycopy(coefficients, 0, column.data, i * column.dim, column.dim);
+            }
+            return column;
+        }
+
+        @Override
+        boolean accepts(MediaDescriptor descriptor) {
+            if (!(descriptor instanceof MPEG7ScalableColor)) {
+                return false;
+            }
+            MPEG7ScalableColor sc = (MPEG7ScalableColor) descriptor;
+            return sc.getNumCoefficients() == dim && sc.getNumBitPlanesDiscarded() == bitPlanes
+                    && sc.getCoefficients() != null;
+        }
+
+        @Override
+        void accumulate(MediaDescriptor descriptor, double sums[], int from, int to, int offset) {
+            int query[] = ((MPEG7ScalableColor) descriptor).getCoefficients();
+            for (int i = from, base = from * dim; i < to; i++, base += dim) {
+                long l1 = DistanceTools.l1(query, 0, data, base, dim);
+                double distance = l1;
+                sums[i - offset] += distance * distance;
+            }
+        }
+
+        @Override
+        double distance(MediaDescriptor descriptor, int index, double bound) {
+            int query[] = ((MPEG7ScalableColor) descriptor).getCoefficients();
+            return DistanceTools.l1(query, 0, data, index * dim, dim);
+        }
+    }
+
+    /**
+     * Column of {@link MPEG7ColorStructure} descriptors, packed as an array of
+     * histogram bins.
+     */
+    static class ColorStructureColumn extends Column {
+        private final int dim;
+        private final int data[];
+
+        private ColorStructureColumn(int dim, int size) {
+            this.dim = dim;
+            this.data = new int[size * dim];
+        }
+
+        /**
+         * Builds the column associated to the given descriptor position.
+         *
+         * @param records the records
+         * @param d the descriptor position
+         * @return the column, or <tt>null</tt> if the descriptors at that
+         * position can not be packed.
+         */
+        static ColorStructureColumn build(List<? extends DescriptorList> records, int d) {
+            ColorStructureColumn column = null;
+            for (int i = 0; i < records.size(); i++) {
+                MediaDescriptor descriptor = records.get(i).get(d);
+                if (!(descriptor instanceof MPEG7ColorStructure)) {
+                    return null;
+                }
+                int histo[] = ((MPEG7ColorStructure) descriptor).getHistogram();
+                if (histo == null) {
+                    return null;
+                }
+                if (column == null) {
+                    column = new ColorStructureColumn(histo.length, records.size());
+                } else if (column.dim != histo.length) {
+                    return null;
+                }
+                System.arraycopy(histo, 0, column.data, i * column.dim, column.dim);
+            }
+            return column;
+        }
+
+        @Override
+        boolean accepts(MediaDescriptor descriptor) {
+            if (!(descriptor instanceof MPEG7ColorStructure)) {
+                return false;
+            }
+            int histo[] = ((MPEG7ColorStructure) descriptor).getHistogram();
+            return histo != null && histo.length == dim;
+        }
+
+        @Override
+        void accumulate(MediaDescriptor descriptor, double sums[], int from, int to, int offset) {
+            int query[] = ((MPEG7ColorStructure) descriptor).getHistogram();
+            for (int i = from, base = from * dim; i < to; i++, base += dim) {
+                long l1 = DistanceTools.l1(query, 0, data, base, dim);
+                double distance = (double) l1 / (256 * dim); //Normalization
+                sums[i - offset] += distance * distance;
+            }
+        }
+
+        @Override
+        double distance(MediaDescriptor descriptor, int index, double bound) {
+            int query[] = ((MPEG7ColorStructure) descriptor).getHistogram();
+            long l1 = DistanceTools.l1(query, 0, data, index * dim, dim);
+            return (double) l1 / (256 * dim); //Normalization
+        }
+    }
+
+    /**
+     * Column of descriptors that can not be packed. The descriptor objects are
+     * used for calculating the distances.
+     */
+    static class ObjectColumn extends Column {
+        private final MediaDescriptor descriptors[];
+
+        ObjectColumn(List<? extends DescriptorList> records, int d) {
+            descriptors = new MediaDescriptor[records.size()];
+            for (int i = 0; i < descriptors.length; i++) {
+                descriptors[i] = records.get(i).get(d);
+            }
+        }
+
+        @Override
+        boolean accepts(MediaDescriptor descriptor) {
+            return true;
+        }
+
+        @Override
+        void accumulate(MediaDescriptor descriptor, double sums[], int from, int to, int offset) {
+            Double distance;
+            for (int i = from; i < to; i++) {
+                try {
+                    distance = (Double) descriptor.compare(descriptors[i]);
+                } catch (ClassCastException e) {
+                    throw new InvalidParameterException("The comparision between descriptors is not interpetrable as a double value.");
+                }
+                if (distance == null) {
+                    throw new InvalidParameterException("The descriptors are not comparables.");
+                }
+                sums[i - offset] += distance * distance;
+            }
+        }
+
+        @Override
+        double distance(MediaDescriptor descriptor, int index, double bound) {
+            Double distance;
+            try {
+                distance = descriptor.compare(descriptors[index], bound);
+            } catch (ClassCastException e) {
+                throw new InvalidParameterException("The comparision between descriptors is not interpetrable as a double value.");
+            }
+            if (distance == null) {
+                throw new InvalidParameterException("The descriptors are not comparables.");
+            }
+            return distance;
+        }
+    }
+}
@@ -0,0 +1,796 @@
+package jmr.db;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import jmr.descriptor.Comparator;
+import jmr.descriptor.MediaDescriptor;
+import jmr.result.ResultMetadata;
+
+/**
+ * A hierarchical navigable small world graph (HNSW): a {@link MetricIndex}
+ * for approximate nearest neighbours search.
+ *
+ * The elements are the nodes of a layered proximity graph. Each element is
+ * assigned to a random number of layers (exponentially decreasing), and in
+ * each of them it is linked to, at most, <code>M</code> near elements
+ * (<code>2M</code> in the bottom layer, which contains all the elements). A
+ * search starts at the entry point of the top layer, goes greedily towards the
+ * query down to the bottom layer, and then explores the graph keeping the
+ * <code>efSearch</code> nearest elements found. The elements are inserted by
+ * means of the same search, keeping the <code>efConstruction</code> nearest
+ * ones as candidates for the links. Higher values of <code>efSearch</code>
+ * and <code>efConstruction</code> give a higher recall at the cost of a
+ * higher latency (see {@link IndexEvaluation}).
+ *
+ * The results are approximate (see {@link #isExact()}): some of the nearest
+ * elements may be missed, but the distances of the elements returned are the
+ * exact ones. The range queries are answered by means of nearest neighbours
+ * searches with increasing output size, so they are approximate too.
+ *
+ * The insertions are thread-safe (the links of each node are locked only
+ * while they are updated), so many threads can add elements at the same time;
+ * {@link #addAll(java.util.Collection)} inserts the elements in parallel. The
+ * removed elements are only marked (they are still used for navigating the
+ * graph), and the graph is rebuilt when the removed ones exceed the live ones.
+ *
+ * The graph can be saved next to the database file (see
+ * {@link #getIndexFile(java.io.File)}) and loaded again, so it is not rebuilt
+ * each time the database is opened. The elements are not stored in the file,
+ * but their positions in a given list (for example, the records of the
+ * database, see {@link ListDB#getRecords()}).
+ *
+ * @param <E> the type of the indexed descriptors
+ *
+ * @author Jesús Chamorro Martínez (jesus@decsai.ugr.es)
+ */
+public class HNSWIndex<E extends MediaDescriptor> implements MetricIndex<E> {
+    /**
+     * Default maximum number of links of a node in the upper layers.
+     */
+    static public final int DEFAULT_M = 16;
+    /**
+     * Default number of candidates kept in the insertions.
+     */
+    static public final int DEFAULT_EF_CONSTRUCTION = 200;
+    /**
+     * Default number of candidates kept in the searches.
+     */
+    static public final int DEFAULT_EF_SEARCH = 50;
+    /**
+     * Extension of the index files (added to the name of the database file).
+     */
+    static public final String FILE_EXTENSION = ".hnsw";
+    /**
+     * Magic number identifying the index files ("JMRH").
+     */
+    static final int MAGIC = 0x4A4D5248;
+    /**
+     * Current version of the index files.
+     */
+    static final int VERSION = 1;
+    /**
+     * Metric used by this index.
+     */
+    private final Comparator<? super E, Double> metric;
+    /**
+     * Maximum number of links of a node in the upper layers.
+     */
+    private final int m;
+    /**
+     * Number of candidates kept in the insertions.
+     */
+    private final int efConstruction;
+    /**
+     * Number of candidates kept in the searches.
+     */
+    private volatile int efSearch = DEFAULT_EF_SEARCH;
+    /**
+     * Normalization factor of the random levels.
+     */
+    private final double levelFactor;
+    /**
+     * Generator of the random levels (guarded by itself).
+     */
+    private final Random random = new Random(0);
+    /**
+     * Generator of the node identifiers.
+     */
+    private final AtomicInteger ids = new AtomicInteger();
+    /**
+     * Entry point of the graph (the node in the top layer).
+     */
+    private volatile Node<E> entry = null;
+    /**
+     * Live nodes, indexed by their elements (guarded by this index). The
+     * nodes of the same element are chained.
+     */
+    private final Map<E, Node<E>> nodes = new IdentityHashMap<>();
+    /**
+     * Number of live nodes (guarded by this index).
+     */
+    private int size = 0;
+    /**
+     * Number of removed nodes still kept in the graph (guarded by this
+     * index).
+     */
+    private int removed = 0;
+    /**
+     * Statistics of the queries.
+     */
+    private final IndexStats stats = new IndexStats();
+
+    /**
+     * Constructs an empty index with the default parameters, using the given
+     * metric.
+     *
+     * @param metric the metric
+     */
+    public HNSWIndex(Comparator<? super E, Double> metric) {
+        this(metric, DEFAULT_M, DEFAULT_EF_CONSTRUCTION);
+    }
+
+    /**
+     * Constructs an empty index with the given parameters, using the given
+     * metric.
+     *
+     * @param metric the metric
+     * @param m the maximum number of links of a node in the upper layers (in
+     * the bottom one, it is twice this value)
+     * @param efConstruction the number of candidates kept in the insertions
+     * @throws InvalidParameterException if the parameters are lower than one
+     */
+    public HNSWIndex(Comparator<? super E, Double> metric, int m, int efConstruction) {
+        if (m < 2 || efConstruction < 1) {
+            throw new InvalidParameterException("The maximum number of links must be greater than one, and the number of candidates must be positive.");
+        }
+        this.metric = metric;
+        this.m = m;
+        this.efConstruction = efConstruction;
+        this.levelFactor = 1.0 / Math.log(m);
+    }
+
+    @Override
+    public Comparator<? super E, Double> getMetric() {
+        return metric;
+    }
+
+    /**
+     * Returns <tt>false</tt>, since the search is approximate.
+     *
+     * @return <tt>false</tt>
+     */
+    @Override
+    public boolean isExact() {
+        return false;
+    }
+
+    /**
+     * Returns the maximum number of links of a node in the upper layers.
+     *
+     * @return the maximum number of links of a node
+     */
+    public int getM() {
+        return m;
+    }
+
+    /**
+     * Returns the number of candidates kept in the insertions.
+     *
+     * @return the number of candidates kept in the insertions
+     */
+    public int getEfConstruction() {
+        return efConstruction;
+    }
+
+    /**
+     * Returns the number of candidates kept in the searches.
+     *
+     * @return the number of candidates kept in the searches
+     */
+    public int getEfSearch() {
+        return efSearch;
+    }
+
+    /**
+     * Set the number of candidates kept in the searches. The searches for
+     * more nearest elements than this value keep as many candidates as
+     * elements requested.
+     *
+     * @param efSearch the number of candidates kept in the searches
+     * @throws InvalidParameterException if the value is not positive
+     */
+    public void setEfSearch(int efSearch) {
+        if (efSearch < 1) {
+            throw new InvalidParameterException("The number of candidates must be positive.");
+        }
+        this.efSearch = efSearch;
+    }
+
+    @Override
+    public void add(E element) {
+        int level;
+        synchronized (random) {
+            level = (int) (-Math.log(1.0 - random.nextDouble()) * levelFactor);
+        }
+        Node<E> node = new Node<>(element, ids.getAndIncrement(), level);
+        Node<E> ep = entry;
+        if (ep == null) {
+            synchronized (this) {
+                if (entry == null) {
+                    entry = node;
+                    register(node);
+                    return;
+                }
+                ep = entry;
+            }
+        }
+        long count[] = {0};
+        Scored<E> current = new Scored<>(ep, distance(element, ep, count));
+        for (int layer = ep.level; layer > level; layer--) {
+            current = greedy(element, current, layer, count);
+        }
+        for (int layer = Math.min(level, ep.level); layer >= 0; layer--) {
+            List<Scored<E>> candidates = searchLayer(element, current, efConstruction, layer, count);
+            Node<E> links[] = select(candidates, m);
+            node.setLinks(layer, links);
+            for (Node<E> neighbor : links) {
+                connect(neighbor, node, layer);
+            }
+            current = candidates.get(0);
+        }
+        synchronized (this) {
+            register(node);
+            if (node.level > entry.level) {
+                entry = node;
+            }
+        }
+    }
+
+    /**
+     * Adds the given elements to this index. The elements are inserted in
+     * parallel by the threads of the common pool.
+     *
+     * @param elements the elements to be added
+     */
+    @Override
+    public void addAll(Collection<? extends E> elements) {
+        elements.parallelStream().forEach(this::add);
+    }
+
+    /**
+     * Registers the given node as a live one. It have to be called holding
+     * the lock of this index.
+     */
+    private void register(Node<E> node) {
+        node.duplicate = nodes.put(node.element, node);
+        size++;
+    }
+
+    @Override
+    public boolean remove(E element) {
+        boolean rebuild;
+        synchronized (this) {
+            Node<E> node = nodes.remove(element);
+            if (node == null) {
+                return false;
+            }
+            if (node.duplicate != null) {
+                nodes.put(element, node.duplicate);
+            }
+            node.removed = true;
+            size--;
+            removed++;
+            rebuild = removed > size;
+        }
+        if (rebuild) {
+            rebuild();
+        }
+        return true;
+    }
+
+    /**
+     * Rebuilds this index with its live elements, so the removed elements
+     * are released.
+     */
+    public void rebuild() {
+        List<E> elements = elements();
+        clear();
+        addAll(elements);
+    }
+
+    @Override
+    public synchronized void clear() {
+        entry = null;
+        nodes.clear();
+        size = 0;
+        removed = 0;
+        ids.set(0);
+    }
+
+    @Override
+    public synchronized int size() {
+        return size;
+    }
+
+    @Override
+    public List<ResultMetadata<Double, E>> search(E query, int size) {
+        long count[] = {0};
+        List<ResultMetadata<Double, E>> output = new ArrayList<>();
+        if (size > 0) {
+            for (Scored<E> s : search(query, Math.max(efSearch, size), count)) {
+                if (output.size() == size) {
+                    break;
+                }
+                output.add(new ResultMetadata<>(s.distance, s.node.element));
+            }
+        }
+        stats.record(count[0], size());
+        return output;
+    }
+
+    @Override
+    public List<ResultMetadata<Double, E>> range(E query, double radius) {
+        long count[] = {0};
+        List<ResultMetadata<Double, E>> output = new ArrayList<>();
+        int n = size();
+        // The number of candidates is doubled until some of them is out of
+        // the radius
+        for (int ef = efSearch; ; ef *= 2) {
+            List<Scored<E>> found = search(query, ef, count);
+            if (found.isEmpty() || found.get(found.size() - 1).distance > radius || ef >= n) {
+                for (Scored<E> s : found) {
+                    if (s.distance > radius) {
+                        break;
+                    }
+                    output.add(new ResultMetadata<>(s.distance, s.node.element));
+                }
+                break;
+            }
+        }
+        stats.record(count[0], n);
+        return output;
+    }
+
+    /**
+     * Searches the nearest live elements to the given query.
+     *
+     * @param query the query
+     * @param ef the number of candidates kept in the search
+     * @param count the counter of distance calculations
+     * @return the live candidates found, sorted by distance
+     */
+    private List<Scored<E>> search(E query, int ef, long count[]) {
+        Node<E> ep = entry;
+        if (ep == null) {
+            return Collections.emptyList();
+        }
+        Scored<E> current = new Scored<>(ep, distance(query, ep, count));
+        for (int layer = ep.level; layer > 0; layer--) {
+            current = greedy(query, current, layer, count);
+        }
+        List<Scored<E>> found = searchLayer(query, current, ef, 0, count);
+        List<Scored<E>> live = new ArrayList<>(found.size());
+        for (Scored<E> s : found) {
+            if (!s.node.removed) {
+                live.add(s);
+            }
+        }
+        return live;
+    }
+
+    /**
+     * Goes greedily from the given node towards the given query in the given
+     * layer, until no link of the current node is nearer to the query.
+     *
+     * @param query the query
+     * @param start the starting node
+     * @param layer the layer
+     * @param count the counter of distance calculations
+     * @return the nearest node found
+     */
+    private Scored<E> greedy(E query, Scored<E> start, int layer, long count[]) {
+        Scored<E> current = start;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Node<E> neighbor : current.node.getLinks(layer)) {
+                double d = distance(query, neighbor, count);
+                if (d < current.distance) {
+                    current = new Scored<>(neighbor, d);
+                    changed = true;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Searches the nearest nodes to the given query in the given layer,
+     * starting at the given node.
+     *
+     * @param query the query
+     * @param start the starting node
+     * @param ef the number of candidates kept
+     * @param layer the layer
+     * @param count the counter of distance calculations
+     * @return the candidates found (at most <code>ef</code>), sorted by
+     * distance
+     */
+    private List<Scored<E>> searchLayer(E query, Scored<E> start, int ef, int layer, long count[]) {
+        BitSet visited = new BitSet();
+        visited.set(start.node.id);
+        PriorityQueue<Scored<E>> candidates = new PriorityQueue<>();
+        PriorityQueue<Scored<E>> results = new PriorityQueue<>(ef + 1, Collections.reverseOrder());
+        candidates.add(start);
+        results.add(start);
+        while (!candidates.isEmpty()) {
+            Scored<E> nearest = candidates.poll();
+            if (nearest.distance > results.peek().distance) {
+                break; // The rest of candidates are farther than the results
+            }
+            for (Node<E> neighbor : nearest.node.getLinks(layer)) {
+                if (!visited.get(neighbor.id)) {
+                    visited.set(neighbor.id);
+                    double d = distance(query, neighbor, count);
+                    if (results.size() < ef || d < results.peek().distance) {
+                        Scored<E> s = new Scored<>(neighbor, d);
+                        candidates.add(s);
+                        results.add(s);
+                        if (results.size() > ef) {
+                            results.poll();
+                        }
+                    }
+                }
+            }
+        }
+        Scored<E> sorted[] = results.toArray(new Scored[results.size()]);
+        Arrays.sort(sorted);
+        return Arrays.asList(sorted);
+    }
+
+    /**
+     * Selects the links of a node among the given candidates. A candidate is
+     * selected if it is nearer to the node than to the candidates already
+     * selected (so the links go in different directions); if there are not
+     * enough of them, the nearest discarded ones are added.
+     *
+     * @param candidates the candidates, sorted by distance to the node
+     * @param max the maximum number of links
+     * @return the links of the node
+     */
+    private Node<E>[] select(List<Scored<E>> candidates, int max) {
+        List<Node<E>> selected = new ArrayList<>(max);
+        List<Node<E>> discarded = new ArrayList<>();
+        for (Scored<E> candidate : candidates) {
+            if (selected.size() == max) {
+                break;
+            }
+            boolean diverse = true;
+            for (Node<E> s : selected) {
+                if (metric.apply(candidate.node.element, s.element) < candidate.distance) {
+                    diverse = false;
+                    break;
+                }
+            }
+            (diverse ? selected : discarded).add(candidate.node);
+        }
+        for (int i = 0; i < discarded.size() && selected.size() < max; i++) {
+            selected.add(discarded.get(i));
+        }
+        return selected.toArray(new Node[selected.size()]);
+    }
+
+    /**
+     * Adds a link from the given node to the new one in the given layer. If
+     * the node exceeds the maximum number of links, they are selected again.
+     *
+     * @param node the node
+     * @param added the new node
+     * @param layer the layer
+     */
+    private void connect(Node<E> node, Node<E> added, int layer) {
+        int max = layer == 0 ? 2 * m : m;
+        synchronized (node) {
+            Node<E> links[] = node.links[layer];
+            if (links.length < max) {
+                links = Arrays.copyOf(links, links.length + 1);
+                links[links.length - 1] = added;
+            } else {
+                Scored<E> candidates[] = new Scored[links.length + 1];
+                for (int i = 0; i < links.length; i++) {
+                    candidates[i] = new Scored<>(links[i], metric.apply(node.element, links[i].element));
+                }
+                candidates[links.length] = new Scored<>(added, metric.apply(node.element, added.element));
+                Arrays.sort(candidates);
+                links = select(Arrays.asList(candidates), max);
+            }
+            node.links[layer] = links;
+        }
+    }
+
+    /**
+     * Returns the distance from the given query to the element of the given
+     * node, increasing the given counter.
+     */
+    private double distance(E query, Node<E> node, long count[]) {
+        count[0]++;
+        return metric.apply(query, node.element);
+    }
+
+    @Override
+    public IndexStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Returns the live elements of this index.
+     *
+     * @return a new list with the live elements of this index
+     */
+    private synchronized List<E> elements() {
+        List<E> elements = new ArrayList<>(size);
+        for (Node<E> node : liveNodes()) {
+            elements.add(node.element);
+        }
+        return elements;
+    }
+
+    /**
+     * Returns the live nodes of this index. It have to be called holding the
+     * lock of this index.
+     */
+    private List<Node<E>> liveNodes() {
+        List<Node<E>> live = new ArrayList<>(size);
+        for (Node<E> node : nodes.values()) {
+            for (; node != null; node = node.duplicate) {
+                live.add(node);
+            }
+        }
+        return live;
+    }
+
+    /**
+     * Returns the file where the index of the database stored in the given
+     * file is saved by convention (the database file name followed by
+     * {@link #FILE_EXTENSION}).
+     *
+     * @param databaseFile the database file
+     * @return the index file
+     */
+    static public File getIndexFile(File databaseFile) {
+        return new File(databaseFile.getPath() + FILE_EXTENSION);
+    }
+
+    /**
+     * Saves this index in the given file. The elements are written as their
+     * positions in the given list, which have to contain all of them. The
+     * removed elements are not written. This index should not be modified
+     * during the call.
+     *
+     * @param file the file
+     * @param elements the list with the elements of this index
+     * @throws IOException if an I/O error occurs.
+     * @throws InvalidParameterException if some element is not in the list.
+     */
+    public synchronized void save(File file, List<? extends E> elements) throws IOException {
+        Map<E, Integer> positions = new IdentityHashMap<>();
+        for (int i = 0; i < elements.size(); i++) {
+            positions.put(elements.get(i), i);
+        }
+        List<Node<E>> live = liveNodes();
+        Map<Node<E>, Integer> ids = new IdentityHashMap<>();
+        Node<E> top = null;
+        for (Node<E> node : live) {
+            if (!positions.containsKey(node.element)) {
+                throw new InvalidParameterException("The elements of the index are not in the given list.");
+            }
+            ids.put(node, ids.size());
+            if (top == null || node.level > top.level) {
+                top = node;
+            }
+        }
+        try (OutputStream output = new BufferedOutputStream(new FileOutputStream(file))) {
+            CheckedOutputStream checked = new CheckedOutputStream(output, new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeInt(m);
+            out.writeInt(efConstruction);
+            out.writeInt(efSearch);
+            out.writeInt(live.size());
+            out.writeInt(top != null ? ids.get(top) : -1);
+            for (Node<E> node : live) {
+                out.writeInt(positions.get(node.element));
+                out.writeInt(node.level);
+                for (int layer = 0; layer <= node.level; layer++) {
+                    // The links to removed nodes are not written
+                    Node<E> links[] = node.getLinks(layer);
+                    int n = 0;
+                    for (Node<E> link : links) {
+                        n += link.removed ? 0 : 1;
+                    }
+                    out.writeInt(n);
+                    for (Node<E> link : links) {
+                        if (!link.removed) {
+                            out.writeInt(ids.get(link));
+                        }
+                    }
+                }
+            }
+            out.flush();
+            out.writeLong(checked.getChecksum().getValue());
+            out.flush();
+        }
+    }
+
+    /**
+     * Loads an index from the given file. The elements are taken from the
+     * given list, which have to be the one used for saving it (or a list
+     * with the same elements at the same positions).
+     *
+     * @param <E> the type of the indexed descriptors
+     * @param file the file
+     * @param elements the list with the elements of the index
+     * @param metric the metric (the one used for building the index)
+     * @return the index loaded
+     * @throws IOException if an I/O error occurs, or if the data are not
+     * valid.
+     */
+    static public <E extends MediaDescriptor> HNSWIndex<E> load(File file, List<? extends E> elements,
+            Comparator<? super E, Double> metric) throws IOException {
+        try (InputStream input = new BufferedInputStream(new FileInputStream(file))) {
+            CheckedInputStream checked = new CheckedInputStream(input, new CRC32());
+            DataInputStream in = new DataInputStream(checked);
+            if (in.readInt() != MAGIC) {
+                throw new IOException("The file does not contain a HNSW index.");
+            }
+            int version = in.readShort();
+            if (version != VERSION) {
+                throw new IOException("Version " + version + " of the HNSW index format is not supported.");
+            }
+            HNSWIndex<E> index = new HNSWIndex<>(metric, in.readInt(), in.readInt());
+            index.setEfSearch(in.readInt());
+            Node<E> nodes[] = new Node[in.readInt()];
+            int top = in.readInt();
+            int links[][][] = new int[nodes.length][][];
+            for (int i = 0; i < nodes.length; i++) {
+                int position = in.readInt();
+                if (position < 0 || position >= elements.size()) {
+                    throw new IOException("The index does not match the given elements.");
+                }
+                nodes[i] = new Node<>(elements.get(position), i, in.readInt());
+                links[i] = new int[nodes[i].level + 1][];
+                for (int layer = 0; layer <= nodes[i].level; layer++) {
+                    links[i][layer] = new int[in.readInt()];
+                    for (int j = 0; j < links[i][layer].length; j++) {
+                        links[i][layer][j] = in.readInt();
+                    }
+                }
+            }
+            long checksum = checked.getChecksum().getValue();
+            if (in.readLong() != checksum) {
+                throw new IOException("The index file is corrupted (checksum mismatch).");
+            }
+            for (int i = 0; i < nodes.length; i++) {
+                for (int layer = 0; layer <= nodes[i].level; layer++) {
+                    Node<E> l[] = new Node[links[i][layer].length];
+                    for (int j = 0; j < l.length; j++) {
+                        l[j] = nodes[links[i][layer][j]];
+                    }
+                    nodes[i].setLinks(layer, l);
+                }
+            }
+            synchronized (index) {
+                for (Node<E> node : nodes) {
+                    index.register(node);
+                }
+                index.entry = top >= 0 ? nodes[top] : null;
+                index.ids.set(nodes.length);
+            }
+            return index;
+        } catch (ArrayIndexOutOfBoundsException | NegativeArraySizeException ex) {
+            throw new IOException("The index file is not valid.", ex);
+        }
+    }
+
+    /**
+     * Returns a string representation of this index.
+     *
+     * @return a string representation of this index
+     */
+    @Override
+    public String toString() {
+        return "HNSW(M=" + m + ", efConstruction=" + efConstruction + ", efSearch=" + efSearch + ")";
+    }
+
+    /**
+     * A node of the graph.
+     */
+    private static class Node<E> {
+        /**
+         * Element of the node.
+         */
+        final E element;
+        /**
+         * Identifier of the node (used for marking the visited nodes).
+         */
+        final int id;
+        /**
+         * Top layer of the node.
+         */
+        final int level;
+        /**
+         * Links of the node in each layer (guarded by the node). The arrays
+         * are never modified once they are set, so they can be read without
+         * holding the lock.
+         */
+        final Node<E> links[][];
+        /**
+         * Whether the node has been removed from the index.
+         */
+        volatile boolean removed = false;
+        /**
+         * Next live node with the same element (guarded by the index).
+         */
+        Node<E> duplicate = null;
+
+        Node(E element, int id, int level) {
+            this.element = element;
+            this.id = id;
+            this.level = level;
+            this.links = new Node[level + 1][];
+            Arrays.fill(links, new Node[0]);
+        }
+
+        synchronized Node<E>[] getLinks(int layer) {
+            return links[layer];
+        }
+
+        synchronized void setLinks(int layer, Node<E> links[]) {
+            this.links[layer] = links;
+        }
+    }
+
+    /**
+     * A node together with its distance to a query. The natural order is
+     * based on the distance and, in case of tie, on the node identifier.
+     */
+    private static class Scored<E> implements Comparable<Scored<E>> {
+        final Node<E> node;
+        final double distance;
+
+        Scored(Node<E> node, double distance) {
+            this.node = node;
+            this.distance = distance;
+        }
+
+        @Override
+        public int compareTo(Scored<E> o) {
+            int cmp = Double.compare(distance, o.distance);
+            return cmp != 0 ? cmp : Integer.compare(node.id, o.node.id);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package jmr.db;
+
+import java.util.ArrayList;
+import java.util.List;
+import jmr.result.ResultMetadata;
+
+/**
+ * Evaluation of the recall and the latency of a {@link MetricIndex} with
+ * respect to the linear scan of a {@link ListDB}.
+ *
+ * For each query, the nearest records are searched both by means of the index
+ * and by scanning the database (as {@link ListDB#queryMetadata(jmr.db.ListDB.Record, int)}
+ * does when no index is set). The recall is the fraction of the exact nearest
+ * records found by the index, where a record returned by the index is taken
+ * as a hit if its distance is not greater than the one of the farthest exact
+ * record (so the records at the same distance are interchangeable). The
+ * latencies are the mean times per query of both searches.
+ *
+ * The evaluation of an {@link HNSWIndex} can be repeated for several values
+ * of its <code>efSearch</code> parameter, giving the recall-latency curve of
+ * the index (see
+ * {@link #evaluate(jmr.db.ListDB, jmr.db.HNSWIndex, java.util.List, int, int...)}).
+ *
+ * @author Jesús Chamorro Martínez (jesus@decsai.ugr.es)
+ */
+public class IndexEvaluation {
+    private final String index;
+    private final int queries;
+    private final int size;
+    private final double recall;
+    private final long indexNanos;
+    private final long scanNanos;
+    private final long distances;
+
+    /**
+     * Constructs a new evaluation result.
+     */
+    private IndexEvaluation(String index, int queries, int size, double recall,
+            long indexNanos, long scanNanos, long distances) {
+        this.index = index;
+        this.queries = queries;
+        this.size = size;
+        this.recall = recall;
+        this.indexNanos = indexNanos;
+        this.scanNanos = scanNanos;
+        this.distances = distances;
+    }
+
+    /**
+     * Evaluates the given index over the given database. The index have to
+     * contain the records of the database (it may be set in the database or
+     * not); the database should not be modified during the evaluation.
+     *
+     * @param <T> the media type of the database
+     * @param db the database
+     * @param index the index
+     * @param queries the query records
+     * @param size the number of nearest records searched in each query
+     * @return the evaluation result
+     */
+    static public <T> IndexEvaluation evaluate(ListDB<T> db, MetricIndex<ListDB<T>.Record> index,
+            List<ListDB<T>.Record> queries, int size) {
+        long distances = index.getStats().getDistanceCount();
+        long indexNanos = 0, scanNanos = 0;
+        double hits = 0, total = 0;
+        for (ListDB<T>.Record query : queries) {
+            long t0 = System.nanoTime();
+            List<ResultMetadata<Double, ListDB<T>.Record>> found = index.search(query, size);
+            long t1 = System.nanoTime();
+            List<ResultMetadata<Double, ListDB<T>.Record>> exact = db.scanMetadata(query, size);
+            long t2 = System.nanoTime();
+            indexNanos += t1 - t0;
+            scanNanos += t2 - t1;
+            if (!exact.isEmpty()) {
+                double farthest = exact.get(exact.size() - 1).getResult();
+                for (ResultMetadata<Double, ListDB<T>.Record> item : found) {
+                    hits += item.getResult() <= farthest ? 1 : 0;
+                }
+                total += exact.size();
+            }
+        }
+        int n = Math.max(queries.size(), 1);
+        return new IndexEvaluation(index.toString(), queries.size(), size,
+                total > 0 ? Math.min(hits / total, 1.0) : 1.0, indexNanos / n, scanNanos / n,
+                (index.getStats().getDistanceCount() - distances) / n);
+    }
+
+    /**
+     * Evaluates the given HNSW index over the given database for each of the
+     * given values of its <code>efSearch</code> parameter. The original value
+     * is restored at the end.
+     *
+     * @param <T> the media type of the database
+     * @param db the database
+     * @param index the index
+     * @param queries the query records
+     * @param size the number of nearest records searched in each query
+     * @param efSearch the values of the <code>efSearch</code> parameter
+     * @return the evaluation results (one for each value)
+     */
+    static public <T> List<IndexEvaluation> evaluate(ListDB<T> db, HNSWIndex<ListDB<T>.Record> index,
+            List<ListDB<T>.Record> queries, int size, int... efSearch) {
+        List<IndexEvaluation> output = new ArrayList<>(efSearch.length);
+        int original = index.getEfSearch();
+        try {
+            for (int ef : efSearch) {
+                index.setEfSearch(ef);
+                output.add(evaluate(db, index, queries, size));
+            }
+        } finally {
+            index.setEfSearch(original);
+        }
+        return output;
+    }
+
+    /**
+     * Returns the description of the evaluated index.
+     *
+     * @return the description of the evaluated index
+     */
+    public String getIndex() {
+        return index;
+    }
+
+    /**
+     * Returns the number of queries.
+     *
+     * @return the number of queries
+     */
+    public int getQueries() {
+        return queries;
+    }
+
+    /**
+     * Returns the number of nearest records searched in each query.
+     *
+     * @return the number of nearest records searched
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the recall (in [0,1]) of the index: the fraction of the exact
+     * nearest records found by the index.
+     *
+     * @return the recall of the index
+     */
+    public double getRecall() {
+        return recall;
+    }
+
+    /**
+     * Returns the mean time (in nanoseconds) of a query with the index.
+     *
+     * @return the mean latency of the index
+     */
+    public long getIndexLatency() {
+        return indexNanos;
+    }
+
+    /**
+     * Returns the mean time (in nanoseconds) of a query by scanning the
+     * database.
+     *
+     * @return the mean latency of the linear scan
+     */
+    public long getScanLatency() {
+        return scanNanos;
+    }
+
+    /**
+     * Returns the ratio between the latencies of the linear scan and the
+     * index.
+     *
+     * @return the speedup of the index
+     */
+    public double getSpeedup() {
+        return indexNanos > 0 ? (double) scanNanos / indexNanos : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Returns the mean number of distances calculated by the index in a
+     * query.
+     *
+     * @return the mean number of distances calculated by the index
+     */
+    public long getDistanceCount() {
+        return distances;
+    }
+
+    /**
+     * Returns a string representation of this evaluation.
+     *
+     * @return a string representation of this evaluation
+     */
+    @Override
+    public String toString() {
+        return String.format("%s: recall@%d %.4f, latency %.3f ms (scan %.3f ms, speedup %.1fx), %d distances/query",
+                index, size, recall, indexNanos / 1e6, scanNanos / 1e6, getSpeedup(), distances);
+    }
+}
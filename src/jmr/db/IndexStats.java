@@ -0,0 +1,102 @@
+package jmr.db;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Statistics of the queries done with a {@link MetricIndex}.
+ *
+ * For each query, the number of distances calculated by the index is recorded
+ * together with the number of elements in the index (that is, the number of
+ * distances that a linear scan would have calculated), so the fraction of
+ * distance calculations saved by the index can be obtained. The counters can
+ * be updated by several threads at the same time.
+ *
+ * @author Jesús Chamorro Martínez (jesus@decsai.ugr.es)
+ */
+public class IndexStats {
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder distances = new LongAdder();
+    private final LongAdder elements = new LongAdder();
+
+    /**
+     * Records a new query.
+     *
+     * @param distances the number of distances calculated in the query
+     * @param elements the number of elements in the index at query time
+     */
+    public void record(long distances, long elements) {
+        this.queries.increment();
+        this.distances.add(distances);
+        this.elements.add(elements);
+    }
+
+    /**
+     * Resets all the counters.
+     */
+    public void reset() {
+        queries.reset();
+        distances.reset();
+        elements.reset();
+    }
+
+    /**
+     * Returns the number of queries done.
+     *
+     * @return the number of queries done
+     */
+    public long getQueries() {
+        return queries.sum();
+    }
+
+    /**
+     * Returns the number of distances calculated in all the queries.
+     *
+     * @return the number of distances calculated
+     */
+    public long getDistanceCount() {
+        return distances.sum();
+    }
+
+    /**
+     * Returns the number of distances that a linear scan would have calculated
+     * in all the queries.
+     *
+     * @return the number of distances of a linear scan
+     */
+    public long getLinearDistanceCount() {
+        return elements.sum();
+    }
+
+    /**
+     * Returns the number of distance calculations saved (pruned) with respect
+     * to a linear scan in all the queries.
+     *
+     * @return the number of distance calculations saved
+     */
+    public long getPrunedCount() {
+        return Math.max(elements.sum() - distances.sum(), 0);
+    }
+
+    /**
+     * Returns the fraction (in [0,1]) of distance calculations saved with
+     * respect to a linear scan.
+     *
+     * @return the fraction of distance calculations saved
+     */
+    public double getSavedFraction() {
+        long linear = elements.sum();
+        return linear > 0 ? 1.0 - (double) distances.sum() / linear : 0.0;
+    }
+
+    /**
+     * Returns a string representation of these statistics.
+     *
+     * @return a string representation of these statistics
+     */
+    @Override
+    public String toString() {
+        return String.format("Queries: %d, distances: %d (linear: %d), saved: %.1f%%",
+                getQueries(), getDistanceCount(), getLinearDistanceCount(),
+                100.0 * getSavedFraction());
+    }
+}
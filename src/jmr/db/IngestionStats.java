@@ -0,0 +1,191 @@
+package jmr.db;
+
+/**
+ * Statistics of a bulk ingestion of media in a {@link ListDB} (see
+ * {@link ListDB#addAll(java.lang.Iterable)}).
+ *
+ * The ingestion is a pipeline with three stages: the decoding of the media
+ * (only when the media are given by their locators), the extraction of the
+ * descriptors (both of them done by the worker threads) and the insertion of
+ * the records in the database (done by the calling thread). For each stage,
+ * the time spent on it is given as the sum of the times of all the threads;
+ * the throughput of a stage is the number of items processed per second of
+ * that time (that is, per thread).
+ *
+ * @author Jesús Chamorro Martínez (jesus@decsai.ugr.es)
+ */
+public class IngestionStats {
+    private final int added;
+    private final int skipped;
+    private final int workers;
+    private final long decodeNanos;
+    private final long extractNanos;
+    private final long insertNanos;
+    private final long backpressureNanos;
+    private final long elapsedNanos;
+
+    /**
+     * Constructs a new statistics object.
+     *
+     * @param added the number of records added
+     * @param skipped the number of items skipped
+     * @param workers the number of worker threads
+     * @param decodeNanos the time spent decoding the media
+     * @param extractNanos the time spent extracting the descriptors
+     * @param insertNanos the time spent inserting the records
+     * @param backpressureNanos the time the input was stopped waiting for the
+     * workers
+     * @param elapsedNanos the total time of the ingestion
+     */
+    IngestionStats(int added, int skipped, int workers, long decodeNanos, long extractNanos,
+            long insertNanos, long backpressureNanos, long elapsedNanos) {
+        this.added = added;
+        this.skipped = skipped;
+        this.workers = workers;
+        this.decodeNanos = decodeNanos;
+        this.extractNanos = extractNanos;
+        this.insertNanos = insertNanos;
+        this.backpressureNanos = backpressureNanos;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * Returns the number of records added to the database.
+     *
+     * @return the number of records added
+     */
+    public int getAdded() {
+        return added;
+    }
+
+    /**
+     * Returns the number of items skipped, because they could not be decoded
+     * or because the descriptors could not be calculated.
+     *
+     * @return the number of items skipped
+     */
+    public int getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * Returns the number of worker threads.
+     *
+     * @return the number of worker threads
+     */
+    public int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * Returns the time (in nanoseconds) spent decoding the media, summed over
+     * all the workers.
+     *
+     * @return the time spent decoding the media
+     */
+    public long getDecodeTime() {
+        return decodeNanos;
+    }
+
+    /**
+     * Returns the time (in nanoseconds) spent extracting the descriptors,
+     * summed over all the workers.
+     *
+     * @return the time spent extracting the descriptors
+     */
+    public long getExtractTime() {
+        return extractNanos;
+    }
+
+    /**
+     * Returns the time (in nanoseconds) spent inserting the records in the
+     * database.
+     *
+     * @return the time spent inserting the records
+     */
+    public long getInsertTime() {
+        return insertNanos;
+    }
+
+    /**
+     * Returns the time (in nanoseconds) the input was stopped because the
+     * queue of pending items was full.
+     *
+     * @return the time the input was stopped
+     */
+    public long getBackpressureTime() {
+        return backpressureNanos;
+    }
+
+    /**
+     * Returns the total time (in nanoseconds) of the ingestion.
+     *
+     * @return the total time of the ingestion
+     */
+    public long getElapsedTime() {
+        return elapsedNanos;
+    }
+
+    /**
+     * Returns the number of items processed per second.
+     *
+     * @return the overall throughput
+     */
+    public double getThroughput() {
+        return throughput(added + skipped, elapsedNanos);
+    }
+
+    /**
+     * Returns the number of items decoded per second and thread.
+     *
+     * @return the throughput of the decoding stage
+     */
+    public double getDecodeThroughput() {
+        return throughput(added + skipped, decodeNanos);
+    }
+
+    /**
+     * Returns the number of items whose descriptors are extracted per second
+     * and thread.
+     *
+     * @return the throughput of the extraction stage
+     */
+    public double getExtractThroughput() {
+        return throughput(added + skipped, extractNanos);
+    }
+
+    /**
+     * Returns the number of records inserted per second.
+     *
+     * @return the throughput of the insertion stage
+     */
+    public double getInsertThroughput() {
+        return throughput(added, insertNanos);
+    }
+
+    /**
+     * Returns the number of items processed per second in the given time.
+     */
+    private static double throughput(int items, long nanos) {
+        return nanos > 0 ? items * 1e9 / nanos : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Returns a string representation of these statistics.
+     *
+     * @return a string representation of these statistics
+     */
+    @Override
+    public String toString() {
+        return String.format("Added: %d, skipped: %d, workers: %d, elapsed: %.3f s (%.1f items/s)\n"
+                + "  decode:  %.3f s (%.1f items/s per thread)\n"
+                + "  extract: %.3f s (%.1f items/s per thread)\n"
+                + "  insert:  %.3f s (%.1f records/s)\n"
+                + "  backpressure: %.3f s",
+                added, skipped, workers, elapsedNanos / 1e9, getThroughput(),
+                decodeNanos / 1e9, getDecodeThroughput(),
+                extractNanos / 1e9, getExtractThroughput(),
+                insertNanos / 1e9, getInsertThroughput(),
+                backpressureNanos / 1e9);
+    }
+}
@@ -0,0 +1,428 @@
+package jmr.db;
+
+import java.security.InvalidParameterException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import jmr.descriptor.Comparator;
+import jmr.descriptor.DescriptorList;
+import jmr.descriptor.label.LabelDescriptor;
+import jmr.descriptor.label.LabelDictionary;
+
+/**
+ * Inverted index of the labels of the records of a {@link ListDB} (see
+ * {@link ListDB#setLabelIndex(jmr.db.LabelIndex)}).
+ *
+ * For each label, the index keeps the sorted list (posting list) of the
+ * positions of the records whose {@link LabelDescriptor} (at a given position
+ * of the records) contains that label. The labels are compared ignoring case,
+ * as in the label descriptor (see
+ * {@link LabelDictionary#normalize(java.lang.String)}). The queries find the
+ * records matching a given set of labels (see {@link Match}) by merging the
+ * posting lists of the query labels, so their cost depends on the number of
+ * records with some of those labels instead of on the size of the database.
+ *
+ * The database keeps the index up to date. Appending records is cheap, but
+ * inserting or removing records at a given position shifts the positions of
+ * all the postings. This class is not thread-safe: the database calls it
+ * holding its lock.
+ *
+ * @author Jesús Chamorro Martínez (jesus@decsai.ugr.es)
+ */
+public class LabelIndex {
+
+    /**
+     * Types of label matching between a query and a record. Each one gives the
+     * same records as the corresponding comparator of
+     * {@link LabelDescriptor}, applied to the query and the record labels.
+     */
+    public enum Match {
+        /**
+         * All the query labels are in the record (see
+         * {@link LabelDescriptor.InclusionComparator}).
+         */
+        INCLUSION,
+        /**
+         * At least one query label is in the record (see
+         * {@link LabelDescriptor#isSoftIncluded(jmr.descriptor.label.LabelDescriptor)}).
+         */
+        SOFT_INCLUSION,
+        /**
+         * The query and the record have the same labels (see
+         * {@link LabelDescriptor.EqualComparator}).
+         */
+        EQUALITY,
+        /**
+         * The query labels are in the record, or the record labels are in the
+         * query (see {@link LabelDescriptor.SoftEqualComparator}).
+         */
+        SOFT_EQUALITY;
+
+        /**
+         * Returns the type of matching of the records with finite distance to
+         * a query for the given comparator. For the weighted comparator, the
+         * inclusion is returned, since it gives a superset of those records.
+         *
+         * @param comparator the label comparator
+         * @return the type of matching, or <tt>null</tt> if the comparator is
+         * not one of the label descriptor ones
+         */
+        static public Match of(Comparator comparator) {
+            if (comparator instanceof LabelDescriptor.InclusionComparator
+                    || comparator instanceof LabelDescriptor.WeightBasedComparator) {
+                return INCLUSION;
+            } else if (comparator instanceof LabelDescriptor.EqualComparator) {
+                return EQUALITY;
+            } else if (comparator instanceof LabelDescriptor.SoftEqualComparator) {
+                return SOFT_EQUALITY;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Position of the label descriptor in the records.
+     */
+    private final int descriptorPosition;
+    /**
+     * Posting list of each label (indexed by its normalized form).
+     */
+    private final Map<String, Posting> postings = new HashMap<>();
+    /**
+     * Posting list of the records without labels.
+     */
+    private final Posting unlabeled = new Posting();
+    /**
+     * Number of labels (with repetitions) of each record.
+     */
+    private int sizes[] = new int[16];
+    /**
+     * Number of distinct labels of each record.
+     */
+    private int distinct[] = new int[16];
+    /**
+     * Number of records in this index.
+     */
+    private int size = 0;
+
+    /**
+     * Constructs an empty index of the label descriptors at the given
+     * position of the records.
+     *
+     * @param descriptorPosition the position of the label descriptor in the
+     * records
+     */
+    public LabelIndex(int descriptorPosition) {
+        this.descriptorPosition = descriptorPosition;
+    }
+
+    /**
+     * Returns the position of the label descriptor in the records.
+     *
+     * @return the position of the label descriptor in the records
+     */
+    public int getDescriptorPosition() {
+        return descriptorPosition;
+    }
+
+    /**
+     * Returns the number of records in this index.
+     *
+     * @return the number of records in this index
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of distinct labels in this index.
+     *
+     * @return the number of distinct labels
+     */
+    public int getLabelCount() {
+        return postings.size();
+    }
+
+    /**
+     * Returns the number of records with the given label.
+     *
+     * @param label the label
+     * @return the number of records with the label
+     */
+    public int getFrequency(String label) {
+        Posting posting = postings.get(LabelDictionary.normalize(label));
+        return posting != null ? posting.size : 0;
+    }
+
+    /**
+     * Returns the positions of the records matching the given query labels.
+     *
+     * @param query the query labels
+     * @param match the type of matching
+     * @return the sorted positions of the records
+     */
+    public int[] search(LabelDescriptor query, Match match) {
+        String keys[] = keys(query);
+        int k = keys.length;
+        if (k == 0) {
+            // Every record includes the empty query, and only the records
+            // without labels are equal to it
+            return match == Match.EQUALITY ? unlabeled.toArray() : all();
+        }
+        // The postings of the query labels are merged, so the runs of the
+        // same position give the number of query labels of each record
+        int total = 0;
+        Posting lists[] = new Posting[k];
+        for (int i = 0; i < k; i++) {
+            lists[i] = postings.get(keys[i]);
+            total += lists[i] != null ? lists[i].size : 0;
+        }
+        int merged[] = new int[total];
+        int n = 0;
+        for (Posting posting : lists) {
+            if (posting != null) {
+                System.arraycopy(posting.positions, 0, merged, n, posting.size);
+                n += posting.size;
+            }
+        }
+        Arrays.sort(merged);
+        int output[] = new int[n];
+        int count = 0;
+        for (int i = 0; i < n; ) {
+            int position = merged[i], j = i;
+            while (j < n && merged[j] == position) {
+                j++;
+            }
+            int common = j - i;
+            i = j;
+            boolean matches;
+            switch (match) {
+                case INCLUSION:
+                    matches = common == k;
+                    break;
+                case SOFT_INCLUSION:
+                    matches = true;
+                    break;
+                case EQUALITY:
+                    matches = common == k && distinct[position] == k && sizes[position] == query.size();
+                    break;
+                default:
+                    matches = common == k || common == distinct[position];
+            }
+            if (matches) {
+                output[count++] = position;
+            }
+        }
+        if (match == Match.SOFT_EQUALITY && unlabeled.size > 0) {
+            // The records without labels are included in any query
+            int result[] = new int[count + unlabeled.size];
+            System.arraycopy(output, 0, result, 0, count);
+            System.arraycopy(unlabeled.positions, 0, result, count, unlabeled.size);
+            Arrays.sort(result);
+            return result;
+        }
+        return Arrays.copyOf(output, count);
+    }
+
+    /**
+     * Returns all the positions of this index.
+     */
+    private int[] all() {
+        int output[] = new int[size];
+        for (int i = 0; i < size; i++) {
+            output[i] = i;
+        }
+        return output;
+    }
+
+    /**
+     * Fills this index with the given records.
+     *
+     * @param records the records
+     */
+    void build(List<? extends DescriptorList> records) {
+        clear();
+        for (DescriptorList record : records) {
+            add(size, record);
+        }
+    }
+
+    /**
+     * Removes all the records of this index.
+     */
+    void clear() {
+        postings.clear();
+        unlabeled.size = 0;
+        size = 0;
+    }
+
+    /**
+     * Inserts the given record at the given position. The positions of the
+     * records at that position or after it are shifted.
+     *
+     * @param position the position of the record
+     * @param record the record
+     */
+    void add(int position, DescriptorList record) {
+        if (position < size) {
+            shift(position, 1);
+        }
+        if (size == sizes.length) {
+            sizes = Arrays.copyOf(sizes, 2 * size);
+            distinct = Arrays.copyOf(distinct, 2 * size);
+        }
+        System.arraycopy(sizes, position, sizes, position + 1, size - position);
+        System.arraycopy(distinct, position, distinct, position + 1, size - position);
+        size++;
+        insert(position, record);
+    }
+
+    /**
+     * Replaces the record at the given position.
+     *
+     * @param position the position of the record
+     * @param previous the record previously at that position
+     * @param record the new record
+     */
+    void set(int position, DescriptorList previous, DescriptorList record) {
+        delete(position, previous);
+        insert(position, record);
+    }
+
+    /**
+     * Removes the record at the given position. The positions of the records
+     * after it are shifted.
+     *
+     * @param position the position of the record
+     * @param previous the record at that position
+     */
+    void remove(int position, DescriptorList previous) {
+        delete(position, previous);
+        System.arraycopy(sizes, position + 1, sizes, position, size - position - 1);
+        System.arraycopy(distinct, position + 1, distinct, position, size - position - 1);
+        size--;
+        if (position < size) {
+            shift(position + 1, -1);
+        }
+    }
+
+    /**
+     * Adds the given position to the postings of the labels of the given
+     * record.
+     */
+    private void insert(int position, DescriptorList record) {
+        String keys[] = keys(descriptor(record));
+        sizes[position] = descriptor(record).size();
+        distinct[position] = keys.length;
+        if (keys.length == 0) {
+            unlabeled.add(position);
+        }
+        for (String key : keys) {
+            postings.computeIfAbsent(key, k -> new Posting()).add(position);
+        }
+    }
+
+    /**
+     * Removes the given position from the postings of the labels of the
+     * given record.
+     */
+    private void delete(int position, DescriptorList record) {
+        String keys[] = keys(descriptor(record));
+        if (keys.length == 0) {
+            unlabeled.remove(position);
+        }
+        for (String key : keys) {
+            Posting posting = postings.get(key);
+            if (posting != null) {
+                posting.remove(position);
+                if (posting.size == 0) {
+                    postings.remove(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the given offset to the positions not lower than the given one.
+     */
+    private void shift(int from, int offset) {
+        unlabeled.shift(from, offset);
+        for (Posting posting : postings.values()) {
+            posting.shift(from, offset);
+        }
+    }
+
+    /**
+     * Returns the label descriptor of the given record.
+     */
+    private LabelDescriptor descriptor(DescriptorList record) {
+        Object descriptor = record.get(descriptorPosition);
+        if (!(descriptor instanceof LabelDescriptor)) {
+            throw new InvalidParameterException("The descriptor at position '" + descriptorPosition + "' is not a LabelDescriptor.");
+        }
+        return (LabelDescriptor) descriptor;
+    }
+
+    /**
+     * Returns the distinct normalized labels of the given descriptor.
+     */
+    private static String[] keys(LabelDescriptor descriptor) {
+        Set<String> keys = new LinkedHashSet<>();
+        for (int i = 0; i < descriptor.size(); i++) {
+            keys.add(LabelDictionary.normalize(descriptor.getLabel(i)));
+        }
+        return keys.toArray(new String[keys.size()]);
+    }
+
+    /**
+     * A sorted list of record positions.
+     */
+    private static class Posting {
+        int positions[] = new int[4];
+        int size = 0;
+
+        /**
+         * Adds the given position (in order).
+         */
+        void add(int position) {
+            if (size == positions.length) {
+                positions = Arrays.copyOf(positions, 2 * size);
+            }
+            int i = size;
+            if (size > 0 && positions[size - 1] > position) {
+                i = -Arrays.binarySearch(positions, 0, size, position) - 1;
+                System.arraycopy(positions, i, positions, i + 1, size - i);
+            }
+            positions[i] = position;
+            size++;
+        }
+
+        /**
+         * Removes the given position (if present).
+         */
+        void remove(int position) {
+            int i = Arrays.binarySearch(positions, 0, size, position);
+            if (i >= 0) {
+                System.arraycopy(positions, i + 1, positions, i, size - i - 1);
+                size--;
+            }
+        }
+
+        /**
+         * Adds the given offset to the positions not lower than the given one.
+         */
+        void shift(int from, int offset) {
+            int i = Arrays.binarySearch(positions, 0, size, from);
+            for (i = i >= 0 ? i : -i - 1; i < size; i++) {
+                positions[i] += offset;
+            }
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(positions, size);
+        }
+    }
+}
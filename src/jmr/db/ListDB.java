@@ -1,26 +1,61 @@
 package jmr.db;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.io.Serializable;
 import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.security.InvalidParameterException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import jmr.descriptor.Comparator;
 import jmr.descriptor.DescriptorList;
 import jmr.descriptor.MediaDescriptor;
 import jmr.descriptor.MediaDescriptorFactory;
+import jmr.descriptor.label.LabelDescriptor;
 import jmr.result.ResultMetadata;
 
 /**
  * Class representing a database stored as a list of descriptors in the main 
  * memory.
+ * 
+ * This class is thread-safe: the queries do not keep any state in the database
+ * (the distances to the query are calculated locally in each call), so many 
+ * threads can query the same database while records are added or removed. 
+ * Queries share a read lock over the list of records, and the methods that 
+ * modify it take the corresponding write lock.
  *
  * @param <T> the media type of this database
  *
@@ -28,6 +63,7 @@ import jmr.result.ResultMetadata;
 
  */
 public class ListDB<T> implements Serializable{
+    private static final long serialVersionUID = 3055840421807858780L;
     /**
      * List of database records
      */
@@ -39,7 +75,101 @@ public class ListDB<T> implements Serializable{
     /**
      * Reference for record ordering.
      */
-    private Record orderReference = null;
+    private volatile Record orderReference = null;
+    /**
+     * Lock guarding the list of records. Queries share the read lock, so many
+     * threads can query this database at the same time, while the methods
+     * modifying the list of records take the write lock.
+     */
+    private transient ReadWriteLock lock = new ReentrantReadWriteLock();
+    /**
+     * Number of threads used for scanning the database in the queries. It is
+     * a setting of the running application, so it is not stored with the
+     * database.
+     */
+    private transient int parallelism = 1;
+    /**
+     * Pool used for scanning the database in parallel (<tt>null</tt> if the
+     * scan is sequential or if the pool has not been created yet).
+     */
+    private transient ForkJoinPool pool = null;
+    /**
+     * If <tt>true</tt>, the pool was given from outside this database (so it
+     * is not shut down when the parallelism changes).
+     */
+    private transient boolean sharedPool = false;
+    /**
+     * Minimum number of records processed sequentially in a parallel scan.
+     */
+    private static final int MIN_PARALLEL_RANGE = 512;
+    /**
+     * Maximum number of media pending to be processed, per worker, in a bulk
+     * ingestion.
+     */
+    private static final int INGESTION_QUEUE_FACTOR = 4;
+    /**
+     * Number of records added at once in a bulk ingestion.
+     */
+    private static final int INGESTION_BATCH_SIZE = 256;
+    /**
+     * If <tt>true</tt>, the queries use a columnar layout of the descriptors
+     * (not stored with the database).
+     */
+    private transient boolean columnar = false;
+    /**
+     * Columnar layout of the descriptors (<tt>null</tt> if it has not been
+     * built yet).
+     */
+    private transient volatile ColumnarStore columnarStore = null;
+    /**
+     * Version of the list of records, increased each time it is modified.
+     */
+    private transient int version = 0;
+    /**
+     * Index used for answering the queries with bounded output and the range
+     * queries (<tt>null</tt> if the records are scanned).
+     */
+    private transient MetricIndex<Record> metricIndex = null;
+    /**
+     * Inverted index of the record labels (<tt>null</tt> if it is not used).
+     */
+    private transient LabelIndex labelIndex = null;
+    /**
+     * Journal where the changes are appended (<tt>null</tt> if the journal
+     * mode is not active).
+     */
+    private transient volatile ListDBJournal journal = null;
+    /**
+     * Sequence number of the last journal segment whose changes are included
+     * in the file this database was read from or compacted to (it is read by
+     * the writers without the compaction lock).
+     */
+    transient volatile long journalSequence = 0;
+    /**
+     * Number of journal entries in each synchronization batch.
+     */
+    private transient int journalSyncBatch = ListDBJournal.DEFAULT_SYNC_BATCH;
+    /**
+     * Maximum delay (in milliseconds) of a pending journal entry.
+     */
+    private transient long journalSyncDelay = ListDBJournal.DEFAULT_SYNC_DELAY;
+    /**
+     * Maximum size (in bytes) of a journal segment.
+     */
+    private transient long journalSegmentSize = ListDBJournal.DEFAULT_SEGMENT_SIZE;
+    /**
+     * Maximum number of journal segments before starting a compaction in
+     * background (0 if the compaction is never started automatically).
+     */
+    private transient int maxJournalSegments = 8;
+    /**
+     * Lock guarding the compaction of the journal.
+     */
+    private transient Lock compactionLock = new ReentrantLock();
+    /**
+     * <tt>true</tt> if a compaction has been started in background.
+     */
+    private transient AtomicBoolean compacting = new AtomicBoolean(false);
     
     /**
      * Constructs an empty database.
@@ -67,7 +197,23 @@ public class ListDB<T> implements Serializable{
         if (!record.isCompatible()) {
             throw new InvalidParameterException("The new record does not share the database structure.");
         }
-        return database.add(record);
+        long ticket;
+        lock.writeLock().lock();
+        try {
+            ticket = log(ListDBJournal.ADD, database.size(), record);
+            version++;
+            database.add(record);
+            if (metricIndex != null) {
+                metricIndex.add(record);
+            }
+            if (labelIndex != null) {
+                labelIndex.add(database.size() - 1, record);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        commit(ticket);
+        return true;
     }
     
     /**
@@ -79,13 +225,206 @@ public class ListDB<T> implements Serializable{
      * @throws InvalidParameterException
      */
     public boolean add(T media){
+        // The descriptors are calculated before locking the database
         Record record = new Record(media);
-        return database.add(record);
+        return add(record);
     }
     
+    /**
+     * Appends a new record to the end of this database.
+     *
+     * @param media media from which the new record is calculated
+     * @param locator the media locator of the new record
+     * @return <tt>true</tt> (as specified by 
+     * {@link java.util.Collection#add(java.lang.Object) })
+     * @throws InvalidParameterException
+     */
     public boolean add(T media, URL locator){
         Record record = new Record(media, locator);
-        return database.add(record);
+        return add(record);
+    }
+    
+    /**
+     * Appends new records to the end of this database, calculated from the 
+     * given media.
+     * 
+     * The descriptors are calculated in parallel by the pool of this database
+     * (see {@link #setParallelism(int)}), while the records are added in the
+     * same order as the media. The number of media pending to be processed is
+     * bounded, so the media are consumed as the workers progress (the input 
+     * is stopped when the queue is full). If the descriptors of a media can
+     * not be calculated, it is skipped.
+     *
+     * The labels of the media processed concurrently can be calculated in
+     * batches by using a {@link jmr.descriptor.label.BatchingClassifier} in
+     * the label descriptors. Up to four times the parallelism of this
+     * database media are pending at the same time, so the batch size of the
+     * classifier should not be greater than that.
+     *
+     * @param media media from which the new records are calculated
+     * @return the statistics of the ingestion
+     */
+    public IngestionStats addAll(Iterable<? extends T> media) {
+        return ingest(media.iterator(), Function.identity(), false);
+    }
+    
+    /**
+     * Appends new records to the end of this database, calculated from the 
+     * media in the given stream (see {@link #addAll(java.lang.Iterable)}).
+     *
+     * @param media media from which the new records are calculated
+     * @return the statistics of the ingestion
+     */
+    public IngestionStats addAll(Stream<? extends T> media) {
+        return ingest(media.iterator(), Function.identity(), false);
+    }
+    
+    /**
+     * Appends new records to the end of this database, calculated from the 
+     * media at the given locators.
+     * 
+     * Each media is decoded (by means of the given decoder) and its 
+     * descriptors are calculated in parallel by the pool of this database
+     * (see {@link #setParallelism(int)}), while the records are added in the
+     * same order as the locators. The number of locators pending to be 
+     * processed is bounded, so the locators are consumed as the workers 
+     * progress. If a media can not be decoded (the decoder returns 
+     * <tt>null</tt> or throws an exception) or its descriptors can not be 
+     * calculated, it is skipped. The locator of each record is set to the
+     * locator of its media.
+     *
+     * @param locators locators of the media
+     * @param decoder the function that decodes the media at a given locator
+     * @return the statistics of the ingestion
+     */
+    public IngestionStats addAll(Iterable<URL> locators, Function<URL, ? extends T> decoder) {
+        return ingest(locators.iterator(), decoder, true);
+    }
+    
+    /**
+     * Runs a bulk ingestion pipeline: the sources are decoded and their 
+     * records are calculated by the workers, and the records are added (in
+     * the order of the sources) by the calling thread in batches.
+     *
+     * @param <S> the type of the sources
+     * @param sources the sources of the media
+     * @param decoder the function that decodes the media of a source
+     * @param located <tt>true</tt> if the sources are the media locators
+     * @return the statistics of the ingestion
+     */
+    private <S> IngestionStats ingest(Iterator<S> sources, Function<S, ? extends T> decoder, boolean located) {
+        int workers = parallelism;
+        ForkJoinPool workerPool = workers > 1 ? getPool() : null;
+        int capacity = INGESTION_QUEUE_FACTOR * workers;
+        LongAdder decodeNanos = new LongAdder(), extractNanos = new LongAdder();
+        long insertNanos = 0, backpressureNanos = 0, start = System.nanoTime();
+        int added = 0, skipped = 0;
+        ArrayDeque<Future<Record>> queue = new ArrayDeque<>(capacity);
+        List<Record> batch = new ArrayList<>(INGESTION_BATCH_SIZE);
+        boolean interrupted = false;
+        while ((sources.hasNext() || !queue.isEmpty()) && !interrupted) {
+            if (sources.hasNext() && queue.size() < capacity) {
+                S source = sources.next();
+                Callable<Record> task = () -> {
+                    long t0 = System.nanoTime();
+                    T media = decoder.apply(source);
+                    long t1 = System.nanoTime();
+                    decodeNanos.add(t1 - t0);
+                    if (media == null) {
+                        return null;
+                    }
+                    Record record = new Record(media, located ? (URL) source : null);
+                    extractNanos.add(System.nanoTime() - t1);
+                    return record;
+                };
+                if (workerPool != null) {
+                    queue.add(workerPool.submit(task));
+                } else {
+                    queue.add(compute(task));
+                }
+            }
+            // The finished records are added in order; if the queue is full,
+            // the input waits for the oldest one
+            while (!queue.isEmpty() && (queue.peek().isDone() || queue.size() >= capacity || !sources.hasNext())) {
+                Record record = null;
+                long t0 = System.nanoTime();
+                try {
+                    record = queue.poll().get();
+                } catch (ExecutionException ex) {
+                    // The source is skipped
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    interrupted = true;
+                    break;
+                }
+                backpressureNanos += System.nanoTime() - t0;
+                if (record == null || !record.isCompatible()) {
+                    skipped++;
+                } else {
+                    batch.add(record);
+                    if (batch.size() >= INGESTION_BATCH_SIZE) {
+                        insertNanos += addBatch(batch);
+                        added += batch.size();
+                        batch.clear();
+                    }
+                }
+            }
+        }
+        for (Future<Record> pending : queue) {
+            pending.cancel(true);
+        }
+        insertNanos += addBatch(batch);
+        added += batch.size();
+        return new IngestionStats(added, skipped, workers, decodeNanos.sum(), extractNanos.sum(),
+                insertNanos, backpressureNanos, System.nanoTime() - start);
+    }
+    
+    /**
+     * Runs the given task in the calling thread.
+     *
+     * @param task the task
+     * @return a completed future with the result of the task
+     */
+    private static <R> Future<R> compute(Callable<R> task) {
+        CompletableFuture<R> future = new CompletableFuture<>();
+        try {
+            future.complete(task.call());
+        } catch (Exception ex) {
+            future.completeExceptionally(ex);
+        }
+        return future;
+    }
+    
+    /**
+     * Appends the given records to the end of this database, locking it only
+     * once.
+     *
+     * @param records the records to be appended
+     * @return the time (in nanoseconds) spent adding the records
+     */
+    private long addBatch(List<Record> records) {
+        long t0 = System.nanoTime();
+        if (!records.isEmpty()) {
+            long ticket = 0;
+            lock.writeLock().lock();
+            try {
+                for (Record record : records) {
+                    ticket = Math.max(ticket, log(ListDBJournal.ADD, database.size(), record));
+                    database.add(record);
+                    if (metricIndex != null) {
+                        metricIndex.add(record);
+                    }
+                    if (labelIndex != null) {
+                        labelIndex.add(database.size() - 1, record);
+                    }
+                }
+                version++;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            commit(ticket);
+        }
+        return System.nanoTime() - t0;
     }
 
     /**
@@ -102,7 +441,22 @@ public class ListDB<T> implements Serializable{
         if (!record.isCompatible()) {
             throw new InvalidParameterException("The new record does not share the data base structure.");
         }
-        database.add(index, record);
+        long ticket;
+        lock.writeLock().lock();
+        try {
+            ticket = log(ListDBJournal.INSERT, index, record);
+            version++;
+            database.add(index, record);
+            if (metricIndex != null) {
+                metricIndex.add(record);
+            }
+            if (labelIndex != null) {
+                labelIndex.add(index, record);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        commit(ticket);
     }
     
     /**
@@ -117,7 +471,7 @@ public class ListDB<T> implements Serializable{
      */
     public void add(int index, T media) {
         Record record = new Record(media);
-        database.add(index, record);
+        add(index, record);
     }
 
     /**
@@ -134,7 +488,25 @@ public class ListDB<T> implements Serializable{
         if (!record.isCompatible()) {
             throw new InvalidParameterException("The new record does not share the data base structure.");
         }
-        return database.set(index, record);
+        long ticket;
+        Record previous;
+        lock.writeLock().lock();
+        try {
+            ticket = log(ListDBJournal.SET, index, record);
+            version++;
+            previous = database.set(index, record);
+            if (metricIndex != null) {
+                metricIndex.remove(previous);
+                metricIndex.add(record);
+            }
+            if (labelIndex != null) {
+                labelIndex.set(index, previous, record);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        commit(ticket);
+        return previous;
     }
 
     /**
@@ -149,7 +521,7 @@ public class ListDB<T> implements Serializable{
      */
     public Record set(int index, T media) {
         Record record = new Record(media);
-        return database.set(index, record);
+        return set(index, record);
     }
     
     /**
@@ -160,7 +532,12 @@ public class ListDB<T> implements Serializable{
      * @throws IndexOutOfBoundsException {@inheritDoc}
      */
     public Record get(int index) {
-        return database.get(index);
+        lock.readLock().lock();
+        try {
+            return database.get(index);
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     /**
@@ -172,7 +549,24 @@ public class ListDB<T> implements Serializable{
      * @throws IndexOutOfBoundsException {@inheritDoc}
      */
     public Record remove(int index) {
-        return database.remove(index);
+        long ticket;
+        Record previous;
+        lock.writeLock().lock();
+        try {
+            ticket = log(ListDBJournal.REMOVE, index, null);
+            version++;
+            previous = database.remove(index);
+            if (metricIndex != null) {
+                metricIndex.remove(previous);
+            }
+            if (labelIndex != null) {
+                labelIndex.remove(index, previous);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        commit(ticket);
+        return previous;
     }
 
     /**
@@ -180,7 +574,37 @@ public class ListDB<T> implements Serializable{
      * after this call returns.
      */
     public void clear() {
-        database.clear();
+        long ticket;
+        lock.writeLock().lock();
+        try {
+            ticket = log(ListDBJournal.CLEAR, -1, null);
+            version++;
+            database.clear();
+            if (metricIndex != null) {
+                metricIndex.clear();
+            }
+            if (labelIndex != null) {
+                labelIndex.clear();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        commit(ticket);
+    }
+
+    /**
+     * Returns a snapshot of the records of this database, in the same order.
+     * Later changes in the database are not reflected in the returned list.
+     *
+     * @return an unmodifiable list with the records of this database
+     */
+    public List<Record> getRecords() {
+        lock.readLock().lock();
+        try {
+            return Collections.unmodifiableList(new ArrayList<>(database));
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     /**
@@ -189,7 +613,12 @@ public class ListDB<T> implements Serializable{
      * @return the number of records in this database
      */
     public int size() {
-        return database.size();
+        lock.readLock().lock();
+        try {
+            return database.size();
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     /**
@@ -198,7 +627,12 @@ public class ListDB<T> implements Serializable{
      * @return <tt>true</tt> if this database contains no record
      */
     public boolean isEmpty() {
-        return database.isEmpty();
+        lock.readLock().lock();
+        try {
+            return database.isEmpty();
+        } finally {
+            lock.readLock().unlock();
+        }
     }
     
     /**
@@ -251,14 +685,19 @@ public class ListDB<T> implements Serializable{
         if (!queryRecord.isCompatible()) {
             throw new InvalidParameterException("The query record does not share the data base structure.");
         }
-        List output = (List)database.clone(); // Shallow copy 
-        // The output will be ordered by using the query record as reference  
-        Record actual_orderReference = orderReference;
-        this.orderReference = queryRecord;
-        output.sort(null);
-        this.orderReference = actual_orderReference;
-        
-        return output;
+        // The distances are calculated only once (instead of on every sort 
+        // comparison), and the record positions are sorted using them as keys 
+        lock.readLock().lock();
+        try {
+            int order[] = sortedIndices(distances(queryRecord));
+            List<Record> output = new ArrayList<>(order.length);
+            for (int index : order) {
+                output.add(database.get(index));
+            }
+            return output;
+        } finally {
+            lock.readLock().unlock();
+        }
     }
     
     /**
@@ -283,33 +722,12 @@ public class ListDB<T> implements Serializable{
      * @return the nearest records sorted by distance
      */
     public List<Record> query(Record queryRecord, int size){
-        if (!queryRecord.isCompatible()) {
-            throw new InvalidParameterException("The query record does not share the data base structure.");
+        List<ResultMetadata<Double,Record>> nearest = queryMetadata(queryRecord, size);
+        List<Record> output = new ArrayList<>(nearest.size());
+        for(ResultMetadata<Double,Record> item: nearest){
+            output.add(item.getMetadata());
         }
-        List output = query(queryRecord);
-        return output.subList(0, size);
-        
-        //Record actual_orderReference = orderReference;
-        //this.orderReference = queryRecord;         
-        //size = Math.min(Math.max(size,0), database.size());
-        //TreeSet<Record> output = new TreeSet(database.subList(0,size)); //Sorted    
-        //Record current, last = output.last(); // Highest element currently in output
-        //for(int i=size; i<database.size(); i++){
-        //    current = database.get(i);  
-        //    if(last.compareTo(current)>0) {
-        //        output.remove(last);                
-        //        output.add(database.get(i)); // Added in a sorted way
-        //        last = output.last();
-        //    }
-        //}
-        //this.orderReference = actual_orderReference;
-        //return new ArrayList(output);
-        // NOTE: the previous implementation is faster than the easiest following
-        // code: (1) call to query(queryRecord) and (2) return the sublist by
-        // calling subList(0,size). If the size of the database (n) is very high,  
-        // the sorting in the query method (O(n·logn)) have more cost than the  
-        // insertion made in this implementation (O(n·m), with m<<n) For example,
-        // if m=10 (the size parameter), this implementaion is faster for n>1024.
+        return output;
     }
     
     /**
@@ -343,65 +761,1256 @@ public class ListDB<T> implements Serializable{
         if (!queryRecord.isCompatible()) {
             throw new InvalidParameterException("The query record does not share the data base structure.");
         }
-        List output = new ArrayList<>();
-        Object distance;
-        for(Record r: database){
-            distance = queryRecord.compare(r);
-            output.add(new ResultMetadata(distance, r));
+        lock.readLock().lock();
+        try {
+            double distances[] = distances(queryRecord);
+            int order[] = sortedIndices(distances);
+            List<ResultMetadata<Double,Record>> output = new ArrayList<>(order.length);
+            for (int index : order) {
+                output.add(new ResultMetadata<>(distances[index], database.get(index)));
+            }
+            return output;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Returns the nearest records to the given query one, together with their
+     * distance to the query. The output is sorted on the basis of that 
+     * distance.
+     * 
+     * The records are scanned once, and the distance of each one to the query
+     * is calculated only once. The <code>size</code> nearest records found so
+     * far are kept in a bounded max-heap (the root is the farthest one), so the
+     * cost of this method is O(n·log(size)) in time and O(size) in memory,
+     * instead of sorting the whole database. Records at the same distance keep
+     * the database order. Once the heap is full, the comparison with each
+     * record is abandoned as soon as its distance exceeds the one of the
+     * farthest candidate (see 
+     * {@link jmr.descriptor.MediaDescriptor#compare(jmr.descriptor.MediaDescriptor, double)}).
+     * 
+     * If an index is set (see {@link #setIndex(jmr.db.MetricIndex)}), the
+     * query is answered by it, and the distances are calculated with the
+     * index metric.
+     * 
+     * @param queryRecord the query record
+     * @param size the maximum number of records in the output
+     * @return a list of ordered metadata with, at most, <code>size</code> items
+     */
+    public List<ResultMetadata<Double,Record>> queryMetadata(Record queryRecord, int size){
+        if (!queryRecord.isCompatible()) {
+            throw new InvalidParameterException("The query record does not share the data base structure.");
+        }
+        lock.readLock().lock();
+        try {
+            if (metricIndex != null) {
+                return metricIndex.search(queryRecord, size);
+            }
+            return scan(queryRecord, size);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Returns the nearest records to the given query one by scanning the 
+     * records, even if an index is set (it is used for evaluating the 
+     * indexes, see {@link IndexEvaluation}).
+     * 
+     * @param queryRecord the query record
+     * @param size the maximum number of records in the output
+     * @return a list of ordered metadata with, at most, <code>size</code> items
+     */
+    List<ResultMetadata<Double,Record>> scanMetadata(Record queryRecord, int size){
+        if (!queryRecord.isCompatible()) {
+            throw new InvalidParameterException("The query record does not share the data base structure.");
+        }
+        lock.readLock().lock();
+        try {
+            return scan(queryRecord, size);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Returns the nearest records to the given query one by scanning the 
+     * records (even if an index is set). It have to be called holding the 
+     * read lock.
+     * 
+     * @param queryRecord the query record
+     * @param size the maximum number of records in the output
+     * @return a list of ordered metadata with, at most, <code>size</code> items
+     */
+    private List<ResultMetadata<Double,Record>> scan(Record queryRecord, int size){
+        size = Math.min(Math.max(size,0), database.size());
+        PriorityQueue<Neighbor> heap;
+        if (size == 0) {
+            heap = new PriorityQueue<>(1, Collections.reverseOrder());
+        } else if (isParallelScan()) {
+            ColumnarStore store = getColumnarStore(queryRecord);
+            int range = getParallelRange(), k = size;
+            heap = getPool().invoke(new NearestTask((from, to) -> nearest(queryRecord, store, k, from, to), size, range, 0, database.size()));
+        } else {
+            heap = nearest(queryRecord, getColumnarStore(queryRecord), size, 0, database.size());
+        }
+        Neighbor nearest[] = heap.toArray(new Neighbor[heap.size()]);
+        Arrays.sort(nearest);
+        List<ResultMetadata<Double,Record>> output = new ArrayList<>(nearest.length);
+        for (Neighbor n : nearest) {
+            output.add(new ResultMetadata<>(n.distance, database.get(n.index)));
         }
-        output.sort(null);
         return output;
     }
     
     /**
-     * Read a serialized <code>ListDB</code> object from a file.
-     *
-     * @param file the file with the serialized <code>ListDB</code> object
-     * @return a new <code>ListDB</code> object with the records stored in the
-     * given file.
+     * Returns the nearest records to the given query media, together with 
+     * their distance to the query. The output is sorted on the basis of that 
+     * distance.
      * 
-     * @throws FileNotFoundException if the file does not exist, is a directory
-     * rather than a regular file, or for some other reason cannot be opened for
-     * reading.
-     * @throws IOException if an I/O error occurs while reading stream header.
-     * @throws ClassNotFoundException if some class of a serialized object
-     * cannot be found.
+     * @param queryMedia the query media
+     * @param size the maximum number of records in the output
+     * @return a list of ordered metadata with, at most, <code>size</code> items
+     * @see #queryMetadata(jmr.db.ListDB.Record, int) 
      */
-    static public ListDB open(File file) throws FileNotFoundException, 
-            IOException, ClassNotFoundException {
-        ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file));
-        ListDB database = (ListDB) ois.readObject();
-        ois.close();
-        return database;
+    public List<ResultMetadata<Double,Record>> queryMetadata(T queryMedia, int size){
+        Record queryRecord = new Record(queryMedia);
+        return this.queryMetadata(queryRecord, size);
     }
     
     /**
-     * Save this <code>ListDB</code> object in a file by means a serialize 
-     * process.
+     * Returns the records of this database whose labels match the given ones.
+     * The records are given in the database order.
      * 
-     * @param file the file where this objetc will be serialized.
+     * @param labels the query labels
+     * @param match the type of matching between the query labels and the
+     * labels of the records
+     * @return the records matching the given labels
+     * @throws IllegalStateException if no label index is set (see 
+     * {@link #setLabelIndex(jmr.db.LabelIndex)})
+     */
+    public List<Record> queryLabels(LabelDescriptor labels, LabelIndex.Match match){
+        lock.readLock().lock();
+        try {
+            int positions[] = requireLabelIndex().search(labels, match);
+            List<Record> output = new ArrayList<>(positions.length);
+            for (int position : positions) {
+                output.add(database.get(position));
+            }
+            return output;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Returns the records of this database whose labels are at a finite 
+     * distance of the given ones, together with that distance. The output is
+     * sorted on the basis of the distance (records at the same distance keep
+     * the database order).
      * 
-     * @throws FileNotFoundException if the file does not exist, is a directory
-     * rather than a regular file, or for some other reason cannot be opened for
-     * writing.
-     * @throws IOException if an I/O error occurs while writing stream header.
+     * If the comparator is one of the {@link LabelDescriptor} ones, only the
+     * records given by the label index for the corresponding type of matching
+     * (see {@link LabelIndex.Match#of(jmr.descriptor.Comparator)}) are 
+     * compared; otherwise, all the records are compared.
+     * 
+     * @param labels the query labels
+     * @param comparator the comparator of the query labels with the labels of
+     * the records
+     * @return a list of ordered metadata
+     * @throws IllegalStateException if no label index is set (see 
+     * {@link #setLabelIndex(jmr.db.LabelIndex)})
      */
-    public void save(File file) throws FileNotFoundException, IOException {
-        ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(file));
-        oos.writeObject(this);
-        oos.close();
+    public List<ResultMetadata<Double,Record>> queryLabels(LabelDescriptor labels, Comparator<LabelDescriptor,Double> comparator){
+        lock.readLock().lock();
+        try {
+            LabelIndex index = requireLabelIndex();
+            LabelIndex.Match match = LabelIndex.Match.of(comparator);
+            int positions[];
+            if (match != null) {
+                positions = index.search(labels, match);
+            } else {
+                positions = new int[database.size()];
+                for (int i = 0; i < positions.length; i++) {
+                    positions[i] = i;
+                }
+            }
+            int position = index.getDescriptorPosition();
+            double distances[] = new double[positions.length];
+            for (int i = 0; i < positions.length; i++) {
+                distances[i] = comparator.apply(labels, (LabelDescriptor) database.get(positions[i]).get(position));
+            }
+            List<ResultMetadata<Double,Record>> output = new ArrayList<>();
+            for (int i : sortedIndices(distances)) {
+                if (distances[i] == Double.POSITIVE_INFINITY) {
+                    break;
+                }
+                output.add(new ResultMetadata<>(distances[i], database.get(positions[i])));
+            }
+            return output;
+        } finally {
+            lock.readLock().unlock();
+        }
     }
     
     /**
-     * Returns a string representation of this database.
+     * Returns the nearest records to the given query one among the records
+     * whose labels match the given ones, together with their distance to the
+     * query. The output is sorted on the basis of that distance (records at 
+     * the same distance keep the database order).
      * 
-     * @return a string representation of this database 
+     * Only the records given by the label index are compared to the query, so
+     * the cost of this method depends on the number of records matching the
+     * labels instead of on the size of the database.
+     * 
+     * @param queryRecord the query record
+     * @param size the maximum number of records in the output
+     * @param labels the labels used for filtering the records
+     * @param match the type of matching between the given labels and the 
+     * labels of the records
+     * @return a list of ordered metadata with, at most, <code>size</code> items
+     * @throws IllegalStateException if no label index is set (see 
+     * {@link #setLabelIndex(jmr.db.LabelIndex)})
      */
-    @Override
-    public String toString(){
-        String output ="";
-        output += this.database.toString();
-        return output;
+    public List<ResultMetadata<Double,Record>> queryMetadata(Record queryRecord, int size, 
+            LabelDescriptor labels, LabelIndex.Match match){
+        if (!queryRecord.isCompatible()) {
+            throw new InvalidParameterException("The query record does not share the data base structure.");
+        }
+        lock.readLock().lock();
+        try {
+            int positions[] = requireLabelIndex().search(labels, match);
+            size = Math.min(Math.max(size, 0), positions.length);
+            PriorityQueue<Neighbor> heap = new PriorityQueue<>(Math.max(size, 1), Collections.reverseOrder());
+            if (size > 0) {
+                for (int position : positions) {
+                    offer(heap, size, queryRecord.compare(database.get(position), bound(heap, size)), position);
+                }
+            }
+            Neighbor nearest[] = heap.toArray(new Neighbor[heap.size()]);
+            Arrays.sort(nearest);
+            List<ResultMetadata<Double,Record>> output = new ArrayList<>(nearest.length);
+            for (Neighbor n : nearest) {
+                output.add(new ResultMetadata<>(n.distance, database.get(n.index)));
+            }
+            return output;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Returns the label index, checking that it is set.
+     * 
+     * @return the label index
+     * @throws IllegalStateException if no label index is set
+     */
+    private LabelIndex requireLabelIndex() {
+        if (labelIndex == null) {
+            throw new IllegalStateException("No label index is set in the database.");
+        }
+        return labelIndex;
+    }
+    
+    /**
+     * Returns the records of this database whose distance to the given query
+     * is lower than or equal to the given radius, together with their 
+     * distance to the query. The output is sorted on the basis of that 
+     * distance.
+     * 
+     * If an index is set (see {@link #setIndex(jmr.db.MetricIndex)}), the
+     * query is answered by it, and the distances are calculated with the
+     * index metric.
+     * 
+     * @param queryRecord the query record
+     * @param radius the maximum distance to the query
+     * @return a list of ordered metadata
+     */
+    public List<ResultMetadata<Double,Record>> queryRange(Record queryRecord, double radius){
+        if (!queryRecord.isCompatible()) {
+            throw new InvalidParameterException("The query record does not share the data base structure.");
+        }
+        lock.readLock().lock();
+        try {
+            if (metricIndex != null) {
+                return metricIndex.range(queryRecord, radius);
+            }
+            double distances[] = distances(queryRecord);
+            List<ResultMetadata<Double,Record>> output = new ArrayList<>();
+            for (int index : sortedIndices(distances)) {
+                if (distances[index] > radius) {
+                    break;
+                }
+                output.add(new ResultMetadata<>(distances[index], database.get(index)));
+            }
+            return output;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Returns the records of this database whose distance to the given query
+     * media is lower than or equal to the given radius, together with their
+     * distance to the query. The output is sorted on the basis of that 
+     * distance.
+     * 
+     * @param queryMedia the query media
+     * @param radius the maximum distance to the query
+     * @return a list of ordered metadata
+     * @see #queryRange(jmr.db.ListDB.Record, double) 
+     */
+    public List<ResultMetadata<Double,Record>> queryRange(T queryMedia, double radius){
+        Record queryRecord = new Record(queryMedia);
+        return this.queryRange(queryRecord, radius);
+    }
+    
+    /**
+     * Calculates the distance between the given query and each record of this
+     * database. The comparison of the query with each record have to be 
+     * interpretable as a double value.
+     * 
+     * @param queryRecord the query record
+     * @return an array with the distance to the query of each record (at the
+     * same position of the record in the database)
+     */
+    private double[] distances(Record queryRecord) {
+        double distances[] = new double[database.size()];
+        ColumnarStore store = getColumnarStore(queryRecord);
+        if (isParallelScan()) {
+            getPool().invoke(new DistanceTask(queryRecord, store, distances, 0, distances.length));
+        } else {
+            distances(queryRecord, store, distances, 0, distances.length);
+        }
+        return distances;
+    }
+    
+    /**
+     * Calculates the distance between the given query and the records in the
+     * given range of positions.
+     *
+     * @param queryRecord the query record
+     * @param store the columnar layout used for calculating the distances 
+     * (<tt>null</tt> if the record objects are used)
+     * @param distances the array where the distances are stored
+     * @param from the first position (inclusive)
+     * @param to the last position (exclusive)
+     */
+    private void distances(Record queryRecord, ColumnarStore store, double distances[], int from, int to) {
+        if (store != null) {
+            store.distances(queryRecord, distances, from, to);
+        } else {
+            for (int i = from; i < to; i++) {
+                distances[i] = queryRecord.<Double>compare(database.get(i));
+            }
+        }
+    }
+    
+    /**
+     * Returns the nearest records to the given query among the ones in the
+     * given range of positions, as a bounded max-heap of candidates.
+     *
+     * @param queryRecord the query record
+     * @param store the columnar layout used for calculating the distances 
+     * (<tt>null</tt> if the record objects are used)
+     * @param size the maximum number of candidates (greater than zero)
+     * @param from the first position (inclusive)
+     * @param to the last position (exclusive)
+     * @return a max-heap with, at most, the <code>size</code> nearest records
+     */
+    private PriorityQueue<Neighbor> nearest(Record queryRecord, ColumnarStore store, int size, int from, int to) {
+        PriorityQueue<Neighbor> heap = new PriorityQueue<>(size, Collections.reverseOrder());
+        if (store != null) {
+            for (int i = from; i < to; i++) {
+                offer(heap, size, store.distance(queryRecord, i, bound(heap, size)), i);
+            }
+        } else {
+            for (int i = from; i < to; i++) {
+                offer(heap, size, queryRecord.compare(database.get(i), bound(heap, size)), i);
+            }
+        }
+        return heap;
+    }
+    
+    /**
+     * Returns the bound of the distances of the new candidates to the given
+     * bounded max-heap: the distance of the farthest candidate if the heap is
+     * full (a farther candidate would be rejected, and an equal one too, since
+     * the records are offered in the database order), or infinity otherwise.
+     * It is used for abandoning the comparisons with the records that can not
+     * be candidates (see 
+     * {@link jmr.descriptor.MediaDescriptor#compare(jmr.descriptor.MediaDescriptor, double)}).
+     *
+     * @param heap the bounded max-heap
+     * @param size the maximum number of candidates in the heap
+     * @return the bound of the distances of the new candidates
+     */
+    static double bound(PriorityQueue<Neighbor> heap, int size) {
+        return heap.size() < size ? Double.POSITIVE_INFINITY : heap.peek().distance;
+    }
+    
+    /**
+     * Offers a new candidate to the given bounded max-heap. If the heap is 
+     * full, the candidate replaces the farthest one only if it is nearer.
+     *
+     * @param heap the bounded max-heap
+     * @param size the maximum number of candidates in the heap
+     * @param distance the distance of the candidate to the query
+     * @param index the position of the candidate in the database
+     */
+    static void offer(PriorityQueue<Neighbor> heap, int size, double distance, int index) {
+        if (heap.size() < size) {
+            heap.add(new Neighbor(distance, index));
+        } else {
+            Neighbor farthest = heap.peek();
+            int cmp = Double.compare(distance, farthest.distance);
+            if (cmp < 0 || (cmp == 0 && index < farthest.index)) {
+                // The farthest one is replaced by the new record
+                heap.poll();
+                farthest.distance = distance;
+                farthest.index = index;
+                heap.add(farthest);
+            }
+        }
+    }
+    
+    /**
+     * Set whether the queries use a columnar layout of the descriptors. 
+     * 
+     * In this layout, the features of the descriptors at the same position in
+     * all the records are packed in a single contiguous array, so the queries
+     * scan sequential memory instead of following the references of every 
+     * record and descriptor object (see {@link ColumnarStore}). The layout is
+     * built in the first query after any change in the records, and it is 
+     * only used with queries whose comparator is the default one of the 
+     * descriptor lists (the rest of queries use the record objects). The 
+     * results are the same in both cases.
+     * 
+     * By default, the columnar layout is not used.
+     *
+     * @param columnar <tt>true</tt> for using the columnar layout
+     */
+    public void setColumnar(boolean columnar) {
+        this.columnar = columnar;
+        if (!columnar) {
+            columnarStore = null; // Memory is released
+        }
+    }
+    
+    /**
+     * Returns <tt>true</tt> if the queries use a columnar layout of the
+     * descriptors.
+     *
+     * @return <tt>true</tt> if the queries use a columnar layout
+     */
+    public boolean isColumnar() {
+        return columnar;
+    }
+    
+    /**
+     * Returns the columnar layout to be used for calculating the distances to
+     * the given query, building it if it is not up to date. It have to be 
+     * called holding the read lock.
+     *
+     * @param queryRecord the query record
+     * @return the columnar layout, or <tt>null</tt> if it is disabled or if it
+     * can not be used with the given query
+     */
+    private ColumnarStore getColumnarStore(Record queryRecord) {
+        if (!columnar) {
+            return null;
+        }
+        ColumnarStore store = columnarStore;
+        if (store == null || store.version != version) {
+            synchronized (this) {
+                store = columnarStore;
+                if (store == null || store.version != version) {
+                    store = new ColumnarStore(database, descriptorClasses.length, version);
+                    columnarStore = store;
+                }
+            }
+        }
+        return store.accepts(queryRecord) ? store : null;
+    }
+    
+    /**
+     * Set the index used for answering the queries with bounded output (see
+     * {@link #queryMetadata(jmr.db.ListDB.Record, int)}) and the range queries
+     * (see {@link #queryRange(jmr.db.ListDB.Record, double)}), so the records
+     * are not scanned. The index is cleared and filled with the current 
+     * records, and it is kept up to date as the database is modified. The
+     * index is not persisted with the database.
+     * 
+     * The index metric should be the comparator of the query records (by
+     * default, {@link jmr.descriptor.DescriptorList.DefaultComparator}).
+     *
+     * @param index the index, or <tt>null</tt> for scanning the records
+     */
+    public void setIndex(MetricIndex<Record> index) {
+        setIndex(index, true);
+    }
+    
+    /**
+     * Set the index used for answering the queries, as in
+     * {@link #setIndex(jmr.db.MetricIndex)}. If <code>build</code> is
+     * <tt>false</tt>, the index is used as it is, so it have to contain the
+     * current records of this database (for example, an index loaded from a
+     * file, see {@link HNSWIndex#load(java.io.File, java.util.List, jmr.descriptor.Comparator)}).
+     *
+     * @param index the index, or <tt>null</tt> for scanning the records
+     * @param build <tt>true</tt> if the index have to be filled with the 
+     * current records
+     * @throws InvalidParameterException if the index is not built and its 
+     * size does not match the size of this database
+     */
+    public void setIndex(MetricIndex<Record> index, boolean build) {
+        lock.writeLock().lock();
+        try {
+            if (index != null && build) {
+                index.clear();
+                index.addAll(database);
+            } else if (index != null && index.size() != database.size()) {
+                throw new InvalidParameterException("The index does not contain the records of the database.");
+            }
+            this.metricIndex = index;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Set the inverted index of labels used for answering the label queries
+     * (see {@link #queryLabels(jmr.descriptor.label.LabelDescriptor, jmr.db.LabelIndex.Match)})
+     * and the queries filtered by labels (see 
+     * {@link #queryMetadata(jmr.db.ListDB.Record, int, jmr.descriptor.label.LabelDescriptor, jmr.db.LabelIndex.Match)}).
+     * The index is cleared and filled with the current records, and it is 
+     * kept up to date as the database is modified. The index is not persisted
+     * with the database.
+     *
+     * @param index the label index, or <tt>null</tt> for removing it
+     * @throws InvalidParameterException if the descriptor at the index
+     * position is not a label descriptor
+     */
+    public void setLabelIndex(LabelIndex index) {
+        lock.writeLock().lock();
+        try {
+            if (index != null) {
+                index.build(database);
+            }
+            this.labelIndex = index;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Returns the inverted index of labels.
+     *
+     * @return the inverted index of labels, or <tt>null</tt> if it is not set
+     */
+    public LabelIndex getLabelIndex() {
+        return labelIndex;
+    }
+    
+    /**
+     * Returns the index used for answering the queries.
+     *
+     * @return the index used for answering the queries, or <tt>null</tt> if
+     * the records are scanned
+     */
+    public MetricIndex<Record> getIndex() {
+        return metricIndex;
+    }
+    
+    /**
+     * Set the number of threads used for scanning the database in the 
+     * queries. If it is greater than one, the records are splitted in ranges
+     * whose distances to the query are calculated in parallel (and, in the 
+     * case of the queries with bounded output, each range keeps its own 
+     * nearest records which are merged at the end). By default, the 
+     * parallelism is one (sequential scan). The same threads are used for
+     * calculating the descriptors in the bulk ingestions (see 
+     * {@link #addAll(java.lang.Iterable)}).
+     *
+     * @param parallelism the number of threads (values lower than one are 
+     * interpreted as one).
+     */
+    public void setParallelism(int parallelism) {
+        parallelism = Math.max(parallelism, 1);
+        synchronized (this) {
+            if (pool != null && !sharedPool) {
+                pool.shutdown();
+            }
+            pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+            this.parallelism = parallelism;
+            this.sharedPool = false;
+        }
+    }
+    
+    /**
+     * Set the pool used for scanning the database in parallel. It allows to 
+     * share the same pool between several databases (or with other tasks). 
+     * The parallelism of this database is set to the pool one.
+     *
+     * @param pool the pool used in the queries. If it is <tt>null</tt>, the
+     * sequential scan is set.
+     */
+    public void setParallelism(ForkJoinPool pool) {
+        synchronized (this) {
+            if (this.pool != null && !sharedPool) {
+                this.pool.shutdown();
+            }
+            this.pool = pool;
+            this.parallelism = pool != null ? pool.getParallelism() : 1;
+            this.sharedPool = pool != null;
+        }
+    }
+    
+    /**
+     * Returns the number of threads used for scanning the database in the 
+     * queries.
+     *
+     * @return the number of threads used in the queries
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+    
+    /**
+     * Returns the pool used for scanning the database in parallel. If it was
+     * not created yet (for example, after deserializing this database), it is
+     * created on the basis of the parallelism property.
+     *
+     * @return the pool used for scanning the database in parallel
+     */
+    private synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(parallelism);
+        }
+        return pool;
+    }
+    
+    /**
+     * Checks if the current scan have to be done in parallel, which is the 
+     * case if the parallelism is greater than one and the database is large
+     * enough to split it in ranges.
+     *
+     * @return <tt>true</tt> if the scan have to be done in parallel
+     */
+    private boolean isParallelScan() {
+        return isParallelScan(database.size(), parallelism);
+    }
+    
+    /**
+     * Checks if a scan of the given number of records have to be done in 
+     * parallel with the given parallelism.
+     *
+     * @param size the number of records
+     * @param parallelism the number of threads
+     * @return <tt>true</tt> if the scan have to be done in parallel
+     */
+    static boolean isParallelScan(int size, int parallelism) {
+        return parallelism > 1 && size >= 2 * MIN_PARALLEL_RANGE;
+    }
+    
+    /**
+     * Returns the size of the ranges processed sequentially in a parallel 
+     * scan. The records are splitted in (about) four ranges per thread, 
+     * so the work is balanced if some ranges are slower than the others.
+     *
+     * @return the size of the ranges processed sequentially
+     */
+    private int getParallelRange() {
+        return getParallelRange(database.size(), parallelism);
+    }
+    
+    /**
+     * Returns the size of the ranges processed sequentially in a parallel 
+     * scan of the given number of records with the given parallelism.
+     *
+     * @param size the number of records
+     * @param parallelism the number of threads
+     * @return the size of the ranges processed sequentially
+     */
+    static int getParallelRange(int size, int parallelism) {
+        return Math.max(MIN_PARALLEL_RANGE, size / (4 * parallelism));
+    }
+    
+    /**
+     * Task calculating, in parallel, the distance between a query and the 
+     * records in a range of positions.
+     */
+    private class DistanceTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Record queryRecord;
+        private final ColumnarStore store;
+        private final double distances[];
+        private final int from, to;
+
+        DistanceTask(Record queryRecord, ColumnarStore store, double distances[], int from, int to) {
+            this.queryRecord = queryRecord;
+            this.store = store;
+            this.distances = distances;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= getParallelRange()) {
+                distances(queryRecord, store, distances, from, to);
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new DistanceTask(queryRecord, store, distances, from, middle),
+                          new DistanceTask(queryRecord, store, distances, middle, to));
+            }
+        }
+    }
+    
+    /**
+     * Sequential search of the nearest records to a query in a range of 
+     * positions.
+     */
+    interface RangeSearch {
+        /**
+         * Returns the bounded max-heap with the nearest records to the query
+         * in the given range (see {@link #offer(java.util.PriorityQueue, int, double, int)}).
+         *
+         * @param from the first position of the range (inclusive)
+         * @param to the last position of the range (exclusive)
+         * @return the bounded max-heap with the nearest records
+         */
+        PriorityQueue<Neighbor> nearest(int from, int to);
+    }
+    
+    /**
+     * Task searching, in parallel, the nearest records to a query in a range 
+     * of positions. Each subrange keeps its own bounded heap, and the heaps
+     * are merged when the subtasks finish. It is shared with 
+     * {@link MappedListDB}, which searches the records on the mapped file.
+     */
+    static class NearestTask extends RecursiveTask<PriorityQueue<Neighbor>> {
+        private static final long serialVersionUID = 1L;
+        private final transient RangeSearch search;
+        private final int size;
+        private final int range;
+        private final int from, to;
+
+        /**
+         * Creates a new task.
+         *
+         * @param search the sequential search in a range
+         * @param size the maximum number of records in the output
+         * @param range the size of the ranges searched sequentially
+         * @param from the first position (inclusive)
+         * @param to the last position (exclusive)
+         */
+        NearestTask(RangeSearch search, int size, int range, int from, int to) {
+            this.search = search;
+            this.size = size;
+            this.range = range;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected PriorityQueue<Neighbor> compute() {
+            if (to - from <= range) {
+                return search.nearest(from, to);
+            }
+            int middle = (from + to) >>> 1;
+            NearestTask left = new NearestTask(search, size, range, from, middle);
+            NearestTask right = new NearestTask(search, size, range, middle, to);
+            left.fork();
+            PriorityQueue<Neighbor> heap = right.compute();
+            for (Neighbor n : left.join()) {
+                offer(heap, size, n.distance, n.index);
+            }
+            return heap;
+        }
+    }
+    
+    /**
+     * Returns the positions of the given keys sorted into ascending order of
+     * the keys. The sort is stable (equal keys keep their relative order).
+     * 
+     * @param keys the keys to be sorted
+     * @return an array of positions where <code>keys[output[i]]</code> is the
+     * i-th smallest key
+     */
+    static int[] sortedIndices(double keys[]) {
+        int order[] = new int[keys.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        int buffer[] = new int[keys.length];
+        // Bottom-up merge sort over the positions
+        for (int width = 1; width < order.length; width *= 2) {
+            for (int low = 0; low < order.length - width; low += 2 * width) {
+                int middle = low + width;
+                int high = Math.min(low + 2 * width, order.length);
+                int i = low, j = middle, k = low;
+                while (i < middle && j < high) {
+                    buffer[k++] = Double.compare(keys[order[j]], keys[order[i]]) < 0 ? order[j++] : order[i++];
+                }
+                while (i < middle) {
+                    buffer[k++] = order[i++];
+                }
+                while (j < high) {
+                    buffer[k++] = order[j++];
+                }
+                System.arraycopy(buffer, low, order, low, high - low);
+            }
+        }
+        return order;
+    }
+    
+    /**
+     * Read a <code>ListDB</code> object from a file.
+     * 
+     * The file can be in the binary format written by {@link #save(java.io.File)}
+     * or, for compatibility with previous versions, a serialized 
+     * <code>ListDB</code> object.
+     *
+     * @param file the file with the <code>ListDB</code> object
+     * @return a new <code>ListDB</code> object with the records stored in the
+     * given file.
+     * 
+     * @throws FileNotFoundException if the file does not exist, is a directory
+     * rather than a regular file, or for some other reason cannot be opened for
+     * reading.
+     * @throws IOException if an I/O error occurs while reading, or if the file
+     * data are not valid.
+     * @throws ClassNotFoundException if some class of a serialized object
+     * cannot be found.
+     */
+    static public ListDB open(File file) throws FileNotFoundException, 
+            IOException, ClassNotFoundException {
+        ListDB database = read(file);
+        ListDBJournal.replay(database, file, false);
+        return database;
+    }
+    
+    /**
+     * Read a <code>ListDB</code> object from a file, without applying the 
+     * changes written in its journal.
+     *
+     * @param file the file with the <code>ListDB</code> object
+     * @return a new <code>ListDB</code> object with the records stored in the
+     * given file.
+     * @throws FileNotFoundException if the file cannot be opened for reading.
+     * @throws IOException if an I/O error occurs while reading, or if the file
+     * data are not valid.
+     * @throws ClassNotFoundException if some class cannot be found.
+     */
+    static private ListDB read(File file) throws FileNotFoundException, 
+            IOException, ClassNotFoundException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16)) {
+            in.mark(4);
+            DataInputStream header = new DataInputStream(in);
+            int magic = header.readInt();
+            in.reset();
+            if (magic == ListDBFormat.MAGIC) {
+                return ListDBFormat.read(in);
+            }
+            ObjectInputStream ois = new ObjectInputStream(in);
+            return (ListDB) ois.readObject();
+        }
+    }
+    
+    /**
+     * Save this <code>ListDB</code> object in a file.
+     * 
+     * The database is stored in a compact binary format, where the 
+     * descriptors are written by means of the serializers associated to their
+     * classes (see {@link jmr.descriptor.DescriptorSerializerFactory}) and 
+     * grouped by descriptor class. The file includes the list of descriptor 
+     * classes (with the version of their serializers), the locators of the 
+     * records and a checksum. Only the descriptors and locators of the records
+     * are stored (the media sources and the record comparators are not). 
+     * 
+     * The file is written in a temporary file that replaces the given one at
+     * the end, so the previous content is not lost if the process is 
+     * interrupted. Any journal of the previous content is deleted. If this
+     * database is in journal mode and the given file is the journal one, the
+     * journal is compacted (see {@link #compact()}).
+     * 
+     * @param file the file where this object will be stored.
+     * 
+     * @throws FileNotFoundException if the file does not exist, is a directory
+     * rather than a regular file, or for some other reason cannot be opened for
+     * writing.
+     * @throws IOException if an I/O error occurs while writing.
+     */
+    public void save(File file) throws FileNotFoundException, IOException {
+        ListDBJournal current = journal;
+        if (current != null && current.file.getAbsoluteFile().equals(file.getAbsoluteFile())) {
+            compact();
+            return;
+        }
+        // The segments of a previous journal are discarded
+        TreeMap<Long, File> segments = ListDBJournal.segments(file);
+        long sequence = segments.isEmpty() ? 0 : segments.lastKey();
+        lock.readLock().lock();
+        try {
+            write(file, database, sequence);
+        } finally {
+            lock.readLock().unlock();
+        }
+        ListDBJournal.deleteSegments(file, sequence);
+    }
+    
+    /**
+     * Writes the given records in the given file, by means of a temporary file
+     * that replaces the given one when it is completely written.
+     *
+     * @param file the file
+     * @param records the records of this database
+     * @param sequence the sequence number of the last journal segment whose
+     * changes are included in the given records
+     * @throws IOException if an I/O error occurs while writing.
+     */
+    private void write(File file, List<Record> records, long sequence) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(temp)) {
+            OutputStream out = new BufferedOutputStream(fos, 1 << 16);
+            ListDBFormat.write(this, records, sequence, out);
+            out.flush();
+            fos.getChannel().force(true);
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    /**
+     * Starts the journal mode, associating this database to the given file.
+     * 
+     * This database is stored in the given file (see 
+     * {@link #save(java.io.File)}) and, from then on, each change in the 
+     * records is appended to a journal next to the file instead of rewriting 
+     * it: the new records are written to the journal tail, the deleted ones 
+     * are written as tombstones, and the tail is synchronized with the storage
+     * device in batches (see {@link #setJournalPolicy(int, long, long, int)}).
+     * The database, with all the changes, is restored by means of 
+     * {@link #open(java.io.File)} or {@link #openJournal(java.io.File)}. The 
+     * journal is merged into the file by means of {@link #compact()}, that is
+     * also called in background when the journal reaches a given number of 
+     * segments.
+     * 
+     * If the journal mode is already active, the previous journal is stopped.
+     *
+     * @param file the file associated to this database
+     * @throws IOException if an I/O error occurs.
+     */
+    public void startJournal(File file) throws IOException {
+        stopJournal();
+        TreeMap<Long, File> segments = ListDBJournal.segments(file);
+        long sequence = segments.isEmpty() ? 0 : segments.lastKey();
+        lock.writeLock().lock();
+        try {
+            write(file, database, sequence);
+            journalSequence = sequence;
+            journal = new ListDBJournal(file, descriptorClasses, sequence);
+            journal.setPolicy(journalSyncBatch, journalSyncDelay, journalSegmentSize);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        ListDBJournal.deleteSegments(file, sequence);
+    }
+    
+    /**
+     * Reads a <code>ListDB</code> object from a file, applying the changes 
+     * written in its journal, and continues the journal mode on that file (see
+     * {@link #startJournal(java.io.File)}). 
+     * 
+     * If a journal entry was not completely written (because of a crash, for
+     * example), it is discarded together with the later ones, that were not
+     * synchronized with the storage device.
+     *
+     * @param file the file with the <code>ListDB</code> object
+     * @return a new <code>ListDB</code> object in journal mode
+     * @throws FileNotFoundException if the file cannot be opened for reading.
+     * @throws IOException if an I/O error occurs, or if the file or journal
+     * data are not valid.
+     * @throws ClassNotFoundException if some class cannot be found.
+     */
+    static public ListDB openJournal(File file) throws FileNotFoundException, 
+            IOException, ClassNotFoundException {
+        ListDB database = read(file);
+        long sequence = ListDBJournal.replay(database, file, true);
+        database.journal = new ListDBJournal(file, database.descriptorClasses, sequence);
+        database.journal.setPolicy(database.journalSyncBatch, database.journalSyncDelay, database.journalSegmentSize);
+        return database;
+    }
+    
+    /**
+     * Stops the journal mode, synchronizing and closing the journal. The 
+     * journal is not merged into the database file (it will be applied when
+     * the file is opened).
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    public void stopJournal() throws IOException {
+        ListDBJournal current;
+        lock.writeLock().lock();
+        try {
+            current = journal;
+            journal = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (current != null) {
+            // No more entries are appended, so it is closed without the lock
+            current.close();
+        }
+    }
+    
+    /**
+     * Returns <tt>true</tt> if this database is in journal mode.
+     *
+     * @return <tt>true</tt> if this database is in journal mode
+     */
+    public boolean isJournaled() {
+        return journal != null;
+    }
+    
+    /**
+     * Writes the pending journal entries and synchronizes the journal with
+     * the storage device, so all the changes made until now are durable. It
+     * does nothing if the journal mode is not active.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    public void syncJournal() throws IOException {
+        ListDBJournal current = journal;
+        if (current != null) {
+            current.sync();
+        }
+    }
+    
+    /**
+     * Set the policy of the journal mode. 
+     * 
+     * The journal is synchronized with the storage device each 
+     * <code>syncBatch</code> entries, or in the first change after 
+     * <code>syncDelay</code> milliseconds since the oldest pending entry, so
+     * a crash can lose, at most, the changes of the last batch (use 1 for 
+     * synchronizing each change). When the journal tail exceeds 
+     * <code>segmentSize</code> bytes, a new segment is started; when the
+     * number of segments exceeds <code>maxSegments</code>, the journal is
+     * compacted in background (0 for disabling the automatic compaction).
+     * 
+     * By default, the batches have 256 entries with a maximum delay of one
+     * second, the segments have 64 MB and the compaction is started after 8 
+     * segments.
+     *
+     * @param syncBatch the number of entries in each synchronization batch
+     * @param syncDelay the maximum delay (in milliseconds) of a pending entry
+     * @param segmentSize the maximum size (in bytes) of a segment
+     * @param maxSegments the maximum number of segments before compacting
+     */
+    public void setJournalPolicy(int syncBatch, long syncDelay, long segmentSize, int maxSegments) {
+        lock.writeLock().lock();
+        try {
+            if (journal != null) {
+                journal.setPolicy(syncBatch, syncDelay, segmentSize);
+            }
+            this.journalSyncBatch = syncBatch;
+            this.journalSyncDelay = syncDelay;
+            this.journalSegmentSize = segmentSize;
+            this.maxJournalSegments = Math.max(0, maxSegments);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Merges the journal into the database file, so the file contains all the
+     * records of this database and the journal segments are deleted. It does
+     * nothing if the journal mode is not active.
+     * 
+     * The records are written while this database remains available: the
+     * changes made during the compaction are appended to a new journal 
+     * segment, that is not merged.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    public void compact() throws IOException {
+        compactionLock.lock();
+        try {
+            ListDBJournal current;
+            List<Record> records;
+            long sequence;
+            lock.writeLock().lock();
+            try {
+                current = journal;
+                if (current == null) {
+                    return;
+                }
+                sequence = current.roll();
+                records = new ArrayList<>(database);
+            } finally {
+                lock.writeLock().unlock();
+            }
+            write(current.file, records, sequence);
+            journalSequence = sequence;
+            ListDBJournal.deleteSegments(current.file, sequence);
+        } finally {
+            compactionLock.unlock();
+        }
+    }
+    
+    /**
+     * Merges the journal into the database file in background (see 
+     * {@link #compact()}).
+     *
+     * @return a future completed when the compaction ends
+     */
+    public CompletableFuture<Void> compactAsync() {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        Thread thread = new Thread(() -> {
+            try {
+                compact();
+                future.complete(null);
+            } catch (Throwable ex) {
+                future.completeExceptionally(ex);
+            } finally {
+                compacting.set(false);
+            }
+        }, "ListDB compaction");
+        thread.setDaemon(true);
+        compacting.set(true);
+        thread.start();
+        return future;
+    }
+    
+    /**
+     * Appends a change to the journal (if the journal mode is active). It have
+     * to be called holding the write lock, before changing the records. The
+     * change is not synchronized with the storage device: the returned ticket
+     * has to be given to {@link #commit(long)} once the lock is released.
+     *
+     * @param op the type of change
+     * @param index the position of the changed record
+     * @param record the new record (if any)
+     * @return the ticket of the change if a commit is due, or 0 otherwise
+     * @throws IndexOutOfBoundsException if the index is out of range.
+     * @throws UncheckedIOException if an I/O error occurs.
+     */
+    private long log(byte op, int index, Record record) {
+        if (journal == null) {
+            return 0;
+        }
+        int limit = (op == ListDBJournal.INSERT) ? database.size() : database.size() - 1;
+        if ((op == ListDBJournal.INSERT || op == ListDBJournal.SET || op == ListDBJournal.REMOVE)
+                && (index < 0 || index > limit)) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + database.size());
+        }
+        long ticket;
+        try {
+            ticket = journal.append(op, index, record);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        if (maxJournalSegments > 0 && journal.getSequence() - journalSequence > maxJournalSegments
+                && !compacting.get()) {
+            compactAsync();
+        }
+        return ticket;
+    }
+    
+    /**
+     * Synchronizes the journal with the storage device up to the change with
+     * the given ticket (see {@link #log(byte, int, jmr.db.ListDB.Record)}),
+     * in a group commit with the concurrent writers. It have to be called 
+     * without holding the write lock, so the readers are not blocked by the 
+     * storage device. If the journal has been stopped meanwhile, the change 
+     * is already synchronized.
+     *
+     * @param ticket the ticket of the change (0 if no commit is due)
+     * @throws UncheckedIOException if an I/O error occurs.
+     */
+    private void commit(long ticket) {
+        ListDBJournal current = journal;
+        if (ticket > 0 && current != null) {
+            try {
+                current.commit(ticket);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+    }
+    
+    /**
+     * Restores this database from a stream, creating a new lock for it (locks
+     * are not serialized).
+     *
+     * @param in the input stream
+     * @throws IOException if an I/O error occurs.
+     * @throws ClassNotFoundException if the class of a serialized object
+     * cannot be found.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        lock = new ReentrantReadWriteLock();
+        parallelism = 1;
+        compactionLock = new ReentrantLock();
+        compacting = new AtomicBoolean(false);
+        journalSyncBatch = ListDBJournal.DEFAULT_SYNC_BATCH;
+        journalSyncDelay = ListDBJournal.DEFAULT_SYNC_DELAY;
+        journalSegmentSize = ListDBJournal.DEFAULT_SEGMENT_SIZE;
+        maxJournalSegments = 8;
+    }
+    
+    /**
+     * Returns a string representation of this database.
+     * 
+     * @return a string representation of this database 
+     */
+    @Override
+    public String toString(){
+        String output ="";
+        lock.readLock().lock();
+        try {
+            output += this.database.toString();
+        } finally {
+            lock.readLock().unlock();
+        }
+        return output;
+    }
+    
+    
+    /**
+     * A candidate in a nearest records search, given by the position of the
+     * record in the database and its distance to the query. The natural order
+     * is based on the distance and, in case of tie, on the position.
+     */
+    static class Neighbor implements Comparable<Neighbor> {
+        /**
+         * Distance to the query.
+         */
+        double distance;
+        /**
+         * Position of the record in the database.
+         */
+        int index;
+
+        /**
+         * Constructs a new candidate.
+         *
+         * @param distance the distance to the query
+         * @param index the position of the record in the database
+         */
+        Neighbor(double distance, int index) {
+            this.distance = distance;
+            this.index = index;
+        }
+
+        @Override
+        public int compareTo(Neighbor o) {
+            int cmp = Double.compare(distance, o.distance);
+            return cmp != 0 ? cmp : Integer.compare(index, o.index);
+        }
     }
     
     
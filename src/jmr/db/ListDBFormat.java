@@ -0,0 +1,396 @@
+package jmr.db;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import jmr.descriptor.DescriptorList;
+import jmr.descriptor.DescriptorSerializer;
+import jmr.descriptor.DescriptorSerializerFactory;
+import jmr.descriptor.MediaDescriptor;
+
+/**
+ * Binary storage format of the {@link ListDB} databases.
+ *
+ * The database is stored as a sequence of sections:
+ * <ul>
+ * <li> A header with the magic number, the format version, the list of
+ * descriptor classes (each one with the name and version of the serializer
+ * used for writing it), the number of records and the sequence number of the
+ * last journal segment merged in the file (see {@link ListDBJournal}).</li>
+ * <li> A section for each descriptor class with the descriptors of all the
+ * records, followed by the width of the section. If all the descriptors have
+ * the same binary size (which is the usual case for descriptors with a fixed
+ * dimension), the section is a fixed-width table where the i-th record is at
+ * <code>i*width</code>; otherwise, the width is
+ * {@link #VARIABLE_WIDTH} and it is followed by an offset table with the
+ * position (as a <code>long</code> relative to the start of the section) of
+ * each descriptor and the end of the last one.</li>
+ * <li> A locator table, with the different locators in the database, the
+ * position of each one (relative to the start of the table) and, for each
+ * record, the index of its locator.</li>
+ * <li> The reference record for ordering (if any).</li>
+ * <li> A footer with the start and end positions in the file of each
+ * descriptor section and the positions of the locator table and of its
+ * locator positions, followed by the position of the footer itself.</li>
+ * <li> A CRC32 checksum of all the previous bytes.</li>
+ * </ul>
+ *
+ * The sections are written in a single pass, so a database can be written
+ * without keeping its binary form in memory, and the footer allows to locate
+ * any descriptor from the end of the file without reading the sections (see
+ * {@link MappedListDB}). The runtime settings of the database (such as its
+ * parallelism) are not stored.
+ *
+ * The descriptors are written by means of the serializer associated to their
+ * class (see {@link DescriptorSerializerFactory}). Only the descriptors and the
+ * locators are stored, so the records read from this format have the default
+ * comparator.
+ *
+ * @author Jesús Chamorro Martínez (jesus@decsai.ugr.es)
+ */
+class ListDBFormat {
+    /**
+     * Magic number identifying the format ("JMRD").
+     */
+    static final int MAGIC = 0x4A4D5244;
+    /**
+     * Version of the format.
+     */
+    static final int VERSION = 1;
+    /**
+     * Value of the section width meaning that the descriptors of the section
+     * have variable size.
+     */
+    static final int VARIABLE_WIDTH = -1;
+
+    /**
+     * Writes the given database to the given output stream. The stream is not
+     * closed.
+     *
+     * @param db the database
+     * @param records the records of the database
+     * @param sequence the sequence number of the last journal segment whose
+     * changes are included in the given records (0 if none)
+     * @param output the output stream
+     * @throws IOException if an I/O error occurs.
+     */
+    static void write(ListDB db, List<? extends DescriptorList> records, long sequence, OutputStream output) throws IOException {
+        CheckedOutputStream checked = new CheckedOutputStream(output, new CRC32());
+        CountingOutputStream counter = new CountingOutputStream(checked);
+        DataOutputStream out = new DataOutputStream(counter);
+        List<Class> classes = db.getDescriptorClasses();
+        DescriptorSerializer serializers[] = new DescriptorSerializer[classes.size()];
+        // Header
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeInt(classes.size());
+        for (int d = 0; d < serializers.length; d++) {
+            serializers[d] = DescriptorSerializerFactory.getInstance(classes.get(d));
+            out.writeUTF(classes.get(d).getName());
+            out.writeUTF(serializers[d].getClass().getName());
+            out.writeInt(serializers[d].getVersion());
+        }
+        out.writeInt(records.size());
+        out.writeLong(sequence);
+        // Descriptor sections
+        int sizes[] = new int[Math.max(1, records.size())];
+        long bounds[] = new long[2 * serializers.length];
+        for (int d = 0; d < serializers.length; d++) {
+            bounds[2 * d] = counter.getCount();
+            bounds[2 * d + 1] = writeSection(serializers[d], records, d, sizes, counter, out);
+        }
+        // Locator table
+        long locatorPosition = counter.getCount();
+        Map<String, Integer> table = new HashMap<>();
+        List<String> locators = new ArrayList<>();
+        int references[] = new int[records.size()];
+        for (int i = 0; i < references.length; i++) {
+            URL locator = ((ListDB.Record) records.get(i)).getLocator();
+            if (locator == null) {
+                references[i] = -1;
+            } else {
+                String key = locator.toString();
+                Integer position = table.get(key);
+                if (position == null) {
+                    position = locators.size();
+                    table.put(key, position);
+                    locators.add(key);
+                }
+                references[i] = position;
+            }
+        }
+        out.writeInt(locators.size());
+        long positions[] = new long[locators.size()];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = counter.getCount() - locatorPosition;
+            out.writeUTF(locators.get(i));
+        }
+        long indexPosition = counter.getCount();
+        for (long position : positions) {
+            out.writeLong(position);
+        }
+        for (int reference : references) {
+            out.writeInt(reference);
+        }
+        // Order reference
+        ListDB.Record orderReference = db.getOrderReference();
+        out.writeBoolean(orderReference != null);
+        if (orderReference != null) {
+            for (int d = 0; d < serializers.length; d++) {
+                writeSection(serializers[d], Collections.singletonList(orderReference), d, sizes, counter, out);
+            }
+            URL locator = orderReference.getLocator();
+            out.writeBoolean(locator != null);
+            if (locator != null) {
+                out.writeUTF(locator.toString());
+            }
+        }
+        // Footer
+        long footerPosition = counter.getCount();
+        for (long bound : bounds) {
+            out.writeLong(bound);
+        }
+        out.writeLong(locatorPosition);
+        out.writeLong(indexPosition);
+        out.writeLong(footerPosition);
+        // Checksum
+        out.flush();
+        out.writeLong(checked.getChecksum().getValue());
+        out.flush();
+    }
+
+    /**
+     * Writes the section associated to the given descriptor position. The
+     * descriptors are written directly to the output, and only their sizes are
+     * kept until the offset table is written.
+     *
+     * @param serializer the serializer of the descriptors
+     * @param records the records
+     * @param d the descriptor position
+     * @param sizes array for the sizes of the descriptors (with, at least, a
+     * position for each record)
+     * @param counter the stream counting the bytes written to the output
+     * @param out the output
+     * @return the position of the end of the descriptors (where the width of
+     * the section is written)
+     * @throws IOException if an I/O error occurs.
+     */
+    private static long writeSection(DescriptorSerializer serializer,
+            List<? extends DescriptorList> records, int d, int sizes[],
+            CountingOutputStream counter, DataOutputStream out) throws IOException {
+        int width = 0;
+        for (int i = 0; i < records.size(); i++) {
+            long start = counter.getCount();
+            serializer.write(records.get(i).get(d), out);
+            long size = counter.getCount() - start;
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("The descriptor at position " + i + " is too big.");
+            }
+            sizes[i] = (int) size;
+            if (i == 0) {
+                width = sizes[i];
+            } else if (sizes[i] != width) {
+                width = VARIABLE_WIDTH;
+            }
+        }
+        long end = counter.getCount();
+        out.writeInt(width);
+        if (width == VARIABLE_WIDTH) {
+            long offset = 0;
+            out.writeLong(offset);
+            for (int i = 0; i < records.size(); i++) {
+                offset += sizes[i];
+                out.writeLong(offset);
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Reads a database from the given input stream. The stream is not closed.
+     *
+     * @param input the input stream
+     * @return the database read
+     * @throws IOException if an I/O error occurs, if the data are not valid or
+     * if no suitable serializer is available for some descriptor class.
+     * @throws ClassNotFoundException if some descriptor class cannot be found.
+     */
+    static ListDB read(InputStream input) throws IOException, ClassNotFoundException {
+        CheckedInputStream checked = new CheckedInputStream(input, new CRC32());
+        DataInputStream in = new DataInputStream(checked);
+        // Header
+        if (in.readInt() != MAGIC) {
+            throw new IOException("The stream does not contain a ListDB database.");
+        }
+        int version = in.readShort();
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Version " + version + " of the ListDB format is not supported.");
+        }
+        Class classes[] = new Class[in.readInt()];
+        DescriptorSerializer serializers[] = new DescriptorSerializer[classes.length];
+        int versions[] = new int[classes.length];
+        for (int d = 0; d < classes.length; d++) {
+            classes[d] = Class.forName(in.readUTF());
+            serializers[d] = getSerializer(classes[d], in.readUTF());
+            versions[d] = in.readInt();
+        }
+        int size = in.readInt();
+        ListDB db = new ListDB(classes);
+        db.journalSequence = in.readLong();
+        // Descriptor sections
+        MediaDescriptor descriptors[][] = new MediaDescriptor[classes.length][];
+        for (int d = 0; d < classes.length; d++) {
+            descriptors[d] = readSection(serializers[d], versions[d], size, in);
+        }
+        // Locator table
+        URL locators[] = new URL[in.readInt()];
+        for (int i = 0; i < locators.length; i++) {
+            locators[i] = new URL(in.readUTF());
+        }
+        for (int i = 0; i < locators.length; i++) {
+            in.readLong(); // Position of the locator (not needed)
+        }
+        for (int i = 0; i < size; i++) {
+            int reference = in.readInt();
+            db.add(createRecord(db, descriptors, i, reference < 0 ? null : locators[reference]));
+        }
+        // Order reference
+        if (in.readBoolean()) {
+            MediaDescriptor reference[][] = new MediaDescriptor[classes.length][];
+            for (int d = 0; d < classes.length; d++) {
+                reference[d] = readSection(serializers[d], versions[d], 1, in);
+            }
+            URL locator = in.readBoolean() ? new URL(in.readUTF()) : null;
+            db.setOrderReference(createRecord(db, reference, 0, locator));
+        }
+        // Footer (only needed for locating the sections without reading them)
+        for (int i = 0; i < 2 * classes.length + 3; i++) {
+            in.readLong();
+        }
+        // Checksum
+        long checksum = checked.getChecksum().getValue();
+        if (in.readLong() != checksum) {
+            throw new IOException("Checksum error: the ListDB data are corrupted.");
+        }
+        return db;
+    }
+
+    /**
+     * Returns the serializer to be used for reading the descriptors of the
+     * given class, checking that it is the one used for writing them.
+     *
+     * @param descriptorClass the descriptor class
+     * @param serializerName the class name of the serializer used for writing
+     * @return the serializer
+     * @throws IOException if the serializer is not available
+     */
+    static DescriptorSerializer getSerializer(Class descriptorClass, String serializerName) throws IOException {
+        DescriptorSerializer serializer = DescriptorSerializerFactory.getInstance(descriptorClass);
+        if (!serializer.getClass().getName().equals(serializerName)) {
+            if (serializerName.equals(DescriptorSerializerFactory.JavaSerializer.class.getName())) {
+                serializer = DescriptorSerializerFactory.getJavaSerializer(descriptorClass);
+            } else {
+                throw new IOException("The serializer " + serializerName + " is not registered for the class " + descriptorClass.getName() + ".");
+            }
+        }
+        return serializer;
+    }
+
+    /**
+     * Reads the section associated to a descriptor position.
+     *
+     * @param serializer the serializer of the descriptors
+     * @param version the version of the serializer used for writing
+     * @param size the number of descriptors in the section
+     * @param in the input
+     * @return the descriptors read
+     * @throws IOException if an I/O error occurs or if the data are not valid
+     */
+    private static MediaDescriptor[] readSection(DescriptorSerializer serializer,
+            int version, int size, DataInputStream in) throws IOException {
+        MediaDescriptor descriptors[] = new MediaDescriptor[size];
+        for (int i = 0; i < size; i++) {
+            descriptors[i] = serializer.read(in, version);
+        }
+        if (in.readInt() == VARIABLE_WIDTH) {
+            // The offset table is not needed for sequential reading
+            for (int i = 0; i <= size; i++) {
+                in.readLong();
+            }
+        }
+        return descriptors;
+    }
+
+    /**
+     * Creates the record of the given database formed by the descriptors at
+     * the given position.
+     *
+     * @param db the database
+     * @param descriptors the descriptors (one array for each descriptor class)
+     * @param index the position of the record
+     * @param locator the locator of the record
+     * @return the new record
+     * @throws IOException if the descriptors are not compatible with the
+     * database
+     */
+    private static ListDB.Record createRecord(ListDB db, MediaDescriptor descriptors[][], int index, URL locator) throws IOException {
+        DescriptorList list = new DescriptorList(null);
+        for (MediaDescriptor[] column : descriptors) {
+            list.add(column[index]);
+        }
+        ListDB.Record record = db.new Record(list, locator);
+        if (!record.isCompatible()) {
+            throw new IOException("The descriptors read are not compatible with the database.");
+        }
+        return record;
+    }
+
+    /**
+     * Output stream counting the bytes written to the underlying stream, so
+     * the positions in the output can exceed the limit of
+     * {@link DataOutputStream#size()}.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        /**
+         * Number of bytes written.
+         */
+        private long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte bytes[], int offset, int length) throws IOException {
+            out.write(bytes, offset, length);
+            count += length;
+        }
+
+        /**
+         * Returns the number of bytes written.
+         *
+         * @return the number of bytes written
+         */
+        long getCount() {
+            return count;
+        }
+    }
+}
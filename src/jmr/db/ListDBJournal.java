@@ -0,0 +1,654 @@
+package jmr.db;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import jmr.descriptor.DescriptorList;
+import jmr.descriptor.DescriptorSerializer;
+import jmr.descriptor.DescriptorSerializerFactory;
+import jmr.descriptor.MediaDescriptor;
+
+/**
+ * Append-only journal of the changes made in a {@link ListDB} stored in a
+ * file.
+ *
+ * The journal is a sequence of segment files next to the database file (named
+ * <code>&lt;file&gt;.&lt;n&gt;.log</code>, being <code>n</code> the sequence
+ * number of the segment). Each change in the database (a new record, a
+ * replaced record, a deleted record or the removal of all the records) is
+ * appended to the last segment (the tail) as an entry with its own checksum,
+ * so an entry partially written due to a crash is detected and discarded. The
+ * new records are written by means of the serializers of their descriptor
+ * classes (see {@link DescriptorSerializerFactory}), and the deleted records
+ * are written as tombstones with their position.
+ *
+ * The tail is synchronized with the storage device (fsync) in batches: each
+ * {@link #getSyncBatch()} entries or when the oldest pending entry is older
+ * than {@link #getSyncDelay()} milliseconds (checked in each append), and
+ * always when the journal is synchronized explicitly or closed. When the tail
+ * exceeds {@link #getSegmentSize()} bytes, a new segment is started.
+ *
+ * The synchronization is a group commit: {@link #append(byte, int, jmr.db.ListDB.Record)}
+ * only writes the entry (the database calls it holding its write lock), and 
+ * {@link #commit(long)} is called later without that lock, so the readers of
+ * the database do not wait for the storage device. Each commit synchronizes
+ * all the entries appended until then, so the writers waiting for the same 
+ * batch share a single fsync. The segments closed since the last commit are
+ * synchronized before the tail, so only the last synchronized entries can be
+ * lost in a crash.
+ *
+ * The database file has the sequence number of the last segment merged in it,
+ * so the database is restored by reading the file and replaying the later
+ * segments in order (see {@link #replay(jmr.db.ListDB, java.io.File, boolean)}).
+ * The compaction merges the segments in the file (see {@link ListDB#compact()}).
+ *
+ * @author Jesús Chamorro Martínez (jesus@decsai.ugr.es)
+ */
+class ListDBJournal {
+    /**
+     * Magic number identifying the segments ("JMRJ").
+     */
+    static final int MAGIC = 0x4A4D524A;
+    /**
+     * Version of the segment format.
+     */
+    static final int VERSION = 1;
+    /**
+     * Entry: a record appended at the end of the database.
+     */
+    static final byte ADD = 1;
+    /**
+     * Entry: a record inserted at a given position.
+     */
+    static final byte INSERT = 2;
+    /**
+     * Entry: a record replacing the one at a given position.
+     */
+    static final byte SET = 3;
+    /**
+     * Entry: tombstone of the record at a given position.
+     */
+    static final byte REMOVE = 4;
+    /**
+     * Entry: removal of all the records.
+     */
+    static final byte CLEAR = 5;
+    /**
+     * Default number of entries in each synchronization batch.
+     */
+    static final int DEFAULT_SYNC_BATCH = 256;
+    /**
+     * Default maximum delay (in milliseconds) of a pending entry.
+     */
+    static final long DEFAULT_SYNC_DELAY = 1000;
+    /**
+     * Default maximum size (in bytes) of a segment.
+     */
+    static final long DEFAULT_SEGMENT_SIZE = 64L << 20;
+
+    /**
+     * The database file.
+     */
+    final File file;
+    /**
+     * Serializers of each descriptor class.
+     */
+    private final DescriptorSerializer serializers[];
+    /**
+     * Descriptor classes of the database.
+     */
+    private final Class descriptorClasses[];
+    /**
+     * Sequence number of the tail.
+     */
+    private long sequence;
+    /**
+     * The tail file.
+     */
+    private FileOutputStream tail;
+    /**
+     * Output stream of the tail.
+     */
+    private DataOutputStream out;
+    /**
+     * Size of the tail.
+     */
+    private long tailSize;
+    /**
+     * Segments closed and not synchronized yet.
+     */
+    private final List<FileOutputStream> closed = new ArrayList<>();
+    /**
+     * Number of entries appended.
+     */
+    private long appended = 0;
+    /**
+     * Number of entries synchronized with the storage device.
+     */
+    private volatile long synced = 0;
+    /**
+     * Lock serializing the commits.
+     */
+    private final Lock commitLock = new ReentrantLock();
+    /**
+     * Number of entries not synchronized yet.
+     */
+    private int pending = 0;
+    /**
+     * Time (in milliseconds) of the oldest entry not synchronized yet.
+     */
+    private long pendingTime;
+    /**
+     * Buffer for encoding the entries.
+     */
+    private final ByteArrayOutputStream entry = new ByteArrayOutputStream();
+    /**
+     * Checksum of the entries.
+     */
+    private final CRC32 crc = new CRC32();
+    private int syncBatch = DEFAULT_SYNC_BATCH;
+    private long syncDelay = DEFAULT_SYNC_DELAY;
+    private long segmentSize = DEFAULT_SEGMENT_SIZE;
+
+    /**
+     * Constructs a journal for the given database file, starting a new tail
+     * after the given sequence number.
+     *
+     * @param file the database file
+     * @param descriptorClasses the descriptor classes of the database
+     * @param sequence the sequence number of the last existing segment
+     * @throws IOException if an I/O error occurs.
+     */
+    ListDBJournal(File file, Class descriptorClasses[], long sequence) throws IOException {
+        this.file = file;
+        this.descriptorClasses = descriptorClasses;
+        this.serializers = new DescriptorSerializer[descriptorClasses.length];
+        for (int d = 0; d < serializers.length; d++) {
+            serializers[d] = DescriptorSerializerFactory.getInstance(descriptorClasses[d]);
+        }
+        this.sequence = sequence;
+        openTail();
+    }
+
+    /**
+     * Returns the number of entries in each synchronization batch.
+     *
+     * @return the number of entries in each synchronization batch
+     */
+    int getSyncBatch() {
+        return syncBatch;
+    }
+
+    /**
+     * Returns the maximum delay (in milliseconds) of a pending entry.
+     *
+     * @return the maximum delay of a pending entry
+     */
+    long getSyncDelay() {
+        return syncDelay;
+    }
+
+    /**
+     * Returns the maximum size (in bytes) of a segment.
+     *
+     * @return the maximum size of a segment
+     */
+    long getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * Set the synchronization policy of this journal.
+     *
+     * @param syncBatch the number of entries in each synchronization batch (1
+     * for synchronizing each entry)
+     * @param syncDelay the maximum delay (in milliseconds) of a pending entry
+     * @param segmentSize the maximum size (in bytes) of a segment
+     */
+    synchronized void setPolicy(int syncBatch, long syncDelay, long segmentSize) {
+        this.syncBatch = Math.max(1, syncBatch);
+        this.syncDelay = Math.max(0, syncDelay);
+        this.segmentSize = Math.max(1, segmentSize);
+    }
+
+    /**
+     * Returns the sequence number of the tail.
+     *
+     * @return the sequence number of the tail
+     */
+    synchronized long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Appends an entry to the tail. The entry is not synchronized with the 
+     * storage device: if the synchronization policy requires it, the returned
+     * ticket has to be given to {@link #commit(long)}.
+     *
+     * @param op the type of entry
+     * @param index the position of the record (not used in {@link #ADD} and
+     * {@link #CLEAR} entries)
+     * @param record the record (only used in {@link #ADD}, {@link #INSERT} and
+     * {@link #SET} entries)
+     * @return the ticket of the entry if a commit is due, or 0 otherwise
+     * @throws IOException if an I/O error occurs.
+     */
+    synchronized long append(byte op, int index, ListDB.Record record) throws IOException {
+        entry.reset();
+        DataOutputStream data = new DataOutputStream(entry);
+        data.writeByte(op);
+        if (op == INSERT || op == SET || op == REMOVE) {
+            data.writeInt(index);
+        }
+        if (op == ADD || op == INSERT || op == SET) {
+            writeRecord(record, data);
+        }
+        data.flush();
+        crc.reset();
+        crc.update(entry.toByteArray(), 0, entry.size());
+        out.writeInt(entry.size());
+        entry.writeTo(out);
+        out.writeInt((int) crc.getValue());
+        tailSize += entry.size() + 8;
+        appended++;
+        if (pending++ == 0) {
+            pendingTime = System.currentTimeMillis();
+        }
+        if (tailSize >= segmentSize) {
+            roll();
+        }
+        if (pending >= syncBatch || System.currentTimeMillis() - pendingTime >= syncDelay) {
+            pending = 0;
+            return appended;
+        }
+        return 0;
+    }
+
+    /**
+     * Synchronizes with the storage device the entries appended until now,
+     * unless the entry with the given ticket has been already synchronized by
+     * another commit. It returns when that entry is durable. 
+     *
+     * @param ticket the ticket of the entry (see 
+     * {@link #append(byte, int, jmr.db.ListDB.Record)})
+     * @throws IOException if an I/O error occurs.
+     */
+    void commit(long ticket) throws IOException {
+        if (synced >= ticket) {
+            return;
+        }
+        commitLock.lock();
+        try {
+            if (synced < ticket) {
+                force(false);
+            }
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    /**
+     * Writes the pending entries to the tail and synchronizes it with the
+     * storage device.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    void sync() throws IOException {
+        commitLock.lock();
+        try {
+            force(false);
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    /**
+     * Synchronizes the closed segments and the tail with the storage device.
+     * Only the writing of the entries is done holding the monitor of this 
+     * journal. It have to be called holding the commit lock.
+     *
+     * @param close if <tt>true</tt>, the tail is also closed
+     * @throws IOException if an I/O error occurs.
+     */
+    private void force(boolean close) throws IOException {
+        List<FileOutputStream> segments;
+        long target;
+        synchronized (this) {
+            if (out == null) {
+                return; // Closed
+            }
+            out.flush();
+            target = appended;
+            pending = 0;
+            segments = new ArrayList<>(closed);
+            closed.clear();
+            segments.add(tail);
+            if (close) {
+                out = null;
+                tail = null;
+            }
+        }
+        // In order, so a later segment is not durable before an earlier one
+        for (int i = 0; i < segments.size(); i++) {
+            segments.get(i).getChannel().force(false);
+            if (close || i < segments.size() - 1) {
+                segments.get(i).close();
+            }
+        }
+        synced = target;
+    }
+
+    /**
+     * Closes the tail and starts a new one. The closed tail is synchronized
+     * with the storage device by the next commit.
+     *
+     * @return the sequence number of the closed tail
+     * @throws IOException if an I/O error occurs.
+     */
+    synchronized long roll() throws IOException {
+        long last = sequence;
+        out.flush();
+        closed.add(tail);
+        openTail();
+        return last;
+    }
+
+    /**
+     * Synchronizes and closes the tail.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    void close() throws IOException {
+        commitLock.lock();
+        try {
+            force(true);
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    /**
+     * Starts a new tail, writing its header (it is synchronized with the
+     * first entries).
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    private void openTail() throws IOException {
+        sequence++;
+        tail = new FileOutputStream(segment(file, sequence));
+        out = new DataOutputStream(new BufferedOutputStream(tail, 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeInt(descriptorClasses.length);
+        for (int d = 0; d < serializers.length; d++) {
+            out.writeUTF(descriptorClasses[d].getName());
+            out.writeUTF(serializers[d].getClass().getName());
+            out.writeInt(serializers[d].getVersion());
+        }
+        out.flush();
+        tailSize = out.size();
+    }
+
+    /**
+     * Writes a record.
+     */
+    private void writeRecord(ListDB.Record record, DataOutputStream data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream descriptor = new DataOutputStream(bytes);
+        for (int d = 0; d < serializers.length; d++) {
+            bytes.reset();
+            serializers[d].write(record.get(d), descriptor);
+            descriptor.flush();
+            data.writeInt(bytes.size());
+            bytes.writeTo(data);
+        }
+        URL locator = record.getLocator();
+        data.writeBoolean(locator != null);
+        if (locator != null) {
+            data.writeUTF(locator.toString());
+        }
+    }
+
+    /**
+     * Returns the segment file with the given sequence number.
+     *
+     * @param file the database file
+     * @param sequence the sequence number
+     * @return the segment file
+     */
+    static File segment(File file, long sequence) {
+        return new File(file.getPath() + "." + sequence + ".log");
+    }
+
+    /**
+     * Returns the existing segments of the given database file, indexed by
+     * their sequence number.
+     *
+     * @param file the database file
+     * @return the segments sorted by sequence number
+     */
+    static TreeMap<Long, File> segments(File file) {
+        TreeMap<Long, File> segments = new TreeMap<>();
+        File directory = file.getAbsoluteFile().getParentFile();
+        Pattern pattern = Pattern.compile(Pattern.quote(file.getName()) + "\\.(\\d+)\\.log");
+        File files[] = directory != null ? directory.listFiles() : null;
+        if (files != null) {
+            for (File f : files) {
+                Matcher matcher = pattern.matcher(f.getName());
+                if (matcher.matches()) {
+                    segments.put(Long.parseLong(matcher.group(1)), segment(file, Long.parseLong(matcher.group(1))));
+                }
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * Deletes the segments of the given database file with a sequence number
+     * lower than or equal to the given one.
+     *
+     * @param file the database file
+     * @param sequence the sequence number
+     */
+    static void deleteSegments(File file, long sequence) {
+        for (File segment : segments(file).headMap(sequence, true).values()) {
+            segment.delete();
+        }
+    }
+
+    /**
+     * Applies to the given database the changes written in the segments of the
+     * given file that are later than the database sequence number. The
+     * database journal have to be stopped.
+     *
+     * An entry partially written (or corrupted) is discarded, as it is the 
+     * result of an interrupted write, and the replay stops there. Since the 
+     * segments are synchronized in order, the later segments (if any) only 
+     * have entries that were not synchronized, so they are discarded too. If
+     * <code>repair</code> is <tt>true</tt>, the segment is truncated after its
+     * last valid entry (or deleted, if its header is not complete) and the
+     * later segments are deleted.
+     *
+     * @param db the database
+     * @param file the database file
+     * @param repair if <tt>true</tt>, the interrupted writes are removed from
+     * the journal
+     * @return the sequence number of the last segment replayed (or the 
+     * database one, if there are no later segments)
+     * @throws IOException if an I/O error occurs, or if a segment is not
+     * valid.
+     * @throws ClassNotFoundException if some descriptor class cannot be found.
+     */
+    static long replay(ListDB db, File file, boolean repair) throws IOException, ClassNotFoundException {
+        long last = db.journalSequence;
+        boolean interrupted = false;
+        TreeMap<Long, File> segments = segments(file);
+        for (Long sequence : segments.tailMap(db.journalSequence, false).keySet()) {
+            File segment = segments.get(sequence);
+            if (interrupted) {
+                // Written after the interrupted entry
+                if (repair) {
+                    segment.delete();
+                }
+                continue;
+            }
+            long valid;
+            try (InputStream in = new BufferedInputStream(new FileInputStream(segment), 1 << 16)) {
+                valid = replay(db, new DataInputStream(in));
+            }
+            if (valid < segment.length()) {
+                interrupted = true;
+                if (repair && valid == 0) {
+                    segment.delete();
+                } else if (repair) {
+                    try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+                        raf.setLength(valid);
+                    }
+                }
+            }
+            last = sequence;
+        }
+        return last;
+    }
+
+    /**
+     * Applies the changes written in the given segment.
+     *
+     * @param db the database
+     * @param in the segment data
+     * @return the size of the valid data in the segment (0 if the header is
+     * not complete)
+     * @throws IOException if an I/O error occurs, or if the segment is not
+     * valid.
+     */
+    private static long replay(ListDB db, DataInputStream in) throws IOException, ClassNotFoundException {
+        // Header
+        List<Class> classes = db.getDescriptorClasses();
+        DescriptorSerializer serializers[] = new DescriptorSerializer[classes.size()];
+        int versions[] = new int[classes.size()];
+        long position = 10;
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("The file is not a ListDB journal segment.");
+            }
+            int version = in.readShort();
+            if (version != VERSION) {
+                throw new IOException("Version " + version + " of the ListDB journal is not supported.");
+            }
+            int numDescriptors = in.readInt();
+            if (numDescriptors != classes.size()) {
+                throw new IOException("The journal segment does not share the database structure.");
+            }
+            for (int d = 0; d < numDescriptors; d++) {
+                String className = in.readUTF();
+                if (!className.equals(classes.get(d).getName())) {
+                    throw new IOException("The journal segment does not share the database structure.");
+                }
+                String serializerName = in.readUTF();
+                serializers[d] = ListDBFormat.getSerializer(classes.get(d), serializerName);
+                versions[d] = in.readInt();
+                position += 2 + utfLength(className) + 2 + utfLength(serializerName) + 4;
+            }
+        } catch (EOFException ex) {
+            return 0; // Interrupted when the segment was started
+        }
+        // Entries
+        CRC32 crc = new CRC32();
+        while (true) {
+            byte data[];
+            try {
+                int length = in.readInt();
+                if (length <= 0) {
+                    throw new EOFException();
+                }
+                data = new byte[length];
+                in.readFully(data);
+                crc.reset();
+                crc.update(data, 0, length);
+                if (in.readInt() != (int) crc.getValue()) {
+                    throw new EOFException();
+                }
+            } catch (EOFException ex) {
+                return position; // End of segment, or interrupted write
+            }
+            apply(db, new DataInputStream(new ByteArrayInputStream(data)), serializers, versions);
+            position += data.length + 8;
+        }
+    }
+
+    /**
+     * Applies a journal entry to the database.
+     */
+    private static void apply(ListDB db, DataInputStream data, DescriptorSerializer serializers[], int versions[]) throws IOException {
+        byte op = data.readByte();
+        int index = (op == INSERT || op == SET || op == REMOVE) ? data.readInt() : -1;
+        ListDB.Record record = null;
+        if (op == ADD || op == INSERT || op == SET) {
+            DescriptorList descriptors = new DescriptorList(null);
+            for (int d = 0; d < serializers.length; d++) {
+                data.readInt(); // Size of the descriptor
+                MediaDescriptor descriptor = serializers[d].read(data, versions[d]);
+                descriptors.add(descriptor);
+            }
+            URL locator = data.readBoolean() ? new URL(data.readUTF()) : null;
+            record = db.new Record(descriptors, locator);
+            if (!record.isCompatible()) {
+                throw new IOException("The journal record is not compatible with the database.");
+            }
+        }
+        try {
+            switch (op) {
+                case ADD:
+                    db.add(record);
+                    break;
+                case INSERT:
+                    db.add(index, record);
+                    break;
+                case SET:
+                    db.set(index, record);
+                    break;
+                case REMOVE:
+                    db.remove(index);
+                    break;
+                case CLEAR:
+                    db.clear();
+                    break;
+                default:
+                    throw new IOException("Unknown journal entry (" + op + ").");
+            }
+        } catch (IndexOutOfBoundsException ex) {
+            throw new IOException("The journal entry does not match the database (" + ex.getMessage() + ").");
+        }
+    }
+
+    /**
+     * Returns the length of the modified UTF-8 encoding of the given string.
+     */
+    private static int utfLength(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            length += (c >= 0x0001 && c <= 0x007F) ? 1 : (c > 0x07FF ? 3 : 2);
+        }
+        return length;
+    }
+}
@@ -0,0 +1,815 @@
+package jmr.db;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.CRC32;
+import jmr.db.ListDB.Neighbor;
+import jmr.descriptor.DescriptorList;
+import jmr.descriptor.DescriptorSerializer;
+import jmr.result.ResultMetadata;
+
+/**
+ * Read-only database that queries a file written by
+ * {@link ListDB#save(java.io.File)} directly on its bytes, by mapping the
+ * file in memory.
+ *
+ * Opening a database of this class does not read the records: only the header
+ * and the footer of the file are parsed, and the descriptor sections (with
+ * their offset tables) are mapped in memory, so the time for opening a
+ * database does not depend on its size. The data are loaded by the operating
+ * system on demand, and they are kept in its page cache instead of the heap. The queries compare the query
+ * descriptors with the stored ones on their binary form (see
+ * {@link DescriptorSerializer#compare(jmr.descriptor.MediaDescriptor, java.nio.ByteBuffer, int, int, int)}),
+ * and the record objects (with their descriptors) are only created for the
+ * records returned as result.
+ *
+ * The records are instances of {@link ListDB.Record} associated to an empty
+ * <code>ListDB</code> with the same structure (see {@link #getStructure()}).
+ * Only the records stored in the file are mapped: the changes written in the
+ * journal segments of the file (see {@link ListDB#startJournal(java.io.File)})
+ * are not included until the journal is compacted. As in <code>ListDB</code>,
+ * the queries can scan the records in parallel (see
+ * {@link #setParallelism(int)}). This class is thread-safe.
+ *
+ * @param <T> the media type of this database
+ *
+ * @author Jesús Chamorro Martínez (jesus@decsai.ugr.es)
+ */
+public class MappedListDB<T> implements Closeable {
+    /**
+     * The mapped file.
+     */
+    private final RandomAccessFile file;
+    /**
+     * Empty database with the structure of this one, used for creating the
+     * records.
+     */
+    private final ListDB<T> structure;
+    /**
+     * Serializers of each descriptor class.
+     */
+    private final DescriptorSerializer serializers[];
+    /**
+     * Version of the serializers used for writing the descriptors.
+     */
+    private final int versions[];
+    /**
+     * Number of records.
+     */
+    private final int size;
+    /**
+     * Descriptor sections (one for each descriptor class).
+     */
+    private final Section sections[];
+    /**
+     * Mapped locator table.
+     */
+    private final Region locatorTable;
+    /**
+     * Position in the locator table of the position of each locator.
+     */
+    private final long indexPosition;
+    /**
+     * Position in the locator table of the locator reference of each record.
+     */
+    private final long referencesPosition;
+    /**
+     * Position of the checksum in the file.
+     */
+    private final long checksumPosition;
+    /**
+     * Number of threads used for scanning the database in the queries.
+     */
+    private int parallelism = 1;
+    /**
+     * Pool used for scanning the database in parallel (<tt>null</tt> if the
+     * scan is sequential or if the pool has not been created yet).
+     */
+    private ForkJoinPool pool = null;
+    /**
+     * If <tt>true</tt>, the pool was given from outside this database (so it
+     * is not shut down when the parallelism changes).
+     */
+    private boolean sharedPool = false;
+    /**
+     * Maximum size of the header and of the footer of a file. Bigger values
+     * mean that the file is corrupted.
+     */
+    private static final int MAX_HEADER_SIZE = 1 << 24;
+
+    /**
+     * Constructs a new database mapping the given file.
+     *
+     * @param file the file
+     * @throws IOException if an I/O error occurs or if the file data are not
+     * valid
+     * @throws ClassNotFoundException if some descriptor class cannot be found.
+     */
+    private MappedListDB(RandomAccessFile file) throws IOException, ClassNotFoundException {
+        this.file = file;
+        FileChannel channel = file.getChannel();
+        long length = channel.size();
+        if (length < 6) {
+            throw new IOException("The file does not contain a ListDB database.");
+        }
+        ByteBuffer start = read(channel, 0, 6);
+        if (start.getInt() != ListDBFormat.MAGIC) {
+            throw new IOException("The file does not contain a ListDB database.");
+        }
+        int version = start.getShort();
+        if (version < 1 || version > ListDBFormat.VERSION) {
+            throw new IOException("Version " + version + " of the ListDB format is not supported.");
+        }
+        // Footer (read from the end of the file)
+        checksumPosition = length - 8;
+        if (checksumPosition - 8 < 6) {
+            throw new IOException("The ListDB file is truncated.");
+        }
+        long footerPosition = read(channel, checksumPosition - 8, 8).getLong();
+        long footerSize = checksumPosition - 8 - footerPosition;
+        if (footerPosition < 6 || footerSize < 16 || footerSize % 16 != 0 || footerSize > MAX_HEADER_SIZE) {
+            throw new IOException("The ListDB file is corrupted.");
+        }
+        ByteBuffer footer = read(channel, footerPosition, (int) footerSize);
+        int numClasses = (int) (footerSize / 16) - 1;
+        // Header (it ends where the first section, or the locator table, starts)
+        long headerEnd = footer.getLong(0);
+        if (headerEnd < 6 || headerEnd > Math.min(footerPosition, MAX_HEADER_SIZE)) {
+            throw new IOException("The ListDB file is corrupted.");
+        }
+        DataInputStream in = new DataInputStream(new ByteBufferStream(read(channel, 6, (int) headerEnd - 6)));
+        Class classes[] = new Class[in.readInt()];
+        if (classes.length != numClasses) {
+            throw new IOException("The ListDB file is corrupted.");
+        }
+        serializers = new DescriptorSerializer[classes.length];
+        versions = new int[classes.length];
+        for (int d = 0; d < classes.length; d++) {
+            classes[d] = Class.forName(in.readUTF());
+            serializers[d] = ListDBFormat.getSerializer(classes[d], in.readUTF());
+            versions[d] = in.readInt();
+        }
+        size = in.readInt();
+        in.readLong(); // Journal sequence
+        structure = new ListDB<>(classes);
+        // Descriptor sections
+        sections = new Section[classes.length];
+        long previous = headerEnd;
+        for (int d = 0; d < classes.length; d++) {
+            long sectionStart = footer.getLong(), sectionEnd = footer.getLong();
+            if (sectionStart != previous || sectionEnd < sectionStart || sectionEnd > footerPosition) {
+                throw new IOException("The ListDB file is corrupted.");
+            }
+            sections[d] = new Section(channel, sectionStart, sectionEnd, size, footerPosition);
+            previous = sections[d].end;
+        }
+        // Locator table (and order reference, that is not used)
+        long locatorPosition = footer.getLong();
+        long locatorIndex = footer.getLong();
+        if (locatorPosition != previous || locatorIndex < locatorPosition + 4 || locatorIndex > footerPosition) {
+            throw new IOException("The ListDB file is corrupted.");
+        }
+        locatorTable = new Region(channel, locatorPosition, footerPosition - locatorPosition);
+        indexPosition = locatorIndex - locatorPosition;
+        referencesPosition = indexPosition + 8L * locatorTable.getInt(0);
+        if (referencesPosition + 4L * size > locatorTable.length) {
+            throw new IOException("The ListDB file is truncated.");
+        }
+    }
+
+    /**
+     * Opens a database stored in the given file (written by
+     * {@link ListDB#save(java.io.File)}), mapping it in memory.
+     *
+     * Only the header of the file is read, so the checksum is not verified
+     * (see {@link #verify()}).
+     *
+     * @param file the file with the database
+     * @return a new <code>MappedListDB</code> object associated to the file
+     * @throws FileNotFoundException if the file does not exist, is a directory
+     * rather than a regular file, or for some other reason cannot be opened for
+     * reading.
+     * @throws IOException if an I/O error occurs, or if the file data are not
+     * valid.
+     * @throws ClassNotFoundException if some descriptor class cannot be found.
+     */
+    static public MappedListDB open(File file) throws FileNotFoundException,
+            IOException, ClassNotFoundException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return new MappedListDB(raf);
+        } catch (IOException | ClassNotFoundException | RuntimeException ex) {
+            raf.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Checks the integrity of the mapped file by means of its checksum. This
+     * method reads the whole file.
+     *
+     * @return <tt>true</tt> if the file data match the stored checksum
+     * @throws IOException if an I/O error occurs.
+     */
+    public boolean verify() throws IOException {
+        FileChannel channel = file.getChannel();
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+        long position = 0;
+        while (position < checksumPosition) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), checksumPosition - position));
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                return false;
+            }
+            crc.update(buffer.array(), 0, read);
+            position += read;
+        }
+        buffer.clear();
+        buffer.limit(8);
+        while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) >= 0);
+        return !buffer.hasRemaining() && buffer.getLong(0) == crc.getValue();
+    }
+
+    /**
+     * Closes the file associated to this database. The mapped memory is
+     * released when this object is garbage collected.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (pool != null && !sharedPool) {
+                pool.shutdown();
+            }
+            pool = null;
+            parallelism = 1;
+        }
+        file.close();
+    }
+
+    /**
+     * Returns the number of records in this database.
+     *
+     * @return the number of records in this database
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns <tt>true</tt> if this database contains no records.
+     *
+     * @return <tt>true</tt> if this database contains no records
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Returns the list of descriptor classes associated to this database.
+     *
+     * @return the list of descriptor classes associated to this database.
+     */
+    public List<Class> getDescriptorClasses() {
+        return structure.getDescriptorClasses();
+    }
+
+    /**
+     * Returns an empty <code>ListDB</code> with the same structure of this
+     * database. It is the database associated to the records of this one,
+     * and it can be used for creating query records.
+     *
+     * @return an empty database with the structure of this one
+     */
+    public ListDB<T> getStructure() {
+        return structure;
+    }
+
+    /**
+     * Set the number of threads used for scanning the database in the
+     * queries (see {@link ListDB#setParallelism(int)}). By default, the
+     * parallelism is one (sequential scan).
+     *
+     * @param parallelism the number of threads (values lower than one are
+     * interpreted as one).
+     */
+    public synchronized void setParallelism(int parallelism) {
+        parallelism = Math.max(parallelism, 1);
+        if (pool != null && !sharedPool) {
+            pool.shutdown();
+        }
+        pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+        this.parallelism = parallelism;
+        this.sharedPool = false;
+    }
+
+    /**
+     * Set the pool used for scanning the database in parallel. It allows to
+     * share the same pool with other databases (see
+     * {@link ListDB#setParallelism(java.util.concurrent.ForkJoinPool)}). The
+     * parallelism of this database is set to the pool one.
+     *
+     * @param pool the pool used in the queries. If it is <tt>null</tt>, the
+     * sequential scan is set.
+     */
+    public synchronized void setParallelism(ForkJoinPool pool) {
+        if (this.pool != null && !sharedPool) {
+            this.pool.shutdown();
+        }
+        this.pool = pool;
+        this.parallelism = pool != null ? pool.getParallelism() : 1;
+        this.sharedPool = pool != null;
+    }
+
+    /**
+     * Returns the number of threads used for scanning the database in the
+     * queries.
+     *
+     * @return the number of threads used in the queries
+     */
+    public synchronized int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Returns the record at the specified position in this database. A new
+     * record object (with its descriptors) is created in each call.
+     *
+     * @param index index of the record to return
+     * @return the record at the specified position in this database
+     * @throws IndexOutOfBoundsException if the index is out of range.
+     * @throws InvalidParameterException if the stored record can not be read.
+     */
+    public ListDB<T>.Record get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        DescriptorList<T> descriptors = new DescriptorList<>(null);
+        try {
+            for (int d = 0; d < sections.length; d++) {
+                long offset = sections[d].offset(index);
+                byte data[] = new byte[sections[d].length(index)];
+                ByteBuffer source = sections[d].data.buffer(offset).duplicate();
+                source.position(Region.position(offset));
+                source.get(data);
+                descriptors.add(serializers[d].read(new DataInputStream(new ByteArrayInputStream(data)), versions[d]));
+            }
+        } catch (IOException ex) {
+            throw new InvalidParameterException("The record at position " + index + " can not be read (" + ex.getMessage() + ").");
+        }
+        return structure.new Record(descriptors, getLocator(index));
+    }
+
+    /**
+     * Returns the media locator of the record at the specified position in
+     * this database (<tt>null</tt> if not available).
+     *
+     * @param index index of the record
+     * @return the media locator of the record (<tt>null</tt> if not available)
+     * @throws IndexOutOfBoundsException if the index is out of range.
+     */
+    public URL getLocator(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        int reference = locatorTable.getInt(referencesPosition + 4L * index);
+        if (reference < 0) {
+            return null;
+        }
+        long position = locatorTable.getLong(indexPosition + 8L * reference);
+        ByteBuffer source = locatorTable.buffer(position).duplicate();
+        source.position(Region.position(position));
+        try {
+            return new URL(new DataInputStream(new ByteBufferStream(source)).readUTF());
+        } catch (IOException ex) {
+            throw new InvalidParameterException("The locator of the record at position " + index + " is not valid.");
+        }
+    }
+
+    /**
+     * Returns the list of records in this database sorted by similarity to
+     * the query (from the most similar to the least).
+     *
+     * @param queryRecord the query record
+     * @return the sorted list of records
+     * @throws InvalidParameterException if the query is not compatible with
+     * this database.
+     */
+    public List<ListDB<T>.Record> query(DescriptorList<T> queryRecord) {
+        return query(queryRecord, size);
+    }
+
+    /**
+     * Returns the list of records in this database sorted by similarity to
+     * the query media (from the most similar to the least).
+     *
+     * @param queryMedia the query media
+     * @return the sorted list of records
+     */
+    public List<ListDB<T>.Record> query(T queryMedia) {
+        return query(structure.new Record(queryMedia));
+    }
+
+    /**
+     * Returns the <code>size</code> most similar records to the query, sorted
+     * by similarity (from the most similar to the least).
+     *
+     * @param queryRecord the query record
+     * @param size the maximum number of records to return
+     * @return the sorted list of the most similar records
+     * @throws InvalidParameterException if the query is not compatible with
+     * this database.
+     */
+    public List<ListDB<T>.Record> query(DescriptorList<T> queryRecord, int size) {
+        List<ListDB<T>.Record> result = new ArrayList<>();
+        for (ResultMetadata<Double, ListDB<T>.Record> item : queryMetadata(queryRecord, size)) {
+            result.add(item.getMetadata());
+        }
+        return result;
+    }
+
+    /**
+     * Returns the <code>size</code> most similar records to the query media,
+     * sorted by similarity (from the most similar to the least).
+     *
+     * @param queryMedia the query media
+     * @param size the maximum number of records to return
+     * @return the sorted list of the most similar records
+     */
+    public List<ListDB<T>.Record> query(T queryMedia, int size) {
+        return query(structure.new Record(queryMedia), size);
+    }
+
+    /**
+     * Returns the list of records in this database, together with their
+     * distances to the query, sorted by similarity (from the most similar to
+     * the least).
+     *
+     * @param queryRecord the query record
+     * @return the sorted list of results
+     * @throws InvalidParameterException if the query is not compatible with
+     * this database.
+     */
+    public List<ResultMetadata<Double, ListDB<T>.Record>> queryMetadata(DescriptorList<T> queryRecord) {
+        return queryMetadata(queryRecord, size);
+    }
+
+    /**
+     * Returns the <code>size</code> most similar records to the query, together
+     * with their distances to the query, sorted by similarity (from the most
+     * similar to the least). Only the record objects of the results are
+     * created. If the parallelism is greater than one, the records are
+     * scanned in parallel (as in {@link ListDB}).
+     *
+     * @param queryRecord the query record
+     * @param size the maximum number of records to return
+     * @return the sorted list of results
+     * @throws InvalidParameterException if the query is not compatible with
+     * this database.
+     */
+    public List<ResultMetadata<Double, ListDB<T>.Record>> queryMetadata(DescriptorList<T> queryRecord, int size) {
+        if (queryRecord.size() != sections.length) {
+            throw new InvalidParameterException("The query record does not share the data base structure.");
+        }
+        size = Math.max(0, Math.min(size, this.size));
+        List<ResultMetadata<Double, ListDB<T>.Record>> result = new ArrayList<>(size);
+        if (size == 0) {
+            return result;
+        }
+        int k = size;
+        ForkJoinPool workers = null;
+        int range = 0;
+        synchronized (this) {
+            if (ListDB.isParallelScan(this.size, parallelism)) {
+                workers = getPool();
+                range = ListDB.getParallelRange(this.size, parallelism);
+            }
+        }
+        PriorityQueue<Neighbor> heap = workers != null
+                ? workers.invoke(new ListDB.NearestTask((from, to) -> nearest(queryRecord, k, from, to), k, range, 0, this.size))
+                : nearest(queryRecord, k, 0, this.size);
+        Neighbor neighbors[] = heap.toArray(new Neighbor[heap.size()]);
+        Arrays.sort(neighbors);
+        for (Neighbor neighbor : neighbors) {
+            result.add(new ResultMetadata(neighbor.distance, get(neighbor.index)));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the <code>size</code> most similar records to the query media,
+     * together with their distances to the query, sorted by similarity.
+     *
+     * @param queryMedia the query media
+     * @param size the maximum number of records to return
+     * @return the sorted list of results
+     */
+    public List<ResultMetadata<Double, ListDB<T>.Record>> queryMetadata(T queryMedia, int size) {
+        return queryMetadata(structure.new Record(queryMedia), size);
+    }
+
+    /**
+     * Returns the bounded max-heap with the nearest records to the query in
+     * the given range of positions.
+     *
+     * @param queryRecord the query record
+     * @param size the maximum number of records in the heap
+     * @param from the first position (inclusive)
+     * @param to the last position (exclusive)
+     * @return the bounded max-heap (see {@link ListDB#offer(java.util.PriorityQueue, int, double, int)})
+     */
+    private PriorityQueue<Neighbor> nearest(DescriptorList<T> queryRecord, int size, int from, int to) {
+        boolean mapped = queryRecord.getComparator() instanceof DescriptorList.DefaultComparator;
+        PriorityQueue<Neighbor> heap = new PriorityQueue<>(size, Collections.reverseOrder());
+        for (int i = from; i < to; i++) {
+            double bound = ListDB.bound(heap, size);
+            double distance = mapped ? distance(queryRecord, i, bound) : queryRecord.compare(get(i), bound);
+            ListDB.offer(heap, size, distance, i);
+        }
+        return heap;
+    }
+
+    /**
+     * Calculates the distance between the query and the record at the given
+     * position directly on the mapped data, following the Euclidean
+     * aggregation of {@link DescriptorList.DefaultComparator}. As in that
+     * comparator, the sum is abandoned when the partial distance exceeds the
+     * given bound (and then, the partial distance is returned).
+     *
+     * @param queryRecord the query record
+     * @param index the position of the record
+     * @param bound the bound of the distance
+     * @return the distance (or a value greater than the bound)
+     * @throws InvalidParameterException if the descriptors are not comparable
+     */
+    private double distance(DescriptorList<T> queryRecord, int index, double bound) {
+        double sum = 0.0, limit = bound * bound;
+        for (int d = 0; d < sections.length && sum <= limit; d++) {
+            Section section = sections[d];
+            long offset = section.offset(index);
+            Object item;
+            try {
+                item = serializers[d].compare(queryRecord.get(d), section.data.buffer(offset),
+                        Region.position(offset), section.length(index), versions[d]);
+            } catch (IOException ex) {
+                throw new InvalidParameterException("The record at position " + index + " can not be read (" + ex.getMessage() + ").");
+            }
+            if (!(item instanceof Double)) {
+                throw new InvalidParameterException("The descriptors at position '" + d + "' are not comparables.");
+            }
+            double distance = (Double) item;
+            sum += distance * distance;
+        }
+        return Math.sqrt(sum);
+    }
+
+    /**
+     * Reads the given region of the file.
+     *
+     * @param channel the file channel
+     * @param position the position of the region
+     * @param length the size of the region
+     * @return a buffer with the bytes read
+     * @throws IOException if an I/O error occurs or if the file is truncated
+     */
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("The ListDB file is truncated.");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Returns the pool used for scanning the database in parallel, creating
+     * it if needed. It have to be called holding the lock of this object.
+     *
+     * @return the pool
+     */
+    private ForkJoinPool getPool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(parallelism);
+        }
+        return pool;
+    }
+
+    /**
+     * Mapped region of the file. As a buffer can not exceed 2GB, the region is
+     * mapped in chunks that start every {@link #STRIDE} bytes and overlap
+     * with the next one, so any item not bigger than {@link #MAX_ITEM} bytes
+     * is entirely in the chunk of its first byte.
+     */
+    private static class Region {
+        /**
+         * Distance between the starts of consecutive chunks.
+         */
+        static final long STRIDE = 1L << 30;
+        /**
+         * Maximum size of an item of the region.
+         */
+        static final int MAX_ITEM = (int) (Integer.MAX_VALUE - STRIDE);
+        /**
+         * Size of the region.
+         */
+        final long length;
+        /**
+         * Mapped chunks.
+         */
+        private final MappedByteBuffer chunks[];
+
+        /**
+         * Maps the given region of the file.
+         *
+         * @param channel the file channel
+         * @param position the position of the region
+         * @param length the size of the region
+         * @throws IOException if an I/O error occurs
+         */
+        Region(FileChannel channel, long position, long length) throws IOException {
+            this.length = length;
+            chunks = new MappedByteBuffer[(int) Math.max(1, (length + STRIDE - 1) / STRIDE)];
+            for (int c = 0; c < chunks.length; c++) {
+                long start = c * STRIDE;
+                chunks[c] = channel.map(FileChannel.MapMode.READ_ONLY, position + start,
+                        Math.min(length - start, Integer.MAX_VALUE));
+            }
+        }
+
+        /**
+         * Returns the chunk with the item at the given offset.
+         *
+         * @param offset the offset in the region
+         * @return the chunk
+         */
+        ByteBuffer buffer(long offset) {
+            return chunks[(int) (offset / STRIDE)];
+        }
+
+        /**
+         * Returns the position in its chunk of the item at the given offset.
+         *
+         * @param offset the offset in the region
+         * @return the position in the chunk
+         */
+        static int position(long offset) {
+            return (int) (offset % STRIDE);
+        }
+
+        /**
+         * Returns the integer at the given offset.
+         *
+         * @param offset the offset in the region
+         * @return the integer
+         */
+        int getInt(long offset) {
+            return buffer(offset).getInt(position(offset));
+        }
+
+        /**
+         * Returns the long at the given offset.
+         *
+         * @param offset the offset in the region
+         * @return the long
+         */
+        long getLong(long offset) {
+            return buffer(offset).getLong(position(offset));
+        }
+    }
+
+    /**
+     * Mapped section of descriptors, with its offset table if the descriptors
+     * have variable size.
+     */
+    private static class Section {
+        /**
+         * Size in bytes of each record (or {@link ListDBFormat#VARIABLE_WIDTH}).
+         */
+        final int width;
+        /**
+         * Position of the end of this section (including its offset table) in
+         * the file.
+         */
+        final long end;
+        /**
+         * Mapped descriptors.
+         */
+        final Region data;
+        /**
+         * Mapped offset table (<tt>null</tt> if the width is fixed).
+         */
+        private final Region offsets;
+
+        /**
+         * Maps the section stored between the given positions.
+         *
+         * @param channel the file channel
+         * @param start the position of the section
+         * @param dataEnd the position of the end of the descriptors of the
+         * section
+         * @param size the number of records
+         * @param limit the position where the mapped sections end
+         * @throws IOException if an I/O error occurs or if the section is not
+         * valid
+         */
+        Section(FileChannel channel, long start, long dataEnd, int size, long limit) throws IOException {
+            if (dataEnd + 4 > limit) {
+                throw new IOException("The ListDB file is corrupted.");
+            }
+            width = read(channel, dataEnd, 4).getInt();
+            if (width != ListDBFormat.VARIABLE_WIDTH) {
+                if (width < 0 || (long) size * width != dataEnd - start || width > Region.MAX_ITEM) {
+                    throw new IOException("The ListDB file is corrupted.");
+                }
+                offsets = null;
+                end = dataEnd + 4;
+            } else {
+                end = dataEnd + 4 + 8L * (size + 1);
+                if (end > limit) {
+                    throw new IOException("The ListDB file is corrupted.");
+                }
+                offsets = new Region(channel, dataEnd + 4, 8L * (size + 1));
+                if (offsets.getLong(0) != 0 || offsets.getLong(8L * size) != dataEnd - start) {
+                    throw new IOException("The ListDB file is corrupted.");
+                }
+            }
+            data = new Region(channel, start, dataEnd - start);
+        }
+
+        /**
+         * Returns the offset of the given record in the mapped descriptors.
+         *
+         * @param index the position of the record
+         * @return the offset
+         */
+        long offset(int index) {
+            return offsets == null ? (long) index * width : offsets.getLong(8L * index);
+        }
+
+        /**
+         * Returns the size of the given record.
+         *
+         * @param index the position of the record
+         * @return the size in bytes
+         * @throws InvalidParameterException if the offset table is not valid
+         */
+        int length(int index) {
+            if (offsets == null) {
+                return width;
+            }
+            long length = offsets.getLong(8L * (index + 1)) - offsets.getLong(8L * index);
+            if (length < 0 || length > Region.MAX_ITEM) {
+                throw new InvalidParameterException("The record at position " + index + " can not be read (invalid offset table).");
+            }
+            return (int) length;
+        }
+    }
+
+    /**
+     * Input stream reading the bytes of a buffer from its current position.
+     */
+    private static class ByteBufferStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte bytes[], int offset, int length) {
+            if (!buffer.hasRemaining()) {
+                return length == 0 ? 0 : -1;
+            }
+            length = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, length);
+            return length;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package jmr.db;
+
+import java.util.Collection;
+import java.util.List;
+import jmr.descriptor.Comparator;
+import jmr.descriptor.MediaDescriptor;
+import jmr.result.ResultMetadata;
+
+/**
+ * Interface for the indexes that speed up the similarity queries over a set of
+ * descriptors (for example, the records of a {@link ListDB}, see
+ * {@link ListDB#setIndex(jmr.db.MetricIndex)}).
+ *
+ * The indexes are built on a metric, that is, a comparator whose result is a
+ * distance satisfying the triangle inequality. The Euclidean aggregation of
+ * the descriptor distances used by default in the descriptor lists (see
+ * {@link jmr.descriptor.DescriptorList.DefaultComparator}) is a metric as long
+ * as the distances of the descriptors are metrics too (as, for example, the L1
+ * distances of the MPEG7 color descriptors). The indexes use the metric for
+ * discarding elements without comparing them to the query, so the number of
+ * distance calculations of a query is usually much lower than the number of
+ * elements (see {@link #getStats()}). Some indexes are approximate (see
+ * {@link #isExact()}): they trade some of the nearest elements for a faster
+ * search.
+ *
+ * The elements are kept by reference, and they are identified by their
+ * identity (not by {@link Object#equals(java.lang.Object)}). The indexes do not
+ * need to be thread-safe: the queries can be done concurrently, but the
+ * modifications have to be synchronized externally.
+ *
+ * @param <E> the type of the indexed descriptors
+ *
+ * @author Jesús Chamorro Martínez (jesus@decsai.ugr.es)
+ */
+public interface MetricIndex<E extends MediaDescriptor> {
+
+    /**
+     * Returns the metric used by this index.
+     *
+     * @return the metric used by this index
+     */
+    public Comparator<? super E, Double> getMetric();
+
+    /**
+     * Returns <tt>true</tt> if the results of the queries are exact (that is,
+     * the same as the ones of a linear scan, except for the order of the
+     * elements at the same distance). The default implementation returns
+     * <tt>true</tt>.
+     *
+     * @return <tt>true</tt> if the results of the queries are exact
+     */
+    default public boolean isExact() {
+        return true;
+    }
+
+    /**
+     * Adds the given element to this index.
+     *
+     * @param element the element to be added
+     */
+    public void add(E element);
+
+    /**
+     * Adds the given elements to this index. The default implementation adds
+     * them one by one; indexes can override this method in order to build
+     * their structure at once.
+     *
+     * @param elements the elements to be added
+     */
+    default public void addAll(Collection<? extends E> elements) {
+        for (E element : elements) {
+            add(element);
+        }
+    }
+
+    /**
+     * Removes the given element from this index (if it is present).
+     *
+     * @param element the element to be removed
+     * @return <tt>true</tt> if the element was removed
+     */
+    public boolean remove(E element);
+
+    /**
+     * Removes all the elements of this index.
+     */
+    public void clear();
+
+    /**
+     * Returns the number of elements in this index.
+     *
+     * @return the number of elements in this index
+     */
+    public int size();
+
+    /**
+     * Returns the nearest elements to the given query, together with their
+     * distance to the query. The output is sorted on the basis of that
+     * distance.
+     *
+     * @param query the query
+     * @param size the maximum number of elements in the output
+     * @return a list of ordered metadata with, at most, <code>size</code> items
+     */
+    public List<ResultMetadata<Double, E>> search(E query, int size);
+
+    /**
+     * Returns the elements whose distance to the given query is lower than or
+     * equal to the given radius, together with their distance to the query.
+     * The output is sorted on the basis of that distance.
+     *
+     * @param query the query
+     * @param radius the maximum distance to the query
+     * @return a list of ordered metadata
+     */
+    public List<ResultMetadata<Double, E>> range(E query, double radius);
+
+    /**
+     * Returns the statistics of the queries done with this index.
+     *
+     * @return the statistics of the queries
+     */
+    public IndexStats getStats();
+}
@@ -0,0 +1,353 @@
+package jmr.db;
+
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import jmr.descriptor.Comparator;
+import jmr.descriptor.MediaDescriptor;
+import jmr.result.ResultMetadata;
+
+/**
+ * A pivot table (LAESA): a {@link MetricIndex} that keeps the distances from
+ * every element to a small set of pivots.
+ *
+ * Given a query, its distances to the pivots are calculated, and the triangle
+ * inequality gives a lower bound of the distance to each element as the
+ * maximum of <i>|d(q,p)-d(x,p)|</i> over the pivots <i>p</i>. The elements
+ * are compared to the query in increasing order of their lower bounds, and the
+ * search stops as soon as the lower bound of the next element is not lower
+ * than the distance of the farthest candidate found so far. The results are
+ * exact, and the number of comparisons is the number of pivots plus the
+ * number of elements that could not be discarded (see
+ * {@link IndexStats#getPrunedCount()}), so it is useful with costly metrics
+ * (as the ones of the keyframe or gridded descriptors); the lower bounds are
+ * cheap, but they are calculated for all the elements.
+ *
+ * The pivots are selected by the farthest-first procedure: the first one is
+ * chosen randomly, and each new one is the element with the maximum distance
+ * to its nearest pivot. They are selected when the table is built (see
+ * {@link #addAll(java.util.Collection)} and {@link #selectPivots()}); until
+ * the table has the required number of pivots, the elements added one by one
+ * are taken as pivots. The pivots are kept even if they are removed from the
+ * table.
+ *
+ * @param <E> the type of the indexed descriptors
+ *
+ * @author Jesús Chamorro Martínez (jesus@decsai.ugr.es)
+ */
+public class PivotTable<E extends MediaDescriptor> implements MetricIndex<E> {
+    /**
+     * Default number of pivots.
+     */
+    static public final int DEFAULT_PIVOTS = 8;
+    /**
+     * Metric used by this table.
+     */
+    private final Comparator<? super E, Double> metric;
+    /**
+     * Maximum number of pivots.
+     */
+    private final int numPivots;
+    /**
+     * Pivots of this table.
+     */
+    private final List<E> pivots = new ArrayList<>();
+    /**
+     * Elements of this table.
+     */
+    private final List<E> elements = new ArrayList<>();
+    /**
+     * Distances from the elements to the pivots, stored by rows of
+     * <code>numPivots</code> values (one row per element).
+     */
+    private double table[] = new double[0];
+    /**
+     * Generator used for choosing the first pivot.
+     */
+    private final Random random = new Random(0);
+    /**
+     * Statistics of the queries.
+     */
+    private final IndexStats stats = new IndexStats();
+
+    /**
+     * Constructs an empty table with the default number of pivots, using the
+     * comparison of the descriptors as metric (that is, the distance between
+     * two elements <code>a</code> and <code>b</code> is
+     * <code>a.compare(b)</code>).
+     */
+    public PivotTable() {
+        this((a, b) -> (Double) a.compare(b));
+    }
+
+    /**
+     * Constructs an empty table with the default number of pivots, using the
+     * given metric.
+     *
+     * @param metric the metric
+     */
+    public PivotTable(Comparator<? super E, Double> metric) {
+        this(metric, DEFAULT_PIVOTS);
+    }
+
+    /**
+     * Constructs an empty table with the given number of pivots, using the
+     * given metric.
+     *
+     * @param metric the metric
+     * @param numPivots the number of pivots
+     * @throws InvalidParameterException if the number of pivots is not
+     * positive
+     */
+    public PivotTable(Comparator<? super E, Double> metric, int numPivots) {
+        if (numPivots < 1) {
+            throw new InvalidParameterException("The number of pivots must be positive.");
+        }
+        this.metric = metric;
+        this.numPivots = numPivots;
+    }
+
+    @Override
+    public Comparator<? super E, Double> getMetric() {
+        return metric;
+    }
+
+    /**
+     * Returns the pivots of this table.
+     *
+     * @return an unmodifiable view of the pivots
+     */
+    public List<E> getPivots() {
+        return Collections.unmodifiableList(pivots);
+    }
+
+    /**
+     * Returns the maximum number of pivots of this table.
+     *
+     * @return the maximum number of pivots
+     */
+    public int getNumPivots() {
+        return numPivots;
+    }
+
+    @Override
+    public void add(E element) {
+        int n = elements.size();
+        ensureCapacity(n + 1);
+        elements.add(element);
+        for (int j = 0; j < pivots.size(); j++) {
+            table[n * numPivots + j] = metric.apply(element, pivots.get(j));
+        }
+        if (pivots.size() < numPivots) {
+            addPivot(element);
+        }
+    }
+
+    /**
+     * Adds the given elements to this table, and selects again the pivots
+     * among all the elements.
+     *
+     * @param elements the elements to be added
+     */
+    @Override
+    public void addAll(Collection<? extends E> elements) {
+        this.elements.addAll(elements);
+        selectPivots();
+    }
+
+    /**
+     * Selects the pivots among the current elements of this table, and
+     * calculates again the distances to them.
+     */
+    public void selectPivots() {
+        int n = elements.size();
+        if ((long) n * numPivots > ArrayCapacity.MAX_ARRAY_SIZE) {
+            throw new InvalidParameterException("A table of " + numPivots + " pivots can not hold more than " + ArrayCapacity.MAX_ARRAY_SIZE / numPivots + " elements.");
+        }
+        pivots.clear();
+        table = new double[n * numPivots];
+        if (n == 0) {
+            return;
+        }
+        // Distance of each element to its nearest pivot
+        double nearest[] = new double[n];
+        Arrays.fill(nearest, Double.POSITIVE_INFINITY);
+        int next = random.nextInt(n);
+        while (pivots.size() < Math.min(numPivots, n)) {
+            int j = pivots.size();
+            E pivot = elements.get(next);
+            pivots.add(pivot);
+            next = -1;
+            for (int i = 0; i < n; i++) {
+                double d = metric.apply(elements.get(i), pivot);
+                table[i * numPivots + j] = d;
+                nearest[i] = Math.min(nearest[i], d);
+                if (next < 0 || nearest[i] > nearest[next]) {
+                    next = i;
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the given element as a new pivot, calculating the distances of the
+     * elements to it.
+     *
+     * @param pivot the new pivot
+     */
+    private void addPivot(E pivot) {
+        int j = pivots.size();
+        pivots.add(pivot);
+        for (int i = 0; i < elements.size(); i++) {
+            table[i * numPivots + j] = elements.get(i) == pivot ? 0.0 : metric.apply(elements.get(i), pivot);
+        }
+    }
+
+    /**
+     * Increases the capacity of the distance table, if necessary, to ensure
+     * that it can hold the given number of rows.
+     *
+     * @param rows the minimum number of rows
+     * @throws InvalidParameterException if the rows do not fit in an array
+     */
+    private void ensureCapacity(int rows) {
+        if (table.length < (long) rows * numPivots) {
+            table = Arrays.copyOf(table, ArrayCapacity.grow(Math.max(rows - 1, elements.size()), numPivots));
+        }
+    }
+
+    /**
+     * Removes the given element from this table (if it is present). The last
+     * element takes its place. If it is a pivot, it is kept as pivot.
+     *
+     * @param element the element to be removed
+     * @return <tt>true</tt> if the element was removed
+     */
+    @Override
+    public boolean remove(E element) {
+        for (int i = 0; i < elements.size(); i++) {
+            if (elements.get(i) == element) {
+                int last = elements.size() - 1;
+                elements.set(i, elements.get(last));
+                elements.remove(last);
+                System.arraycopy(table, last * numPivots, table, i * numPivots, numPivots);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void clear() {
+        elements.clear();
+        pivots.clear();
+        table = new double[0];
+    }
+
+    @Override
+    public int size() {
+        return elements.size();
+    }
+
+    /**
+     * Calculates the lower bounds of the distances from the given query to
+     * the elements of this table.
+     *
+     * @param query the query
+     * @return an array with the lower bound of each element (at the same
+     * position of the element in the table)
+     */
+    private double[] lowerBounds(E query) {
+        int p = pivots.size();
+        double distances[] = new double[p];
+        for (int j = 0; j < p; j++) {
+            distances[j] = metric.apply(query, pivots.get(j));
+        }
+        double bounds[] = new double[elements.size()];
+        for (int i = 0, row = 0; i < bounds.length; i++, row += numPivots) {
+            double bound = 0.0, difference;
+            for (int j = 0; j < p; j++) {
+                // The difference of two infinite distances (as the ones of the
+                // label comparators) is undefined, so that pivot gives no bound
+                difference = Math.abs(distances[j] - table[row + j]);
+                if (difference > bound) {
+                    bound = difference;
+                }
+            }
+            bounds[i] = bound;
+        }
+        return bounds;
+    }
+
+    @Override
+    public List<ResultMetadata<Double, E>> search(E query, int size) {
+        int n = elements.size();
+        size = Math.min(Math.max(size, 0), n);
+        List<ResultMetadata<Double, E>> output = new ArrayList<>(size);
+        if (size == 0) {
+            stats.record(0, n);
+            return output;
+        }
+        double bounds[] = lowerBounds(query);
+        long count = pivots.size();
+        PriorityQueue<ListDB.Neighbor> heap = new PriorityQueue<>(size, Collections.reverseOrder());
+        for (int i : ListDB.sortedIndices(bounds)) {
+            if (heap.size() == size && bounds[i] >= heap.peek().distance) {
+                break; // The rest of elements can not be nearer
+            }
+            ListDB.offer(heap, size, metric.apply(query, elements.get(i)), i);
+            count++;
+        }
+        stats.record(count, n);
+        ListDB.Neighbor nearest[] = heap.toArray(new ListDB.Neighbor[heap.size()]);
+        Arrays.sort(nearest);
+        for (ListDB.Neighbor neighbor : nearest) {
+            output.add(new ResultMetadata<>(neighbor.distance, elements.get(neighbor.index)));
+        }
+        return output;
+    }
+
+    @Override
+    public List<ResultMetadata<Double, E>> range(E query, double radius) {
+        int n = elements.size();
+        double bounds[] = lowerBounds(query);
+        long count = pivots.size();
+        List<ListDB.Neighbor> found = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            if (bounds[i] <= radius) {
+                double d = metric.apply(query, elements.get(i));
+                count++;
+                if (d <= radius) {
+                    found.add(new ListDB.Neighbor(d, i));
+                }
+            }
+        }
+        stats.record(count, n);
+        Collections.sort(found);
+        List<ResultMetadata<Double, E>> output = new ArrayList<>(found.size());
+        for (ListDB.Neighbor neighbor : found) {
+            output.add(new ResultMetadata<>(neighbor.distance, elements.get(neighbor.index)));
+        }
+        return output;
+    }
+
+    @Override
+    public IndexStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Returns a string representation of this index.
+     *
+     * @return a string representation of this index
+     */
+    @Override
+    public String toString() {
+        return "PivotTable(pivots=" + numPivots + ")";
+    }
+}
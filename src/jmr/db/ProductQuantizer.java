@@ -0,0 +1,283 @@
+package jmr.db;
+
+import java.io.Serializable;
+import java.security.InvalidParameterException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Product quantizer of integer feature vectors under the L1 distance.
+ *
+ * The vectors are split in <code>m</code> consecutive subvectors (subspaces),
+ * and each subvector is replaced by the index of its nearest centroid in the
+ * codebook of its subspace, so a vector is encoded with <code>m</code> bytes
+ * (the codebooks have, at most, 256 centroids). Since the L1 distance is the
+ * sum of the distances in each subspace, the distance from a query to an
+ * encoded vector is approximated by adding up the distances from the query
+ * subvectors to the centroids of the code (asymmetric distance computation).
+ * Those distances are calculated only once per query, as a table of
+ * <code>m</code>×<code>k</code> values (see {@link #distanceTable(int[])}), so
+ * the approximate distance to each vector costs <code>m</code> table lookups.
+ *
+ * The codebooks are trained with the k-medians algorithm (the per-dimension
+ * median is the centroid minimizing the L1 distance). This class is
+ * immutable once trained, so it can be shared by several threads.
+ *
+ * @author Jesús Chamorro Martínez (jesus@decsai.ugr.es)
+ */
+public class ProductQuantizer implements Serializable {
+    private static final long serialVersionUID = 1L;
+    /**
+     * Dimension of the vectors.
+     */
+    private final int dimension;
+    /**
+     * Number of subspaces.
+     */
+    private final int subspaces;
+    /**
+     * Number of centroids in each codebook.
+     */
+    private final int centroids;
+    /**
+     * First dimension of each subspace (plus the dimension of the vectors, as
+     * the end of the last one).
+     */
+    private final int bounds[];
+    /**
+     * Codebook of each subspace, stored by rows of centroids.
+     */
+    private final float codebooks[][];
+
+    /**
+     * Constructs an untrained quantizer.
+     */
+    private ProductQuantizer(int dimension, int subspaces, int centroids) {
+        this.dimension = dimension;
+        this.subspaces = subspaces;
+        this.centroids = centroids;
+        this.bounds = new int[subspaces + 1];
+        for (int s = 0; s <= subspaces; s++) {
+            bounds[s] = s * dimension / subspaces;
+        }
+        this.codebooks = new float[subspaces][];
+    }
+
+    /**
+     * Trains a new quantizer with the given sample of vectors.
+     *
+     * @param sample the training vectors (all of them with the same
+     * dimension)
+     * @param subspaces the number of subspaces (the size of the codes in
+     * bytes)
+     * @param centroids the number of centroids of each codebook (at most 256)
+     * @param iterations the number of iterations of the k-medians algorithm
+     * @param seed the seed used for choosing the initial centroids
+     * @return the trained quantizer
+     * @throws InvalidParameterException if the sample is empty, if the
+     * vectors have different dimension or if the parameters are not valid.
+     */
+    static public ProductQuantizer train(List<int[]> sample, int subspaces, int centroids, int iterations, long seed) {
+        if (sample.isEmpty()) {
+            throw new InvalidParameterException("The training sample can not be empty.");
+        }
+        int dimension = sample.get(0).length;
+        if (subspaces < 1 || subspaces > dimension || centroids < 1 || centroids > 256) {
+            throw new InvalidParameterException("The number of subspaces must be in [1," + dimension + "] and the number of centroids in [1,256].");
+        }
+        for (int[] vector : sample) {
+            if (vector.length != dimension) {
+                throw new InvalidParameterException("The training vectors must have the same dimension.");
+            }
+        }
+        ProductQuantizer pq = new ProductQuantizer(dimension, subspaces, Math.min(centroids, sample.size()));
+        Random random = new Random(seed);
+        for (int s = 0; s < subspaces; s++) {
+            pq.codebooks[s] = pq.trainSubspace(sample, s, iterations, random);
+        }
+        return pq;
+    }
+
+    /**
+     * Trains the codebook of the given subspace by means of the k-medians
+     * algorithm.
+     */
+    private float[] trainSubspace(List<int[]> sample, int s, int iterations, Random random) {
+        int from = bounds[s], width = bounds[s + 1] - from, n = sample.size();
+        float codebook[] = new float[centroids * width];
+        // The initial centroids are distinct sample vectors chosen randomly
+        int order[] = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        for (int c = 0; c < centroids; c++) {
+            int j = c + random.nextInt(n - c);
+            int tmp = order[c]; order[c] = order[j]; order[j] = tmp;
+            int vector[] = sample.get(order[c]);
+            for (int d = 0; d < width; d++) {
+                codebook[c * width + d] = vector[from + d];
+            }
+        }
+        int assignment[] = new int[n];
+        int values[] = new int[n];
+        for (int it = 0; it < iterations; it++) {
+            boolean changed = false;
+            int counts[] = new int[centroids];
+            for (int i = 0; i < n; i++) {
+                int nearest = nearest(codebook, width, sample.get(i), from);
+                changed |= it == 0 || nearest != assignment[i];
+                assignment[i] = nearest;
+                counts[nearest]++;
+            }
+            if (!changed) {
+                break;
+            }
+            // The vectors are grouped by cluster, and each centroid is
+            // replaced by the per-dimension median of its vectors (empty
+            // clusters keep their centroid)
+            int start[] = new int[centroids + 1];
+            for (int c = 0; c < centroids; c++) {
+                start[c + 1] = start[c] + counts[c];
+            }
+            int next[] = Arrays.copyOf(start, centroids);
+            for (int i = 0; i < n; i++) {
+                order[next[assignment[i]]++] = i;
+            }
+            for (int c = 0; c < centroids; c++) {
+                int m = counts[c];
+                if (m == 0) {
+                    continue;
+                }
+                for (int d = 0; d < width; d++) {
+                    for (int i = 0; i < m; i++) {
+                        values[i] = sample.get(order[start[c] + i])[from + d];
+                    }
+                    Arrays.sort(values, 0, m);
+                    codebook[c * width + d] = (m & 1) == 1 ? values[m / 2] : 0.5f * (values[m / 2 - 1] + values[m / 2]);
+                }
+            }
+        }
+        return codebook;
+    }
+
+    /**
+     * Returns the nearest centroid of the given codebook to the subvector
+     * starting at the given position of the given vector.
+     */
+    private int nearest(float codebook[], int width, int vector[], int from) {
+        int nearest = 0;
+        float best = Float.POSITIVE_INFINITY;
+        for (int c = 0, base = 0; c < centroids; c++, base += width) {
+            float sum = 0;
+            for (int d = 0; d < width && sum < best; d++) {
+                sum += Math.abs(vector[from + d] - codebook[base + d]);
+            }
+            if (sum < best) {
+                best = sum;
+                nearest = c;
+            }
+        }
+        return nearest;
+    }
+
+    /**
+     * Returns the dimension of the vectors.
+     *
+     * @return the dimension of the vectors
+     */
+    public int getDimension() {
+        return dimension;
+    }
+
+    /**
+     * Returns the number of subspaces, that is, the size in bytes of the
+     * codes.
+     *
+     * @return the number of subspaces
+     */
+    public int getSubspaces() {
+        return subspaces;
+    }
+
+    /**
+     * Returns the number of centroids of each codebook.
+     *
+     * @return the number of centroids of each codebook
+     */
+    public int getCentroids() {
+        return centroids;
+    }
+
+    /**
+     * Encodes the given vector, writing its code at the given position of the
+     * given array.
+     *
+     * @param vector the vector
+     * @param codes the array where the code is written
+     * @param offset the position of the code in the array
+     * @throws InvalidParameterException if the vector has not the dimension of
+     * this quantizer
+     */
+    public void encode(int vector[], byte codes[], int offset) {
+        checkDimension(vector);
+        for (int s = 0; s < subspaces; s++) {
+            codes[offset + s] = (byte) nearest(codebooks[s], bounds[s + 1] - bounds[s], vector, bounds[s]);
+        }
+    }
+
+    /**
+     * Returns the table of distances from the given query to the centroids of
+     * each subspace. The distance to the centroid <code>c</code> of the
+     * subspace <code>s</code> is at position <code>s·k+c</code> (being
+     * <code>k</code> the number of centroids).
+     *
+     * @param query the query vector
+     * @return the table of distances
+     * @throws InvalidParameterException if the query has not the dimension of
+     * this quantizer
+     */
+    public float[] distanceTable(int query[]) {
+        checkDimension(query);
+        float table[] = new float[subspaces * centroids];
+        for (int s = 0; s < subspaces; s++) {
+            int from = bounds[s], width = bounds[s + 1] - from;
+            float codebook[] = codebooks[s];
+            for (int c = 0, base = 0; c < centroids; c++, base += width) {
+                float sum = 0;
+                for (int d = 0; d < width; d++) {
+                    sum += Math.abs(query[from + d] - codebook[base + d]);
+                }
+                table[s * centroids + c] = sum;
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Returns the approximate distance from a query to the vector with the
+     * code at the given position of the given array.
+     *
+     * @param table the table of distances of the query (see
+     * {@link #distanceTable(int[])})
+     * @param codes the array with the code
+     * @param offset the position of the code in the array
+     * @return the approximate distance
+     */
+    public float distance(float table[], byte codes[], int offset) {
+        float sum = 0;
+        for (int s = 0, base = 0; s < subspaces; s++, base += centroids) {
+            sum += table[base + (codes[offset + s] & 0xFF)];
+        }
+        return sum;
+    }
+
+    /**
+     * Checks that the given vector has the dimension of this quantizer.
+     */
+    private void checkDimension(int vector[]) {
+        if (vector.length != dimension) {
+            throw new InvalidParameterException("The vector dimension (" + vector.length + ") does not match the quantizer one (" + dimension + ").");
+        }
+    }
+}
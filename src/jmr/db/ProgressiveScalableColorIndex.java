@@ -0,0 +1,468 @@
+package jmr.db;
+
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.IntFunction;
+import jmr.descriptor.DescriptorList;
+import jmr.descriptor.color.MPEG7ScalableColor;
+import jmr.result.ResultMetadata;
+import jmr.tools.DistanceTools;
+
+/**
+ * Index of {@link MPEG7ScalableColor} descriptors for coarse-to-fine queries,
+ * based on the scalability of the descriptor.
+ *
+ * The Haar coefficients of the descriptor are sorted by importance, so the L1
+ * distance over the first coefficients is a coarse version of the full one.
+ * This index keeps the first coefficients of each descriptor (16 or 32, for
+ * example) in a single compact array, and answers the queries in stages: each
+ * stage adds the next coefficients to the partial distances of the surviving
+ * descriptors and, optionally, keeps only the nearest ones (the cutoff of the
+ * stage). Finally, the survivors are compared to the query with all the
+ * coefficients, taking the full descriptors from their storage (for example,
+ * a database), in increasing order of their partial distance.
+ *
+ * Since the L1 distance is a sum of non-negative terms, the partial distance
+ * of a descriptor is a lower bound of the full one. So, the final comparisons
+ * stop as soon as the partial distance of the next survivor is not lower than
+ * the distance of the farthest result found so far, and the stages without
+ * cutoff ({@link #EXACT}) discard no result. If no stage has a cutoff, the
+ * results are exact (the same as the ones of a linear scan with
+ * {@link MPEG7ScalableColor#compare(jmr.descriptor.color.MPEG7ScalableColor)});
+ * otherwise, a result may be missed if its partial distance is not among the
+ * nearest ones of some stage with cutoff.
+ *
+ * The queries can be done concurrently, but the insertions have to be
+ * synchronized externally. The working arrays of the queries (with a position
+ * per descriptor) are kept by each querying thread and reused in its next
+ * queries.
+ *
+ * @author Jesús Chamorro Martínez (jesus@decsai.ugr.es)
+ */
+public class ProgressiveScalableColorIndex {
+    /**
+     * Cutoff value for the stages that keep all the descriptors.
+     */
+    static public final int EXACT = 0;
+    /**
+     * Default number of coefficients kept in the compact array.
+     */
+    static public final int DEFAULT_PREFIX_LENGTH = 32;
+    /**
+     * Number of coefficients kept for each descriptor.
+     */
+    private final int prefixLength;
+    /**
+     * Number of coefficients of the indexed descriptors.
+     */
+    private final int numCoefficients;
+    /**
+     * Number of bitplanes discarded in the indexed descriptors.
+     */
+    private final int numBitPlanesDiscarded;
+    /**
+     * First coefficients of the descriptors, stored by rows of
+     * <code>prefixLength</code> values.
+     */
+    private short prefix[] = new short[0];
+    /**
+     * Number of descriptors in this index.
+     */
+    private int size = 0;
+    /**
+     * Number of coefficients used in each stage (increasing).
+     */
+    private volatile int stageLengths[];
+    /**
+     * Number of descriptors kept after each stage ({@link #EXACT} for all).
+     */
+    private volatile int stageCutoffs[];
+    /**
+     * Statistics of the queries (the distances counted are the full ones).
+     */
+    private final IndexStats stats = new IndexStats();
+    /**
+     * Working arrays of the queries of each thread, reused between queries.
+     */
+    private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    /**
+     * Constructs an empty index. By default, there is a single stage with all
+     * the kept coefficients and without cutoff, so the results are exact.
+     *
+     * @param prefixLength the number of coefficients kept for each descriptor
+     * @param numCoefficients the number of coefficients of the indexed
+     * descriptors
+     * @param numBitPlanesDiscarded the number of bitplanes discarded in the
+     * indexed descriptors
+     * @throws InvalidParameterException if the number of coefficients kept is
+     * not in [1,<code>numCoefficients</code>]
+     */
+    public ProgressiveScalableColorIndex(int prefixLength, int numCoefficients, int numBitPlanesDiscarded) {
+        if (prefixLength < 1 || prefixLength > numCoefficients) {
+            throw new InvalidParameterException("The number of coefficients kept must be in [1," + numCoefficients + "].");
+        }
+        this.prefixLength = prefixLength;
+        this.numCoefficients = numCoefficients;
+        this.numBitPlanesDiscarded = numBitPlanesDiscarded;
+        this.stageLengths = new int[]{prefixLength};
+        this.stageCutoffs = new int[]{EXACT};
+    }
+
+    /**
+     * Constructs an index with the descriptors at the given position of the
+     * given records (for example, the records of a database, see
+     * {@link ListDB#getRecords()}).
+     *
+     * @param records the records (at least one)
+     * @param position the position of the {@link MPEG7ScalableColor}
+     * descriptor in the records
+     * @param prefixLength the number of coefficients kept for each descriptor
+     * @return the new index, with the descriptors at the same positions as the
+     * records
+     * @throws InvalidParameterException if the descriptors are not
+     * {@link MPEG7ScalableColor} objects sharing the same parameters.
+     */
+    static public ProgressiveScalableColorIndex build(List<? extends DescriptorList> records, int position, int prefixLength) {
+        if (records.isEmpty()) {
+            throw new InvalidParameterException("At least one record is needed for building the index.");
+        }
+        MPEG7ScalableColor first = descriptor(records.get(0), position);
+        ProgressiveScalableColorIndex index = new ProgressiveScalableColorIndex(
+                Math.min(prefixLength, first.getNumCoefficients()),
+                first.getNumCoefficients(), first.getNumBitPlanesDiscarded());
+        for (DescriptorList record : records) {
+            index.add(descriptor(record, position));
+        }
+        return index;
+    }
+
+    /**
+     * Returns the {@link MPEG7ScalableColor} descriptor at the given position
+     * of the given record.
+     */
+    private static MPEG7ScalableColor descriptor(DescriptorList record, int position) {
+        Object descriptor = record.get(position);
+        if (!(descriptor instanceof MPEG7ScalableColor)) {
+            throw new InvalidParameterException("The descriptor at position '" + position + "' is not a MPEG7ScalableColor.");
+        }
+        return (MPEG7ScalableColor) descriptor;
+    }
+
+    /**
+     * Set the stages of the queries. In each stage, the partial distances are
+     * calculated with the given number of coefficients, and the given number
+     * of nearest descriptors are kept for the next stage.
+     *
+     * @param lengths the number of coefficients of each stage (increasing,
+     * and not greater than the number of coefficients kept)
+     * @param cutoffs the number of descriptors kept after each stage
+     * ({@link #EXACT} for keeping all of them)
+     * @throws InvalidParameterException if the stages are not valid
+     */
+    public void setStages(int lengths[], int cutoffs[]) {
+        if (lengths.length == 0 || lengths.length != cutoffs.length) {
+            throw new InvalidParameterException("The same (non-zero) number of lengths and cutoffs must be given.");
+        }
+        for (int i = 0; i < lengths.length; i++) {
+            if (lengths[i] < 1 || lengths[i] > prefixLength || (i > 0 && lengths[i] <= lengths[i - 1]) || cutoffs[i] < 0) {
+                throw new InvalidParameterException("The stage lengths must be increasing in [1," + prefixLength + "], and the cutoffs non-negative.");
+            }
+        }
+        this.stageCutoffs = cutoffs.clone();
+        this.stageLengths = lengths.clone();
+    }
+
+    /**
+     * Returns the number of coefficients used in each stage.
+     *
+     * @return the number of coefficients used in each stage
+     */
+    public int[] getStageLengths() {
+        return stageLengths.clone();
+    }
+
+    /**
+     * Returns the number of descriptors kept after each stage.
+     *
+     * @return the number of descriptors kept after each stage
+     */
+    public int[] getStageCutoffs() {
+        return stageCutoffs.clone();
+    }
+
+    /**
+     * Returns <tt>true</tt> if the results of the queries are exact, that is,
+     * if no stage has a cutoff.
+     *
+     * @return <tt>true</tt> if the results of the queries are exact
+     */
+    public boolean isExact() {
+        for (int cutoff : stageCutoffs) {
+            if (cutoff != EXACT) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of descriptors in this index.
+     *
+     * @return the number of descriptors in this index
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Adds the given descriptor at the end of this index.
+     *
+     * @param descriptor the descriptor to be added
+     * @throws InvalidParameterException if the descriptor does not share the
+     * parameters of this index, or if the index can not hold more descriptors.
+     */
+    public void add(MPEG7ScalableColor descriptor) {
+        int coefficients[] = coefficients(descriptor);
+        if ((size + 1L) * prefixLength > prefix.length) {
+            prefix = Arrays.copyOf(prefix, ArrayCapacity.grow(size, prefixLength));
+        }
+        for (int j = 0, offset = size * prefixLength; j < prefixLength; j++) {
+            if (coefficients[j] != (short) coefficients[j]) {
+                throw new InvalidParameterException("The coefficient " + j + " is out of the range of the index.");
+            }
+            prefix[offset + j] = (short) coefficients[j];
+        }
+        size++;
+    }
+
+    /**
+     * Returns the coefficients of the given descriptor, checking that it
+     * shares the parameters of this index.
+     */
+    private int[] coefficients(MPEG7ScalableColor descriptor) {
+        int coefficients[] = descriptor.getCoefficients();
+        if (coefficients == null || coefficients.length != numCoefficients
+                || descriptor.getNumBitPlanesDiscarded() != numBitPlanesDiscarded) {
+            throw new InvalidParameterException("The descriptor does not share the parameters of the index.");
+        }
+        return coefficients;
+    }
+
+    /**
+     * Returns the nearest descriptors to the given query, together with their
+     * distance to the query. The output is sorted on the basis of that
+     * distance.
+     *
+     * @param query the query descriptor
+     * @param size the maximum number of descriptors in the output
+     * @param descriptors the function that returns the descriptor at a given
+     * position
+     * @return a list of ordered metadata whose metadata are the positions of
+     * the descriptors in this index
+     */
+    public List<ResultMetadata<Double, Integer>> search(MPEG7ScalableColor query, int size,
+            IntFunction<? extends MPEG7ScalableColor> descriptors) {
+        int q[] = coefficients(query);
+        int n = this.size;
+        size = Math.min(Math.max(size, 0), n);
+        int lengths[] = stageLengths, cutoffs[] = stageCutoffs;
+        // Survivors and their partial distances
+        Scratch work = scratch.get();
+        work.ensureCapacity(n);
+        int survivors[] = work.survivors;
+        double bounds[] = work.bounds;
+        for (int i = 0; i < n; i++) {
+            survivors[i] = i;
+            bounds[i] = 0.0;
+        }
+        int count = size > 0 ? n : 0, done = 0;
+        for (int stage = 0; stage < lengths.length && count > 0; stage++) {
+            for (int i = 0; i < count; i++) {
+                int offset = survivors[i] * prefixLength;
+                bounds[i] += DistanceTools.l1(q, done, prefix, offset + done, lengths[stage] - done);
+            }
+            done = lengths[stage];
+            if (cutoffs[stage] != EXACT && count > Math.max(cutoffs[stage], size)) {
+                count = select(survivors, bounds, work.keys, count, Math.max(cutoffs[stage], size));
+            }
+        }
+        // The survivors are compared in increasing order of their lower bounds,
+        // taken from a min-heap (only the compared ones are sorted)
+        PriorityQueue<ListDB.Neighbor> heap = new PriorityQueue<>(Math.max(size, 1), Collections.reverseOrder());
+        long compared = 0;
+        for (int i = count / 2 - 1; i >= 0; i--) {
+            siftDown(survivors, bounds, i, count);
+        }
+        while (count > 0) {
+            int position = survivors[0];
+            if (heap.size() == size && bounds[0] >= heap.peek().distance) {
+                break; // The rest of survivors can not be nearer
+            }
+            Double distance = query.compare(descriptors.apply(position));
+            if (distance == null) {
+                throw new InvalidParameterException("The descriptor at position '" + position + "' is not comparable to the query.");
+            }
+            ListDB.offer(heap, size, distance, position);
+            compared++;
+            count--;
+            survivors[0] = survivors[count];
+            bounds[0] = bounds[count];
+            siftDown(survivors, bounds, 0, count);
+        }
+        stats.record(compared, n);
+        ListDB.Neighbor nearest[] = heap.toArray(new ListDB.Neighbor[heap.size()]);
+        Arrays.sort(nearest);
+        List<ResultMetadata<Double, Integer>> output = new ArrayList<>(nearest.length);
+        for (ListDB.Neighbor neighbor : nearest) {
+            output.add(new ResultMetadata<>(neighbor.distance, neighbor.index));
+        }
+        return output;
+    }
+
+    /**
+     * Keeps the survivors with the lowest partial distances, moving them (in
+     * the same order) to the beginning of the arrays. The ties are resolved in
+     * favor of the first survivors. The threshold distance is found by
+     * selection on a copy of the distances, without sorting them.
+     *
+     * @param survivors the positions of the survivors
+     * @param bounds the partial distances of the survivors
+     * @param keys working array (at least, of <code>count</code> size)
+     * @param count the number of survivors
+     * @param cutoff the number of survivors to be kept
+     * @return the new number of survivors
+     */
+    private static int select(int survivors[], double bounds[], double keys[], int count, int cutoff) {
+        System.arraycopy(bounds, 0, keys, 0, count);
+        double threshold = kth(keys, count, cutoff - 1);
+        int less = 0;
+        for (int i = 0; i < count; i++) {
+            if (bounds[i] < threshold) {
+                less++;
+            }
+        }
+        int ties = cutoff - less, kept = 0;
+        for (int i = 0; i < count && kept < cutoff; i++) {
+            if (bounds[i] < threshold || (bounds[i] == threshold && ties-- > 0)) {
+                survivors[kept] = survivors[i];
+                bounds[kept] = bounds[i];
+                kept++;
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * Returns the k-th smallest value of the first <code>n</code> values of
+     * the given array (quickselect), reordering them.
+     *
+     * @param values the values
+     * @param n the number of values
+     * @param k the rank of the value (starting at 0)
+     * @return the k-th smallest value
+     */
+    private static double kth(double values[], int n, int k) {
+        int left = 0, right = n - 1;
+        while (left < right) {
+            double pivot = values[(left + right) >>> 1];
+            int i = left, j = right;
+            while (i <= j) {
+                while (values[i] < pivot) {
+                    i++;
+                }
+                while (values[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    double swap = values[i];
+                    values[i++] = values[j];
+                    values[j--] = swap;
+                }
+            }
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                return values[k];
+            }
+        }
+        return values[k];
+    }
+
+    /**
+     * Moves down the survivor at the given position of the min-heap formed by
+     * the first <code>count</code> survivors, ordered by their partial
+     * distances (and by their positions in the index if equal).
+     *
+     * @param survivors the positions of the survivors
+     * @param bounds the partial distances of the survivors
+     * @param i the position in the heap
+     * @param count the number of survivors in the heap
+     */
+    private static void siftDown(int survivors[], double bounds[], int i, int count) {
+        int position = survivors[i];
+        double bound = bounds[i];
+        for (int child = 2 * i + 1; child < count; child = 2 * i + 1) {
+            if (child + 1 < count && (bounds[child + 1] < bounds[child]
+                    || (bounds[child + 1] == bounds[child] && survivors[child + 1] < survivors[child]))) {
+                child++;
+            }
+            if (bound < bounds[child] || (bound == bounds[child] && position < survivors[child])) {
+                break;
+            }
+            survivors[i] = survivors[child];
+            bounds[i] = bounds[child];
+            i = child;
+        }
+        survivors[i] = position;
+        bounds[i] = bound;
+    }
+
+    /**
+     * Working arrays of a query.
+     */
+    private static class Scratch {
+        /**
+         * Positions of the survivors.
+         */
+        int survivors[] = new int[0];
+        /**
+         * Partial distances of the survivors.
+         */
+        double bounds[] = new double[0];
+        /**
+         * Copy of the partial distances for the selections.
+         */
+        double keys[] = new double[0];
+
+        /**
+         * Ensures that the arrays have, at least, the given size.
+         *
+         * @param n the number of descriptors
+         */
+        void ensureCapacity(int n) {
+            if (survivors.length < n) {
+                int capacity = (int) Math.min(n + (long) (n >> 3), ArrayCapacity.MAX_ARRAY_SIZE);
+                survivors = new int[capacity];
+                bounds = new double[capacity];
+                keys = new double[capacity];
+            }
+        }
+    }
+
+    /**
+     * Returns the statistics of the queries. The distances counted are the
+     * comparisons with all the coefficients.
+     *
+     * @return the statistics of the queries
+     */
+    public IndexStats getStats() {
+        return stats;
+    }
+}
@@ -0,0 +1,280 @@
+package jmr.db;
+
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.IntFunction;
+import jmr.descriptor.DescriptorList;
+import jmr.descriptor.color.MPEG7ScalableColor;
+import jmr.result.ResultMetadata;
+
+/**
+ * Compressed index of {@link MPEG7ScalableColor} descriptors based on product
+ * quantization (see {@link ProductQuantizer}).
+ *
+ * Each descriptor is stored as a code of a few bytes (one per subspace of the
+ * quantizer) instead of its Haar coefficients, so the index of a very large
+ * collection fits in main memory. The descriptors are identified by their
+ * position in the index (the order in which they were added), which is
+ * usually their position in a database. The queries scan the codes using the
+ * asymmetric distance tables of the quantizer, which give an approximation of
+ * the L1 distance used by {@link MPEG7ScalableColor#compare(jmr.descriptor.color.MPEG7ScalableColor)}.
+ * In order to improve the precision, the nearest candidates can be re-ranked
+ * with the exact distance, taking the full descriptors from their storage
+ * (for example, a {@link MappedListDB}, so they are not kept in memory):
+ * <pre>
+ *     List&lt;ResultMetadata&lt;Double,Integer&gt;&gt; result = index.search(query, 10, 200,
+ *             i -&gt; (MPEG7ScalableColor) mappedDB.get(i).get(0));
+ * </pre>
+ *
+ * The results are approximate even with re-ranking: a descriptor whose code is
+ * not among the candidates is missed. The queries can be done concurrently,
+ * but the insertions have to be synchronized externally.
+ *
+ * @author Jesús Chamorro Martínez (jesus@decsai.ugr.es)
+ */
+public class ScalableColorPQIndex {
+    /**
+     * Default number of iterations used for training the quantizer.
+     */
+    static public final int DEFAULT_TRAINING_ITERATIONS = 10;
+    /**
+     * Quantizer used for encoding the descriptors.
+     */
+    private final ProductQuantizer quantizer;
+    /**
+     * Number of bitplanes discarded in the indexed descriptors.
+     */
+    private final int numBitPlanesDiscarded;
+    /**
+     * Codes of the descriptors, stored consecutively.
+     */
+    private byte codes[] = new byte[0];
+    /**
+     * Number of descriptors in this index.
+     */
+    private int size = 0;
+
+    /**
+     * Constructs an empty index with the given quantizer.
+     *
+     * @param quantizer the quantizer, whose dimension is the number of
+     * coefficients of the indexed descriptors
+     * @param numBitPlanesDiscarded the number of bitplanes discarded in the
+     * indexed descriptors
+     */
+    public ScalableColorPQIndex(ProductQuantizer quantizer, int numBitPlanesDiscarded) {
+        this.quantizer = quantizer;
+        this.numBitPlanesDiscarded = numBitPlanesDiscarded;
+    }
+
+    /**
+     * Constructs an empty index whose quantizer is trained with the given
+     * descriptors.
+     *
+     * @param sample the training descriptors (all of them with the same
+     * parameters)
+     * @param subspaces the number of subspaces of the quantizer (the size of
+     * the codes in bytes)
+     * @param centroids the number of centroids of each codebook (at most 256)
+     * @return a new empty index
+     * @throws InvalidParameterException if the sample is empty or if the
+     * descriptors do not share the same parameters.
+     */
+    static public ScalableColorPQIndex train(List<MPEG7ScalableColor> sample, int subspaces, int centroids) {
+        if (sample.isEmpty()) {
+            throw new InvalidParameterException("The training sample can not be empty.");
+        }
+        int bitplanes = sample.get(0).getNumBitPlanesDiscarded();
+        List<int[]> vectors = new ArrayList<>(sample.size());
+        for (MPEG7ScalableColor descriptor : sample) {
+            if (descriptor.getNumBitPlanesDiscarded() != bitplanes || descriptor.getCoefficients() == null) {
+                throw new InvalidParameterException("The training descriptors must share the same parameters.");
+            }
+            vectors.add(descriptor.getCoefficients());
+        }
+        ProductQuantizer quantizer = ProductQuantizer.train(vectors, subspaces, centroids, DEFAULT_TRAINING_ITERATIONS, 0);
+        return new ScalableColorPQIndex(quantizer, bitplanes);
+    }
+
+    /**
+     * Constructs an index with the descriptors at the given position of the
+     * given records (for example, the records of a database, see
+     * {@link ListDB#getRecords()}). The quantizer is trained with a sample of
+     * the descriptors taken at regular intervals.
+     *
+     * @param records the records
+     * @param position the position of the {@link MPEG7ScalableColor}
+     * descriptor in the records
+     * @param subspaces the number of subspaces of the quantizer (the size of
+     * the codes in bytes)
+     * @param centroids the number of centroids of each codebook (at most 256)
+     * @param sampleSize the maximum number of descriptors used for training
+     * @return the new index, with the descriptors at the same positions as the
+     * records
+     * @throws InvalidParameterException if the descriptors are not
+     * {@link MPEG7ScalableColor} objects sharing the same parameters.
+     */
+    static public ScalableColorPQIndex build(List<? extends DescriptorList> records, int position,
+            int subspaces, int centroids, int sampleSize) {
+        List<MPEG7ScalableColor> sample = new ArrayList<>();
+        int step = Math.max(records.size() / Math.max(sampleSize, 1), 1);
+        for (int i = 0; i < records.size() && sample.size() < sampleSize; i += step) {
+            sample.add(descriptor(records.get(i), position));
+        }
+        ScalableColorPQIndex index = train(sample, subspaces, centroids);
+        for (DescriptorList record : records) {
+            index.add(descriptor(record, position));
+        }
+        return index;
+    }
+
+    /**
+     * Returns the {@link MPEG7ScalableColor} descriptor at the given position
+     * of the given record.
+     */
+    private static MPEG7ScalableColor descriptor(DescriptorList record, int position) {
+        Object descriptor = record.get(position);
+        if (!(descriptor instanceof MPEG7ScalableColor)) {
+            throw new InvalidParameterException("The descriptor at position '" + position + "' is not a MPEG7ScalableColor.");
+        }
+        return (MPEG7ScalableColor) descriptor;
+    }
+
+    /**
+     * Returns the quantizer of this index.
+     *
+     * @return the quantizer of this index
+     */
+    public ProductQuantizer getQuantizer() {
+        return quantizer;
+    }
+
+    /**
+     * Returns the number of descriptors in this index.
+     *
+     * @return the number of descriptors in this index
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the size in bytes of the codes of this index.
+     *
+     * @return the size in bytes of the codes
+     */
+    public long getCodeSize() {
+        return (long) size * quantizer.getSubspaces();
+    }
+
+    /**
+     * Adds the given descriptor at the end of this index.
+     *
+     * @param descriptor the descriptor to be added
+     * @throws InvalidParameterException if the descriptor does not share the
+     * parameters of this index, or if the index can not hold more codes.
+     */
+    public void add(MPEG7ScalableColor descriptor) {
+        int m = quantizer.getSubspaces();
+        if ((size + 1L) * m > codes.length) {
+            codes = Arrays.copyOf(codes, ArrayCapacity.grow(size, m));
+        }
+        quantizer.encode(coefficients(descriptor), codes, size * m);
+        size++;
+    }
+
+    /**
+     * Returns the coefficients of the given descriptor, checking that it
+     * shares the parameters of this index.
+     */
+    private int[] coefficients(MPEG7ScalableColor descriptor) {
+        int coefficients[] = descriptor.getCoefficients();
+        if (coefficients == null || coefficients.length != quantizer.getDimension()
+                || descriptor.getNumBitPlanesDiscarded() != numBitPlanesDiscarded) {
+            throw new InvalidParameterException("The descriptor does not share the parameters of the index.");
+        }
+        return coefficients;
+    }
+
+    /**
+     * Returns the nearest descriptors to the given query on the basis of
+     * their approximate distance, together with that distance. The output is
+     * sorted on the basis of the distance.
+     *
+     * @param query the query descriptor
+     * @param size the maximum number of descriptors in the output
+     * @return a list of ordered metadata whose metadata are the positions of
+     * the descriptors in this index
+     */
+    public List<ResultMetadata<Double, Integer>> search(MPEG7ScalableColor query, int size) {
+        PriorityQueue<ListDB.Neighbor> heap = candidates(query, size);
+        return sorted(heap);
+    }
+
+    /**
+     * Returns the nearest descriptors to the given query, together with their
+     * exact distance. The <code>candidates</code> nearest descriptors on the
+     * basis of their approximate distance are taken from the given function
+     * and compared to the query, and the nearest ones are returned. The output
+     * is sorted on the basis of the distance.
+     *
+     * @param query the query descriptor
+     * @param size the maximum number of descriptors in the output
+     * @param candidates the number of candidates re-ranked (at least
+     * <code>size</code>)
+     * @param descriptors the function that returns the descriptor at a given
+     * position
+     * @return a list of ordered metadata whose metadata are the positions of
+     * the descriptors in this index
+     */
+    public List<ResultMetadata<Double, Integer>> search(MPEG7ScalableColor query, int size, int candidates,
+            IntFunction<? extends MPEG7ScalableColor> descriptors) {
+        size = Math.min(Math.max(size, 0), this.size);
+        PriorityQueue<ListDB.Neighbor> approximate = candidates(query, Math.max(candidates, size));
+        PriorityQueue<ListDB.Neighbor> heap = new PriorityQueue<>(Math.max(size, 1), Collections.reverseOrder());
+        if (size > 0) {
+            for (ListDB.Neighbor candidate : approximate) {
+                Double distance = query.compare(descriptors.apply(candidate.index));
+                if (distance == null) {
+                    throw new InvalidParameterException("The descriptor at position '" + candidate.index + "' is not comparable to the query.");
+                }
+                ListDB.offer(heap, size, distance, candidate.index);
+            }
+        }
+        return sorted(heap);
+    }
+
+    /**
+     * Returns the nearest descriptors to the given query on the basis of
+     * their approximate distance, as a bounded max-heap.
+     */
+    private PriorityQueue<ListDB.Neighbor> candidates(MPEG7ScalableColor query, int size) {
+        size = Math.min(Math.max(size, 0), this.size);
+        PriorityQueue<ListDB.Neighbor> heap = new PriorityQueue<>(Math.max(size, 1), Collections.reverseOrder());
+        if (size > 0) {
+            float table[] = quantizer.distanceTable(coefficients(query));
+            int m = quantizer.getSubspaces();
+            for (int i = 0, offset = 0; i < this.size; i++, offset += m) {
+                ListDB.offer(heap, size, quantizer.distance(table, codes, offset), i);
+            }
+        }
+        return heap;
+    }
+
+    /**
+     * Returns the candidates of the given heap sorted by distance.
+     */
+    private static List<ResultMetadata<Double, Integer>> sorted(PriorityQueue<ListDB.Neighbor> heap) {
+        ListDB.Neighbor nearest[] = heap.toArray(new ListDB.Neighbor[heap.size()]);
+        Arrays.sort(nearest);
+        List<ResultMetadata<Double, Integer>> output = new ArrayList<>(nearest.length);
+        for (ListDB.Neighbor n : nearest) {
+            output.add(new ResultMetadata<>(n.distance, n.index));
+        }
+        return output;
+    }
+}
@@ -0,0 +1,566 @@
+package jmr.db;
+
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import jmr.descriptor.Comparator;
+import jmr.descriptor.MediaDescriptor;
+import jmr.result.ResultMetadata;
+
+/**
+ * A vantage-point tree: a {@link MetricIndex} that splits recursively the
+ * elements on the basis of their distance to a vantage point chosen among
+ * them.
+ *
+ * In each node, the elements whose distance to the vantage point is lower than
+ * or equal to the median one go to the inner subtree, and the rest to the outer
+ * one; the minimum and maximum distances to the vantage point are kept for
+ * both subtrees. Given a query at distance <i>d</i> to the vantage point and a
+ * search radius <i>r</i>, the triangle inequality ensures that a subtree
+ * whose distances are in [<i>min</i>,<i>max</i>] can not contain results if
+ * <i>d+r &lt; min</i> or <i>d-r &gt; max</i>, so it is discarded without
+ * comparing its elements to the query. The results are exact: they are the
+ * same as the ones of a linear scan (except for the order of the elements at
+ * the same distance).
+ *
+ * The elements added after the construction of the tree are inserted in the
+ * leaves (which are split when they grow too much), and the removed vantage
+ * points are only marked, so the tree is rebuilt when the removed ones exceed
+ * the live ones. Many insertions may unbalance the tree; it can be rebalanced
+ * by means of {@link #rebuild()}.
+ *
+ * @param <E> the type of the indexed descriptors
+ *
+ * @author Jesús Chamorro Martínez (jesus@decsai.ugr.es)
+ */
+public class VPTree<E extends MediaDescriptor> implements MetricIndex<E> {
+    /**
+     * Default maximum number of elements in a leaf.
+     */
+    static public final int DEFAULT_LEAF_CAPACITY = 16;
+    /**
+     * Metric used by this tree.
+     */
+    private final Comparator<? super E, Double> metric;
+    /**
+     * Maximum number of elements in a leaf built from scratch (inserted
+     * elements can make it grow up to twice this value before splitting it).
+     */
+    private final int leafCapacity;
+    /**
+     * Root of this tree.
+     */
+    private Node<E> root = null;
+    /**
+     * Number of live elements in this tree.
+     */
+    private int size = 0;
+    /**
+     * Number of removed vantage points still kept in the tree.
+     */
+    private int removed = 0;
+    /**
+     * Generator used for choosing the vantage points.
+     */
+    private final Random random = new Random(0);
+    /**
+     * Statistics of the queries.
+     */
+    private final IndexStats stats = new IndexStats();
+
+    /**
+     * Constructs an empty tree using the comparison of the descriptors as
+     * metric (that is, the distance between two elements <code>a</code> and
+     * <code>b</code> is <code>a.compare(b)</code>).
+     */
+    public VPTree() {
+        this((a, b) -> (Double) a.compare(b));
+    }
+
+    /**
+     * Constructs an empty tree using the given metric.
+     *
+     * @param metric the metric
+     */
+    public VPTree(Comparator<? super E, Double> metric) {
+        this(metric, DEFAULT_LEAF_CAPACITY);
+    }
+
+    /**
+     * Constructs an empty tree using the given metric and leaf capacity.
+     *
+     * @param metric the metric
+     * @param leafCapacity the maximum number of elements in a leaf
+     * @throws InvalidParameterException if the leaf capacity is not positive
+     */
+    public VPTree(Comparator<? super E, Double> metric, int leafCapacity) {
+        if (leafCapacity < 1) {
+            throw new InvalidParameterException("The leaf capacity must be positive.");
+        }
+        this.metric = metric;
+        this.leafCapacity = leafCapacity;
+    }
+
+    /**
+     * Constructs a tree with the given elements, using the given metric.
+     *
+     * @param metric the metric
+     * @param elements the elements to be indexed
+     */
+    public VPTree(Comparator<? super E, Double> metric, Collection<? extends E> elements) {
+        this(metric);
+        addAll(elements);
+    }
+
+    @Override
+    public Comparator<? super E, Double> getMetric() {
+        return metric;
+    }
+
+    @Override
+    public void add(E element) {
+        if (root == null) {
+            root = leaf(new ArrayList<>());
+        }
+        Node<E> node = root;
+        while (node.bucket == null) {
+            double d = metric.apply(node.vantage, element);
+            if (d <= node.radius) {
+                node.innerMin = Math.min(node.innerMin, d);
+                node.innerMax = Math.max(node.innerMax, d);
+                node = node.inner;
+            } else {
+                node.outerMin = Math.min(node.outerMin, d);
+                node.outerMax = Math.max(node.outerMax, d);
+                node = node.outer;
+            }
+        }
+        node.bucket.add(element);
+        if (node.bucket.size() > 2 * leafCapacity) {
+            node.set(build(node.bucket));
+        }
+        size++;
+    }
+
+    /**
+     * Adds the given elements to this tree. The whole tree is rebuilt with
+     * the current elements and the new ones.
+     *
+     * @param elements the elements to be added
+     */
+    @Override
+    public void addAll(Collection<? extends E> elements) {
+        List<E> all = elements();
+        all.addAll(elements);
+        root = all.isEmpty() ? null : build(all);
+        size = all.size();
+        removed = 0;
+    }
+
+    @Override
+    public boolean remove(E element) {
+        if (root == null || !remove(root, element)) {
+            return false;
+        }
+        size--;
+        if (removed > size) {
+            rebuild();
+        }
+        return true;
+    }
+
+    /**
+     * Removes the given element from the given subtree.
+     *
+     * @param node the root of the subtree
+     * @param element the element to be removed
+     * @return <tt>true</tt> if the element was removed
+     */
+    private boolean remove(Node<E> node, E element) {
+        if (node.bucket != null) {
+            for (int i = 0; i < node.bucket.size(); i++) {
+                if (node.bucket.get(i) == element) {
+                    node.bucket.remove(i);
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (node.vantage == element && !node.removed) {
+            node.removed = true;
+            removed++;
+            return true;
+        }
+        // The element can only be in the subtrees whose distance range
+        // contains its distance to the vantage point
+        double d = metric.apply(node.vantage, element);
+        return (d >= node.innerMin && d <= node.innerMax && remove(node.inner, element))
+                || (d >= node.outerMin && d <= node.outerMax && remove(node.outer, element));
+    }
+
+    @Override
+    public void clear() {
+        root = null;
+        size = 0;
+        removed = 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Rebuilds this tree with its current elements, so it is balanced and the
+     * removed elements are released.
+     */
+    public void rebuild() {
+        addAll(Collections.<E>emptyList());
+    }
+
+    @Override
+    public List<ResultMetadata<Double, E>> search(E query, int size) {
+        size = Math.min(Math.max(size, 0), this.size);
+        long count[] = {0};
+        PriorityQueue<Candidate<E>> heap = new PriorityQueue<>(Math.max(size, 1), Collections.reverseOrder());
+        if (size > 0) {
+            search(root, query, size, heap, count);
+        }
+        stats.record(count[0], this.size);
+        return sorted(heap);
+    }
+
+    /**
+     * Searches the nearest elements to the given query in the given subtree.
+     *
+     * @param node the root of the subtree
+     * @param query the query
+     * @param size the maximum number of candidates (greater than zero)
+     * @param heap the bounded max-heap of candidates found so far
+     * @param count the counter of distance calculations
+     */
+    private void search(Node<E> node, E query, int size, PriorityQueue<Candidate<E>> heap, long count[]) {
+        if (node.bucket != null) {
+            for (E element : node.bucket) {
+                offer(heap, size, metric.apply(query, element), element);
+            }
+            count[0] += node.bucket.size();
+            return;
+        }
+        double d = metric.apply(query, node.vantage);
+        count[0]++;
+        if (!node.removed) {
+            offer(heap, size, d, node.vantage);
+        }
+        // The subtree where the query would be is visited first, so the search
+        // radius shrinks as soon as possible
+        boolean innerFirst = d <= node.radius;
+        for (int i = 0; i < 2; i++) {
+            boolean inner = innerFirst == (i == 0);
+            double tau = heap.size() < size ? Double.POSITIVE_INFINITY : heap.peek().distance;
+            if (inner && intersects(d, tau, node.innerMin, node.innerMax)) {
+                search(node.inner, query, size, heap, count);
+            } else if (!inner && intersects(d, tau, node.outerMin, node.outerMax)) {
+                search(node.outer, query, size, heap, count);
+            }
+        }
+    }
+
+    @Override
+    public List<ResultMetadata<Double, E>> range(E query, double radius) {
+        long count[] = {0};
+        List<Candidate<E>> found = new ArrayList<>();
+        if (root != null) {
+            range(root, query, radius, found, count);
+        }
+        stats.record(count[0], this.size);
+        Candidate<E> candidates[] = found.toArray(new Candidate[found.size()]);
+        Arrays.sort(candidates);
+        return metadata(candidates);
+    }
+
+    /**
+     * Searches the elements within the given radius of the given query in the
+     * given subtree.
+     *
+     * @param node the root of the subtree
+     * @param query the query
+     * @param radius the maximum distance to the query
+     * @param found the list where the elements found are added
+     * @param count the counter of distance calculations
+     */
+    private void range(Node<E> node, E query, double radius, List<Candidate<E>> found, long count[]) {
+        if (node.bucket != null) {
+            for (E element : node.bucket) {
+                double d = metric.apply(query, element);
+                if (d <= radius) {
+                    found.add(new Candidate<>(d, element));
+                }
+            }
+            count[0] += node.bucket.size();
+            return;
+        }
+        double d = metric.apply(query, node.vantage);
+        count[0]++;
+        if (!node.removed && d <= radius) {
+            found.add(new Candidate<>(d, node.vantage));
+        }
+        if (intersects(d, radius, node.innerMin, node.innerMax)) {
+            range(node.inner, query, radius, found, count);
+        }
+        if (intersects(d, radius, node.outerMin, node.outerMax)) {
+            range(node.outer, query, radius, found, count);
+        }
+    }
+
+    /**
+     * Returns <tt>true</tt> if the ball of the given radius around the query
+     * may contain elements of a subtree, given the distance from the query to
+     * the vantage point and the range of distances from the vantage point to
+     * the subtree elements. The subtree is discarded only if the triangle 
+     * inequality excludes it: if some value is undefined (as the difference 
+     * of two infinite distances, for example with the label comparators), it
+     * is visited.
+     *
+     * @param d the distance from the query to the vantage point
+     * @param radius the search radius
+     * @param min the minimum distance from the vantage point to the subtree
+     * @param max the maximum distance from the vantage point to the subtree
+     * @return <tt>true</tt> if the subtree has to be visited
+     */
+    private static boolean intersects(double d, double radius, double min, double max) {
+        return !(d + radius < min) && !(d - radius > max);
+    }
+
+    @Override
+    public IndexStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Returns a string representation of this index.
+     *
+     * @return a string representation of this index
+     */
+    @Override
+    public String toString() {
+        return "VPTree(leafCapacity=" + leafCapacity + ")";
+    }
+
+    /**
+     * Returns the live elements of this tree.
+     *
+     * @return a new list with the live elements of this tree
+     */
+    private List<E> elements() {
+        List<E> elements = new ArrayList<>(size);
+        if (root != null) {
+            collect(root, elements);
+        }
+        return elements;
+    }
+
+    /**
+     * Adds the live elements of the given subtree to the given list.
+     */
+    private void collect(Node<E> node, List<E> elements) {
+        if (node.bucket != null) {
+            elements.addAll(node.bucket);
+        } else {
+            if (!node.removed) {
+                elements.add(node.vantage);
+            }
+            collect(node.inner, elements);
+            collect(node.outer, elements);
+        }
+    }
+
+    /**
+     * Builds a balanced subtree with the given elements.
+     *
+     * @param elements the elements of the subtree
+     * @return the root of the subtree
+     */
+    private Node<E> build(List<E> elements) {
+        Object items[] = elements.toArray();
+        return build(items, new double[items.length], 0, items.length);
+    }
+
+    /**
+     * Builds a balanced subtree with the elements in the given range of
+     * positions of the given array. The array is reordered.
+     *
+     * @param items the elements
+     * @param distances a working array of the same size as the elements one
+     * @param from the first position (inclusive)
+     * @param to the last position (exclusive)
+     * @return the root of the subtree
+     */
+    private Node<E> build(Object items[], double distances[], int from, int to) {
+        if (to - from <= leafCapacity) {
+            List<E> bucket = new ArrayList<>(2 * leafCapacity + 1);
+            for (int i = from; i < to; i++) {
+                bucket.add((E) items[i]);
+            }
+            return leaf(bucket);
+        }
+        // A random vantage point is moved to the first position, and the rest
+        // of elements are sorted by their distance to it
+        swap(items, from, from + random.nextInt(to - from));
+        Node<E> node = new Node<>();
+        node.vantage = (E) items[from];
+        int n = to - from - 1;
+        double keys[] = new double[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = metric.apply(node.vantage, (E) items[from + 1 + i]);
+        }
+        int order[] = ListDB.sortedIndices(keys);
+        Object sorted[] = new Object[n];
+        for (int i = 0; i < n; i++) {
+            sorted[i] = items[from + 1 + order[i]];
+            distances[from + 1 + i] = keys[order[i]];
+        }
+        System.arraycopy(sorted, 0, items, from + 1, n);
+        // The median splits the inner and outer subtrees (the inner one is
+        // never empty)
+        int mid = from + 1 + (n + 1) / 2;
+        node.radius = distances[mid - 1];
+        node.innerMin = distances[from + 1];
+        node.innerMax = distances[mid - 1];
+        if (mid < to) {
+            node.outerMin = distances[mid];
+            node.outerMax = distances[to - 1];
+        }
+        node.inner = build(items, distances, from + 1, mid);
+        node.outer = build(items, distances, mid, to);
+        return node;
+    }
+
+    /**
+     * Returns a new leaf with the given elements.
+     */
+    private Node<E> leaf(List<E> bucket) {
+        Node<E> node = new Node<>();
+        node.bucket = bucket;
+        return node;
+    }
+
+    /**
+     * Swaps the elements at the given positions of the given array.
+     */
+    private static void swap(Object items[], int i, int j) {
+        Object tmp = items[i];
+        items[i] = items[j];
+        items[j] = tmp;
+    }
+
+    /**
+     * Offers a new candidate to the given bounded max-heap. If the heap is
+     * full, the candidate replaces the farthest one only if it is nearer.
+     */
+    private static <E> void offer(PriorityQueue<Candidate<E>> heap, int size, double distance, E element) {
+        if (heap.size() < size) {
+            heap.add(new Candidate<>(distance, element));
+        } else if (distance < heap.peek().distance) {
+            Candidate<E> farthest = heap.poll();
+            farthest.distance = distance;
+            farthest.element = element;
+            heap.add(farthest);
+        }
+    }
+
+    /**
+     * Returns the candidates of the given heap sorted by distance.
+     */
+    private static <E> List<ResultMetadata<Double, E>> sorted(PriorityQueue<Candidate<E>> heap) {
+        Candidate<E> candidates[] = heap.toArray(new Candidate[heap.size()]);
+        Arrays.sort(candidates);
+        return metadata(candidates);
+    }
+
+    /**
+     * Returns the given candidates as a list of metadata.
+     */
+    private static <E> List<ResultMetadata<Double, E>> metadata(Candidate<E> candidates[]) {
+        List<ResultMetadata<Double, E>> output = new ArrayList<>(candidates.length);
+        for (Candidate<E> c : candidates) {
+            output.add(new ResultMetadata<>(c.distance, c.element));
+        }
+        return output;
+    }
+
+    /**
+     * A node of the tree. The leaves have a bucket of elements; the rest of
+     * nodes have a vantage point and two subtrees.
+     */
+    private static class Node<E> {
+        /**
+         * Elements of a leaf (<tt>null</tt> if it is not a leaf).
+         */
+        List<E> bucket;
+        /**
+         * Vantage point of the node.
+         */
+        E vantage;
+        /**
+         * Whether the vantage point has been removed from the tree (it is
+         * kept for routing the searches).
+         */
+        boolean removed;
+        /**
+         * Maximum distance to the vantage point for the inserted elements to
+         * go to the inner subtree.
+         */
+        double radius;
+        /**
+         * Range of distances to the vantage point of the elements in the inner
+         * and outer subtrees (an empty range if a subtree is empty).
+         */
+        double innerMin = Double.POSITIVE_INFINITY, innerMax = Double.NEGATIVE_INFINITY;
+        double outerMin = Double.POSITIVE_INFINITY, outerMax = Double.NEGATIVE_INFINITY;
+        /**
+         * Inner and outer subtrees.
+         */
+        Node<E> inner, outer;
+
+        /**
+         * Copies the content of the given node into this one.
+         */
+        void set(Node<E> node) {
+            bucket = node.bucket;
+            vantage = node.vantage;
+            removed = node.removed;
+            radius = node.radius;
+            innerMin = node.innerMin;
+            innerMax = node.innerMax;
+            outerMin = node.outerMin;
+            outerMax = node.outerMax;
+            inner = node.inner;
+            outer = node.outer;
+        }
+    }
+
+    /**
+     * A candidate in a search, given by an element and its distance to the
+     * query. The natural order is based on the distance.
+     */
+    private static class Candidate<E> implements Comparable<Candidate<E>> {
+        double distance;
+        E element;
+
+        Candidate(double distance, E element) {
+            this.distance = distance;
+            this.element = element;
+        }
+
+        @Override
+        public int compareTo(Candidate<E> o) {
+            return Double.compare(distance, o.distance);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package jmr.descriptor;
+
+/**
+ * Represents a comparator whose result is a distance, and which is able to
+ * abandon the comparison as soon as the distance is known to exceed a given
+ * bound (early abandon).
+ *
+ * It is useful in searches where only the distances lower than a given
+ * threshold are needed, as the ones of the nearest neighbours (the threshold
+ * is the distance of the farthest candidate found so far): most of the
+ * comparisons can be stopped before processing all the data of the
+ * descriptors. See {@link MediaDescriptor#compare(jmr.descriptor.MediaDescriptor, double)}.
+ *
+ * @param <T> the type of the argument descriptors
+ *
+ * @author Jesús Chamorro Martínez (jesus@decsai.ugr.es)
+ */
+@FunctionalInterface
+public interface BoundedComparator<T extends MediaDescriptor> extends Comparator<T, Double> {
+    /**
+     * Applies this comparator to the given arguments. If the distance is not
+     * greater than the given bound, it is returned; otherwise, the comparison
+     * may be abandoned, returning a value greater than the bound and not
+     * greater than the distance.
+     *
+     * @param t the first function argument
+     * @param u the second function argument
+     * @param bound the bound of the needed distances
+     * @return the distance, or a value greater than the bound
+     */
+    Double apply(T t, T u, double bound);
+
+    /**
+     * Applies this comparator to the given arguments, without bound.
+     *
+     * @param t the first function argument
+     * @param u the second function argument
+     * @return the distance
+     */
+    @Override
+    default Double apply(T t, T u) {
+        return apply(t, u, Double.POSITIVE_INFINITY);
+    }
+}
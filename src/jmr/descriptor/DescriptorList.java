@@ -165,7 +165,9 @@ public class DescriptorList<T> extends MediaDescriptorAdapter<T> implements Seri
      * the list must be comparables (at a given position) with a double value 
      * as result.
      */
-    static class DefaultComparator implements Comparator<DescriptorList, Double> {
+    static public class DefaultComparator implements BoundedComparator<DescriptorList> {
+        private static final long serialVersionUID = -4541566497641245955L;
+
         @Override
         /**
          * Calculates the difference between list descriptors by means a
@@ -181,14 +183,43 @@ public class DescriptorList<T> extends MediaDescriptorAdapter<T> implements Seri
          * comparables with a double value as result.
          */
         public Double apply(DescriptorList t, DescriptorList u) {
+            return apply(t, u, Double.POSITIVE_INFINITY);
+        }
+        
+        @Override
+        /**
+         * Calculates the difference between list descriptors by means a
+         * Euclidean distance, abandoning the calculation as soon as it exceeds
+         * the given bound. Each descriptor is compared with the bound left by
+         * the previous ones (see
+         * {@link MediaDescriptor#compare(jmr.descriptor.MediaDescriptor, double)}).
+         *
+         * @param t the first descriptor list.
+         * @param u the second descriptor list.
+         * @param bound the bound of the needed distances.
+         * @return the difference between descriptors, or a value greater than
+         * the bound.
+         * @throws InvalidParameterException if the descriptor lists have 
+         * different size, or if the descriptors at a given position are not 
+         * comparables with a double value as result.
+         */
+        public Double apply(DescriptorList t, DescriptorList u, double bound) {
             if(t.size() != u.size()){
                 throw new InvalidParameterException("The descriptor lists must have the same size.");
             }
-            Double item_distance, sum = 0.0;
+            double item_distance, item_bound, partial, sum = 0.0;
             for(int i=0; i<t.size(); i++){
                 try{
-                    item_distance = (Double)t.get(i).compare(u.get(i));
-                    sum += item_distance*item_distance;
+                    item_bound = Math.sqrt(Math.max(bound*bound - sum, 0.0));
+                    item_distance = t.get(i).compare(u.get(i), item_bound);
+                    partial = sum + item_distance*item_distance;
+                    if(item_distance > item_bound && Math.sqrt(partial) <= bound){
+                        // Abandoned because of rounding errors in the item 
+                        // bound: the item distance is calculated again
+                        item_distance = (Double)t.get(i).compare(u.get(i));
+                        partial = sum + item_distance*item_distance;
+                    }
+                    sum = partial;
                 }
                 catch(ClassCastException e){
                     throw new InvalidParameterException("The comparision between descriptors at position '"+i+"' is not interpetrable as a double value.");
@@ -196,6 +227,9 @@ public class DescriptorList<T> extends MediaDescriptorAdapter<T> implements Seri
                 catch(Exception e){
                     throw new InvalidParameterException("The descriptors at position '"+i+"' are not comparables.");
                 }                
+                if(bound < Double.POSITIVE_INFINITY && Math.sqrt(sum) > bound){
+                    return Math.sqrt(sum); // The rest of descriptors are not needed
+                }
             }
             return Math.sqrt(sum);
         }    
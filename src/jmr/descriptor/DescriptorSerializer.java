@@ -0,0 +1,98 @@
+package jmr.descriptor;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Interface for the classes that write and read media descriptors in a
+ * compact binary form.
+ *
+ * It is the extension point used by the binary storage of databases (see
+ * {@link DescriptorSerializerFactory}): each descriptor class can provide its
+ * own serializer, writing only the feature data that define the descriptor
+ * (the media source is never written). The serializers have a version number
+ * that is stored together with the data, so a serializer can read the data
+ * written by previous versions of itself.
+ *
+ * Serializers can also compare descriptors directly on their binary form (see
+ * {@link #compare(jmr.descriptor.MediaDescriptor, java.nio.ByteBuffer, int, int, int)}),
+ * which allows to query stored data without creating the descriptor objects.
+ *
+ * Serializers have to be stateless and thread-safe.
+ *
+ * @param <D> the type of the descriptor
+ *
+ * @author Jesús Chamorro Martínez (jesus@decsai.ugr.es)
+ */
+public interface DescriptorSerializer<D extends MediaDescriptor> {
+
+    /**
+     * Returns the class of the descriptors handled by this serializer.
+     *
+     * @return the class of the descriptors
+     */
+    public Class<D> getDescriptorClass();
+
+    /**
+     * Returns the version of the binary form written by this serializer. The
+     * default implementation returns 1.
+     *
+     * @return the version of the binary form
+     */
+    default public int getVersion() {
+        return 1;
+    }
+
+    /**
+     * Writes the given descriptor to the given output.
+     *
+     * @param descriptor the descriptor to be written
+     * @param out the output
+     * @throws IOException if an I/O error occurs
+     */
+    public void write(D descriptor, DataOutput out) throws IOException;
+
+    /**
+     * Reads a descriptor from the given input. The returned descriptor has no
+     * media source associated.
+     *
+     * @param in the input
+     * @param version the version of the serializer that wrote the data
+     * @return the descriptor read
+     * @throws IOException if an I/O error occurs, or if the data are not valid
+     * or were written by a non-supported version
+     */
+    public D read(DataInput in, int version) throws IOException;
+
+    /**
+     * Compares the given descriptor to the one written in the given buffer,
+     * with the same result as <code>descriptor.compare(stored)</code> (being
+     * <code>stored</code> the descriptor written in the buffer). 
+     * 
+     * The buffer is not modified (only absolute reads are allowed), so the 
+     * same buffer can be used by several threads at the same time. The
+     * default implementation reads the stored descriptor and compares it;
+     * serializers can override this method in order to calculate the result
+     * directly from the binary form.
+     *
+     * @param descriptor the descriptor to be compared
+     * @param buffer the buffer with the stored descriptor
+     * @param offset the position in the buffer of the stored descriptor
+     * @param length the size in bytes of the stored descriptor
+     * @param version the version of the serializer that wrote the data
+     * @return the result of the descriptor comparison
+     * @throws IOException if the stored data are not valid
+     */
+    default public Object compare(D descriptor, ByteBuffer buffer, int offset, int length, int version) throws IOException {
+        byte data[] = new byte[length];
+        ByteBuffer source = buffer.duplicate();
+        source.position(offset);
+        source.get(data);
+        D stored = read(new DataInputStream(new ByteArrayInputStream(data)), version);
+        return descriptor.compare(stored);
+    }
+}
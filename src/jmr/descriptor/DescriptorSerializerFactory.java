@@ -0,0 +1,132 @@
+package jmr.descriptor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.security.InvalidParameterException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import jmr.descriptor.color.MPEG7ColorStructure;
+import jmr.descriptor.color.MPEG7ScalableColor;
+
+/**
+ * A factory class for getting the serializer associated to a descriptor class.
+ *
+ * Serializers for new descriptor classes can be registered by means of the
+ * {@link #register(jmr.descriptor.DescriptorSerializer)} method. If no
+ * serializer has been registered for a given class, a default one based on
+ * the standard Java serialization is used (so the descriptor class have to
+ * implement {@link Serializable}).
+ *
+ * @author Jesús Chamorro Martínez (jesus@decsai.ugr.es)
+ */
+public class DescriptorSerializerFactory {
+    /**
+     * Registered serializers, indexed by descriptor class.
+     */
+    private static final Map<Class, DescriptorSerializer> serializers = new ConcurrentHashMap<>();
+
+    static {
+        register(new MPEG7ScalableColor.Serializer());
+        register(new MPEG7ColorStructure.Serializer());
+    }
+
+    /**
+     * Registers the given serializer for its descriptor class, replacing the
+     * previous one (if any).
+     *
+     * @param serializer the serializer to be registered
+     */
+    public static void register(DescriptorSerializer serializer) {
+        serializers.put(serializer.getDescriptorClass(), serializer);
+    }
+
+    /**
+     * Returns the serializer registered for the given descriptor class or, if
+     * there is not a registered one, a serializer based on the standard Java
+     * serialization.
+     *
+     * @param <D> the type of the descriptor
+     * @param descriptorClass the class of the descriptor
+     * @return the serializer associated to the given class
+     * @throws InvalidParameterException if there is not a registered serializer
+     * and the descriptor class is not serializable.
+     */
+    public static <D extends MediaDescriptor> DescriptorSerializer<D> getInstance(Class<D> descriptorClass) {
+        DescriptorSerializer serializer = serializers.get(descriptorClass);
+        if (serializer == null) {
+            serializer = getJavaSerializer(descriptorClass);
+        }
+        return serializer;
+    }
+
+    /**
+     * Returns a serializer for the given descriptor class based on the
+     * standard Java serialization.
+     *
+     * @param <D> the type of the descriptor
+     * @param descriptorClass the class of the descriptor
+     * @return a serializer based on the Java serialization
+     * @throws InvalidParameterException if the descriptor class is not
+     * serializable.
+     */
+    public static <D extends MediaDescriptor> DescriptorSerializer<D> getJavaSerializer(Class<D> descriptorClass) {
+        if (!Serializable.class.isAssignableFrom(descriptorClass)) {
+            throw new InvalidParameterException("The class " + descriptorClass.getSimpleName() + " is not serializable and no serializer has been registered for it.");
+        }
+        return new JavaSerializer(descriptorClass);
+    }
+
+    /**
+     * Serializer based on the standard Java serialization. Each descriptor is
+     * written as a block of bytes preceded by its length.
+     *
+     * @param <D> the type of the descriptor
+     */
+    static public class JavaSerializer<D extends MediaDescriptor> implements DescriptorSerializer<D> {
+        /**
+         * Class of the descriptors handled by this serializer.
+         */
+        private final Class<D> descriptorClass;
+
+        /**
+         * Constructs a new serializer for the given descriptor class.
+         *
+         * @param descriptorClass the class of the descriptor
+         */
+        private JavaSerializer(Class<D> descriptorClass) {
+            this.descriptorClass = descriptorClass;
+        }
+
+        @Override
+        public Class<D> getDescriptorClass() {
+            return descriptorClass;
+        }
+
+        @Override
+        public void write(D descriptor, DataOutput out) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+                oos.writeObject(descriptor);
+            }
+            out.writeInt(bytes.size());
+            out.write(bytes.toByteArray());
+        }
+
+        @Override
+        public D read(DataInput in, int version) throws IOException {
+            byte data[] = new byte[in.readInt()];
+            in.readFully(data);
+            try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data))) {
+                return descriptorClass.cast(ois.readObject());
+            } catch (ClassNotFoundException | ClassCastException ex) {
+                throw new IOException("The descriptor can not be read as a " + descriptorClass.getSimpleName() + " object.", ex);
+            }
+        }
+    }
+}
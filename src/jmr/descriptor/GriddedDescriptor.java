@@ -5,6 +5,7 @@ import java.awt.image.BufferedImage;
 import java.io.Serializable;
 import java.security.InvalidParameterException;
 import java.util.ArrayList;
+import java.util.stream.IntStream;
 import jmr.grid.Grid;
 import jmr.grid.SquareGrid;
 
@@ -12,11 +13,20 @@ import jmr.grid.SquareGrid;
  * Class representing a list of descriptors (one for each tile) associated to a 
  * gridded media. 
  * 
+ * Optionally (see {@link #setParallel(boolean)}), the tile descriptors are
+ * calculated in parallel by the threads of the common pool, and the ones of
+ * grids with many tiles (see {@link #setParallelThreshold(int)}) are also
+ * compared in parallel. The results are the same in both modes. These
+ * settings are global: they apply to all the grid descriptors of the virtual
+ * machine, and a change made by a thread is seen by the calculations and
+ * comparisons started afterwards by any thread.
+ * 
  * @param <T> the type of the media associated to this grid-based descriptor.
  * 
  * @author Jesús Chamorro Martínez (jesus@decsai.ugr.es)
  */
 public class GriddedDescriptor<T> extends MediaDescriptorAdapter<T> implements Serializable{    
+    private static final long serialVersionUID = 3131620883374253047L;
     /**
      * Grid associated to this descriptor
      */
@@ -47,6 +57,18 @@ public class GriddedDescriptor<T> extends MediaDescriptorAdapter<T> implements S
      */
     private static Class DEFAULT_TILE_DESCRIPTOR_CLASS
             = jmr.descriptor.color.MPEG7ScalableColor.class;
+    
+    /**
+     * Whether the tile descriptors are calculated and compared in parallel
+     * (shared by all the threads).
+     */
+    private static volatile boolean PARALLEL = false;
+    
+    /**
+     * Minimum number of tiles for comparing the tile descriptors in parallel
+     * (shared by all the threads).
+     */
+    private static volatile int PARALLEL_THRESHOLD = 64;
 
     /**
      * Constructs a new descriptor using the given grid (and its media) where
@@ -115,7 +137,8 @@ public class GriddedDescriptor<T> extends MediaDescriptorAdapter<T> implements S
     }
     
     /**
-     * Set the list of descriptor by calculating a descriptor for each tile.  
+     * Set the list of descriptor by calculating a descriptor for each tile 
+     * (in parallel if the parallel mode is enabled).
      *
      */
     private void setTilesDescriptors(Class descriptorClass) {
@@ -124,6 +147,16 @@ public class GriddedDescriptor<T> extends MediaDescriptorAdapter<T> implements S
         if(!descriptors.isEmpty()){
             descriptors.clear();
         }
+        if (PARALLEL && grid.getNumTiles() > 1) {
+            MediaDescriptor tileDescriptors[] = new MediaDescriptor[grid.getNumTiles()];
+            IntStream.range(0, tileDescriptors.length).parallel().forEach(i -> 
+                tileDescriptors[i] = MediaDescriptorFactory.getInstance(descriptorClass, grid.getTile(i))
+            );
+            for (MediaDescriptor tileDescriptor : tileDescriptors) {
+                descriptors.add(tileDescriptor);
+            }
+            return;
+        }
         for (int i = 0; i < grid.getNumTiles(); i++) {
             tile = (T)grid.getTile(i);            
             descriptor = MediaDescriptorFactory.getInstance(descriptorClass, tile);
@@ -228,6 +261,59 @@ public class GriddedDescriptor<T> extends MediaDescriptorAdapter<T> implements S
     }
     
     
+    /**
+     * Enables or disables the parallel mode of this class. In parallel mode,
+     * the tile descriptors are calculated in parallel by the threads of the
+     * common pool, and the ones of the grids with at least 
+     * {@link #getParallelThreshold()} tiles are also compared in parallel. 
+     * It is disabled by default.
+     * 
+     * This setting is global: it affects every grid descriptor, in all the 
+     * threads, from the next calculation or comparison on.
+     *
+     * @param parallel <tt>true</tt> for enabling the parallel mode
+     */
+    static public void setParallel(boolean parallel) {
+        PARALLEL = parallel;
+    }
+    
+    /**
+     * Returns <tt>true</tt> if the parallel mode of this class is enabled.
+     *
+     * @return <tt>true</tt> if the parallel mode is enabled
+     */
+    static public boolean isParallel() {
+        return PARALLEL;
+    }
+    
+    /**
+     * Set the minimum number of tiles for comparing the tile descriptors in
+     * parallel (in parallel mode). Below it, the comparison of the tiles is
+     * too fast to pay the scheduling of the parallel tasks.
+     * 
+     * This setting is global: it affects every grid descriptor, in all the 
+     * threads, from the next comparison on.
+     *
+     * @param threshold the minimum number of tiles
+     * @throws InvalidParameterException if the threshold is not positive
+     */
+    static public void setParallelThreshold(int threshold) {
+        if (threshold < 1) {
+            throw new InvalidParameterException("The threshold must be positive.");
+        }
+        PARALLEL_THRESHOLD = threshold;
+    }
+    
+    /**
+     * Returns the minimum number of tiles for comparing the tile descriptors
+     * in parallel (in parallel mode).
+     *
+     * @return the minimum number of tiles
+     */
+    static public int getParallelThreshold() {
+        return PARALLEL_THRESHOLD;
+    }
+    
     /**
      * Set the default comparator for this class. This comparator is used when a
      * specific one is not provided in the object construction.
@@ -257,29 +343,87 @@ public class GriddedDescriptor<T> extends MediaDescriptorAdapter<T> implements S
     }
 
     /**
-     * Functional (inner) class implementing a comparator between list descriptors
+     * Functional (inner) class implementing a comparator between list descriptors.
+     * 
+     * In parallel mode, the tile distances of large grids are calculated in
+     * parallel, but they are summed in the tile order, so the result is the 
+     * same as in the sequential mode (if it is not greater than the bound of
+     * the comparison).
      */
-    static class DefaultComparator implements Comparator<GriddedDescriptor, Double> {
+    static class DefaultComparator implements BoundedComparator<GriddedDescriptor> {
+        private static final long serialVersionUID = -5190459147255163364L;
+        
         @Override
         public Double apply(GriddedDescriptor t, GriddedDescriptor u) {
+            return apply(t, u, Double.POSITIVE_INFINITY);
+        }
+        
+        /**
+         * Calculates the Euclidean distance between the tile descriptors,
+         * abandoning the calculation as soon as it exceeds the given bound.
+         * In sequential mode, each tile is compared with the bound left by the
+         * previous ones; in parallel mode, all the tiles are compared with the
+         * given bound (the distance of a tile is not greater than the whole 
+         * one).
+         *
+         * @param t the first descriptor.
+         * @param u the second descriptor.
+         * @param bound the bound of the needed distances.
+         * @return the difference between descriptors, or a value greater than
+         * the bound.
+         */
+        @Override
+        public Double apply(GriddedDescriptor t, GriddedDescriptor u, double bound) {
             if(t.descriptors.size() != u.descriptors.size()){
                 throw new InvalidParameterException("The descriptor lists must have the same size.");
             }
-            Double item_distance, sum = 0.0;
+            Object distances[] = null;
+            if (PARALLEL && t.descriptors.size() >= PARALLEL_THRESHOLD) {
+                distances = new Object[t.descriptors.size()];
+                Object results[] = distances;
+                IntStream.range(0, results.length).parallel().forEach(i -> {
+                    try {
+                        results[i] = ((MediaDescriptor)t.descriptors.get(i)).compare((MediaDescriptor)u.descriptors.get(i), bound);
+                    } catch (Exception e) {
+                        // The exception is thrown in the tile order below
+                        results[i] = e;
+                    }
+                });
+            }
+            double item_distance, item_bound, partial, sum = 0.0;
             MediaDescriptor m1, m2;
             for(int i=0; i<t.descriptors.size(); i++){
                 try{
                     m1 = (MediaDescriptor)t.descriptors.get(i);
                     m2 = (MediaDescriptor)u.descriptors.get(i);
-                    item_distance = (Double)m1.compare(m2);
-                    sum += item_distance*item_distance;
+                    if (distances != null) {
+                        if (distances[i] instanceof Exception) {
+                            throw (Exception)distances[i];
+                        }
+                        item_bound = bound;
+                        item_distance = (Double)distances[i];
+                    } else {
+                        item_bound = Math.sqrt(Math.max(bound*bound - sum, 0.0));
+                        item_distance = m1.compare(m2, item_bound);
+                    }
+                    partial = sum + item_distance*item_distance;
+                    if(item_distance > item_bound && Math.sqrt(partial) <= bound){
+                        // Abandoned because of rounding errors in the item
+                        // bound: the item distance is calculated again
+                        item_distance = (Double)m1.compare(m2);
+                        partial = sum + item_distance*item_distance;
+                    }
+                    sum = partial;
                 }
                 catch(ClassCastException e){
                     throw new InvalidParameterException("The comparision between descriptors is not interpetrable as a double value.");
                 }
                 catch(Exception e){
                     throw new InvalidParameterException("The descriptors are not comparables.");
-                }                
+                }
+                if(bound < Double.POSITIVE_INFINITY && Math.sqrt(sum) > bound){
+                    return Math.sqrt(sum); // The rest of tiles are not needed
+                }
             }
             return Math.sqrt(sum);
         }    
@@ -47,4 +47,26 @@ public interface MediaDescriptor<T> {
      * @return the result of the descriptor comparision.
      */
     public <R> R compare(MediaDescriptor descriptor);    
+    
+    /**
+     * Compares this descriptor to the one given by parameter, when the result
+     * is needed only if it is not greater than the given bound (for example,
+     * the distance of the farthest candidate in a search of the nearest
+     * descriptors). If the distance is not greater than the bound, it is
+     * returned; otherwise, the comparison may be abandoned as soon as the
+     * distance is known to exceed the bound, returning a value greater than
+     * the bound and not greater than the distance.
+     * 
+     * The default implementation does the whole comparison (see
+     * {@link #compare(jmr.descriptor.MediaDescriptor)}), whose result has to
+     * be interpretable as a double value.
+     *
+     * @param descriptor descriptor to be compared.
+     * @param bound the bound of the needed distances.
+     * @return the distance between descriptors, or a value greater than the
+     * bound.
+     */
+    default public Double compare(MediaDescriptor descriptor, double bound) {
+        return this.<Double>compare(descriptor);
+    }
 }
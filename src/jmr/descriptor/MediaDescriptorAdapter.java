@@ -57,6 +57,7 @@ import java.io.Serializable;
  * @author Jesús Chamorro Martínez (jesus@decsai.ugr.es)
  */
 public abstract class MediaDescriptorAdapter<T> implements MediaDescriptor<T>, Serializable{
+    private static final long serialVersionUID = 7964618649777366454L;
     /**
      * The source media of this descriptor
      */
@@ -96,6 +97,15 @@ public abstract class MediaDescriptorAdapter<T> implements MediaDescriptor<T>, S
         this.comparator = comparator;
     }
         
+    /**
+     * Returns the comparator of this descriptor.
+     *
+     * @return the comparator of this descriptor
+     */
+    final public Comparator getComparator(){
+        return comparator;
+    }
+    
     /**
      * Returns the media source associated to this descriptor
      *
@@ -142,4 +152,24 @@ public abstract class MediaDescriptorAdapter<T> implements MediaDescriptor<T>, S
         }
         return (R)comparator.apply(this, descriptor);
     }
+    
+    /**
+     * Compares this descriptor to the one given by parameter, when the result
+     * is needed only if it is not greater than the given bound. If the
+     * comparator of this descriptor is a {@link BoundedComparator}, the
+     * comparison may be abandoned as soon as the distance exceeds the bound;
+     * otherwise, the whole comparison is done.
+     *
+     * @param descriptor descriptor to be compared.
+     * @param bound the bound of the needed distances.
+     * @return the distance between descriptors, or a value greater than the
+     * bound.
+     */
+    @Override
+    public Double compare(MediaDescriptor descriptor, double bound){
+        if (comparator instanceof BoundedComparator) {
+            return ((BoundedComparator) comparator).apply(this, descriptor, bound);
+        }
+        return this.<Double>compare(descriptor);
+    }
 }
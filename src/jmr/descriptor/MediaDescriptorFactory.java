@@ -1,43 +1,149 @@
 package jmr.descriptor;
 
 import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
 import java.security.InvalidParameterException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 
 /**
  * A factory class for generating instances of media descriptors.
- * 
+ *
+ * The function used for constructing the descriptors of a given class from a
+ * given media class is resolved only once, and then it is cached for the next
+ * calls. It can be registered explicitly (for example, as a lambda expression
+ * or a constructor reference) by means of the
+ * {@link #register(java.lang.Class, java.lang.Class, java.util.function.Function)}
+ * method; otherwise, a constructor of the descriptor class with a single
+ * parameter of the media type is used.
+ *
  * @author Jesús Chamorro Martínez (jesus@decsai.ugr.es)
  */
 public class MediaDescriptorFactory {
-    
-    
+    /**
+     * Functions registered explicitly, indexed by descriptor class and media
+     * class.
+     */
+    private static final Map<Class, Map<Class, Function>> registered = new ConcurrentHashMap<>();
+    /**
+     * Functions resolved in previous calls, indexed by descriptor class and
+     * media class.
+     */
+    private static final Map<Class, Map<Class, Function>> resolved = new ConcurrentHashMap<>();
+
+
    /**
-    * Constructs a descriptor of a given class and initializes it on the basis 
+    * Constructs a descriptor of a given class and initializes it on the basis
     * of a given media.
-    * 
-    * The descriptor class have to provide a constructor with a single parameter
-    * of the media type.
-    * 
+    *
+    * The descriptor is constructed by means of the function registered for
+    * the descriptor class and the media class (or a superclass or interface of
+    * it). If there is no registered function, the descriptor class have to
+    * provide a constructor with a single parameter of the media type (or, if
+    * it is not available, of a type assignable from the media type; in that
+    * case, the most specific one is used).
+    *
     * @param <D> the type of the output descriptor
     * @param <M> the type of the media
     * @param descriptorClass the class of the descriptor to be constructed.
     * @param media the media used to initialize the descriptor
     * @return a descriptor object
-    * @throws InvalidParameterException if the descriptor class have not provide 
-    * a constructor with a single parameter of the media type.
+    * @throws InvalidParameterException if the descriptor class have not provide
+    * a constructor with a single parameter of the media type, or if the
+    * descriptor can not be constructed.
     */
    public static <D extends MediaDescriptor, M> D getInstance(Class<D> descriptorClass, M media){
-      D descriptor = null;
-      try{
-        Constructor constructor = descriptorClass.getConstructor(media.getClass());
-        descriptor = (D)constructor.newInstance(media);
-      } catch (Exception ex) {
-          String mediaClassName = media.getClass().getSimpleName();
-          String descriptorClassName = descriptorClass.getSimpleName();
-          throw new InvalidParameterException("A constructor with a single parameter of type "+mediaClassName+" must be provided for the class "+descriptorClassName+".");
+      if (media == null) {
+          throw new InvalidParameterException("A non-null media must be provided for constructing a " + descriptorClass.getSimpleName() + " descriptor.");
+      }
+      Map<Class, Function> functions = resolved.get(descriptorClass);
+      if (functions == null) {
+          functions = resolved.computeIfAbsent(descriptorClass, c -> new ConcurrentHashMap<>());
       }
-      return descriptor;
+      Function function = functions.get(media.getClass());
+      if (function == null) {
+          function = resolve(descriptorClass, media.getClass());
+          functions.put(media.getClass(), function);
+      }
+      return (D) function.apply(media);
   }
-    
-    
+
+   /**
+    * Registers the function used for constructing the descriptors of the
+    * given class from media of the given class (or its subclasses). It
+    * replaces the previous one (if any). The functions should be registered
+    * before constructing descriptors of the given class.
+    *
+    * @param <D> the type of the descriptor
+    * @param <M> the type of the media
+    * @param descriptorClass the class of the descriptor
+    * @param mediaClass the class of the media
+    * @param function the function that constructs a descriptor from a media
+    */
+   public static <D extends MediaDescriptor, M> void register(Class<D> descriptorClass,
+           Class<M> mediaClass, Function<? super M, ? extends D> function) {
+       registered.computeIfAbsent(descriptorClass, c -> new ConcurrentHashMap<>()).put(mediaClass, function);
+       resolved.remove(descriptorClass); // The resolved functions may change
+   }
+
+   /**
+    * Resolves the function used for constructing the descriptors of the given
+    * class from media of the given class.
+    *
+    * @param descriptorClass the class of the descriptor
+    * @param mediaClass the class of the media
+    * @return the function that constructs a descriptor from a media
+    * @throws InvalidParameterException if no suitable constructor is found.
+    */
+   private static Function resolve(Class descriptorClass, Class mediaClass) {
+       // Registered function for the media class or its supertypes
+       Map<Class, Function> functions = registered.get(descriptorClass);
+       if (functions != null) {
+           Function function = functions.get(mediaClass);
+           Class best = function != null ? mediaClass : null;
+           for (Map.Entry<Class, Function> entry : functions.entrySet()) {
+               Class c = entry.getKey();
+               if (c.isAssignableFrom(mediaClass) && (best == null || best.isAssignableFrom(c))) {
+                   best = c;
+                   function = entry.getValue();
+               }
+           }
+           if (function != null) {
+               return function;
+           }
+       }
+       // Constructor with a single parameter of the media type (or the most
+       // specific supertype)
+       Constructor constructor = null;
+       try {
+           constructor = descriptorClass.getConstructor(mediaClass);
+       } catch (NoSuchMethodException ex) {
+           for (Constructor c : descriptorClass.getConstructors()) {
+               Class parameters[] = c.getParameterTypes();
+               if (parameters.length == 1 && parameters[0].isAssignableFrom(mediaClass)
+                       && (constructor == null || constructor.getParameterTypes()[0].isAssignableFrom(parameters[0]))) {
+                   constructor = c;
+               }
+           }
+       }
+       if (constructor == null) {
+           String mediaClassName = mediaClass.getSimpleName();
+           String descriptorClassName = descriptorClass.getSimpleName();
+           throw new InvalidParameterException("A constructor with a single parameter of type "+mediaClassName+" must be provided for the class "+descriptorClassName+".");
+       }
+       final Constructor target = constructor;
+       return media -> {
+           try {
+               return target.newInstance(media);
+           } catch (InvocationTargetException ex) {
+               if (ex.getCause() instanceof InvalidParameterException) {
+                   throw (InvalidParameterException) ex.getCause();
+               }
+               throw new InvalidParameterException("The " + descriptorClass.getSimpleName() + " descriptor can not be constructed (" + ex.getCause() + ").");
+           } catch (ReflectiveOperationException ex) {
+               throw new InvalidParameterException("The " + descriptorClass.getSimpleName() + " descriptor can not be constructed (" + ex + ").");
+           }
+       };
+   }
 }
@@ -1,13 +1,26 @@
 package jmr.descriptor.color;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
 import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import jmr.colorspace.ColorConvertTools;
 import jmr.media.JMRExtendedBufferedImage;
 import jmr.colorspace.ColorSpaceJMR;
+import jmr.descriptor.DescriptorSerializer;
 import jmr.descriptor.MediaDescriptor;
+import jmr.tools.DistanceTools;
 
 /**
  * Color Structure Descriptor from MPEG7 standard.
@@ -43,6 +56,7 @@ import jmr.descriptor.MediaDescriptor;
  *
  */
 public class MPEG7ColorStructure implements MediaDescriptor<BufferedImage>, Serializable {
+    private static final long serialVersionUID = 8544248003785612122L;
     /**
      * The source media of this descriptor
      */
@@ -116,6 +130,13 @@ public class MPEG7ColorStructure implements MediaDescriptor<BufferedImage>, Seri
     public MPEG7ColorStructure(BufferedImage image) {
         this(image, DEFAULT_NUM_LEVELS);
     }
+    
+    /**
+     * Constructs an empty descriptor, with no source. Only for reading tasks
+     * (see {@link Serializer}).
+     */
+    private MPEG7ColorStructure() {
+    }
 
     /**
      * Initializes the quantization level taking into account that the valid
@@ -141,19 +162,24 @@ public class MPEG7ColorStructure implements MediaDescriptor<BufferedImage>, Seri
      * @param qLevels the quantization levels (32, 64, 128 or 256)
      */
     public void init(BufferedImage image, int qLevels) {
-        // The MPEG7ColorStructure need a JMRExtendedBufferedImage to be calculated
-        JMRExtendedBufferedImage JMRimage = null;
-        try {
-            JMRimage = (JMRExtendedBufferedImage) image;
-        } catch (ClassCastException ex) {
-            JMRimage = new JMRExtendedBufferedImage(image);
-        }
-        // The color space and the image model must been the suitable ones.
-        if (!checkImage(JMRimage)) {
-            JMRimage = convertImg(JMRimage);
-        }
         this.setLevels(qLevels);
-        byte[][] imQ = quantHMMDImage(JMRimage);
+        // Images with packed RGB pixels are quantized directly from their data
+        int step = structuringStep(image.getWidth(), image.getHeight());
+        byte[][] imQ = HMMDQuantizer.quantize(image, offset, qLevels, step);
+        if (imQ == null) {
+            // The MPEG7ColorStructure need a JMRExtendedBufferedImage to be calculated
+            JMRExtendedBufferedImage JMRimage = null;
+            try {
+                JMRimage = (JMRExtendedBufferedImage) image;
+            } catch (ClassCastException ex) {
+                JMRimage = new JMRExtendedBufferedImage(image);
+            }
+            // The color space and the image model must been the suitable ones.
+            if (!checkImage(JMRimage)) {
+                JMRimage = convertImg(JMRimage);
+            }
+            imQ = quantHMMDImage(JMRimage);
+        }
         float[] histo = structuredHisto(imQ, image.getWidth(), image.getHeight());
         this.histo = reQuantization(histo);
     }
@@ -187,6 +213,27 @@ public class MPEG7ColorStructure implements MediaDescriptor<BufferedImage>, Seri
         return (compare((MPEG7ColorStructure) mediaDescriptor));
     }
 
+    /**
+     * Compares this descriptor to the one given by parameter, abandoning the
+     * comparison as soon as the distance exceeds the given bound.
+     *
+     * This method is valid only for <code>MPEG7ColorStructure</code> image
+     * descriptors
+     *
+     * @param mediaDescriptor descriptor to be compared.
+     * @param bound the bound of the needed distances.
+     * @return the distance between descriptors, or a value greater than the
+     * bound (<code>null</code> if the descriptors are not comparable)
+     */
+    @Override
+    public Double compare(MediaDescriptor mediaDescriptor, double bound) {
+        // Only MPEG7ColorStructure objects can be compared
+        if (!(mediaDescriptor instanceof MPEG7ColorStructure)) {
+            return (null);
+        }
+        return (compare((MPEG7ColorStructure) mediaDescriptor, bound));
+    }
+
     /**
      * Compare two CSD using the l1-norm between each bins of the histograms.
      *
@@ -200,6 +247,21 @@ public class MPEG7ColorStructure implements MediaDescriptor<BufferedImage>, Seri
      * @return the distance between descriptors
      */
     public Double compare(MPEG7ColorStructure desc) {
+        return compare(desc, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Compare two CSD using the l1-norm between each bins of the histograms,
+     * abandoning the sum as soon as the (normalized) distance exceeds the
+     * given bound (see
+     * {@link DistanceTools#l1(int[], int, int[], int, int, long)}).
+     *
+     * @param desc <code>MPEG7ColorStructure</code> object to be compared
+     * @param bound the bound of the needed distances.
+     * @return the distance between descriptors if it is not greater than the
+     * bound, or a partial distance greater than the bound
+     */
+    public Double compare(MPEG7ColorStructure desc, double bound) {
         int[] f1, f2;
         if (desc.histo == null || this.histo == null) {
             return (null);
@@ -214,13 +276,15 @@ public class MPEG7ColorStructure implements MediaDescriptor<BufferedImage>, Seri
             f1 = resizeCSD(this, desc.qLevels);
             f2 = desc.histo;
         }
-        Double distance = 0.0;
-        for (int i = 0; i < f1.length; i++) {
-            distance += Math.abs(f1[i] - f2[i]);
+        // The sum of integers is exact, so it is the same in any order
+        double normalization = 256 * f1.length;
+        long sumBound = DistanceTools.floor(bound * normalization);
+        long sum = DistanceTools.l1(f1, 0, f2, 0, f1.length, sumBound);
+        if (sum > sumBound && !(sum / normalization > bound)) {
+            // Abandoned because of rounding errors in the bound of the sum
+            sum = DistanceTools.l1(f1, 0, f2, 0, f1.length);
         }
-        distance /= (256 * f1.length); //Normalization
-
-        return distance;
+        return sum / normalization; //Normalization
     }
     
     /**
@@ -307,6 +371,13 @@ public class MPEG7ColorStructure implements MediaDescriptor<BufferedImage>, Seri
      * is present at least once on the local histogram of the sliding windows,
      * fill the CSD histogram with this color.
      *
+     * The local histogram is updated incrementally as the structuring element
+     * slides along a row: the column leaving the element is removed and the
+     * one entering it is added. Each color is credited with the number of
+     * consecutive positions in which it has been present when it leaves the
+     * element (or at the end of the row), so the local histogram is never
+     * scanned.
+     *
      * @param imQ a byte matrix representing the quantifized values between
      * [0,qLevels] (heigh x width)
      * @param wImg width of the image
@@ -314,52 +385,81 @@ public class MPEG7ColorStructure implements MediaDescriptor<BufferedImage>, Seri
      * @return	a {@link #qLevels} histograms
      */
     protected float[] structuredHisto(byte[][] imQ, int wImg, int hImg) {
-        int m = 0;
-        double hw = Math.sqrt(hImg * wImg);
-        double p = Math.floor(Math.log(hw) / Math.log(2) - 7.5); //Formula by Manjunath2002
-        if (p < 0) {
-            p = 0; //Minimum size of the division factor to have K=1
-        }
-        double K = Math.pow(2, p); //Determine the space between each structuring element
-        double E = 8 * K; //Determine the size of the moving windows
-        // Setting the local temporary and the CDS histograms
-        float histo[] = new float[qLevels]; // CSD histograms
+        int K = structuringStep(wImg, hImg); //Determine the space between each structuring element
+        int E = 8 * K; //Determine the size of the moving windows
+        // Number of positions of the structuring element in each row
+        int positions = wImg > E ? (wImg - E + K - 1) / K : 0;
+        // Setting the CSD histogram counts and the local windows histogram
+        int counts[] = new int[qLevels]; // number of windows with each color
         int winHisto[] = new int[qLevels]; // local histo for a specific windows
-        for (int i = 0; i < qLevels; i++) {
-            histo[i] = 0.0f;
-        }
-        for (int y = 0; y < hImg - E; y += K) {
-            for (int x = 0; x < wImg - E; x += K) {
-                // Reinitialize the local windows histogram t[m]
-                for (m = 0; m < qLevels; m++) {
-                    winHisto[m] = 0;
+        int since[] = new int[qLevels];    // first position with each color in the local histo
+        byte rows[][] = new byte[8][];
+        for (int y = 0; y < hImg - E && positions > 0; y += K) {
+            for (int r = 0; r < 8; r++) {
+                rows[r] = imQ[y + r * K];
+            }
+            // Local histogram of the first position
+            for (int xx = 0; xx < E; xx += K) {
+                for (int r = 0; r < 8; r++) {
+                    int m = rows[r][xx] & 0xFF; //WARNING imQ is signed byte
+                    if (winHisto[m]++ == 0) {
+                        since[m] = 0;
+                    }
                 }
-                for (int yy = y; yy < y + E; yy += K) {
-                    for (int xx = x; xx < x + E; xx += K) {
-                        //Obtain the pixel values of the HMMD quantized image
-                        m = (int) (imQ[yy][xx] & 0x000000FF); //WARNING imQ is signed byte
-                        //pixel value correspond to the bin value in qLevels CSD Histo
-                        winHisto[m]++;
+            }
+            // Slide the windows, removing its first column and adding a new one
+            for (int i = 1; i < positions; i++) {
+                int xOut = (i - 1) * K, xIn = xOut + E;
+                for (int r = 0; r < 8; r++) {
+                    int m = rows[r][xOut] & 0xFF;
+                    if (--winHisto[m] == 0) {
+                        counts[m] += i - since[m];
+                    }
+                    m = rows[r][xIn] & 0xFF;
+                    if (winHisto[m]++ == 0) {
+                        since[m] = i;
                     }
-                } //End of local histogram for a local windows
-                // Increment the color structure histogram for each color present in the structuring element
-                for (m = 0; m < qLevels; m++) {
-                    if (winHisto[m] > 0) {
-                        histo[m]++;
+                }
+            }
+            // Empty the local histogram of the last position
+            for (int xx = (positions - 1) * K; xx < (positions - 1) * K + E; xx += K) {
+                for (int r = 0; r < 8; r++) {
+                    int m = rows[r][xx] & 0xFF;
+                    if (--winHisto[m] == 0) {
+                        counts[m] += positions - since[m];
                     }
                 }
             }
         }
         //Normalize the histograms by the number of times the windows was shift
-        int winShift_X = ((wImg - 1) - (int) E + (int) K);
-        int winShift_Y = ((hImg - 1) - (int) E + (int) K);
-        int S = (winShift_X / (int) K) * (winShift_Y / (int) K);
-        for (m = 0; m < qLevels; m++) {
-            histo[m] = histo[m] / S;
+        int winShift_X = ((wImg - 1) - E + K);
+        int winShift_Y = ((hImg - 1) - E + K);
+        int S = (winShift_X / K) * (winShift_Y / K);
+        float histo[] = new float[qLevels]; // CSD histograms
+        for (int m = 0; m < qLevels; m++) {
+            histo[m] = (float) counts[m] / S;
         }
         return histo;
     }
 
+    /**
+     * Returns the space between the pixels of the structuring element (and
+     * between two consecutive positions of the element) for an image of the
+     * given size, following Manjunath2002.
+     *
+     * @param wImg width of the image
+     * @param hImg height of the image
+     * @return the space between the pixels of the structuring element
+     */
+    private static int structuringStep(int wImg, int hImg) {
+        double hw = Math.sqrt(hImg * wImg);
+        double p = Math.floor(Math.log(hw) / Math.log(2) - 7.5); //Formula by Manjunath2002
+        if (p < 0) {
+            p = 0; //Minimum size of the division factor to have K=1
+        }
+        return (int) Math.pow(2, p);
+    }
+
     /**
      * Calculates the subspace start positions (depending on the qLevels)
      * 
@@ -503,13 +603,23 @@ public class MPEG7ColorStructure implements MediaDescriptor<BufferedImage>, Seri
         return qLevels;
     }
 
+    /**
+     * Returns a copy of the histogram of this descriptor.
+     *
+     * @return the histogram of this descriptor (<code>null</code> if it is not
+     * available)
+     */
+    public int[] getHistogram() {
+        return histo != null ? histo.clone() : null;
+    }
+    
     /**
      * Returns the type of subspace used in this descriptor.
      * 
      * @param diff the 'diff' component in the HMMD color space
      * @return the type of subspace
      */
-    private int getSubspace(float diff) {
+    private static int getSubspace(float diff) {
         if (diff < 7f / 255f) {
             return 0;
         } else if (diff < 21f / 255f) {
@@ -533,6 +643,188 @@ public class MPEG7ColorStructure implements MediaDescriptor<BufferedImage>, Seri
         return ColorConvertTools.colorConvertOp(imSrc, ColorSpaceJMR.getInstance(COLOR_SPACE));
     }
 
+    /**
+     * Quantization of packed RGB pixels into the bins of the HMMD color space,
+     * without converting the image to the HMMD color space.
+     *
+     * The pixels are read directly from the data buffer of the images with
+     * 8-bit sRGB components (integer or byte buffers). The bins are the same
+     * as the ones given by {@link #quantHMMDImage(JMRExtendedBufferedImage)}
+     * on the HMMD image: the subspace and the sum bin, which depend only on the
+     * maximum and the minimum of the components, are precomputed in a lookup
+     * table for each quantization level, and the hue is computed with the
+     * same floating point operations as {@link jmr.colorspace.ColorSpaceHMMD}.
+     */
+    static private class HMMDQuantizer {
+        /**
+         * Normalized value of each 8-bit component.
+         */
+        static final float NORM[] = new float[256];
+        /**
+         * First bin of the hue values, for each quantization level, indexed
+         * by <code>(max &lt;&lt; 8) | min</code>.
+         */
+        static final short BASE[][] = new short[QUANTIZATION_TABLE.length][];
+        /**
+         * Number of hue bins, indexed by <code>(max &lt;&lt; 8) | min</code>
+         * (it does not depend on the quantization level).
+         */
+        static final byte SUBSPACE[] = new byte[256 * 256];
+
+        static {
+            for (int c = 0; c < 256; c++) {
+                NORM[c] = (float) c / 255.0f;
+            }
+            for (int max = 0; max < 256; max++) {
+                for (int min = 0; min <= max; min++) {
+                    SUBSPACE[(max << 8) | min] = (byte) getSubspace(NORM[max] - NORM[min]);
+                }
+            }
+        }
+
+        /**
+         * Returns the table of first hue bins for the given quantization
+         * level, building it the first time.
+         *
+         * @param offset the quantization level (as {@link #offset})
+         * @return the table of first hue bins
+         */
+        static synchronized short[] base(int offset) {
+            if (BASE[offset] == null) {
+                int startSubSpacePos[] = getStartSubspacePos(offset);
+                short table[] = new short[256 * 256];
+                for (int max = 0; max < 256; max++) {
+                    for (int min = 0; min <= max; min++) {
+                        int subspace = SUBSPACE[(max << 8) | min];
+                        float tmp = ((NORM[min] + NORM[max]) / 2 - 1 / 255);
+                        int sum_bin = (int) (tmp * QUANTIZATION_TABLE[offset][subspace][1]);
+                        table[(max << 8) | min] = (short) (startSubSpacePos[subspace]
+                                + sum_bin * QUANTIZATION_TABLE[offset][subspace][0]);
+                    }
+                }
+                BASE[offset] = table;
+            }
+            return BASE[offset];
+        }
+
+        /**
+         * Returns the quantized HMMD image of the given image, or
+         * <code>null</code> if its pixels can not be read directly. Only the
+         * pixels in the rows and columns multiple of the given step are
+         * quantized (the other ones are not used by the structuring element).
+         *
+         * @param image the source image
+         * @param offset the quantization level (as {@link #offset})
+         * @param qLevels the number of bins (as {@link #qLevels})
+         * @param step the space between the pixels of the structuring element
+         * @return a byte matrix with the quantized values (height x width), or
+         * <code>null</code> if the image is not supported
+         */
+        static byte[][] quantize(BufferedImage image, int offset, int qLevels, int step) {
+            if (!image.getColorModel().getColorSpace().isCS_sRGB()) {
+                return null;
+            }
+            WritableRaster raster = image.getRaster();
+            DataBuffer buffer = raster.getDataBuffer();
+            SampleModel model = raster.getSampleModel();
+            int width = image.getWidth(), height = image.getHeight();
+            int x0 = -raster.getSampleModelTranslateX(), y0 = -raster.getSampleModelTranslateY();
+            int hues[] = new int[5];
+            for (int i = 0; i < hues.length; i++) {
+                hues[i] = QUANTIZATION_TABLE[offset][i][0];
+            }
+            short base[] = base(offset);
+            byte imDst[][] = new byte[height][width];
+            switch (image.getType()) {
+                case BufferedImage.TYPE_INT_RGB:
+                case BufferedImage.TYPE_INT_ARGB:
+                case BufferedImage.TYPE_INT_BGR: {
+                    int data[] = ((DataBufferInt) buffer).getData();
+                    int stride = ((SinglePixelPackedSampleModel) model).getScanlineStride();
+                    int rShift = image.getType() == BufferedImage.TYPE_INT_BGR ? 0 : 16;
+                    int bShift = 16 - rShift;
+                    for (int y = 0; y < height; y += step) {
+                        int p = buffer.getOffset() + (y0 + y) * stride + x0;
+                        byte row[] = imDst[y];
+                        for (int x = 0; x < width; x += step) {
+                            int rgb = data[p + x];
+                            row[x] = check(bin((rgb >> rShift) & 0xFF, (rgb >> 8) & 0xFF, (rgb >> bShift) & 0xFF, base, hues), qLevels);
+                        }
+                    }
+                    return imDst;
+                }
+                case BufferedImage.TYPE_3BYTE_BGR:
+                case BufferedImage.TYPE_4BYTE_ABGR: {
+                    byte data[] = ((DataBufferByte) buffer).getData();
+                    ComponentSampleModel components = (ComponentSampleModel) model;
+                    int stride = components.getScanlineStride();
+                    int pixelStride = components.getPixelStride();
+                    int offsets[] = components.getBandOffsets();
+                    for (int y = 0; y < height; y += step) {
+                        int p = buffer.getOffset() + (y0 + y) * stride + x0 * pixelStride;
+                        byte row[] = imDst[y];
+                        for (int x = 0; x < width; x += step) {
+                            int q = p + x * pixelStride;
+                            row[x] = check(bin(data[q + offsets[0]] & 0xFF, data[q + offsets[1]] & 0xFF,
+                                    data[q + offsets[2]] & 0xFF, base, hues), qLevels);
+                        }
+                    }
+                    return imDst;
+                }
+                default:
+                    return null;
+            }
+        }
+
+        /**
+         * Returns the HMMD bin of the given RGB components.
+         *
+         * @param r the red component, in [0,255]
+         * @param g the green component, in [0,255]
+         * @param b the blue component, in [0,255]
+         * @param base the table of first hue bins
+         * @param hues the number of hue bins of each subspace
+         * @return the bin
+         */
+        static int bin(int r, int g, int b, short base[], int hues[]) {
+            int max = Math.max(Math.max(r, g), b);
+            int min = Math.min(Math.min(r, g), b);
+            int index = (max << 8) | min;
+            int hueBins = hues[SUBSPACE[index]];
+            if (hueBins == 1) {
+                // The hue is lower than 361, so its bin is 0
+                return base[index];
+            }
+            float diff = NORM[max] - NORM[min];
+            float hue;
+            if (r == max && g > b) {
+                hue = 60 * (NORM[g] - NORM[b]) / diff;
+            } else if (r == max) {
+                hue = 60 * (NORM[g] - NORM[b]) / diff + 360;
+            } else if (g == max) {
+                hue = (float) (60 * (2. + (NORM[b] - NORM[r]) / diff));
+            } else {
+                hue = (float) (60 * (4. + (NORM[r] - NORM[g]) / diff));
+            }
+            return base[index] + (int) ((hue / 361.0f) * hueBins);
+        }
+
+        /**
+         * Checks that the given bin is lower than the number of bins.
+         *
+         * @param v the bin
+         * @param qLevels the number of bins
+         * @return the bin, as a byte
+         */
+        static byte check(int v, int qLevels) {
+            if (v >= qLevels) {
+                // Value computed is bigger than qLevels.
+                throw new RuntimeException("Error in  HMMD color space conversion");
+            }
+            return (byte) v;
+        }
+    }
+
     // </editor-fold>
     
     /**
@@ -546,7 +838,7 @@ public class MPEG7ColorStructure implements MediaDescriptor<BufferedImage>, Seri
                 histo = new int[bHisto.length];
             }
             for (int i = 0; i < histo.length; i++) {
-                histo[i] = (int) (bHisto[i] & 0xFF);
+                histo[i] = bHisto[i] & 0xFF;
             }
         }
     }
@@ -560,5 +852,72 @@ public class MPEG7ColorStructure implements MediaDescriptor<BufferedImage>, Seri
     public String toString() {
         return "MPEG7ColorStructure: " + Arrays.toString(histo);
     }
+    
+    /**
+     * Serializer for the color structure descriptors. 
+     * 
+     * The descriptor is written as the number of quantization levels followed 
+     * by the histogram bins packed as unsigned bytes (each bin amplitude is 
+     * represented by an 8-bit code).
+     */
+    static public class Serializer implements DescriptorSerializer<MPEG7ColorStructure> {
+
+        @Override
+        public Class<MPEG7ColorStructure> getDescriptorClass() {
+            return MPEG7ColorStructure.class;
+        }
+
+        @Override
+        public void write(MPEG7ColorStructure descriptor, DataOutput out) throws IOException {
+            out.writeShort(descriptor.qLevels);
+            if (descriptor.histo == null) {
+                out.writeShort(-1);
+                return;
+            }
+            out.writeShort(descriptor.histo.length);
+            for (int bin : descriptor.histo) {
+                if (bin < 0 || bin > 255) {
+                    throw new IOException("Histogram bin out of range (" + bin + ").");
+                }
+                out.writeByte(bin);
+            }
+        }
+
+        @Override
+        public MPEG7ColorStructure read(DataInput in, int version) throws IOException {
+            if (version != 1) {
+                throw new IOException("Version " + version + " of the MPEG7ColorStructure binary form is not supported.");
+            }
+            MPEG7ColorStructure descriptor = new MPEG7ColorStructure();
+            descriptor.setLevels(in.readShort());
+            int length = in.readShort();
+            if (length >= 0) {
+                descriptor.histo = new int[length];
+                for (int i = 0; i < length; i++) {
+                    descriptor.histo[i] = in.readUnsignedByte();
+                }
+            }
+            return descriptor;
+        }
+
+        @Override
+        public Object compare(MPEG7ColorStructure descriptor, ByteBuffer buffer, int offset, int length, int version) throws IOException {
+            if (version != 1 || buffer.getShort(offset) != descriptor.qLevels) {
+                // Different levels: the stored histogram is resized
+                return DescriptorSerializer.super.compare(descriptor, buffer, offset, length, version);
+            }
+            int size = buffer.getShort(offset + 2);
+            if (size < 0 || descriptor.histo == null) {
+                return null;
+            }
+            int position = offset + 4;
+            Double distance = 0.0;
+            for (int i = 0; i < size; i++, position++) {
+                distance += Math.abs(descriptor.histo[i] - (buffer.get(position) & 0xFF));
+            }
+            distance /= (256 * size); //Normalization
+            return distance;
+        }
+    }
 
 }
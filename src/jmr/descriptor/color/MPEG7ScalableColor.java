@@ -1,13 +1,26 @@
 package jmr.descriptor.color;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
 import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import jmr.colorspace.ColorConvertTools;
 import jmr.media.JMRExtendedBufferedImage;
 import jmr.colorspace.ColorSpaceJMR;
+import jmr.descriptor.DescriptorSerializer;
 import jmr.descriptor.MediaDescriptor;
+import jmr.tools.DistanceTools;
 
 /**
  * Scalable Color Descriptor from MPEG7 standard.
@@ -28,6 +41,7 @@ import jmr.descriptor.MediaDescriptor;
  *
  */
 public class MPEG7ScalableColor implements MediaDescriptor<BufferedImage>, Serializable{
+    private static final long serialVersionUID = -8833585478597826208L;
     /**
      * The source image of this descriptor
      */
@@ -121,6 +135,13 @@ public class MPEG7ScalableColor implements MediaDescriptor<BufferedImage>, Seria
     public MPEG7ScalableColor(BufferedImage image) {
         this(image, DEFAULT_NUM_BINS, DEFAULT_NUM_BITPLANES_DISCARDED);
     }
+    
+    /**
+     * Constructs an empty descriptor, with no source. Only for reading tasks
+     * (see {@link Serializer}).
+     */
+    private MPEG7ScalableColor() {
+    }
 
       /**
      * Returns the image source associated to this descriptor
@@ -151,6 +172,13 @@ public class MPEG7ScalableColor implements MediaDescriptor<BufferedImage>, Seria
      */
     @Override
     public void init(BufferedImage image) {
+        // Images with packed RGB pixels are quantized directly from their data
+        int[] histoVec = HSVQuantizer.histogram(image);
+        if (histoVec != null) {
+            QuantizeHistogram(histoVec);
+            this.histoHaar = HaarTransform(histoVec);
+            return;
+        }
         // The MPEG7ColorStructure need a JMRExtendedBufferedImage to be calculated
         JMRExtendedBufferedImage JMRimage = null;
         try {
@@ -184,6 +212,27 @@ public class MPEG7ScalableColor implements MediaDescriptor<BufferedImage>, Seria
         return (compare((MPEG7ScalableColor) mediaDescriptor));
     }
 
+    /**
+     * Compares this descriptor to the one given by parameter, abandoning the
+     * comparison as soon as the distance exceeds the given bound.
+     *
+     * This method is valid only for <code>MPEG7ScalableColor</code> image
+     * descriptors
+     *
+     * @param mediaDescriptor descriptor to be compared.
+     * @param bound the bound of the needed distances.
+     * @return the distance between descriptors, or a value greater than the
+     * bound (<code>null</code> if the descriptors are not comparable)
+     */
+    @Override
+    public Double compare(MediaDescriptor mediaDescriptor, double bound) {
+        // Only MPEG7ScalableColor objects can be compared
+        if (!(mediaDescriptor instanceof MPEG7ScalableColor)) {
+            return (null);
+        }
+        return (compare((MPEG7ScalableColor) mediaDescriptor, bound));
+    }
+
     /**
      * Compare this descriptor to the one given by parameter using the l1-norm 
      * between each bins of the histograms.
@@ -193,6 +242,22 @@ public class MPEG7ScalableColor implements MediaDescriptor<BufferedImage>, Seria
      * descriptors are not comparable)
      */
     public Double compare(MPEG7ScalableColor descriptor) {
+        return compare(descriptor, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Compare this descriptor to the one given by parameter using the l1-norm 
+     * between each bins of the histograms, abandoning the sum as soon as it
+     * exceeds the given bound (see
+     * {@link DistanceTools#l1(int[], int, int[], int, int, long)}).
+     *
+     * @param descriptor descriptor to be compared.
+     * @param bound the bound of the needed distances.
+     * @return the distance between descriptors if it is not greater than the
+     * bound, or a partial sum greater than the bound (<code>null</code> if the
+     * descriptors are not comparable)
+     */
+    public Double compare(MPEG7ScalableColor descriptor, double bound) {
         if (descriptor.nofBitPlanesDiscarded != this.nofBitPlanesDiscarded || 
             descriptor.nofCoefficients != this.nofCoefficients) {
             return null;
@@ -200,11 +265,10 @@ public class MPEG7ScalableColor implements MediaDescriptor<BufferedImage>, Seria
         if (descriptor.histoHaar == null || this.histoHaar == null) {
             return null;
         }
-        double diffsum = 0;
-        for (int i = 0; i < nofCoefficients; i++) {
-            diffsum += Math.abs(this.histoHaar[i] - descriptor.histoHaar[i]);
-        }
-        return diffsum;
+        // The sum of integers is exact, so it is the same in any order
+        long diffsum = DistanceTools.l1(this.histoHaar, 0, descriptor.histoHaar, 0, 
+                nofCoefficients, DistanceTools.floor(bound));
+        return (double) diffsum;
     }
 
     // <editor-fold defaultstate="collapsed" desc="Private methods for calculating the descriptor"> 
@@ -259,20 +323,20 @@ public class MPEG7ScalableColor implements MediaDescriptor<BufferedImage>, Seria
         int wImg = image.getWidth();
         int hImg = image.getHeight();
         Raster imRst = image.getRaster();
-        float[] pixel = new float[3];
+        float[] row = new float[3 * wImg];
         int i, j, k;
         
-        int[][][]histoMx = new int[H_BINS][S_BINS][V_BINS]; // By default, filled with 0
-        for(int x=0; x<wImg; x++){
-            for(int y=0; y<hImg; y++){
-                imRst.getPixel(x, y, pixel);
-                i = (int) (pixel[0] / H_SCALE); //H in bin levels
-                j = (int) (pixel[1] / S_SCALE); //S in bin levels
-                k = (int) (pixel[2] / V_SCALE); //V in bin levels
-                histoMx[i][j][k]++;                                
+        // Flat histogram, in the order of the Haar transform (H, then S, then V)
+        int[] histoVec = new int[H_BINS * V_BINS * S_BINS]; // By default, filled with 0
+        for(int y=0; y<hImg; y++){
+            imRst.getPixels(0, y, wImg, 1, row);
+            for(int x=0; x<3*wImg; x+=3){
+                i = (int) (row[x] / H_SCALE);     //H in bin levels
+                j = (int) (row[x + 1] / S_SCALE); //S in bin levels
+                k = (int) (row[x + 2] / V_SCALE); //V in bin levels
+                histoVec[(k * S_BINS + j) * H_BINS + i]++;
             }
         }
-        int[] histoVec = histoMx2histoVec(histoMx);
         QuantizeHistogram(histoVec);
         this.histoHaar = HaarTransform(histoVec);
     }
@@ -309,7 +373,7 @@ public class MPEG7ScalableColor implements MediaDescriptor<BufferedImage>, Seria
         double binwert;
         factor = 0x7ff; 
         for (int i = 0; i < nofCoefficients; i++) {
-            binwert = (double) (factor) * (double) (aHist[i] / (double) sumPixels);
+            binwert = (double) (factor) * (aHist[i] / (double) sumPixels);
             ibinwert = (int) (binwert + 0.49999);
             if (ibinwert > factor) {
                 ibinwert = factor; //obsolete
@@ -439,7 +503,7 @@ public class MPEG7ScalableColor implements MediaDescriptor<BufferedImage>, Seria
         int[] histogram_out = new int[256];
 
         for (int i = 0; i < nofCoefficients; i++) {
-            histogram_in[i] = (int) aHist[i];
+            histogram_in[i] = aHist[i];
         }
         histo_3d_hirarch_5(tabelle, tabelle[0].length, histogram_in, H_BINS, S_BINS, V_BINS);
         for (int j = 0; j < 256; ++j) {
@@ -582,6 +646,133 @@ public class MPEG7ScalableColor implements MediaDescriptor<BufferedImage>, Seria
         return ColorConvertTools.colorConvertOp(imSrc, ColorSpaceJMR.getInstance(COLOR_SPACE));
     }
     
+    /**
+     * Quantization of packed RGB pixels into the bins of the HSV histogram,
+     * without converting the image to the HSV color space.
+     *
+     * The pixels are read directly from the data buffer of the images with
+     * 8-bit sRGB components (integer or byte buffers), and the histogram is
+     * filled in row-major order. The bins are the same as the ones obtained
+     * from the HSV image given by {@link ColorConvertTools}: the saturation
+     * and value bins, which depend only on the maximum and the minimum of the
+     * components, are precomputed in a lookup table, and the hue is computed
+     * with the same floating point operations as {@link jmr.colorspace.ColorSpaceHSV}.
+     */
+    static private class HSVQuantizer {
+        /**
+         * Descriptor giving the scaling factors of the bins.
+         */
+        static final MPEG7ScalableColor BINS = new MPEG7ScalableColor();
+        /**
+         * Normalized value of each 8-bit component.
+         */
+        static final float NORM[] = new float[256];
+        /**
+         * Offset in the histogram of the saturation and value bins, indexed by
+         * <code>(max &lt;&lt; 8) | min</code>.
+         */
+        static final short SV_OFFSET[] = new short[256 * 256];
+
+        static {
+            for (int c = 0; c < 256; c++) {
+                NORM[c] = (float) c / 255.0f;
+            }
+            for (int max = 0; max < 256; max++) {
+                for (int min = 0; min <= max; min++) {
+                    float s = max == 0 ? 0.0f : (NORM[max] - NORM[min]) / NORM[max];
+                    int j = (int) (s / BINS.S_SCALE);
+                    int k = (int) (NORM[max] / BINS.V_SCALE);
+                    SV_OFFSET[(max << 8) | min] = (short) ((k * BINS.S_BINS + j) * BINS.H_BINS);
+                }
+            }
+        }
+
+        /**
+         * Returns the (unquantized) histogram of the given image, or
+         * <code>null</code> if its pixels can not be read directly.
+         *
+         * @param image the source image
+         * @return the histogram in the order of the Haar transform, or
+         * <code>null</code> if the image is not supported
+         */
+        static int[] histogram(BufferedImage image) {
+            if (!image.getColorModel().getColorSpace().isCS_sRGB()) {
+                return null;
+            }
+            WritableRaster raster = image.getRaster();
+            DataBuffer buffer = raster.getDataBuffer();
+            SampleModel model = raster.getSampleModel();
+            int width = image.getWidth(), height = image.getHeight();
+            int x0 = -raster.getSampleModelTranslateX(), y0 = -raster.getSampleModelTranslateY();
+            int histogram[] = new int[BINS.H_BINS * BINS.S_BINS * BINS.V_BINS];
+            switch (image.getType()) {
+                case BufferedImage.TYPE_INT_RGB:
+                case BufferedImage.TYPE_INT_ARGB:
+                case BufferedImage.TYPE_INT_BGR: {
+                    int data[] = ((DataBufferInt) buffer).getData();
+                    int stride = ((SinglePixelPackedSampleModel) model).getScanlineStride();
+                    int rShift = image.getType() == BufferedImage.TYPE_INT_BGR ? 0 : 16;
+                    int bShift = 16 - rShift;
+                    for (int y = 0; y < height; y++) {
+                        int p = buffer.getOffset() + (y0 + y) * stride + x0;
+                        for (int end = p + width; p < end; p++) {
+                            int rgb = data[p];
+                            histogram[bin((rgb >> rShift) & 0xFF, (rgb >> 8) & 0xFF, (rgb >> bShift) & 0xFF)]++;
+                        }
+                    }
+                    return histogram;
+                }
+                case BufferedImage.TYPE_3BYTE_BGR:
+                case BufferedImage.TYPE_4BYTE_ABGR: {
+                    byte data[] = ((DataBufferByte) buffer).getData();
+                    ComponentSampleModel components = (ComponentSampleModel) model;
+                    int stride = components.getScanlineStride();
+                    int pixelStride = components.getPixelStride();
+                    int offsets[] = components.getBandOffsets();
+                    for (int y = 0; y < height; y++) {
+                        int p = buffer.getOffset() + (y0 + y) * stride + x0 * pixelStride;
+                        for (int end = p + width * pixelStride; p < end; p += pixelStride) {
+                            histogram[bin(data[p + offsets[0]] & 0xFF, data[p + offsets[1]] & 0xFF,
+                                    data[p + offsets[2]] & 0xFF)]++;
+                        }
+                    }
+                    return histogram;
+                }
+                default:
+                    return null;
+            }
+        }
+
+        /**
+         * Returns the histogram bin of the given RGB components.
+         *
+         * @param r the red component, in [0,255]
+         * @param g the green component, in [0,255]
+         * @param b the blue component, in [0,255]
+         * @return the index of the bin in the histogram
+         */
+        static int bin(int r, int g, int b) {
+            int max = Math.max(Math.max(r, g), b);
+            int min = Math.min(Math.min(r, g), b);
+            float h = 0f;
+            if (max != min) {
+                float diff = NORM[max] - NORM[min];
+                if (r == max) {
+                    if (g >= b) {
+                        h = ((NORM[g] - NORM[b]) / diff) * 60.f;
+                    } else {
+                        h = 360.f + ((NORM[g] - NORM[b]) / diff) * 60.f;
+                    }
+                } else if (g == max) {
+                    h = (2.0f + (NORM[b] - NORM[r]) / diff) * 60.f;
+                } else {
+                    h = (4.0f + (NORM[r] - NORM[g]) / diff) * 60.f;
+                }
+            }
+            return SV_OFFSET[(max << 8) | min] + (int) (h / BINS.H_SCALE);
+        }
+    }
+    
     // </editor-fold>
 
     /**
@@ -645,6 +836,36 @@ public class MPEG7ScalableColor implements MediaDescriptor<BufferedImage>, Seria
         }
     }
     
+    /**
+     * Returns the number of coefficients (histogram bins) of this descriptor.
+     *
+     * @return the number of coefficients
+     */
+    public int getNumCoefficients() {
+        return nofCoefficients;
+    }
+
+    /**
+     * Returns the number of bit planes of the coefficients that are discarded.
+     *
+     * @return the number of bit planes discarded
+     */
+    public int getNumBitPlanesDiscarded() {
+        return nofBitPlanesDiscarded;
+    }
+
+    /**
+     * Returns a copy of the Haar coefficients of this descriptor (the first
+     * {@link #getNumCoefficients()} ones, which are the ones used in the
+     * comparison).
+     *
+     * @return the coefficients of this descriptor (<code>null</code> if they
+     * are not available)
+     */
+    public int[] getCoefficients() {
+        return histoHaar != null ? Arrays.copyOf(histoHaar, nofCoefficients) : null;
+    }
+    
     /**
      * Returns a string representation of this descriptor .
      *
@@ -654,5 +875,76 @@ public class MPEG7ScalableColor implements MediaDescriptor<BufferedImage>, Seria
     public String toString() {
         return "MPEG7ScalableColor: " + Arrays.toString(histoHaar);
     }
+    
+    /**
+     * Serializer for the scalable color descriptors. 
+     * 
+     * The descriptor is written as the number of coefficients and bit planes
+     * discarded, followed by the Haar coefficients packed as 16-bit values
+     * (the quantized coefficients are bounded by the MPEG7 standard to a much 
+     * smaller range). 
+     */
+    static public class Serializer implements DescriptorSerializer<MPEG7ScalableColor> {
+
+        @Override
+        public Class<MPEG7ScalableColor> getDescriptorClass() {
+            return MPEG7ScalableColor.class;
+        }
+
+        @Override
+        public void write(MPEG7ScalableColor descriptor, DataOutput out) throws IOException {
+            out.writeShort(descriptor.nofCoefficients);
+            out.writeShort(descriptor.nofBitPlanesDiscarded);
+            if (descriptor.histoHaar == null) {
+                out.writeShort(-1);
+                return;
+            }
+            out.writeShort(descriptor.histoHaar.length);
+            for (int coefficient : descriptor.histoHaar) {
+                if (coefficient < Short.MIN_VALUE || coefficient > Short.MAX_VALUE) {
+                    throw new IOException("Haar coefficient out of range (" + coefficient + ").");
+                }
+                out.writeShort(coefficient);
+            }
+        }
+
+        @Override
+        public MPEG7ScalableColor read(DataInput in, int version) throws IOException {
+            if (version != 1) {
+                throw new IOException("Version " + version + " of the MPEG7ScalableColor binary form is not supported.");
+            }
+            MPEG7ScalableColor descriptor = new MPEG7ScalableColor();
+            descriptor.nofCoefficients = in.readShort();
+            descriptor.nofBitPlanesDiscarded = in.readShort();
+            int length = in.readShort();
+            if (length >= 0) {
+                descriptor.histoHaar = new int[length];
+                for (int i = 0; i < length; i++) {
+                    descriptor.histoHaar[i] = in.readShort();
+                }
+            }
+            return descriptor;
+        }
+
+        @Override
+        public Object compare(MPEG7ScalableColor descriptor, ByteBuffer buffer, int offset, int length, int version) throws IOException {
+            if (version != 1) {
+                return DescriptorSerializer.super.compare(descriptor, buffer, offset, length, version);
+            }
+            if (buffer.getShort(offset) != descriptor.nofCoefficients
+                    || buffer.getShort(offset + 2) != descriptor.nofBitPlanesDiscarded) {
+                return null;
+            }
+            if (buffer.getShort(offset + 4) < 0 || descriptor.histoHaar == null) {
+                return null;
+            }
+            int position = offset + 6;
+            double diffsum = 0;
+            for (int i = 0; i < descriptor.nofCoefficients; i++, position += 2) {
+                diffsum += Math.abs(descriptor.histoHaar[i] - buffer.getShort(position));
+            }
+            return diffsum;
+        }
+    }
 
 }
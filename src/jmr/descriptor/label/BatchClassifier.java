@@ -0,0 +1,42 @@
+package jmr.descriptor.label;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Represents a classifier able to classify several media at once. It is
+ * useful for classifiers whose cost per media decreases with the size of the
+ * batch (as the ones based on neural networks).
+ *
+ * The classification of a single media is done as a batch of one media. In
+ * order to group the media classified one by one by the descriptors (for
+ * example, when a database is filled in parallel), the classifier can be
+ * wrapped in a {@link BatchingClassifier}.
+ *
+ * @param <T> the type of the media to be classified
+ * @param <R> the type of the result
+ *
+ * @author Jesús Chamorro Martínez (jesus@decsai.ugr.es)
+ */
+@FunctionalInterface
+public interface BatchClassifier<T, R> extends Classifier<T, R> {
+    /**
+     * Applies this classifier to the given media.
+     *
+     * @param media the media to be classified
+     * @return the results of the classification, in the same order as the
+     * media
+     */
+    List<R> applyAll(List<? extends T> media);
+
+    /**
+     * Applies this classifier to the given argument, as a batch of one media.
+     *
+     * @param t the function argument
+     * @return the function result
+     */
+    @Override
+    default R apply(T t) {
+        return applyAll(Collections.singletonList(t)).get(0);
+    }
+}
@@ -0,0 +1,345 @@
+package jmr.descriptor.label;
+
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A classifier that groups the media classified concurrently by several
+ * threads into batches, which are classified at once by a
+ * {@link BatchClassifier}.
+ *
+ * Each call to {@link #apply(java.lang.Object)} adds its media to the pending
+ * batch and waits for its result. The batch is classified as soon as it has
+ * the maximum number of media (by the thread that fills it) or when the
+ * maximum delay since its first media has elapsed (by the first thread that
+ * notices it). In that way, the label descriptors of the records calculated
+ * in parallel by a database (see {@link jmr.db.ListDB#addAll(java.lang.Iterable)}
+ * and {@link jmr.db.ListDB#setParallelism(int)}) are classified in batches
+ * just by using this classifier:
+ * <pre>
+ *     LabelDescriptor.setDefaultClassifier(new BatchingClassifier(model));
+ * </pre>
+ *
+ * The threads of a {@link ForkJoinPool} waiting for a batch are compensated by
+ * the pool, so the pending media of a parallel ingestion can join the batch.
+ * Since a single thread always waits for the maximum delay, this classifier
+ * should not be used sequentially (the wrapped classifier can be used
+ * directly in that case). If the classification of a batch fails, the
+ * exception is thrown to all the threads waiting for it.
+ *
+ * @param <T> the type of the media to be classified
+ * @param <R> the type of the result
+ *
+ * @author Jesús Chamorro Martínez (jesus@decsai.ugr.es)
+ */
+public class BatchingClassifier<T, R> implements Classifier<T, R> {
+    private static final long serialVersionUID = 1L;
+    /**
+     * Default maximum number of media in a batch.
+     */
+    static public final int DEFAULT_BATCH_SIZE = 32;
+    /**
+     * Default maximum delay (in milliseconds) of the first media of a batch.
+     */
+    static public final long DEFAULT_MAX_DELAY = 10;
+    /**
+     * Classifier applied to the batches.
+     */
+    private final BatchClassifier<T, R> classifier;
+    /**
+     * Maximum number of media in a batch.
+     */
+    private final int batchSize;
+    /**
+     * Maximum delay (in milliseconds) of the first media of a batch.
+     */
+    private final long maxDelay;
+    /**
+     * Batch collecting the media (<code>null</code> if there are not pending
+     * media).
+     */
+    private transient Batch pending = null;
+    /**
+     * Number of batches classified.
+     */
+    private transient final LongAdder batches = new LongAdder();
+    /**
+     * Number of media classified in batches.
+     */
+    private transient final LongAdder classified = new LongAdder();
+
+    /**
+     * Constructs a batching classifier with the default batch size and delay.
+     *
+     * @param classifier the classifier applied to the batches
+     */
+    public BatchingClassifier(BatchClassifier<T, R> classifier) {
+        this(classifier, DEFAULT_BATCH_SIZE, DEFAULT_MAX_DELAY);
+    }
+
+    /**
+     * Constructs a batching classifier with the given batch size and delay.
+     *
+     * @param classifier the classifier applied to the batches
+     * @param batchSize the maximum number of media in a batch
+     * @param maxDelay the maximum time (in milliseconds) that the first media
+     * of a batch waits for more media
+     * @throws InvalidParameterException if the batch size is not positive or
+     * the delay is negative
+     */
+    public BatchingClassifier(BatchClassifier<T, R> classifier, int batchSize, long maxDelay) {
+        if (batchSize < 1 || maxDelay < 0) {
+            throw new InvalidParameterException("The batch size must be positive and the delay can not be negative.");
+        }
+        this.classifier = classifier;
+        this.batchSize = batchSize;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Applies this classifier to the given argument, waiting until the batch
+     * containing it is classified. A <code>null</code> argument is classified
+     * directly.
+     *
+     * @param t the function argument
+     * @return the function result
+     */
+    @Override
+    public R apply(T t) {
+        if (t == null) {
+            return classifier.apply(null);
+        }
+        Batch batch;
+        int slot;
+        boolean full;
+        synchronized (this) {
+            if (pending == null) {
+                pending = new Batch(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxDelay));
+            }
+            batch = pending;
+            slot = batch.media.size();
+            batch.media.add(t);
+            full = batch.media.size() >= batchSize;
+            if (full) {
+                pending = null;
+            }
+        }
+        if (full) {
+            batch.run();
+        } else {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    ForkJoinPool.managedBlock(batch);
+                    break;
+                } catch (InterruptedException ex) {
+                    // The result is needed anyway; the batch ends soon
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return batch.get(slot);
+    }
+
+    /**
+     * Classifies the pending media (if any) in the calling thread, without
+     * waiting for the batch to be filled.
+     */
+    public void flush() {
+        Batch batch = take(null);
+        if (batch != null) {
+            batch.run();
+        }
+    }
+
+    /**
+     * Removes the given batch (or the pending one if <code>null</code>) from
+     * the pending state.
+     *
+     * @param batch the batch to be taken
+     * @return the taken batch, or <code>null</code> if it is not pending
+     */
+    private synchronized Batch take(Batch batch) {
+        Batch output = pending;
+        if (output == null || (batch != null && output != batch)) {
+            return null;
+        }
+        pending = null;
+        return output;
+    }
+
+    /**
+     * Returns the classifier applied to the batches.
+     *
+     * @return the classifier applied to the batches
+     */
+    public BatchClassifier<T, R> getClassifier() {
+        return classifier;
+    }
+
+    /**
+     * Returns the maximum number of media in a batch.
+     *
+     * @return the maximum number of media in a batch
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Returns the maximum delay (in milliseconds) of the first media of a
+     * batch.
+     *
+     * @return the maximum delay in milliseconds
+     */
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+
+    /**
+     * Returns the number of batches classified.
+     *
+     * @return the number of batches classified
+     */
+    public long getBatchCount() {
+        return batches.sum();
+    }
+
+    /**
+     * Returns the mean number of media in the batches classified.
+     *
+     * @return the mean size of the batches (zero if there are not batches)
+     */
+    public double getMeanBatchSize() {
+        long n = batches.sum();
+        return n > 0 ? (double) classified.sum() / n : 0.0;
+    }
+
+    /**
+     * Returns a string representation of this classifier.
+     *
+     * @return a string representation of this classifier
+     */
+    @Override
+    public String toString() {
+        return "BatchingClassifier(batch=" + batchSize + ", delay=" + maxDelay + "ms, batches="
+                + getBatchCount() + ", mean=" + String.format("%.1f", getMeanBatchSize()) + ")";
+    }
+
+    /**
+     * Returns a new classifier with the same parameters after deserialization
+     * (the pending media are not serialized).
+     *
+     * @return a new batching classifier
+     */
+    private Object readResolve() {
+        return new BatchingClassifier<>(classifier, batchSize, maxDelay);
+    }
+
+    /**
+     * A batch of media and, once classified, their results.
+     */
+    private final class Batch implements ForkJoinPool.ManagedBlocker {
+        /**
+         * Media of this batch.
+         */
+        final List<T> media = new ArrayList<>();
+        /**
+         * Time (in nanoseconds) at which this batch is classified if it is
+         * not full.
+         */
+        final long deadline;
+        /**
+         * Results of the classification.
+         */
+        private List<R> results = null;
+        /**
+         * Exception thrown by the classification (if any).
+         */
+        private RuntimeException error = null;
+        /**
+         * <tt>true</tt> once this batch has been classified.
+         */
+        private boolean done = false;
+
+        Batch(long deadline) {
+            this.deadline = deadline;
+        }
+
+        /**
+         * Classifies this batch and wakes up the threads waiting for it.
+         */
+        void run() {
+            List<R> output = null;
+            RuntimeException exception = null;
+            try {
+                output = classifier.applyAll(media);
+                if (output == null || output.size() != media.size()) {
+                    exception = new InvalidParameterException("The classifier must return one result per media.");
+                }
+            } catch (RuntimeException ex) {
+                exception = ex;
+            }
+            batches.increment();
+            classified.add(media.size());
+            synchronized (this) {
+                results = output;
+                error = exception;
+                done = true;
+                notifyAll();
+            }
+        }
+
+        /**
+         * Returns the result at the given position of this batch.
+         */
+        synchronized R get(int slot) {
+            if (error != null) {
+                throw error;
+            }
+            return results.get(slot);
+        }
+
+        @Override
+        public synchronized boolean isReleasable() {
+            return done;
+        }
+
+        /**
+         * Waits until this batch is classified. If the deadline is reached
+         * and the batch is still pending, it is classified by the calling
+         * thread.
+         */
+        @Override
+        public boolean block() throws InterruptedException {
+            synchronized (this) {
+                long delay = deadline - System.nanoTime();
+                while (!done && delay > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(this, delay);
+                    delay = deadline - System.nanoTime();
+                }
+                if (done) {
+                    return true;
+                }
+            }
+            if (take(this) != null) {
+                run();
+                return true;
+            }
+            // The batch is being classified by another thread
+            synchronized (this) {
+                while (!done) {
+                    wait();
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,598 @@
+package jmr.descriptor.label;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import jmr.tools.JMRImageTools;
+
+/**
+ * A classifier that keeps the results of another classifier, so a media
+ * already classified (for example, a duplicated image, or a query image
+ * already in a database) is not classified again.
+ *
+ * The results are indexed by the content of the media: the images
+ * ({@link BufferedImage} objects) are identified by a hash of their pixels
+ * (see {@link JMRImageTools#contentHash(java.awt.image.BufferedImage)}), so
+ * two different objects with the same content share the result; other media
+ * are identified by means of their <code>equals</code> and
+ * <code>hashCode</code> methods. The serializable results are kept in their
+ * serialized form, so each call returns a new copy of the result that can be
+ * modified (for example, by the descriptor that receives it) without changing
+ * the cache. The results that are not serializable are returned as they are,
+ * so they should not be modified.
+ *
+ * The cache holds a maximum number of results in memory, discarding the least
+ * recently used ones. Optionally, the discarded results can be written to a
+ * spill file (they have to be serializable), from which they are read if the
+ * media is classified again. The spill file also holds a maximum number of
+ * results, discarding the least recently used ones, and it is compacted when
+ * more than a half of it is taken by discarded results. The spill file is
+ * rewritten each time the cache is constructed, and it is closed by
+ * {@link #close()}.
+ *
+ * This class is thread-safe. The same media classified concurrently by
+ * several threads may be classified more than once.
+ *
+ * @param <T> the type of the media to be classified
+ * @param <R> the type of the result
+ *
+ * @author Jesús Chamorro Martínez (jesus@decsai.ugr.es)
+ */
+public class CachingClassifier<T, R> implements Classifier<T, R>, Closeable {
+    private static final long serialVersionUID = 1L;
+    /**
+     * Default maximum number of results kept in memory.
+     */
+    static public final int DEFAULT_CAPACITY = 10000;
+    /**
+     * Default ratio between the maximum number of results in the spill file
+     * and in memory.
+     */
+    static public final int DEFAULT_SPILL_RATIO = 10;
+    /**
+     * Classifier whose results are kept.
+     */
+    private final Classifier<T, R> classifier;
+    /**
+     * Maximum number of results kept in memory.
+     */
+    private final int capacity;
+    /**
+     * Maximum number of results kept in the spill file.
+     */
+    private final int spillCapacity;
+    /**
+     * Results kept in memory, in access order (in serialized form, if 
+     * possible).
+     */
+    private transient Memory memory;
+    /**
+     * Spill file (<code>null</code> if it is not used).
+     */
+    private transient RandomAccessFile spill = null;
+    /**
+     * Position and length of each result in the spill file, in access order.
+     */
+    private transient LinkedHashMap<Object, long[]> spilled;
+    /**
+     * Length of the spill file.
+     */
+    private transient long spillLength;
+    /**
+     * Number of bytes of the spill file taken by discarded results.
+     */
+    private transient long spillGarbage;
+    /**
+     * Number of results found in memory.
+     */
+    private transient LongAdder hits;
+    /**
+     * Number of results read from the spill file.
+     */
+    private transient LongAdder spillHits;
+    /**
+     * Number of media classified by the wrapped classifier.
+     */
+    private transient LongAdder misses;
+
+    /**
+     * Constructs a cache of the given classifier with the default capacity
+     * and without spill file.
+     *
+     * @param classifier the classifier whose results are kept
+     */
+    public CachingClassifier(Classifier<T, R> classifier) {
+        this(classifier, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructs a cache of the given classifier with the given capacity and
+     * without spill file.
+     *
+     * @param classifier the classifier whose results are kept
+     * @param capacity the maximum number of results kept in memory
+     * @throws InvalidParameterException if the capacity is not positive
+     */
+    public CachingClassifier(Classifier<T, R> classifier, int capacity) {
+        this(classifier, capacity, spillCapacity(capacity));
+    }
+
+    /**
+     * Constructs a cache of the given classifier with the given capacities.
+     *
+     * @param classifier the classifier whose results are kept
+     * @param capacity the maximum number of results kept in memory
+     * @param spillCapacity the maximum number of results kept in the spill 
+     * file
+     * @throws InvalidParameterException if a capacity is not positive
+     */
+    private CachingClassifier(Classifier<T, R> classifier, int capacity, int spillCapacity) {
+        if (capacity < 1 || spillCapacity < 1) {
+            throw new InvalidParameterException("The capacity must be positive.");
+        }
+        this.classifier = classifier;
+        this.capacity = capacity;
+        this.spillCapacity = spillCapacity;
+        init();
+    }
+
+    /**
+     * Constructs a cache of the given classifier with the given capacity,
+     * writing the results discarded from memory to the given spill file. The
+     * spill file holds, at most, {@link #DEFAULT_SPILL_RATIO} times the given
+     * capacity.
+     *
+     * @param classifier the classifier whose results are kept
+     * @param capacity the maximum number of results kept in memory
+     * @param spillFile the spill file (its previous content is discarded)
+     * @throws IOException if the spill file can not be opened
+     * @throws InvalidParameterException if the capacity is not positive
+     */
+    public CachingClassifier(Classifier<T, R> classifier, int capacity, File spillFile) throws IOException {
+        this(classifier, capacity, spillFile, spillCapacity(capacity));
+    }
+
+    /**
+     * Constructs a cache of the given classifier with the given capacities,
+     * writing the results discarded from memory to the given spill file.
+     *
+     * @param classifier the classifier whose results are kept
+     * @param capacity the maximum number of results kept in memory
+     * @param spillFile the spill file (its previous content is discarded)
+     * @param spillCapacity the maximum number of results kept in the spill 
+     * file
+     * @throws IOException if the spill file can not be opened
+     * @throws InvalidParameterException if a capacity is not positive
+     */
+    public CachingClassifier(Classifier<T, R> classifier, int capacity, File spillFile, int spillCapacity) throws IOException {
+        this(classifier, capacity, spillCapacity);
+        spill = new RandomAccessFile(spillFile, "rw");
+        spill.setLength(0);
+    }
+
+    /**
+     * Returns the default capacity of the spill file for the given capacity.
+     */
+    private static int spillCapacity(int capacity) {
+        return (int) Math.min(Integer.MAX_VALUE, (long) capacity * DEFAULT_SPILL_RATIO);
+    }
+
+    /**
+     * Initializes the transient state of this cache.
+     */
+    private void init() {
+        memory = new Memory();
+        spilled = new LinkedHashMap<>(16, 0.75f, true);
+        spillLength = 0;
+        spillGarbage = 0;
+        hits = new LongAdder();
+        spillHits = new LongAdder();
+        misses = new LongAdder();
+    }
+
+    /**
+     * Returns the result of the wrapped classifier for the given argument,
+     * classifying it only if it is not in the cache. A <code>null</code>
+     * argument is classified directly.
+     *
+     * @param t the function argument
+     * @return the function result
+     */
+    @Override
+    public R apply(T t) {
+        if (t == null) {
+            return classifier.apply(null);
+        }
+        Object key = key(t);
+        Object value;
+        boolean spilled;
+        synchronized (this) {
+            value = memory.get(key);
+            spilled = value == null && spill != null && (value = unspill(key)) != null;
+            if (spilled) {
+                memory.put(key, value);
+            }
+        }
+        // The copies are made without holding the lock
+        R result = value != null ? copy(value) : null;
+        if (result != null) {
+            (spilled ? spillHits : hits).increment();
+            return result;
+        }
+        misses.increment();
+        result = classifier.apply(t);
+        if (result != null) {
+            value = serialize(result);
+            synchronized (this) {
+                memory.put(key, value);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the value kept in this cache for the given result: its 
+     * serialized form or, if it is not serializable, the result itself.
+     *
+     * @param result the result
+     * @return the value kept in the cache
+     */
+    private static Object serialize(Object result) {
+        if (!(result instanceof Serializable)) {
+            return result;
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(result);
+            }
+            return new Serialized(bytes.toByteArray());
+        } catch (IOException ex) {
+            return result; // Some part of the result is not serializable
+        }
+    }
+
+    /**
+     * Returns the result given by a value kept in this cache, as a new copy
+     * if it is kept in serialized form.
+     *
+     * @param value the value kept in the cache
+     * @return the result, or <code>null</code> if it can not be read
+     */
+    private R copy(Object value) {
+        if (!(value instanceof Serialized)) {
+            return (R) value;
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(((Serialized) value).bytes))) {
+            return (R) in.readObject();
+        } catch (IOException | ClassNotFoundException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the key identifying the given media in this cache.
+     *
+     * @param media the media
+     * @return the key of the media
+     */
+    private static Object key(Object media) {
+        if (media instanceof BufferedImage) {
+            BufferedImage img = (BufferedImage) media;
+            return new ImageKey(JMRImageTools.contentHash(img), img.getWidth(), img.getHeight());
+        }
+        return media;
+    }
+
+    /**
+     * Writes the given value to the spill file (if it is used, the value is
+     * serialized and it is not already there). If the value can not be 
+     * written, it is just discarded. If the spill file is full, the least
+     * recently used result is discarded.
+     */
+    private void spill(Object key, Object value) {
+        if (spill == null || !(value instanceof Serialized) || spilled.containsKey(key)) {
+            return;
+        }
+        byte bytes[] = ((Serialized) value).bytes;
+        try {
+            spill.seek(spillLength);
+            spill.write(bytes);
+            spilled.put(key, new long[]{spillLength, bytes.length});
+            spillLength += bytes.length;
+        } catch (IOException ex) {
+            // The file is not available
+            return;
+        }
+        if (spilled.size() > spillCapacity) {
+            Iterator<long[]> eldest = spilled.values().iterator();
+            long location[] = eldest.next();
+            eldest.remove();
+            discard(location);
+        }
+    }
+
+    /**
+     * Reads the value of the given key from the spill file.
+     *
+     * @return the value, or <code>null</code> if it is not in the file
+     */
+    private Object unspill(Object key) {
+        long location[] = spilled.get(key);
+        if (location == null) {
+            return null;
+        }
+        try {
+            byte bytes[] = new byte[(int) location[1]];
+            spill.seek(location[0]);
+            spill.readFully(bytes);
+            return new Serialized(bytes);
+        } catch (IOException ex) {
+            spilled.remove(key);
+            discard(location);
+            return null;
+        }
+    }
+
+    /**
+     * Marks as discarded the given location of the spill file, compacting it
+     * when more than a half of the file is discarded.
+     *
+     * @param location the position and length of the discarded result
+     */
+    private void discard(long location[]) {
+        spillGarbage += location[1];
+        if (2 * spillGarbage <= spillLength) {
+            return;
+        }
+        // The results are moved towards the beginning of the file, in order
+        List<long[]> locations = new ArrayList<>(spilled.values());
+        locations.sort((a, b) -> Long.compare(a[0], b[0]));
+        long position = 0;
+        try {
+            for (long l[] : locations) {
+                if (l[0] != position) {
+                    byte bytes[] = new byte[(int) l[1]];
+                    spill.seek(l[0]);
+                    spill.readFully(bytes);
+                    spill.seek(position);
+                    spill.write(bytes);
+                    l[0] = position;
+                }
+                position += l[1];
+            }
+            spill.setLength(position);
+        } catch (IOException ex) {
+            // The content of the file is not reliable anymore
+            spilled.clear();
+            position = 0;
+        }
+        spillLength = position;
+        spillGarbage = 0;
+    }
+
+    /**
+     * Returns the classifier whose results are kept.
+     *
+     * @return the wrapped classifier
+     */
+    public Classifier<T, R> getClassifier() {
+        return classifier;
+    }
+
+    /**
+     * Returns the maximum number of results kept in memory.
+     *
+     * @return the capacity of this cache
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the number of results kept in memory.
+     *
+     * @return the number of results in memory
+     */
+    public synchronized int size() {
+        return memory.size();
+    }
+
+    /**
+     * Returns the maximum number of results kept in the spill file.
+     *
+     * @return the capacity of the spill file
+     */
+    public int getSpillCapacity() {
+        return spillCapacity;
+    }
+
+    /**
+     * Returns the number of results kept in the spill file.
+     *
+     * @return the number of results in the spill file
+     */
+    public synchronized int getSpilledCount() {
+        return spilled.size();
+    }
+
+    /**
+     * Returns the length (in bytes) of the spill file.
+     *
+     * @return the length of the spill file (zero if it is not used)
+     */
+    public synchronized long getSpillLength() {
+        return spillLength;
+    }
+
+    /**
+     * Returns the number of classifications answered from memory.
+     *
+     * @return the number of hits in memory
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the number of classifications answered from the spill file.
+     *
+     * @return the number of hits in the spill file
+     */
+    public long getSpillHitCount() {
+        return spillHits.sum();
+    }
+
+    /**
+     * Returns the number of classifications done by the wrapped classifier.
+     *
+     * @return the number of misses
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns the fraction of classifications answered by this cache (from
+     * memory or from the spill file).
+     *
+     * @return the hit rate, in [0,1] (zero if there are not classifications)
+     */
+    public double getHitRate() {
+        long found = hits.sum() + spillHits.sum(), total = found + misses.sum();
+        return total > 0 ? (double) found / total : 0.0;
+    }
+
+    /**
+     * Removes all the results of this cache (in memory and in the spill file)
+     * and resets the statistics.
+     *
+     * @throws IOException if the spill file can not be truncated
+     */
+    public synchronized void clear() throws IOException {
+        memory.clear();
+        spilled.clear();
+        spillLength = 0;
+        spillGarbage = 0;
+        if (spill != null) {
+            spill.setLength(0);
+        }
+        hits.reset();
+        spillHits.reset();
+        misses.reset();
+    }
+
+    /**
+     * Closes the spill file (if any). The results in memory are kept, but
+     * the discarded ones are not written anymore.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (spill != null) {
+            spill.close();
+            spill = null;
+            spilled.clear();
+            spillLength = 0;
+            spillGarbage = 0;
+        }
+    }
+
+    /**
+     * Returns a string representation of this classifier.
+     *
+     * @return a string representation of this classifier
+     */
+    @Override
+    public String toString() {
+        return "CachingClassifier(capacity=" + capacity + ", hits=" + getHitCount() + ", spill hits="
+                + getSpillHitCount() + ", misses=" + getMissCount() + ", hit rate="
+                + String.format("%.3f", getHitRate()) + ")";
+    }
+
+    /**
+     * Returns a new empty cache with the same parameters after
+     * deserialization (the results and the spill file are not serialized).
+     *
+     * @return a new caching classifier
+     */
+    private Object readResolve() {
+        return new CachingClassifier<>(classifier, capacity);
+    }
+
+    /**
+     * Results kept in memory, in access order. When the capacity is exceeded,
+     * the least recently used result is discarded (and written to the spill
+     * file, if it is used).
+     */
+    private class Memory extends LinkedHashMap<Object, Object> {
+        private static final long serialVersionUID = 1L;
+
+        Memory() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Object, Object> eldest) {
+            if (size() > capacity) {
+                spill(eldest.getKey(), eldest.getValue());
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Serialized form of a result.
+     */
+    static private class Serialized {
+        final byte bytes[];
+
+        Serialized(byte bytes[]) {
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Key of an image, given by the hash of its content and its size.
+     */
+    static private class ImageKey {
+        final long hash;
+        final int width, height;
+
+        ImageKey(long hash, int width, int height) {
+            this.hash = hash;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ImageKey)) {
+                return false;
+            }
+            ImageKey k = (ImageKey) o;
+            return hash == k.hash && width == k.width && height == k.height;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(hash);
+        }
+    }
+}
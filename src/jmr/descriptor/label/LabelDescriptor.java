@@ -6,8 +6,6 @@ import java.security.InvalidParameterException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.function.BinaryOperator;
-import java.util.function.UnaryOperator;
 import jmr.descriptor.Comparator;
 import jmr.descriptor.MediaDescriptorAdapter;
 
@@ -20,6 +18,7 @@ import jmr.descriptor.MediaDescriptorAdapter;
  */
 public class LabelDescriptor<T> extends MediaDescriptorAdapter<T> implements Serializable{
     
+    private static final long serialVersionUID = -2616017930854347632L;
     /**
      * List of labels associated to this descriptor.
      */
@@ -33,6 +32,11 @@ public class LabelDescriptor<T> extends MediaDescriptorAdapter<T> implements Ser
      * functional interface, allowing lambda expressions.
      */
     private transient Classifier<T, ? extends LabeledClassification> classifier = null;
+    /**
+     * Labels and weights of this descriptor coded by means of the label
+     * dictionary. They are calculated when needed by the comparisons.
+     */
+    private transient LabelCodes codes = null;
     /**
      * Comparator used by default.
      */
@@ -66,6 +70,7 @@ public class LabelDescriptor<T> extends MediaDescriptorAdapter<T> implements Ser
             this.labels =  new ArrayList();
             this.labels.add((String)media);
             this.weights = null;
+            this.codes = null;
         }       
     }   
     
@@ -100,6 +105,7 @@ public class LabelDescriptor<T> extends MediaDescriptorAdapter<T> implements Ser
         this.labels =  new ArrayList(Arrays.asList(labels));          
         this.labels.add(0,label);
         this.weights = null;
+        this.codes = null;
     }
     
     
@@ -121,6 +127,7 @@ public class LabelDescriptor<T> extends MediaDescriptorAdapter<T> implements Ser
             labels = null;
             weights = null;
         }
+        codes = null;
         // When this method is called from the superclass constructor, the local
         // member data, and particularly the classifier, are not initialized 
         // yet. Thus, in the construction process, the previous code always 
@@ -207,6 +214,7 @@ public class LabelDescriptor<T> extends MediaDescriptorAdapter<T> implements Ser
             throw new InvalidParameterException("The number of weight must be "+this.labels.size());
         }        
         this.weights =  new ArrayList(Arrays.asList(weights));          
+        this.codes = null;
     }
     
     /**
@@ -293,20 +301,8 @@ public class LabelDescriptor<T> extends MediaDescriptorAdapter<T> implements Ser
      * descriptor <tt>u</tt>, <tt>false</tt> in other case.
      */
      public boolean isIncluded(LabelDescriptor u) {
-        int equal;
-        String label_i;
-        for (int i = 0; i < this.size(); i++) {
-            label_i = this.getLabel(i);
-            equal = 1;
-            // We search the nearest one
-            for (int j = 0; j < u.size() && equal != 0; j++) {
-                equal = label_i.compareToIgnoreCase(u.getLabel(j)); // 0 if equals
-            }
-            if (equal != 0) {
-                return false; //Same label not found
-            }
-        }
-        return true; //If this descriptor has not labels, it is included in u
+        //If this descriptor has not labels, it is included in u
+        return isIncluded(this.codes().keys, u.codes().keys);
     }
     
     /**
@@ -318,57 +314,188 @@ public class LabelDescriptor<T> extends MediaDescriptorAdapter<T> implements Ser
      * included in the descriptor <tt>u</tt>, <tt>false</tt> in other case.
      */
     public boolean isSoftIncluded(LabelDescriptor u) {
-        int equal;
-        String label_i;
         if(this.size()==0) return true; //If this descriptor has not labels, it is included in u
-        for (int i = 0; i < this.size(); i++) {
-            label_i = this.getLabel(i);
-            for (int j = 0; j < u.size(); j++) {
-                equal = label_i.compareToIgnoreCase(u.getLabel(j)); // 0 if equals
-                if(equal==0) return true;
+        int t_keys[] = this.codes().keys, u_keys[] = u.codes().keys;
+        for (int i = 0, j = 0; i < t_keys.length && j < u_keys.length;) {
+            if (t_keys[i] == u_keys[j]) {
+                return true;
+            } else if (t_keys[i] < u_keys[j]) {
+                i++;
+            } else {
+                j++;
             }
         }
         return false;
     } 
+    
+    /**
+     * Returns <tt>true</tt> if the first sorted array of label identifiers is
+     * included in the second one. Both arrays are traversed only once.
+     *
+     * @param t_keys the first array of label identifiers.
+     * @param u_keys the second array of label identifiers.
+     * @return <tt>true</tt> if every identifier of the first array is in the
+     * second one, <tt>false</tt> in other case.
+     */
+    static private boolean isIncluded(int t_keys[], int u_keys[]) {
+        if (t_keys.length > u_keys.length) {
+            return false;
+        }
+        int j = 0;
+        for (int i = 0; i < t_keys.length; i++, j++) {
+            while (j < u_keys.length && u_keys[j] < t_keys[i]) {
+                j++;
+            }
+            if (j == u_keys.length || u_keys[j] != t_keys[i]) {
+                return false; //Same label not found
+            }
+        }
+        return true;
+    }
      
     /**
      * Returns a value related to the distance in which this descriptor is
      * included in the one given by parameter. This method is used in comparator
      * inner classes.
      *
+     * The labels of this descriptor are traversed in the order of their
+     * identifiers, merging them with the sorted identifiers of <tt>u</tt>, so
+     * the comparison is linear and no objects are created.
+     *
      * @param u the second label descriptor.
-     * @param op_init the unary operator used to initialize the distance
-     * accumulator (as a function of the fisrt distance).
-     * @param op_aggregation the binary operator used to aggregate a new
-     * distance to the previous ones.
+     * @param type the type of distance aggregation (see
+     * {@link WeightBasedComparator}).
      * @return a value related to the degree in which the first descriptor is
      * included in the second one (Double.POSITIVE_INFINITY if some label is not
      * included)
      */
-    private Double inclusionDistance(LabelDescriptor u, 
-            UnaryOperator<Double> op_init, BinaryOperator<Double> op_aggregation) {
-        int equal;
-        String label_i;
-        Double dist = null, dist_ij= null;
-        
-        for (int i = 0; i < this.size(); i++) {
-            label_i = this.getLabel(i);
-            equal = 1;
-            // We search the same label
-            for (int j = 0; j < u.size() && equal != 0; j++) {
-                equal = label_i.compareToIgnoreCase(u.getLabel(j)); // 0 if equals                  
-                if (equal == 0) {
-                    //We assume that the distance is given by the first coincidence
-                    dist_ij = Math.abs(this.getWeight(i) - u.getWeight(j));
-                }
+    private double inclusionDistance(LabelDescriptor u, int type) {
+        LabelCodes t_codes = this.codes(), u_codes = u.codes();
+        double dist = 0.0, dist_ij;
+        int i, j = 0;
+        for (int p = 0; p < t_codes.order.length; p++) {
+            i = t_codes.order[p];
+            while (j < u_codes.keys.length && u_codes.keys[j] < t_codes.ids[i]) {
+                j++;
             }
-            if (equal != 0) {
+            if (j == u_codes.keys.length || u_codes.keys[j] != t_codes.ids[i]) {
                 return Double.POSITIVE_INFINITY; //Same label not found
+            }
+            if (t_codes.weights == null || u_codes.weights == null) {
+                throw new InvalidParameterException("The weight-based comparison requires weighted descriptors.");
+            }
+            //We assume that the distance is given by the first coincidence
+            dist_ij = Math.abs(t_codes.weights[i] - u_codes.keyWeights[j]);
+            switch (type) {
+                case WeightBasedComparator.TYPE_MAX:
+                    dist = p == 0 ? dist_ij : Math.max(dist, dist_ij);
+                    break;
+                case WeightBasedComparator.TYPE_MIN:
+                    dist = p == 0 ? dist_ij : Math.min(dist, dist_ij);
+                    break;
+                case WeightBasedComparator.TYPE_MEAN:
+                    dist += dist_ij;
+                    break;
+                default:
+                    dist += dist_ij * dist_ij;
+            }
+        }
+        return dist; //If this descriptor has not labels, it is included in u 
+    }
+    
+    /**
+     * Returns the labels and weights of this descriptor coded by means of the
+     * label dictionary, calculating them if needed.
+     *
+     * @return the coded labels and weights of this descriptor.
+     */
+    private LabelCodes codes() {
+        LabelCodes output = codes;
+        if (output == null) {
+            codes = output = new LabelCodes(labels, weights);
+        }
+        return output;
+    }
+    
+    /**
+     * Labels and weights of a descriptor coded by means of the
+     * {@link LabelDictionary}. Objects of this class are immutable, so they
+     * can be shared by several threads.
+     */
+    static private class LabelCodes {
+        /**
+         * Identifier of each label (in the order of the labels).
+         */
+        final int ids[];
+        /**
+         * Weight of each label (in the order of the labels); <code>null</code>
+         * if the descriptor is not weighted.
+         */
+        final double weights[];
+        /**
+         * Positions of the labels sorted by their identifiers (the repeated
+         * labels in the order of their positions).
+         */
+        final int order[];
+        /**
+         * Sorted identifiers of the distinct labels.
+         */
+        final int keys[];
+        /**
+         * Weight of the first occurrence of each distinct label (in the order
+         * of <code>keys</code>); <code>null</code> if the descriptor is not
+         * weighted.
+         */
+        final double keyWeights[];
+
+        /**
+         * Codes the given labels and weights.
+         *
+         * @param labels the labels (it may be <code>null</code>).
+         * @param weights the weights (it may be <code>null</code>).
+         */
+        LabelCodes(List<String> labels, List<Double> weights) {
+            int n = labels != null ? labels.size() : 0;
+            ids = new int[n];
+            for (int i = 0; i < n; i++) {
+                ids[i] = LabelDictionary.id(labels.get(i));
+            }
+            // The identifiers are not negative, so sorting them together with
+            // their positions keeps the repeated labels in order
+            long sorted[] = new long[n];
+            for (int i = 0; i < n; i++) {
+                sorted[i] = (long) ids[i] << 32 | i;
+            }
+            Arrays.sort(sorted);
+            order = new int[n];
+            for (int i = 0; i < n; i++) {
+                order[i] = (int) sorted[i];
+            }
+            if (weights != null) {
+                this.weights = new double[n];
+                for (int i = 0; i < n; i++) {
+                    Double weight = weights.get(i);
+                    this.weights[i] = weight != null ? weight : Double.NaN;
+                }
             } else {
-                dist = dist==null ? op_init.apply(dist_ij) : op_aggregation.apply(dist,dist_ij);
+                this.weights = null;
             }
+            // The first occurrence of each label sets the weight of its
+            // identifier
+            int distinct[] = new int[n], k = 0;
+            double distinctWeights[] = this.weights != null ? new double[n] : null;
+            for (int p = 0; p < n; p++) {
+                int i = order[p];
+                if (k == 0 || ids[i] != distinct[k - 1]) {
+                    if (distinctWeights != null) {
+                        distinctWeights[k] = this.weights[i];
+                    }
+                    distinct[k++] = ids[i];
+                }
+            }
+            keys = Arrays.copyOf(distinct, k);
+            keyWeights = distinctWeights != null ? Arrays.copyOf(distinctWeights, k) : null;
         }
-        return dist!=null ? dist : op_init.apply(0.0);  //If this descriptor has not labels, it is included in u 
     }
     
     /**
@@ -396,7 +523,8 @@ public class LabelDescriptor<T> extends MediaDescriptorAdapter<T> implements Ser
             if(t.size() != u.size()){
                 return Double.POSITIVE_INFINITY;
             }                         
-            return (t.isIncluded(u) && u.isIncluded(t)) ? 0.0 : Double.POSITIVE_INFINITY;            
+            // Same number of labels and same distinct labels
+            return Arrays.equals(t.codes().keys, u.codes().keys) ? 0.0 : Double.POSITIVE_INFINITY;            
         }
     }
      
@@ -448,16 +576,6 @@ public class LabelDescriptor<T> extends MediaDescriptorAdapter<T> implements Ser
          * If true, only inclusion is tested (not equality)
          */
         boolean only_inclusion;
-        /**
-         * The unary operator used to initialize the distance accumulator (as a
-         * function of the fisrt distance).
-         */
-        private transient UnaryOperator<Double> op_init;  // Class non serializable 
-        /**
-         * The binary operator used to aggregate a new distance to the previous
-         * ones.
-         */
-        private transient BinaryOperator<Double> op_aggregation; // Class non serializable
 
         /**
          * Constructs a new comparator based on the given type of distance
@@ -468,25 +586,8 @@ public class LabelDescriptor<T> extends MediaDescriptorAdapter<T> implements Ser
          * <tt>false</tt>, equality is tested;
          */
         public WeightBasedComparator(int type, boolean only_inclusion) {
-            switch (type) {
-                case TYPE_MAX:
-                    op_init = (a) -> a;
-                    op_aggregation = (a, b) -> Math.max(a, b);
-                    break;
-                case TYPE_MIN:
-                    op_init = (a) -> a;
-                    op_aggregation = (a, b) -> Math.min(a, b);
-                    break;
-                case TYPE_MEAN:
-                    op_init = (a) -> a;
-                    op_aggregation = (a, b) -> (a + b);
-                    break;
-                case TYPE_EUCLIDEAN:
-                    op_init = (a) -> (a * a);
-                    op_aggregation = (a, b) -> (a + b * b);
-                    break;
-                default:
-                    throw new InvalidParameterException("Invalid distance aggregator type");
+            if (type < TYPE_MAX || type > TYPE_EUCLIDEAN) {
+                throw new InvalidParameterException("Invalid distance aggregator type");
             }
             this.type = type;
             this.only_inclusion = only_inclusion;
@@ -527,7 +628,7 @@ public class LabelDescriptor<T> extends MediaDescriptorAdapter<T> implements Ser
             // between t and u will be given by the inclusion of t in u (which 
             // will be the same that the inclusion of u in t). If the labels are
             // different, the inclusion will be Double.POSITIVE_INFINITY
-            Double output = t.inclusionDistance(u, op_init, op_aggregation);
+            double output = t.inclusionDistance(u, type);
             if (type == TYPE_MEAN) {
                 return output / t.size();
             }
@@ -0,0 +1,111 @@
+package jmr.descriptor.label;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Vocabulary of labels shared by all the {@link LabelDescriptor} objects.
+ *
+ * Each label is interned and associated to an integer identifier, so two
+ * labels have the same identifier if and only if they are equal ignoring case
+ * (as in {@link String#compareToIgnoreCase(java.lang.String)}). The label
+ * descriptors keep the identifiers of their labels sorted, so they are
+ * compared by merging two integer arrays instead of comparing every pair of
+ * strings.
+ *
+ * The identifiers are assigned in order of appearance and they are never
+ * released, so they are only valid in the running virtual machine (they are
+ * not serialized with the descriptors). This class is thread-safe.
+ *
+ * @author Jesús Chamorro Martínez (jesus@decsai.ugr.es)
+ */
+public class LabelDictionary {
+    /**
+     * Identifier of each normalized label.
+     */
+    static private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    /**
+     * Normalized labels, indexed by their identifier.
+     */
+    static private final List<String> labels = new ArrayList<>();
+
+    /**
+     * This class can not be instantiated.
+     */
+    private LabelDictionary() {
+    }
+
+    /**
+     * Returns the identifier of the given label, adding it to the dictionary
+     * if it is not present.
+     *
+     * @param label the label
+     * @return the identifier of the label
+     */
+    static public int id(String label) {
+        String key = normalize(label);
+        Integer id = ids.get(key);
+        if (id == null) {
+            id = ids.computeIfAbsent(key, k -> {
+                synchronized (labels) {
+                    labels.add(k);
+                    return labels.size() - 1;
+                }
+            });
+        }
+        return id;
+    }
+
+    /**
+     * Returns the identifier of the given label, without adding it to the
+     * dictionary.
+     *
+     * @param label the label
+     * @return the identifier of the label, or -1 if it is not in the
+     * dictionary
+     */
+    static public int lookup(String label) {
+        Integer id = ids.get(normalize(label));
+        return id != null ? id : -1;
+    }
+
+    /**
+     * Returns the normalized label with the given identifier.
+     *
+     * @param id the identifier
+     * @return the normalized label
+     * @throws IndexOutOfBoundsException if there is not a label with the given
+     * identifier
+     */
+    static public String getLabel(int id) {
+        synchronized (labels) {
+            return labels.get(id);
+        }
+    }
+
+    /**
+     * Returns the number of labels in the dictionary.
+     *
+     * @return the number of labels in the dictionary
+     */
+    static public int size() {
+        return ids.size();
+    }
+
+    /**
+     * Returns the normalized form of the given label, so two labels are equal
+     * ignoring case (as in {@link String#compareToIgnoreCase(java.lang.String)})
+     * if and only if their normalized forms are equal.
+     *
+     * @param label the label
+     * @return the normalized label
+     */
+    static public String normalize(String label) {
+        char chars[] = label.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
+        }
+        return new String(chars);
+    }
+}
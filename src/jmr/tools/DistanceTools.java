@@ -0,0 +1,146 @@
+package jmr.tools;
+
+/**
+ * Kernels for the distances between integer feature vectors, shared by the
+ * descriptors and the database scans.
+ *
+ * The kernels are written so the just-in-time compiler can vectorize them:
+ * the absolute differences are added up in <code>int</code> accumulators over
+ * blocks of consecutive elements (simple counted loops without dependencies
+ * between iterations, which are compiled to SIMD instructions where
+ * available), and the block sums are added up in a <code>long</code>. Since
+ * the sums of integers are exact, the results are the same as the ones of the
+ * plain sequential loops. In order to avoid overflows in the block sums, the
+ * absolute differences between the elements must be lower than
+ * {@link #MAX_DIFFERENCE} (the histograms and coefficients of the MPEG7
+ * descriptors are far below that limit).
+ *
+ * @author Jesús Chamorro Martínez (jesus@decsai.ugr.es)
+ */
+public class DistanceTools {
+    /**
+     * Maximum absolute difference between two elements of the vectors.
+     */
+    public static final int MAX_DIFFERENCE = 1 << 20;
+    /**
+     * Number of elements accumulated between two checks of the bound in the
+     * bounded kernels.
+     */
+    public static final int ABANDON_STEP = 16;
+    /**
+     * Number of elements accumulated in an <code>int</code> in the unbounded
+     * kernels (the block sums are lower than <code>2^30</code>).
+     */
+    private static final int BLOCK = 1024;
+
+    /**
+     * This class can not be instantiated.
+     */
+    private DistanceTools() {
+    }
+
+    /**
+     * Returns the L1 distance between the given vectors.
+     *
+     * @param a the first vector
+     * @param b the second vector
+     * @param length the number of elements compared (from the first one)
+     * @return the sum of the absolute differences
+     */
+    public static long l1(int a[], int b[], int length) {
+        return l1(a, 0, b, 0, length);
+    }
+
+    /**
+     * Returns the L1 distance between the subvectors of the given arrays
+     * starting at the given positions.
+     *
+     * @param a the first array
+     * @param aOffset the first position of the first subvector
+     * @param b the second array
+     * @param bOffset the first position of the second subvector
+     * @param length the number of elements compared
+     * @return the sum of the absolute differences
+     */
+    public static long l1(int a[], int aOffset, int b[], int bOffset, int length) {
+        long sum = 0;
+        for (int i = 0; i < length; ) {
+            int end = Math.min(i + BLOCK, length);
+            int block = 0;
+            for (; i < end; i++) {
+                block += Math.abs(a[aOffset + i] - b[bOffset + i]);
+            }
+            sum += block;
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the L1 distance between the subvectors of the given arrays
+     * starting at the given positions, abandoning the sum as soon as it
+     * exceeds the given bound. The partial sum is checked once every
+     * {@link #ABANDON_STEP} elements.
+     *
+     * @param a the first array
+     * @param aOffset the first position of the first subvector
+     * @param b the second array
+     * @param bOffset the first position of the second subvector
+     * @param length the number of elements compared
+     * @param bound the bound of the needed distances
+     * @return the sum of the absolute differences if it is not greater than
+     * the bound, or a partial sum greater than the bound
+     */
+    public static long l1(int a[], int aOffset, int b[], int bOffset, int length, long bound) {
+        long sum = 0;
+        for (int i = 0; i < length; ) {
+            int end = Math.min(i + ABANDON_STEP, length);
+            int block = 0;
+            for (; i < end; i++) {
+                block += Math.abs(a[aOffset + i] - b[bOffset + i]);
+            }
+            sum += block;
+            if (sum > bound) {
+                break;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the L1 distance between the subvectors of the given arrays
+     * starting at the given positions, being the second one an array of
+     * <code>short</code> values (as the compact copies of the coefficients).
+     *
+     * @param a the first array
+     * @param aOffset the first position of the first subvector
+     * @param b the second array
+     * @param bOffset the first position of the second subvector
+     * @param length the number of elements compared
+     * @return the sum of the absolute differences
+     */
+    public static long l1(int a[], int aOffset, short b[], int bOffset, int length) {
+        long sum = 0;
+        for (int i = 0; i < length; ) {
+            int end = Math.min(i + BLOCK, length);
+            int block = 0;
+            for (; i < end; i++) {
+                block += Math.abs(a[aOffset + i] - b[bOffset + i]);
+            }
+            sum += block;
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the greatest integer sum that is not greater than the given
+     * bound of a distance, so an integer sum exceeds the bound if and only if
+     * it exceeds the returned value. An infinite (or NaN) bound gives
+     * {@link Long#MAX_VALUE}, which is never exceeded.
+     *
+     * @param bound the bound of a distance
+     * @return the bound of the integer sums
+     */
+    public static long floor(double bound) {
+        return bound < Long.MAX_VALUE ? (long) Math.floor(bound) : Long.MAX_VALUE;
+    }
+}
@@ -3,6 +3,11 @@ package jmr.tools;
 import java.awt.Dimension;
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.WritableRaster;
+import java.nio.ByteBuffer;
 
 /**
  *
@@ -16,4 +21,68 @@ public class JMRImageTools {
         gImg.drawImage(img,0,0,new_size.width,new_size.height,null);
         return output;
     }
+
+    /**
+     * Returns a 64-bit hash of the content of the given image (its size, its
+     * type and its pixels). Two images with the same content have the same
+     * hash, and images with different content have the same hash with a
+     * negligible probability.
+     *
+     * The data buffer of the image is read directly when it holds only the
+     * pixels of the image (the usual case for images with a byte or integer
+     * buffer); otherwise, the pixels are read as packed RGB values. For that
+     * reason, images with the same pixels but different storage (for example,
+     * a subimage and a copy of it) may have different hashes.
+     *
+     * @param img the image
+     * @return the hash of the image content
+     */
+    public static long contentHash(BufferedImage img){
+        long h = mix(0x243F6A8885A308D3L, ((long)img.getWidth() << 32) | img.getHeight());
+        h = mix(h, img.getType());
+        WritableRaster raster = img.getRaster();
+        DataBuffer buffer = raster.getDataBuffer();
+        boolean whole = raster.getParent() == null && buffer.getNumBanks() == 1
+                && raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0;
+        if (whole && buffer instanceof DataBufferByte) {
+            byte data[] = ((DataBufferByte) buffer).getData();
+            ByteBuffer bytes = ByteBuffer.wrap(data);
+            int i = 0;
+            for (; i + 8 <= data.length; i += 8) {
+                h = mix(h, bytes.getLong(i));
+            }
+            for (; i < data.length; i++) {
+                h = mix(h, data[i]);
+            }
+        } else if (whole && buffer instanceof DataBufferInt) {
+            int data[] = ((DataBufferInt) buffer).getData();
+            int i = 0;
+            for (; i + 2 <= data.length; i += 2) {
+                h = mix(h, ((long) data[i] << 32) | (data[i + 1] & 0xFFFFFFFFL));
+            }
+            if (i < data.length) {
+                h = mix(h, data[i]);
+            }
+        } else {
+            int row[] = new int[img.getWidth()];
+            for (int y = 0; y < img.getHeight(); y++) {
+                img.getRGB(0, y, row.length, 1, row, 0, row.length);
+                for (int x = 0; x < row.length; x++) {
+                    h = mix(h, row[x]);
+                }
+            }
+        }
+        // Final avalanche
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Combines the given hash with the given value.
+     */
+    private static long mix(long h, long v){
+        return Long.rotateLeft(h ^ (v * 0x9E3779B97F4A7C15L), 27) * 0xC2B2AE3D27D4EB4FL;
+    }
 }
@@ -5,7 +5,7 @@ import java.io.Serializable;
 import java.security.InvalidParameterException;
 import java.util.ArrayList;
 import java.util.List;
-import jmr.descriptor.Comparator;
+import jmr.descriptor.BoundedComparator;
 import jmr.descriptor.MediaDescriptor;
 import jmr.descriptor.MediaDescriptorAdapter;
 import jmr.descriptor.MediaDescriptorFactory;
@@ -134,10 +134,28 @@ public class KeyFrameDescriptor extends MediaDescriptorAdapter<Video> implements
      * frame descriptors. As default comparator, the minimun distance between
      * frames is used.
      */
-    static public class DefaultComparator implements Comparator<KeyFrameDescriptor, Double> {
+    static public class DefaultComparator implements BoundedComparator<KeyFrameDescriptor> {
+        private static final long serialVersionUID = 2287158955426987622L;
 
         @Override
         public Double apply(KeyFrameDescriptor t, KeyFrameDescriptor u) {
+            return apply(t, u, Double.POSITIVE_INFINITY);
+        }
+
+        /**
+         * Calculates the minimun distance between frames, when it is needed
+         * only if it is not greater than the given bound. Each pair of frames
+         * is compared with the minimun of the bound and the current minimun 
+         * distance, so the comparisons of the farther pairs are abandoned.
+         *
+         * @param t the first descriptor.
+         * @param u the second descriptor.
+         * @param bound the bound of the needed distances.
+         * @return the minimun distance between frames, or a value greater than
+         * the bound.
+         */
+        @Override
+        public Double apply(KeyFrameDescriptor t, KeyFrameDescriptor u, double bound) {
             Double min_distance = Double.MAX_VALUE;
             try {
                 Double item_distance;
@@ -146,7 +164,9 @@ public class KeyFrameDescriptor extends MediaDescriptorAdapter<Video> implements
                     m1 = t.descriptors.get(i);
                     for (int j = 0; j < u.descriptors.size(); j++) {
                         m2 = u.descriptors.get(j);
-                        item_distance = (Double) m1.compare(m2);
+                        // A value greater than the minimun of both is either
+                        // useless or greater than the bound
+                        item_distance = m1.compare(m2, Math.min(min_distance, bound));
                         if (item_distance < min_distance) {
                             min_distance = item_distance;
                         }
@@ -6,7 +6,7 @@
 package jmr.video;
 
 import java.security.InvalidParameterException;
-import jmr.descriptor.Comparator;
+import jmr.descriptor.BoundedComparator;
 import jmr.descriptor.MediaDescriptor;
 
 /**
@@ -16,20 +16,43 @@ import jmr.descriptor.MediaDescriptor;
  * 
  * @author Jesús Chamorro Martínez (jesus@decsai.ugr.es)
  */
-public class MinMinComparator implements Comparator<KeyFrameDescriptor, Double> {
+public class MinMinComparator implements BoundedComparator<KeyFrameDescriptor> {
+        private static final long serialVersionUID = -2767077468414209360L;
+        
         @Override
         public Double apply(KeyFrameDescriptor t, KeyFrameDescriptor u) {
+            return apply(t, u, Double.POSITIVE_INFINITY);
+        }
+        
+        /**
+         * Calculates the squared minimun distance between frames, abandoning
+         * the comparisons of the pairs of frames farther than the current 
+         * minimun or than the square root of the given bound.
+         *
+         * @param t the first descriptor.
+         * @param u the second descriptor.
+         * @param bound the bound of the needed distances.
+         * @return the squared minimun distance between frames, or a value 
+         * greater than the bound.
+         */
+        @Override
+        public Double apply(KeyFrameDescriptor t, KeyFrameDescriptor u, double bound) {
             Double min_distance = Double.MAX_VALUE;
+            double frame_bound = Math.sqrt(bound);
+            boolean exact = true;
             try {
                 Double item_distance;
                 MediaDescriptor m1, m2;
+                double item_bound;
                 for (int i = 0; i < t.getDescriptors().size(); i++) {
                     m1 = (MediaDescriptor)t.getDescriptors().get(i);
                     for (int j = 0; j < u.getDescriptors().size(); j++) {
                         m2 = (MediaDescriptor)u.getDescriptors().get(j);
-                        item_distance = (Double) m1.compare(m2);
+                        item_bound = Math.min(min_distance, frame_bound);
+                        item_distance = m1.compare(m2, item_bound);
                         if (item_distance < min_distance) {
                             min_distance = item_distance;
+                            exact = item_distance <= item_bound;
                         }
                     }
                 }
@@ -38,6 +61,10 @@ public class MinMinComparator implements Comparator<KeyFrameDescriptor, Double>
             } catch (Exception e) {
                 throw new InvalidParameterException("The descriptors are not comparables.");
             }
+            if (!exact && min_distance*min_distance <= bound) {
+                // Abandoned because of rounding errors in the frame bound
+                return apply(t, u);
+            }
             return min_distance*min_distance;
         }
 
@@ -0,0 +1,122 @@
+package jmr.colorspace;
+
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * Checks that the conversion of {@link ColorConvertTools} (by rows, with a
+ * table of the converted colors) gives the same values than converting each
+ * pixel with {@link ColorSpace#fromRGB(float[])}.
+ *
+ * @author Jesús Chamorro Martínez (jesus@decsai.ugr.es)
+ */
+public class ColorConvertToolsTest {
+    /**
+     * Standard image types checked.
+     */
+    public static final int TYPES[] = {
+        BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB,
+        BufferedImage.TYPE_INT_ARGB_PRE, BufferedImage.TYPE_INT_BGR,
+        BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_4BYTE_ABGR,
+        BufferedImage.TYPE_4BYTE_ABGR_PRE, BufferedImage.TYPE_USHORT_565_RGB,
+        BufferedImage.TYPE_USHORT_555_RGB, BufferedImage.TYPE_BYTE_GRAY,
+        BufferedImage.TYPE_USHORT_GRAY, BufferedImage.TYPE_BYTE_BINARY,
+        BufferedImage.TYPE_BYTE_INDEXED};
+    /**
+     * Color spaces checked.
+     */
+    static final int COLOR_SPACES[] = {
+        ColorSpaceJMR.CS_HSV, ColorSpaceJMR.CS_HMMD, ColorSpaceJMR.CS_Lab,
+        ColorSpaceJMR.CS_Luv, ColorSpaceJMR.CS_HSI, ColorSpaceJMR.CS_YCbCr};
+
+    /**
+     * Creates an image of the given type whose pixels are taken, in runs of
+     * random length, from a palette of random colors (so there are repeated
+     * colors, as in natural images, and colors sharing the same entry of the
+     * color table).
+     *
+     * @param type the image type
+     * @param width the image width
+     * @param height the image height
+     * @param seed the seed of the pixels
+     * @return the new image
+     */
+    public static BufferedImage image(int type, int width, int height, int seed) {
+        Random random = new Random(seed);
+        int palette[] = new int[700];
+        for (int i = 0; i < palette.length; i++) {
+            palette[i] = random.nextInt();
+        }
+        BufferedImage image = new BufferedImage(width, height, type);
+        int rgb = 0, run = 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (run-- == 0) {
+                    rgb = palette[random.nextInt(palette.length)];
+                    run = random.nextInt(12);
+                }
+                image.setRGB(x, y, rgb);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Returns an image of each type of {@link #TYPES} and some subimages (of
+     * images with integer and byte buffers).
+     *
+     * @param width the width of the images
+     * @param height the height of the images
+     * @return the images
+     */
+    public static List<BufferedImage> images(int width, int height) {
+        List<BufferedImage> images = new ArrayList<>();
+        for (int type : TYPES) {
+            images.add(image(type, width, height, type));
+        }
+        for (int type : new int[]{BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB_PRE,
+            BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_4BYTE_ABGR}) {
+            images.add(image(type, width + 20, height + 10, -type).getSubimage(7, 3, width, height));
+        }
+        return images;
+    }
+
+    /**
+     * Checks that the given converted image has, in each pixel, the values
+     * given by the color space for the RGB value of the source pixel.
+     */
+    static void assertConverted(BufferedImage src, ColorSpace cs, BufferedImage dst) {
+        Raster raster = dst.getRaster();
+        float p_in[] = new float[3], pixel[] = new float[raster.getNumBands()];
+        for (int y = 0; y < src.getHeight(); y++) {
+            for (int x = 0; x < src.getWidth(); x++) {
+                int RGB = src.getRGB(x, y);
+                p_in[0] = (float) ((RGB >> 16) & 0xFF) / 255.0f;
+                p_in[1] = (float) ((RGB >> 8) & 0xFF) / 255.0f;
+                p_in[2] = (float) (RGB & 0xFF) / 255.0f;
+                float expected[] = cs.fromRGB(p_in);
+                raster.getPixel(x, y, pixel);
+                for (int b = 0; b < pixel.length; b++) {
+                    assertEquals(Float.floatToIntBits(expected[b]), Float.floatToIntBits(pixel[b]));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void conversionMatchesFromRGB() {
+        for (BufferedImage src : images(150, 140)) {
+            for (int type : COLOR_SPACES) {
+                ColorSpace cs = ColorSpaceJMR.getInstance(type);
+                assertConverted(src, cs, ColorConvertTools.colorConvertOp(src, cs));
+                assertConverted(src, cs, ColorConvertTools.colorConvertOp(src, cs, true));
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package jmr.db;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.List;
+import jmr.descriptor.BoundedComparator;
+import jmr.descriptor.DescriptorList;
+import jmr.descriptor.GriddedDescriptor;
+import jmr.descriptor.MediaDescriptor;
+import jmr.descriptor.color.MPEG7ColorStructure;
+import jmr.descriptor.color.MPEG7ScalableColor;
+import jmr.descriptor.label.LabelDescriptor;
+import jmr.result.ResultMetadata;
+import jmr.video.FrameCollection;
+import jmr.video.KeyFrameDescriptor;
+import jmr.video.MinMinComparator;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Checks that the bounded comparisons (see {@link BoundedComparator}) give the
+ * same distances than the whole ones when they are not greater than the bound,
+ * and that the scans using them return the same nearest records.
+ *
+ * @author Jesús Chamorro Martínez (jesus@decsai.ugr.es)
+ */
+public class BoundedComparatorTest {
+    /**
+     * Number of records of the test database.
+     */
+    static final int SIZE = 300;
+
+    /**
+     * Checks the contract of the given comparator for the given descriptors
+     * and several bounds around their distance.
+     */
+    static <D extends MediaDescriptor> void assertBounded(BoundedComparator<D> comparator, D t, D u) {
+        double distance = comparator.apply(t, u);
+        for (double bound : new double[]{0.0, distance / 2, Math.nextDown(distance),
+            distance, distance * 2, Double.POSITIVE_INFINITY}) {
+            double bounded = comparator.apply(t, u, bound);
+            if (distance <= bound) {
+                assertEquals(distance, bounded, 0.0);
+            } else {
+                assertTrue(bounded > bound && bounded <= distance);
+            }
+        }
+    }
+
+    @Test
+    public void griddedDescriptor() {
+        boolean parallel = GriddedDescriptor.isParallel();
+        int threshold = GriddedDescriptor.getParallelThreshold();
+        try {
+            for (boolean mode : new boolean[]{false, true}) {
+                GriddedDescriptor.setParallel(mode);
+                GriddedDescriptor.setParallelThreshold(1);
+                for (int i = 0; i < 4; i++) {
+                    GriddedDescriptor<BufferedImage> t = new GriddedDescriptor<>(ListDBLegacyTest.image(i), new Dimension(4, 4), MPEG7ScalableColor.class);
+                    GriddedDescriptor<BufferedImage> u = new GriddedDescriptor<>(ListDBLegacyTest.image(i + 10), new Dimension(4, 4), MPEG7ScalableColor.class);
+                    assertBounded((BoundedComparator<GriddedDescriptor<BufferedImage>>) t.getComparator(), t, u);
+                }
+            }
+        } finally {
+            GriddedDescriptor.setParallel(parallel);
+            GriddedDescriptor.setParallelThreshold(threshold);
+        }
+    }
+
+    @Test
+    public void keyFrameDescriptor() {
+        for (int i = 0; i < 4; i++) {
+            KeyFrameDescriptor t = new KeyFrameDescriptor(new FrameCollection(Arrays.asList(
+                    ListDBLegacyTest.image(i), ListDBLegacyTest.image(i + 1), ListDBLegacyTest.image(i + 2))));
+            KeyFrameDescriptor u = new KeyFrameDescriptor(new FrameCollection(Arrays.asList(
+                    ListDBLegacyTest.image(i + 20), ListDBLegacyTest.image(i + 30))));
+            assertBounded((BoundedComparator<KeyFrameDescriptor>) t.getComparator(), t, u);
+            assertBounded(new MinMinComparator(), t, u);
+        }
+    }
+
+    /**
+     * Creates a database whose records have two packed descriptors (scalable
+     * color and color structure) and an unpacked one (a label).
+     *
+     * @return the new database
+     */
+    static ListDB<BufferedImage> database() {
+        ListDB<BufferedImage> db = new ListDB<>(MPEG7ScalableColor.class,
+                MPEG7ColorStructure.class, LabelDescriptor.ImageLabelDescriptor.class);
+        for (int i = 0; i < SIZE; i++) {
+            BufferedImage image = ListDBLegacyTest.image(i);
+            DescriptorList<BufferedImage> descriptors = new DescriptorList<>(null);
+            descriptors.add(ListDBFormatTest.detach(new MPEG7ScalableColor(image)));
+            descriptors.add(ListDBFormatTest.detach(new MPEG7ColorStructure(image)));
+            descriptors.add(new LabelDescriptor.ImageLabelDescriptor("l" + (i % 11)));
+            db.add(db.new Record(descriptors));
+        }
+        return db;
+    }
+
+    @Test
+    public void boundedScanMatchesWholeDistances() {
+        ListDB<BufferedImage> db = database();
+        for (int q = 0; q < 5; q++) {
+            ListDB<BufferedImage>.Record query = db.get(q * 59);
+            // All the distances, calculated without bound
+            List<ResultMetadata<Double, ListDB<BufferedImage>.Record>> expected = db.queryMetadata(query);
+            for (boolean columnar : new boolean[]{false, true}) {
+                db.setColumnar(columnar);
+                List<ResultMetadata<Double, ListDB<BufferedImage>.Record>> actual = db.queryMetadata(query, 20);
+                assertEquals(20, actual.size());
+                for (int i = 0; i < actual.size(); i++) {
+                    assertEquals(expected.get(i).getResult(), actual.get(i).getResult(), 0.0);
+                    assertTrue(expected.get(i).getMetadata() == actual.get(i).getMetadata());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package jmr.db;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.URL;
+import java.util.List;
+import jmr.descriptor.DescriptorList;
+import jmr.descriptor.MediaDescriptor;
+import jmr.descriptor.color.MPEG7ScalableColor;
+import jmr.descriptor.label.LabelDescriptor;
+import jmr.result.ResultMetadata;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that the databases written by {@link ListDB#save(java.io.File)} are
+ * read back with the same records, both by {@link ListDB#open(java.io.File)}
+ * and by {@link MappedListDB}.
+ *
+ * @author Jesús Chamorro Martínez (jesus@decsai.ugr.es)
+ */
+public class ListDBFormatTest {
+    /**
+     * Number of records of the test database.
+     */
+    static final int SIZE = 40;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Creates a database with a fixed-width section (the scalable color
+     * descriptors) and a variable-width one (the labels), with repeated and
+     * missing locators.
+     *
+     * @return the new database
+     * @throws IOException if a locator is not valid
+     */
+    static ListDB<BufferedImage> database() throws IOException {
+        ListDB<BufferedImage> db = new ListDB<>(MPEG7ScalableColor.class, LabelDescriptor.ImageLabelDescriptor.class);
+        for (int i = 0; i < SIZE; i++) {
+            DescriptorList<BufferedImage> descriptors = new DescriptorList<>(null);
+            descriptors.add(detach(new MPEG7ScalableColor(ListDBLegacyTest.image(i))));
+            descriptors.add(new LabelDescriptor.ImageLabelDescriptor("label" + i, "x" + (i % 7 == 0 ? "long label" : "")));
+            URL locator = i % 5 == 4 ? null : new URL("file:/images/image" + (i % 13) + ".png");
+            db.add(db.new Record(descriptors, locator));
+        }
+        return db;
+    }
+
+    /**
+     * Returns a copy of the given descriptor without media source (as the
+     * descriptors read from a file), so it can be combined with others.
+     *
+     * @param descriptor the descriptor
+     * @return the copy
+     */
+    static <D extends MediaDescriptor> D detach(D descriptor) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(descriptor);
+            }
+            return (D) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+        } catch (IOException | ClassNotFoundException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    /**
+     * Checks that the given records have the same descriptors and locators.
+     */
+    static void assertSameRecord(ListDB.Record expected, ListDB.Record actual) {
+        assertEquals(expected.getLocator(), actual.getLocator());
+        assertEquals(expected.size(), actual.size());
+        for (int d = 0; d < expected.size(); d++) {
+            assertEquals(0.0, ((Number) expected.get(d).compare(actual.get(d))).doubleValue(), 0.0);
+        }
+    }
+
+    @Test
+    public void saveAndOpen() throws Exception {
+        ListDB<BufferedImage> db = database();
+        db.setParallelism(4);
+        db.setOrderReference(db.get(3));
+        File file = folder.newFile("db.jmr");
+        db.save(file);
+        ListDB<BufferedImage> copy = ListDB.open(file);
+        assertEquals(db.getDescriptorClasses(), copy.getDescriptorClasses());
+        assertEquals(SIZE, copy.size());
+        assertEquals(1, copy.getParallelism());
+        for (int i = 0; i < SIZE; i++) {
+            assertSameRecord(db.get(i), copy.get(i));
+        }
+        assertSameRecord(db.get(3), copy.getOrderReference());
+    }
+
+    @Test
+    public void saveAndOpenEmpty() throws Exception {
+        ListDB<BufferedImage> db = new ListDB<>(MPEG7ScalableColor.class);
+        File file = folder.newFile("empty.jmr");
+        db.save(file);
+        assertTrue(ListDB.open(file).isEmpty());
+        try (MappedListDB mapped = MappedListDB.open(file)) {
+            assertTrue(mapped.isEmpty());
+            assertTrue(mapped.verify());
+        }
+    }
+
+    @Test
+    public void saveAndMap() throws Exception {
+        ListDB<BufferedImage> db = database();
+        File file = folder.newFile("mapped.jmr");
+        db.save(file);
+        try (MappedListDB<BufferedImage> mapped = MappedListDB.open(file)) {
+            assertTrue(mapped.verify());
+            assertEquals(SIZE, mapped.size());
+            for (int i = 0; i < SIZE; i++) {
+                assertSameRecord(db.get(i), mapped.get(i));
+                assertEquals(db.get(i).getLocator(), mapped.getLocator(i));
+            }
+            assertNull(mapped.getLocator(4));
+            ListDB<BufferedImage>.Record query = db.new Record(ListDBLegacyTest.image(SIZE));
+            List<ResultMetadata<Double, ListDB<BufferedImage>.Record>> expected = db.queryMetadata(query, 10);
+            List<ResultMetadata<Double, ListDB<BufferedImage>.Record>> actual = mapped.queryMetadata(query, 10);
+            assertEquals(expected.size(), actual.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals(expected.get(i).getResult(), actual.get(i).getResult(), 1e-9);
+                assertSameRecord(expected.get(i).getMetadata(), actual.get(i).getMetadata());
+            }
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package jmr.db;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import jmr.descriptor.DescriptorList;
+import jmr.descriptor.color.MPEG7ScalableColor;
+import jmr.descriptor.label.LabelDescriptor;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that the changes written in the journal of a {@link ListDB} are
+ * restored after a crash, discarding the interrupted writes.
+ *
+ * @author Jesús Chamorro Martínez (jesus@decsai.ugr.es)
+ */
+public class ListDBJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Creates a new record for the given database.
+     *
+     * @param db the database
+     * @param seed the seed of the record image
+     * @return the new record
+     */
+    static ListDB<BufferedImage>.Record record(ListDB<BufferedImage> db, int seed) {
+        DescriptorList<BufferedImage> descriptors = new DescriptorList<>(null);
+        descriptors.add(ListDBFormatTest.detach(new MPEG7ScalableColor(ListDBLegacyTest.image(seed))));
+        descriptors.add(new LabelDescriptor.ImageLabelDescriptor("label" + seed));
+        return db.new Record(descriptors);
+    }
+
+    /**
+     * Checks that the given databases have the same records.
+     */
+    static void assertSameRecords(List<ListDB<BufferedImage>.Record> expected, ListDB<BufferedImage> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            ListDBFormatTest.assertSameRecord(expected.get(i), actual.get(i));
+        }
+    }
+
+    /**
+     * Removes the last bytes of the given segment, as a write interrupted by
+     * a crash.
+     */
+    static void tear(File segment, int bytes) throws Exception {
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.setLength(raf.length() - bytes);
+        }
+    }
+
+    @Test
+    public void replayAfterCrash() throws Exception {
+        File file = folder.newFile("db.jmr");
+        ListDB<BufferedImage> db = ListDBFormatTest.database();
+        db.setJournalPolicy(1, 1000, ListDBJournal.DEFAULT_SEGMENT_SIZE, 0);
+        db.startJournal(file);
+        for (int i = 0; i < 10; i++) {
+            db.add(record(db, 100 + i));
+        }
+        db.set(3, record(db, 200));
+        db.remove(7);
+        db.add(2, record(db, 201));
+        List<ListDB<BufferedImage>.Record> expected = db.getRecords();
+        db.add(record(db, 202));
+        // Crash while the last entry is written (the journal is not stopped)
+        File tail = ListDBJournal.segments(file).lastEntry().getValue();
+        tear(tail, 3);
+        long length = tail.length();
+
+        assertSameRecords(expected, ListDB.open(file));
+        assertEquals(length, tail.length());
+        ListDB<BufferedImage> reopened = ListDB.openJournal(file);
+        assertSameRecords(expected, reopened);
+        assertTrue(tail.length() < length);
+        // The journal goes on after the repaired segment
+        reopened.remove(0);
+        expected = reopened.getRecords();
+        reopened.stopJournal();
+        assertSameRecords(expected, ListDB.openJournal(file));
+    }
+
+    @Test
+    public void interruptedSegmentDiscardsLaterOnes() throws Exception {
+        File file = folder.newFile("db.jmr");
+        ListDB<BufferedImage> db = ListDBFormatTest.database();
+        // A segment for each entry
+        db.setJournalPolicy(4, 1000, 1, 0);
+        db.startJournal(file);
+        List<List<ListDB<BufferedImage>.Record>> states = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            states.add(db.getRecords());
+            db.add(record(db, 100 + i));
+        }
+        db.syncJournal();
+        TreeMap<Long, File> segments = ListDBJournal.segments(file);
+        assertEquals(7, segments.size());
+        // The third entry (in the third segment) is interrupted
+        File torn = new ArrayList<>(segments.values()).get(2);
+        tear(torn, 1);
+
+        assertSameRecords(states.get(2), ListDB.open(file));
+        assertSameRecords(states.get(2), ListDB.openJournal(file));
+        // The next segment is the new tail
+        for (File segment : segments.tailMap(segments.firstKey() + 4).values()) {
+            assertFalse(segment.exists());
+        }
+    }
+
+    @Test
+    public void interruptedSegmentHeader() throws Exception {
+        File file = folder.newFile("db.jmr");
+        ListDB<BufferedImage> db = ListDBFormatTest.database();
+        db.setJournalPolicy(1, 1000, ListDBJournal.DEFAULT_SEGMENT_SIZE, 0);
+        db.startJournal(file);
+        db.add(record(db, 100));
+        List<ListDB<BufferedImage>.Record> expected = db.getRecords();
+        // Crash just after starting a new segment
+        db.compact();
+        File tail = ListDBJournal.segments(file).lastEntry().getValue();
+        tear(tail, (int) tail.length() - 5);
+
+        ListDB<BufferedImage> reopened = ListDB.openJournal(file);
+        assertSameRecords(expected, reopened);
+        assertFalse(tail.exists());
+        reopened.add(record(reopened, 101));
+        expected = reopened.getRecords();
+        reopened.stopJournal();
+        assertSameRecords(expected, ListDB.openJournal(file));
+    }
+
+    @Test
+    public void concurrentWritersAndCompaction() throws Exception {
+        File file = folder.newFile("db.jmr");
+        ListDB<BufferedImage> db = ListDBFormatTest.database();
+        db.setJournalPolicy(1, 1000, 4096, 0);
+        db.startJournal(file);
+        Thread writers[] = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            int first = 1000 * (t + 1);
+            writers[t] = new Thread(() -> {
+                for (int i = 0; i < 30; i++) {
+                    db.add(record(db, first + i));
+                }
+            });
+            writers[t].start();
+        }
+        for (int i = 0; i < 10; i++) {
+            db.query(db.get(i), 5);
+        }
+        db.compactAsync().get();
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        db.compact();
+        db.add(record(db, 5000));
+        List<ListDB<BufferedImage>.Record> expected = db.getRecords();
+        assertEquals(ListDBFormatTest.SIZE + 121, expected.size());
+        // Crash without stopping the journal
+        assertSameRecords(expected, ListDB.openJournal(file));
+    }
+}
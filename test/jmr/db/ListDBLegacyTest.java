@@ -0,0 +1,130 @@
+package jmr.db;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import jmr.descriptor.GriddedDescriptor;
+import jmr.descriptor.MediaDescriptor;
+import jmr.descriptor.color.MPEG7ColorStructure;
+import jmr.descriptor.color.MPEG7ScalableColor;
+import jmr.descriptor.label.LabelDescriptor;
+import static org.junit.Assert.assertEquals;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that the databases saved by the first published version of
+ * {@link ListDB} (as a serialized object) can still be opened.
+ *
+ * The file <tt>legacy-listdb.gz</tt> was written by that version with the
+ * images of {@link #image(int)}, the descriptor classes of
+ * {@link #CLASSES} and the locators of {@link #locator(int)}.
+ *
+ * @author Jesús Chamorro Martínez (jesus@decsai.ugr.es)
+ */
+public class ListDBLegacyTest {
+    /**
+     * Descriptor classes of the legacy database.
+     */
+    static final Class CLASSES[] = {MPEG7ScalableColor.class,
+        MPEG7ColorStructure.class, GriddedDescriptor.class,
+        LabelDescriptor.ImageLabelDescriptor.class};
+    /**
+     * Number of records of the legacy database.
+     */
+    static final int SIZE = 3;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Returns the image of the given record of the legacy database.
+     *
+     * @param seed the index of the record
+     * @return the image
+     */
+    static BufferedImage image(int seed) {
+        Random random = new Random(seed);
+        BufferedImage image = new BufferedImage(48, 40, BufferedImage.TYPE_INT_RGB);
+        int base = random.nextInt(0x1000000);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                int rgb = (x * 5 + y * 3 + random.nextInt(24)) % 256 * 0x10000
+                        + (y * 6 + random.nextInt(24)) % 256 * 0x100
+                        + (x * 4 + random.nextInt(24)) % 256;
+                image.setRGB(x, y, rgb ^ base);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Returns the locator of the given record of the legacy database.
+     *
+     * @param index the index of the record
+     * @return the locator
+     * @throws IOException if the locator is not valid
+     */
+    static URL locator(int index) throws IOException {
+        return new URL("file:/images/image" + index + ".png");
+    }
+
+    /**
+     * Extracts the legacy database to a temporary file.
+     *
+     * @return the file
+     * @throws IOException if an I/O error occurs
+     */
+    File legacyFile() throws IOException {
+        File file = folder.newFile("legacy.db");
+        try (InputStream in = new GZIPInputStream(getClass().getResourceAsStream("legacy-listdb.gz"));
+                OutputStream out = new FileOutputStream(file)) {
+            byte buffer[] = new byte[8192];
+            for (int n; (n = in.read(buffer)) > 0;) {
+                out.write(buffer, 0, n);
+            }
+        }
+        return file;
+    }
+
+    @Test
+    public void openLegacyFile() throws Exception {
+        ListDB<BufferedImage> db = ListDB.open(legacyFile());
+        assertEquals(SIZE, db.size());
+        assertEquals(Arrays.asList(CLASSES), db.getDescriptorClasses());
+        assertEquals(1, db.getParallelism());
+        for (int i = 0; i < SIZE; i++) {
+            ListDB<BufferedImage>.Record record = db.get(i);
+            assertEquals(locator(i), record.getLocator());
+            ListDB<BufferedImage>.Record expected = db.new Record(image(i));
+            for (int d = 0; d < CLASSES.length; d++) {
+                MediaDescriptor stored = record.get(d);
+                assertEquals(CLASSES[d], stored.getClass());
+                assertEquals("Descriptor " + d + " of record " + i, 0.0,
+                        ((Number) stored.compare(expected.get(d))).doubleValue(), 0.0);
+            }
+        }
+    }
+
+    @Test
+    public void saveAndOpenLegacyDatabase() throws Exception {
+        ListDB<BufferedImage> db = ListDB.open(legacyFile());
+        db.add(image(SIZE), locator(SIZE));
+        File file = folder.newFile("converted.db");
+        db.save(file);
+        ListDB<BufferedImage> copy = ListDB.open(file);
+        assertEquals(SIZE + 1, copy.size());
+        for (int i = 0; i <= SIZE; i++) {
+            assertEquals(locator(i), copy.get(i).getLocator());
+            assertEquals(0.0, copy.get(i).<Double>compare(db.get(i)), 0.0);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package jmr.db;
+
+import java.awt.image.BufferedImage;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import jmr.result.ResultMetadata;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Checks that the parallel scan and the metric indexes of {@link ListDB}
+ * return the same nearest records than the sequential scan.
+ *
+ * @author Jesús Chamorro Martínez (jesus@decsai.ugr.es)
+ */
+public class ListDBSearchTest {
+    /**
+     * Number of nearest records of each query.
+     */
+    static final int K = 25;
+
+    /**
+     * Checks that the given results have the same distances, that each
+     * distance is the one of its record and that the records nearer than the
+     * last distance are the same (the records at that distance may differ).
+     */
+    static void assertSameNeighbors(ListDB<BufferedImage>.Record query,
+            List<ResultMetadata<Double, ListDB<BufferedImage>.Record>> expected,
+            List<ResultMetadata<Double, ListDB<BufferedImage>.Record>> actual) {
+        assertEquals(expected.size(), actual.size());
+        Map<ListDB.Record, Double> found = new IdentityHashMap<>();
+        for (int i = 0; i < actual.size(); i++) {
+            assertEquals(expected.get(i).getResult(), actual.get(i).getResult(), 0.0);
+            assertEquals(actual.get(i).getResult(), (Double) query.compare(actual.get(i).getMetadata()), 0.0);
+            found.put(actual.get(i).getMetadata(), actual.get(i).getResult());
+        }
+        double last = expected.isEmpty() ? 0.0 : expected.get(expected.size() - 1).getResult();
+        for (ResultMetadata<Double, ListDB<BufferedImage>.Record> result : expected) {
+            if (result.getResult() < last) {
+                assertTrue(found.containsKey(result.getMetadata()));
+            }
+        }
+    }
+
+    @Test
+    public void parallelScanMatchesSequential() {
+        ListDB<BufferedImage> db = MappedListDBTest.database();
+        for (int q = 0; q < 5; q++) {
+            ListDB<BufferedImage>.Record query = db.get(q * 307);
+            db.setParallelism(1);
+            List<ResultMetadata<Double, ListDB<BufferedImage>.Record>> sequential = db.queryMetadata(query, K);
+            List<ResultMetadata<Double, ListDB<BufferedImage>.Record>> all = db.queryMetadata(query);
+            db.setParallelism(3);
+            assertSameNeighbors(query, sequential, db.queryMetadata(query, K));
+            assertSameNeighbors(query, all, db.queryMetadata(query));
+            assertSameNeighbors(query, sequential, all.subList(0, K));
+        }
+        db.setParallelism(1);
+    }
+
+    /**
+     * Checks that the given results have the same distances and the same
+     * records (also among the records at the same distance).
+     */
+    static void assertIdentical(List<ResultMetadata<Double, ListDB<BufferedImage>.Record>> expected,
+            List<ResultMetadata<Double, ListDB<BufferedImage>.Record>> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getResult(), actual.get(i).getResult(), 0.0);
+            assertTrue(expected.get(i).getMetadata() == actual.get(i).getMetadata());
+        }
+    }
+
+    @Test
+    public void parallelTopKBreaksTiesAsSequential() {
+        // Most distances are infinite (different labels), so there are many
+        // ties, which are broken by the position of the records
+        ListDB<BufferedImage> db = MappedListDBTest.database();
+        ForkJoinPool shared = new ForkJoinPool(5);
+        try {
+            for (boolean columnar : new boolean[]{false, true}) {
+                db.setColumnar(columnar);
+                for (int q = 0; q < 3; q++) {
+                    ListDB<BufferedImage>.Record query = db.get(q * 401 + 3);
+                    for (int k : new int[]{1, K, 200, db.size() + 5}) {
+                        db.setParallelism(1);
+                        List<ResultMetadata<Double, ListDB<BufferedImage>.Record>> sequential = db.queryMetadata(query, k);
+                        List<ResultMetadata<Double, ListDB<BufferedImage>.Record>> range = db.queryRange(query, 0.0);
+                        for (int parallelism : new int[]{2, 3, 8, 0}) {
+                            if (parallelism > 0) {
+                                db.setParallelism(parallelism);
+                            } else {
+                                db.setParallelism(shared);
+                            }
+                            assertIdentical(sequential, db.queryMetadata(query, k));
+                            assertIdentical(range, db.queryRange(query, 0.0));
+                        }
+                    }
+                }
+            }
+        } finally {
+            db.setParallelism(1);
+            shared.shutdown();
+        }
+    }
+
+    /**
+     * Checks that the queries answered by the given index are the same than
+     * the ones answered by scanning the records, also after modifying the
+     * database.
+     */
+    static void assertIndexMatchesScan(MetricIndex<ListDB<BufferedImage>.Record> index) {
+        ListDB<BufferedImage> db = MappedListDBTest.database();
+        for (int step = 0; step < 2; step++) {
+            for (int q = 0; q < 5; q++) {
+                ListDB<BufferedImage>.Record query = db.get(q * 211 + 5);
+                db.setIndex(null);
+                List<ResultMetadata<Double, ListDB<BufferedImage>.Record>> nearest = db.queryMetadata(query, K);
+                double radius = nearest.get(K / 2).getResult();
+                List<ResultMetadata<Double, ListDB<BufferedImage>.Record>> range = db.queryRange(query, radius);
+                // Built in the first step, and kept up to date in the second
+                db.setIndex(index, step == 0 && q == 0);
+                assertSameNeighbors(query, nearest, db.queryMetadata(query, K));
+                List<ResultMetadata<Double, ListDB<BufferedImage>.Record>> indexed = db.queryRange(query, radius);
+                assertEquals(range.size(), indexed.size());
+                assertSameNeighbors(query, range, indexed);
+            }
+            for (int i = 0; i < 100; i++) {
+                db.remove(i * 7);
+            }
+            assertEquals(db.size(), index.size());
+        }
+        db.setIndex(null);
+    }
+
+    @Test
+    public void vpTreeMatchesScan() {
+        assertIndexMatchesScan(new VPTree<>());
+    }
+
+    @Test
+    public void pivotTableMatchesScan() {
+        assertIndexMatchesScan(new PivotTable<>());
+    }
+}
@@ -0,0 +1,98 @@
+package jmr.db;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import jmr.descriptor.DescriptorList;
+import jmr.descriptor.color.MPEG7ScalableColor;
+import jmr.descriptor.label.LabelDescriptor;
+import jmr.result.ResultMetadata;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks the queries of {@link MappedListDB} against those of {@link ListDB},
+ * with sequential and parallel scans.
+ *
+ * @author Jesús Chamorro Martínez (jesus@decsai.ugr.es)
+ */
+public class MappedListDBTest {
+    /**
+     * Number of records (enough for a parallel scan).
+     */
+    static final int SIZE = 1500;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Creates a database whose records have a scalable color descriptor
+     * (computed from a small image) and a label descriptor of variable size.
+     *
+     * @return the new database
+     */
+    static ListDB<BufferedImage> database() {
+        ListDB<BufferedImage> db = new ListDB<>(MPEG7ScalableColor.class, LabelDescriptor.ImageLabelDescriptor.class);
+        for (int i = 0; i < SIZE; i++) {
+            BufferedImage image = new BufferedImage(4, 4, BufferedImage.TYPE_INT_RGB);
+            for (int p = 0; p < 16; p++) {
+                image.setRGB(p % 4, p / 4, (i * 7919 + p * 104729) * 31 & 0xFFFFFF);
+            }
+            DescriptorList<BufferedImage> descriptors = new DescriptorList<>(null);
+            descriptors.add(ListDBFormatTest.detach(new MPEG7ScalableColor(image)));
+            descriptors.add(new LabelDescriptor.ImageLabelDescriptor("l" + (i % 97)));
+            db.add(db.new Record(descriptors));
+        }
+        return db;
+    }
+
+    /**
+     * Checks that the given results have the same distances and records.
+     */
+    static void assertSameResults(List<? extends ResultMetadata<Double, ? extends ListDB.Record>> expected,
+            List<? extends ResultMetadata<Double, ? extends ListDB.Record>> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getResult(), actual.get(i).getResult(), 1e-9);
+            ListDBFormatTest.assertSameRecord(expected.get(i).getMetadata(), actual.get(i).getMetadata());
+        }
+    }
+
+    @Test
+    public void parallelScanMatchesSequential() throws Exception {
+        ListDB<BufferedImage> db = database();
+        File file = folder.newFile("db.jmr");
+        db.save(file);
+        try (MappedListDB<BufferedImage> mapped = MappedListDB.open(file)) {
+            for (int q = 0; q < 5; q++) {
+                ListDB<BufferedImage>.Record query = db.get(q * 301);
+                List<ResultMetadata<Double, ListDB<BufferedImage>.Record>> expected = db.queryMetadata(query, 25);
+                mapped.setParallelism(1);
+                List<ResultMetadata<Double, ListDB<BufferedImage>.Record>> sequential = mapped.queryMetadata(query, 25);
+                mapped.setParallelism(3);
+                List<ResultMetadata<Double, ListDB<BufferedImage>.Record>> parallel = mapped.queryMetadata(query, 25);
+                assertSameResults(expected, sequential);
+                assertSameResults(sequential, parallel);
+            }
+        }
+    }
+
+    @Test
+    public void truncatedFileIsRejected() throws Exception {
+        File file = folder.newFile("truncated.jmr");
+        database().save(file);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 20);
+        }
+        try (MappedListDB mapped = MappedListDB.open(file)) {
+            fail("A truncated file was opened");
+        } catch (IOException ex) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package jmr.descriptor;
+
+import java.awt.image.BufferedImage;
+import java.lang.reflect.Field;
+import java.security.InvalidParameterException;
+import java.util.Map;
+import java.util.function.Function;
+import jmr.colorspace.ColorConvertToolsTest;
+import jmr.descriptor.color.MPEG7ScalableColor;
+import jmr.media.JMRExtendedBufferedImage;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Checks the resolution (and the caching) of the functions used by
+ * {@link MediaDescriptorFactory} for constructing the descriptors.
+ *
+ * @author Jesús Chamorro Martínez (jesus@decsai.ugr.es)
+ */
+public class MediaDescriptorFactoryTest {
+
+    /**
+     * Descriptor that keeps the parameter type of the constructor used.
+     */
+    public static class TestDescriptor implements MediaDescriptor<Object> {
+        final Class parameter;
+
+        public TestDescriptor(Object media) {
+            this.parameter = Object.class;
+        }
+
+        public TestDescriptor(CharSequence media) {
+            this.parameter = CharSequence.class;
+        }
+
+        public TestDescriptor(Integer media) {
+            this.parameter = Integer.class;
+        }
+
+        TestDescriptor(Class parameter) {
+            this.parameter = parameter;
+        }
+
+        @Override
+        public void init(Object media) {
+        }
+
+        @Override
+        public <R> R compare(MediaDescriptor descriptor) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the functions resolved by the factory for the given descriptor
+     * class.
+     */
+    static Map<Class, Function> resolved(Class descriptorClass) throws Exception {
+        Field field = MediaDescriptorFactory.class.getDeclaredField("resolved");
+        field.setAccessible(true);
+        return ((Map<Class, Map<Class, Function>>) field.get(null)).get(descriptorClass);
+    }
+
+    @Test
+    public void mostSpecificConstructor() {
+        assertEquals(Integer.class, MediaDescriptorFactory.getInstance(TestDescriptor.class, 5).parameter);
+        assertEquals(CharSequence.class, MediaDescriptorFactory.getInstance(TestDescriptor.class, "text").parameter);
+        assertEquals(CharSequence.class, MediaDescriptorFactory.getInstance(TestDescriptor.class, new StringBuilder()).parameter);
+        assertEquals(Object.class, MediaDescriptorFactory.getInstance(TestDescriptor.class, 5.0).parameter);
+        // A constructor of BufferedImage for a subclass of it
+        BufferedImage image = ColorConvertToolsTest.image(BufferedImage.TYPE_INT_RGB, 60, 50, 10);
+        MPEG7ScalableColor descriptor = MediaDescriptorFactory.getInstance(MPEG7ScalableColor.class, new JMRExtendedBufferedImage(image));
+        assertArrayEquals(new MPEG7ScalableColor(image).getCoefficients(), descriptor.getCoefficients());
+    }
+
+    @Test(expected = InvalidParameterException.class)
+    public void missingConstructor() {
+        MediaDescriptorFactory.getInstance(MPEG7ScalableColor.class, "text");
+    }
+
+    @Test
+    public void lookupsAreCached() throws Exception {
+        TestDescriptor first = MediaDescriptorFactory.getInstance(TestDescriptor.class, "a");
+        Function function = resolved(TestDescriptor.class).get(String.class);
+        TestDescriptor second = MediaDescriptorFactory.getInstance(TestDescriptor.class, "b");
+        assertTrue(first != second);
+        assertSame(function, resolved(TestDescriptor.class).get(String.class));
+
+        // A registered function replaces the cached ones, also for the
+        // subclasses of its media class
+        MediaDescriptorFactory.register(TestDescriptor.class, CharSequence.class, m -> new TestDescriptor(Function.class));
+        try {
+            assertTrue(resolved(TestDescriptor.class) == null || resolved(TestDescriptor.class).isEmpty());
+            assertEquals(Function.class, MediaDescriptorFactory.getInstance(TestDescriptor.class, "c").parameter);
+            assertEquals(Function.class, MediaDescriptorFactory.getInstance(TestDescriptor.class, new StringBuilder()).parameter);
+            assertEquals(Integer.class, MediaDescriptorFactory.getInstance(TestDescriptor.class, 5).parameter);
+            assertFalse(resolved(TestDescriptor.class).get(String.class) == function);
+        } finally {
+            MediaDescriptorFactory.register(TestDescriptor.class, CharSequence.class, TestDescriptor::new);
+        }
+    }
+}
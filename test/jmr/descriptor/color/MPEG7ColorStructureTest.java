@@ -0,0 +1,96 @@
+package jmr.descriptor.color;
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+import jmr.colorspace.ColorConvertToolsTest;
+import jmr.media.JMRExtendedBufferedImage;
+import static org.junit.Assert.assertArrayEquals;
+import org.junit.Test;
+
+/**
+ * Checks that the extraction of {@link MPEG7ColorStructure} (quantizing the
+ * packed RGB pixels directly and sliding the structuring element) gives the
+ * same histogram than quantizing the HMMD image and scanning the whole
+ * structuring element at each position.
+ *
+ * @author Jesús Chamorro Martínez (jesus@decsai.ugr.es)
+ */
+public class MPEG7ColorStructureTest {
+
+    /**
+     * Returns the histogram of the given image calculated as the first
+     * version of the descriptor: the image is wrapped in a
+     * {@link JMRExtendedBufferedImage} (so the data of the images with
+     * premultiplied alpha are coerced), converted to HMMD and quantized pixel
+     * by pixel, and the local histogram of the structuring element is
+     * calculated again at each position.
+     *
+     * @param descriptor a descriptor with the levels to be used
+     * @param image the image
+     * @return the histogram
+     */
+    static int[] reference(MPEG7ColorStructure descriptor, BufferedImage image) {
+        int wImg = image.getWidth(), hImg = image.getHeight(), qLevels = descriptor.qLevels;
+        byte imQ[][] = descriptor.quantHMMDImage(descriptor.convertImg(new JMRExtendedBufferedImage(image)));
+        double hw = Math.sqrt(hImg * wImg);
+        double p = Math.floor(Math.log(hw) / Math.log(2) - 7.5);
+        if (p < 0) {
+            p = 0;
+        }
+        double K = Math.pow(2, p);
+        double E = 8 * K;
+        float histo[] = new float[qLevels];
+        int winHisto[] = new int[qLevels];
+        for (int y = 0; y < hImg - E; y += K) {
+            for (int x = 0; x < wImg - E; x += K) {
+                for (int m = 0; m < qLevels; m++) {
+                    winHisto[m] = 0;
+                }
+                for (int yy = y; yy < y + E; yy += K) {
+                    for (int xx = x; xx < x + E; xx += K) {
+                        winHisto[imQ[yy][xx] & 0xFF]++;
+                    }
+                }
+                for (int m = 0; m < qLevels; m++) {
+                    if (winHisto[m] > 0) {
+                        histo[m]++;
+                    }
+                }
+            }
+        }
+        int winShift_X = ((wImg - 1) - (int) E + (int) K);
+        int winShift_Y = ((hImg - 1) - (int) E + (int) K);
+        int S = (winShift_X / (int) K) * (winShift_Y / (int) K);
+        for (int m = 0; m < qLevels; m++) {
+            histo[m] = histo[m] / S;
+        }
+        return descriptor.reQuantization(histo);
+    }
+
+    /**
+     * Checks the descriptors of images of the given size.
+     */
+    static void assertSameHistograms(int width, int height, int levels[]) {
+        // Each calculation uses its own copy of the images, since the data of
+        // the premultiplied ones are coerced
+        for (int qLevels : levels) {
+            List<BufferedImage> images = ColorConvertToolsTest.images(width, height);
+            List<BufferedImage> copies = ColorConvertToolsTest.images(width, height);
+            for (int i = 0; i < images.size(); i++) {
+                MPEG7ColorStructure descriptor = new MPEG7ColorStructure(images.get(i), qLevels);
+                assertArrayEquals(reference(descriptor, copies.get(i)), descriptor.getHistogram());
+            }
+        }
+    }
+
+    @Test
+    public void extractionMatchesPixelQuantization() {
+        assertSameHistograms(150, 140, new int[]{256, 128, 64});
+    }
+
+    @Test
+    public void extractionWithSparseElement() {
+        // The pixels of the structuring element are two pixels apart
+        assertSameHistograms(420, 400, new int[]{256});
+    }
+}
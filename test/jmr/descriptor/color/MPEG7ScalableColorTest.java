@@ -0,0 +1,95 @@
+package jmr.descriptor.color;
+
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import jmr.colorspace.ColorConvertToolsTest;
+import jmr.colorspace.ColorSpaceJMR;
+import jmr.media.JMRExtendedBufferedImage;
+import jmr.tools.DistanceTools;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * Checks that the extraction of {@link MPEG7ScalableColor} (quantizing the
+ * packed RGB pixels directly) gives the same coefficients than converting
+ * each pixel to HSV, and that the compact (<code>short</code>) copies of the
+ * coefficients give the same distances than the <code>int</code> ones.
+ *
+ * @author Jesús Chamorro Martínez (jesus@decsai.ugr.es)
+ */
+public class MPEG7ScalableColorTest {
+
+    /**
+     * Returns the coefficients of the given image calculated pixel by pixel,
+     * with the HSV color space, as the first version of the descriptor (which
+     * wraps the image in a {@link JMRExtendedBufferedImage}, so the data of
+     * the images with premultiplied alpha are coerced).
+     *
+     * @param descriptor a descriptor with the parameters to be used
+     * @param image the image
+     * @return the coefficients
+     */
+    static int[] reference(MPEG7ScalableColor descriptor, BufferedImage image) {
+        ColorSpace cs = ColorSpaceJMR.getInstance(MPEG7ScalableColor.COLOR_SPACE);
+        BufferedImage wrapped = new JMRExtendedBufferedImage(image);
+        int histoMx[][][] = new int[descriptor.H_BINS][descriptor.S_BINS][descriptor.V_BINS];
+        float p_in[] = new float[3];
+        for (int x = 0; x < wrapped.getWidth(); x++) {
+            for (int y = 0; y < wrapped.getHeight(); y++) {
+                int RGB = wrapped.getRGB(x, y);
+                p_in[0] = (float) ((RGB >> 16) & 0xFF) / 255.0f;
+                p_in[1] = (float) ((RGB >> 8) & 0xFF) / 255.0f;
+                p_in[2] = (float) (RGB & 0xFF) / 255.0f;
+                float pixel[] = cs.fromRGB(p_in);
+                histoMx[(int) (pixel[0] / descriptor.H_SCALE)][(int) (pixel[1] / descriptor.S_SCALE)][(int) (pixel[2] / descriptor.V_SCALE)]++;
+            }
+        }
+        int histoVec[] = descriptor.histoMx2histoVec(histoMx);
+        descriptor.QuantizeHistogram(histoVec);
+        return Arrays.copyOf(descriptor.HaarTransform(histoVec), descriptor.getNumCoefficients());
+    }
+
+    @Test
+    public void extractionMatchesPixelConversion() {
+        // Each calculation uses its own copy of the images, since the data of
+        // the premultiplied ones are coerced
+        for (int coefficients : new int[]{256, 64}) {
+            List<BufferedImage> images = ColorConvertToolsTest.images(150, 140);
+            List<BufferedImage> copies = ColorConvertToolsTest.images(150, 140);
+            for (int i = 0; i < images.size(); i++) {
+                MPEG7ScalableColor descriptor = new MPEG7ScalableColor(images.get(i), coefficients, 0);
+                assertArrayEquals(reference(descriptor, copies.get(i)), descriptor.getCoefficients());
+            }
+        }
+    }
+
+    @Test
+    public void compactCoefficientsMatchIntOnes() throws Exception {
+        List<BufferedImage> images = ColorConvertToolsTest.images(150, 140);
+        MPEG7ScalableColor.Serializer serializer = new MPEG7ScalableColor.Serializer();
+        for (BufferedImage image : images) {
+            MPEG7ScalableColor t = new MPEG7ScalableColor(image);
+            int coefficients[] = t.getCoefficients();
+            short compact[] = new short[coefficients.length];
+            for (int i = 0; i < coefficients.length; i++) {
+                compact[i] = (short) coefficients[i];
+                assertEquals(coefficients[i], compact[i]);
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            serializer.write(t, new DataOutputStream(bytes));
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            for (BufferedImage other : images) {
+                MPEG7ScalableColor u = new MPEG7ScalableColor(other);
+                double distance = u.compare(t);
+                assertEquals(distance, DistanceTools.l1(u.getCoefficients(), 0, compact, 0, compact.length), 0.0);
+                assertEquals(distance, (Double) serializer.compare(u, buffer, 0, buffer.capacity(), serializer.getVersion()), 0.0);
+            }
+        }
+    }
+}
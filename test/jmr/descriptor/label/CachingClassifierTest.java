@@ -0,0 +1,74 @@
+package jmr.descriptor.label;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that {@link CachingClassifier} returns copies of the kept results
+ * and bounds its spill file.
+ *
+ * @author Jesús Chamorro Martínez (jesus@decsai.ugr.es)
+ */
+public class CachingClassifierTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Returns a classifier of integers that counts its classifications.
+     */
+    static Classifier<Integer, ArrayList<String>> classifier(AtomicInteger count) {
+        return t -> {
+            count.incrementAndGet();
+            return new ArrayList<>(Arrays.asList("label" + t, "other" + t));
+        };
+    }
+
+    @Test
+    public void resultsAreCopies() {
+        AtomicInteger count = new AtomicInteger();
+        CachingClassifier<Integer, ArrayList<String>> cache = new CachingClassifier<>(classifier(count), 10);
+        ArrayList<String> first = cache.apply(1);
+        first.clear();
+        ArrayList<String> second = cache.apply(1);
+        second.add("modified");
+        assertEquals(Arrays.asList("label1", "other1"), cache.apply(1));
+        assertEquals(1, count.get());
+        assertEquals(2, cache.getHitCount());
+    }
+
+    @Test
+    public void spillFileIsBounded() throws Exception {
+        AtomicInteger count = new AtomicInteger();
+        File file = folder.newFile("spill");
+        CachingClassifier<Integer, ArrayList<String>> cache = new CachingClassifier<>(classifier(count), 2, file, 5);
+        long maxLength = 0;
+        for (int i = 0; i < 300; i++) {
+            cache.apply(100 + i);
+            if (i % 3 == 0 && i > 0) {
+                // Read back from the spill file
+                assertEquals(Arrays.asList("label" + (100 + i - 2), "other" + (100 + i - 2)), cache.apply(100 + i - 2));
+            }
+            assertTrue(cache.getSpilledCount() <= 5);
+            assertEquals(cache.getSpillLength(), file.length());
+            maxLength = Math.max(maxLength, file.length());
+        }
+        assertTrue(cache.getSpillHitCount() > 0);
+        assertEquals(300, count.get());
+        // At most twice the size of the results in the file (and one more)
+        long entry = file.length() / cache.getSpilledCount();
+        assertTrue(maxLength <= 2 * 6 * (entry + 8));
+
+        cache.clear();
+        assertEquals(0, cache.getSpilledCount());
+        assertEquals(0, file.length());
+        cache.close();
+    }
+}
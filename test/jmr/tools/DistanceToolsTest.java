@@ -0,0 +1,97 @@
+package jmr.tools;
+
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Checks that the kernels of {@link DistanceTools} give the same results than
+ * the plain sequential loops.
+ *
+ * @author Jesús Chamorro Martínez (jesus@decsai.ugr.es)
+ */
+public class DistanceToolsTest {
+    /**
+     * Lengths of the vectors checked (around the sizes of the blocks).
+     */
+    static final int LENGTHS[] = {0, 1, 15, 16, 17, 255, 256, 1023, 1024, 1025, 3000};
+
+    /**
+     * Returns a vector of random values, whose differences are lower than
+     * {@link DistanceTools#MAX_DIFFERENCE}.
+     */
+    static int[] vector(Random random, int length) {
+        int v[] = new int[length];
+        for (int i = 0; i < length; i++) {
+            v[i] = random.nextInt(DistanceTools.MAX_DIFFERENCE) - DistanceTools.MAX_DIFFERENCE / 2;
+        }
+        return v;
+    }
+
+    /**
+     * Returns the L1 distance between the given subvectors, added up in a
+     * plain loop.
+     */
+    static long plain(int a[], int aOffset, int b[], int bOffset, int length) {
+        long sum = 0;
+        for (int i = 0; i < length; i++) {
+            sum += Math.abs((long) a[aOffset + i] - b[bOffset + i]);
+        }
+        return sum;
+    }
+
+    @Test
+    public void kernelsMatchPlainLoops() {
+        Random random = new Random(21);
+        for (int length : LENGTHS) {
+            int a[] = vector(random, length + 5), b[] = vector(random, length + 9);
+            short c[] = new short[b.length];
+            for (int i = 0; i < b.length; i++) {
+                c[i] = (short) (b[i] >> 5);
+                b[i] = c[i];
+            }
+            assertEquals(plain(a, 0, b, 0, length), DistanceTools.l1(a, b, length));
+            assertEquals(plain(a, 5, b, 9, length), DistanceTools.l1(a, 5, b, 9, length));
+            assertEquals(plain(a, 3, b, 2, length), DistanceTools.l1(a, 3, c, 2, length));
+            assertEquals(plain(a, 5, b, 9, length), DistanceTools.l1(a, 5, b, 9, length, Long.MAX_VALUE));
+        }
+    }
+
+    @Test
+    public void boundedKernel() {
+        Random random = new Random(22);
+        for (int length : LENGTHS) {
+            int a[] = vector(random, length), b[] = vector(random, length);
+            long distance = plain(a, 0, b, 0, length);
+            for (long bound : new long[]{0, distance / 3, distance - 1, distance, distance + 1, Long.MAX_VALUE}) {
+                long bounded = DistanceTools.l1(a, 0, b, 0, length, bound);
+                if (distance <= bound) {
+                    assertEquals(distance, bounded);
+                } else {
+                    assertTrue(bounded > bound && bounded <= distance);
+                    // Abandoned in the first check after exceeding the bound
+                    assertTrue(bounded - bound <= (long) DistanceTools.ABANDON_STEP * DistanceTools.MAX_DIFFERENCE);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void floor() {
+        assertEquals(2, DistanceTools.floor(2.5));
+        assertEquals(3, DistanceTools.floor(3.0));
+        assertEquals(0, DistanceTools.floor(Math.nextDown(1.0)));
+        assertEquals(-1, DistanceTools.floor(-0.5));
+        assertEquals(Long.MAX_VALUE, DistanceTools.floor(Double.POSITIVE_INFINITY));
+        assertEquals(Long.MAX_VALUE, DistanceTools.floor(Double.NaN));
+        assertEquals(Long.MAX_VALUE, DistanceTools.floor(1e30));
+        // An integer sum exceeds a bound if and only if it exceeds its floor
+        Random random = new Random(23);
+        for (int i = 0; i < 10000; i++) {
+            double bound = random.nextDouble() * 1000;
+            long sum = random.nextInt(1001);
+            assertEquals(sum > bound, sum > DistanceTools.floor(bound));
+        }
+    }
+}